@@ -6,5 +6,7 @@ void write_word(unsigned int address, unsigned int value);
 
 void enable_interrupts();
 void disable_interrupts();
+// sleeps until an interrupt is pending or a peripheral changes state
+void wait_for_interrupt();
 
 #endif // _SYSTEM_H_
@@ -100,4 +100,9 @@ enable_interrupts:
 disable_interrupts:
 	csrrci x0, 0x300, 1	# clear bit 1 of mstatus
 	ret
+
+	.globl wait_for_interrupt
+wait_for_interrupt:
+	.word 0x10200073	# wfi
+	ret
 	
@@ -4,7 +4,7 @@ public class AddressTrapException extends ProcessorTrapException {
 
   private static final long serialVersionUID = 1L;
   
-  private final int badaddr;
+  private int badaddr;
   public int getBadAddr() {
     return this.badaddr;
   }
@@ -14,4 +14,10 @@ public class AddressTrapException extends ProcessorTrapException {
     this.badaddr = badaddr;
   }
   
+  // for RV32SystemBus, which reuses one instance per cause
+  AddressTrapException at(int badaddr) {
+    this.badaddr = badaddr;
+    return this;
+  }
+  
 }
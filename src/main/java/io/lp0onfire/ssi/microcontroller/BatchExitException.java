@@ -0,0 +1,16 @@
+package io.lp0onfire.ssi.microcontroller;
+
+// Not a real trap. PeripheralScheduler throws this from a peripheral access
+// while the CPU is running a batch of cycles ahead of the peripherals;
+// RV32Core then stops in front of that instruction without executing it.
+public class BatchExitException extends AddressTrapException {
+
+  private static final long serialVersionUID = 1L;
+  
+  public static final BatchExitException INSTANCE = new BatchExitException();
+  
+  private BatchExitException() {
+    super(0, 0);
+  }
+  
+}
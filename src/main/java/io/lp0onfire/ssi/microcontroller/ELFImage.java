@@ -1,12 +1,16 @@
 package io.lp0onfire.ssi.microcontroller;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ELFImage {
 
@@ -18,28 +22,87 @@ public class ELFImage {
   public List<ELFProgramHeader> getProgramHeaders() {
     return this.programHeaders;
   }
+  // function and label symbols, sorted by address with one symbol per address
+  private List<ELFSymbol> symbols = new ArrayList<ELFSymbol>();
+  public List<ELFSymbol> getSymbols() {
+    return this.symbols;
+  }
+  
+  // The symbol an address belongs to: the nearest one at or below it, as
+  // long as the address is inside that symbol when its size is known.
+  // Returns null if there is no such symbol.
+  public ELFSymbol findSymbol(int address) {
+    int lo = 0;
+    int hi = symbols.size() - 1;
+    ELFSymbol found = null;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      ELFSymbol sym = symbols.get(mid);
+      if (Integer.compareUnsigned(sym.address, address) <= 0) {
+        found = sym;
+        lo = mid + 1;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    if (found != null && found.size != 0
+        && Integer.toUnsignedLong(address) - Integer.toUnsignedLong(found.address) >= Integer.toUnsignedLong(found.size)) {
+      return null;
+    }
+    return found;
+  }
   
   public ELFImage(File elfFile) throws IOException {
     readelf(elfFile);
   }
   
+  // Parsed images, by canonical path. An entry is only reused while the
+  // file's modification time and length are unchanged.
+  private static class CachedImage {
+    private final long lastModified;
+    private final long length;
+    private final ELFImage image;
+    
+    private CachedImage(long lastModified, long length, ELFImage image) {
+      this.lastModified = lastModified;
+      this.length = length;
+      this.image = image;
+    }
+  }
+  private static final ConcurrentHashMap<String, CachedImage> imageCache = new ConcurrentHashMap<>();
+  
+  // Same as new ELFImage(elfFile), but returns the image parsed by an
+  // earlier call if the file hasn't changed since. Images are never
+  // modified after parsing, so they can be shared freely.
+  public static ELFImage load(File elfFile) throws IOException {
+    String path = elfFile.getCanonicalPath();
+    long lastModified = elfFile.lastModified();
+    long length = elfFile.length();
+    CachedImage cached = imageCache.get(path);
+    if (cached != null && cached.lastModified == lastModified && cached.length == length) {
+      return cached.image;
+    }
+    ELFImage image = new ELFImage(elfFile);
+    imageCache.put(path, new CachedImage(lastModified, length, image));
+    return image;
+  }
+  
   private void readelf(File elfFile) throws IOException, IllegalArgumentException {
-    try(FileInputStream is = new FileInputStream(elfFile)) {
-      byte[] elfBytes = new byte[(int)elfFile.length()];
-      is.read(elfBytes);
-      ByteBuffer elf = ByteBuffer.wrap(elfBytes);
+    try (FileChannel channel = FileChannel.open(elfFile.toPath(), StandardOpenOption.READ)) {
+      // map the file rather than reading it; only the segments get copied out
+      MappedByteBuffer elf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (elf.remaining() < 52) {
+        throw new IllegalArgumentException("file is not an ELF image");
+      }
       // read elf identification header
-      byte[] e_ident = new byte[16];
-      elf.get(e_ident);
-
-      if (e_ident[0] != (byte)(0x7f) || e_ident[1] != 'E' || e_ident[2] != 'L' || e_ident[3] != 'F') {
+      if (elf.get(0) != (byte)(0x7f) || elf.get(1) != 'E' || elf.get(2) != 'L' || elf.get(3) != 'F') {
         throw new IllegalArgumentException("file is not an ELF image");
       }
-      byte ei_class = e_ident[4];
+      byte ei_class = elf.get(4);
       if (ei_class != 1) {
         throw new IllegalArgumentException("file has wrong ELFCLASS");
       }
-      byte ei_data = e_ident[5];
+      byte ei_data = elf.get(5);
       if (ei_data == 1) {
         // use little-endian
         elf.order(ByteOrder.LITTLE_ENDIAN);
@@ -49,10 +112,11 @@ public class ELFImage {
       } else {
         throw new IllegalArgumentException("file has invalid EI_DATA");
       }
-      byte ei_version = e_ident[6];
+      byte ei_version = elf.get(6);
       if (ei_version != 1) {
         throw new IllegalArgumentException("file has wrong ELF version");
       }
+      elf.position(16);
       short e_type = elf.getShort();
       if (e_type != 2) {
         throw new IllegalArgumentException("not an executable ELF image");
@@ -78,25 +142,84 @@ public class ELFImage {
       short e_shnum = elf.getShort();
       short e_shstrndx = elf.getShort();
       
-      // now seek to program header offset
-      elf.position(e_phoff);
       for (short i = 0; i < e_phnum; ++i) {
-        byte[] phdrBytes = new byte[(int)e_phentsize];
-        elf.get(phdrBytes);
-        ByteBuffer phdr = ByteBuffer.wrap(phdrBytes);
-        if (ei_data == 1) {
-          // use little-endian
-          phdr.order(ByteOrder.LITTLE_ENDIAN);
-        } else if (ei_data == 2) {
-          // use big-endian
-          phdr.order(ByteOrder.BIG_ENDIAN);
-        }
-        ELFProgramHeader headerData = new ELFProgramHeader(phdr, elfBytes);
+        ELFProgramHeader headerData = new ELFProgramHeader(elf, e_phoff + i * e_phentsize);
         programHeaders.add(headerData);
       }
+      if (e_shoff != 0) {
+        readSymbols(elf, e_shoff, e_shentsize, e_shnum);
+      }
     }
   }
   
+  // Reads every SHT_SYMTAB section. Only function symbols and untyped ones
+  // (labels in hand-written assembly) that are defined in some section are kept;
+  // where several share an address, a function wins over a label, then the first by name.
+  private void readSymbols(ByteBuffer elf, int e_shoff, short e_shentsize, short e_shnum) {
+    ByteBuffer sections = elf.duplicate().order(elf.order());
+    for (int i = 0; i < e_shnum; ++i) {
+      int sh = e_shoff + i * e_shentsize;
+      int sh_type = sections.getInt(sh + 4);
+      if (sh_type != 2) {
+        continue;
+      }
+      int sh_offset = sections.getInt(sh + 16);
+      int sh_size = sections.getInt(sh + 20);
+      int sh_link = sections.getInt(sh + 24);
+      int sh_entsize = sections.getInt(sh + 36);
+      if (sh_link < 0 || sh_link >= e_shnum || sh_entsize < 16) {
+        throw new IllegalArgumentException("bad symbol table");
+      }
+      // the string table holding the symbol names
+      int strtab = sections.getInt(e_shoff + sh_link * e_shentsize + 16);
+      for (int offset = sh_offset; offset + 16 <= sh_offset + sh_size; offset += sh_entsize) {
+        int st_name = sections.getInt(offset);
+        int st_value = sections.getInt(offset + 4);
+        int st_size = sections.getInt(offset + 8);
+        int st_type = sections.get(offset + 12) & 0x0F;
+        int st_shndx = sections.getShort(offset + 14) & 0x0000FFFF;
+        // STT_NOTYPE or STT_FUNC, in a real section (not SHN_UNDEF or SHN_ABS etc.)
+        if ((st_type != 0 && st_type != 2) || st_shndx == 0 || st_shndx >= 0xFF00 || st_name == 0) {
+          continue;
+        }
+        String name = readString(sections, strtab + st_name);
+        if (name.isEmpty()) {
+          continue;
+        }
+        symbols.add(new ELFSymbol(name, st_value, st_size, st_type == 2));
+      }
+    }
+    Collections.sort(symbols, (a, b) -> {
+      int c = Integer.compareUnsigned(a.address, b.address);
+      if (c != 0) {
+        return c;
+      }
+      if (a.function != b.function) {
+        return a.function ? -1 : 1;
+      }
+      return a.name.compareTo(b.name);
+    });
+    List<ELFSymbol> unique = new ArrayList<ELFSymbol>();
+    for (ELFSymbol sym : symbols) {
+      if (unique.isEmpty() || unique.get(unique.size() - 1).address != sym.address) {
+        unique.add(sym);
+      }
+    }
+    symbols = unique;
+  }
+  
+  private static String readString(ByteBuffer elf, int offset) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = offset; i < elf.limit(); ++i) {
+      byte b = elf.get(i);
+      if (b == 0) {
+        break;
+      }
+      sb.append((char)(b & 0xFF));
+    }
+    return sb.toString();
+  }
+  
   enum HeaderType {
     PT_NULL,
     PT_LOAD,
@@ -111,9 +234,15 @@ public class ELFImage {
     
     public final HeaderType headerType;
     public final int baseAddress;
+    // the initialized part of the segment (p_filesz bytes)
     public final byte[] segmentData;
+    // the whole segment including zero-filled space (p_memsz)
+    public final int memorySize;
     
-    public ELFProgramHeader(ByteBuffer programHeader, byte[] elfBytes) {
+    // reads the program header at the given offset into the file
+    public ELFProgramHeader(ByteBuffer elf, int offset) {
+      ByteBuffer programHeader = elf.duplicate().order(elf.order());
+      programHeader.position(offset);
       int p_type = programHeader.getInt();
       switch(p_type) {
       case 0:
@@ -142,12 +271,36 @@ public class ELFImage {
       int p_flags = programHeader.getInt();
       int p_align = programHeader.getInt();
       
-      byte[] fileData = new byte[p_memsz];
+      if (p_filesz < 0 || p_memsz < 0 || p_filesz > p_memsz) {
+        throw new IllegalArgumentException("bad segment size");
+      }
+      // the zero-filled remainder is implied by memorySize, so it costs nothing here
+      byte[] fileData = new byte[p_filesz];
       if (p_filesz > 0) {
-        System.arraycopy(elfBytes, p_offset, fileData, 0, p_filesz);
+        ByteBuffer segment = elf.duplicate();
+        segment.position(p_offset);
+        segment.get(fileData, 0, p_filesz);
       }
       
       segmentData = fileData;
+      memorySize = p_memsz;
+    }
+  }
+  
+  static class ELFSymbol {
+    
+    public final String name;
+    public final int address;
+    // in bytes; 0 if unknown, as for most assembly labels
+    public final int size;
+    // STT_FUNC rather than STT_NOTYPE
+    public final boolean function;
+    
+    public ELFSymbol(String name, int address, int size, boolean function) {
+      this.name = name;
+      this.address = address;
+      this.size = size;
+      this.function = function;
     }
   }
   
@@ -4,13 +4,19 @@ public class IllegalInstructionException extends ProcessorTrapException {
 
   private static final long serialVersionUID = 1L;
 
-  private final int insn;
+  private int insn;
   
   public IllegalInstructionException(int insn) {
     super(2);
     this.insn = insn;
   }
   
+  // for RV32Core, which reuses one instance per core
+  IllegalInstructionException at(int insn) {
+    this.insn = insn;
+    return this;
+  }
+  
   @Override
   public String toString() {
     StringBuilder sb = new StringBuilder();
@@ -0,0 +1,9 @@
+package io.lp0onfire.ssi.microcontroller;
+
+// The wire from an InterruptSource to its interrupt controller.
+public interface InterruptLine {
+
+  // marks the source's interrupt pending; no effect if it already is
+  void raise();
+  
+}
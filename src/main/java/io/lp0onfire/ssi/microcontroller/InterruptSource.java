@@ -4,5 +4,9 @@ public interface InterruptSource {
 
   boolean interruptAsserted();
   void acknowledgeInterrupt();
+  // Connects the source to its controller. Sources are not polled,
+  // so whenever a change in the source's state makes interruptAsserted()
+  // true, the source must raise the line.
+  void setInterruptLine(InterruptLine line);
   
 }
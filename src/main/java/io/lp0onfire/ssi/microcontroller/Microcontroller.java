@@ -1,10 +1,12 @@
 package io.lp0onfire.ssi.microcontroller;
 
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
-
-import org.apache.commons.lang3.ArrayUtils;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import io.lp0onfire.ssi.microcontroller.ELFImage.HeaderType;
 import io.lp0onfire.ssi.microcontroller.peripherals.InterruptController;
@@ -32,8 +34,15 @@ public class Microcontroller {
     return this.dataMemory;
   }
   private InterruptController interruptController;
+  protected InterruptController getInterruptController() {
+    return this.interruptController;
+  }
   
   private List<SystemBusPeripheral> peripherals = new LinkedList<>();
+  private PeripheralScheduler scheduler;
+  protected PeripheralScheduler getScheduler() {
+    return this.scheduler;
+  }
   
   public Microcontroller(int textMemoryPages, int dataMemoryPages) {
     cpu = new RV32Core();
@@ -47,14 +56,14 @@ public class Microcontroller {
     
     // interrupt controller at 0xEA001000
     interruptController = new InterruptController(cpu);
-    cpu.getSystemBus().attachPeripheral(interruptController, 0xEA001000);
+    scheduler = new PeripheralScheduler(cpu, interruptController, 0xEA001000);
     
     // TODO attach timer 0 at 0xE9000000 and route interrupt
   }
   
   public void attachPeripheral(SystemBusPeripheral peripheral, int baseAddress) {
     peripherals.add(peripheral);
-    cpu.getSystemBus().attachPeripheral(peripheral, baseAddress);
+    scheduler.attachPeripheral(peripheral, baseAddress);
   }
   
   public void attachInventoryController(InventoryController controller) {
@@ -65,49 +74,219 @@ public class Microcontroller {
     attachPeripheral(laserCtrl, 0x4A002000);
   }
   
+  // enables translation of hot code to JVM bytecode for this microcontroller,
+  // or goes back to pure interpretation if translator is null
+  public void setTranslator(RV32Translator translator) {
+    cpu.setTranslator(translator);
+  }
+  
+  // the firmware-visible counters, for finding out what a program spends its cycles on:
+  // 0 is cycle, 1 is time, 2 is instret, and the rest are the hpmcounters listed in RV32Core;
+  // hpmcounter10 counts accesses to the first peripheral attached, hpmcounter11 the second, and so on
+  public long getPerformanceCounter(int counter) {
+    return cpu.getPerformanceCounter(counter);
+  }
+  
+  // Starts counting where this microcontroller's cycles go, from now on.
+  // Profiling is exact but runs every instruction through the interpreter,
+  // so it is much slower; see RV32Profiler for reporting.
+  public RV32Profiler startProfiling() {
+    RV32Profiler profiler = new RV32Profiler(textMemoryBase, textMemory.getNumberOfPages() * 1024);
+    cpu.setProfiler(profiler);
+    return profiler;
+  }
+  
+  // returns the profile collected since startProfiling(), or null if there is none
+  public RV32Profiler stopProfiling() {
+    RV32Profiler profiler = cpu.getProfiler();
+    cpu.setProfiler(null);
+    return profiler;
+  }
+  
+  // Starts recording the last traceRecords events (a power of two) in an
+  // off-heap ring buffer; see RV32Tracer. Like profiling, tracing runs every
+  // instruction through the interpreter. Costs nothing while stopped.
+  public RV32Tracer startTracing(int traceRecords) {
+    RV32Tracer tracer = new RV32Tracer(traceRecords);
+    cpu.setTracer(tracer);
+    return tracer;
+  }
+  
+  // returns the trace recorded since startTracing(), or null if there is none
+  public RV32Tracer stopTracing() {
+    RV32Tracer tracer = cpu.getTracer();
+    cpu.setTracer(null);
+    return tracer;
+  }
+  
   public void registerInterrupt(InterruptSource source, int irq) {
     interruptController.registerInterrupt(source, irq);
   }
   
+  // the memory images built from an ELF, shared by every microcontroller it is loaded into
+  private static class FirmwareImage {
+    private final byte[] rom;
+    private final byte[][] ramPages;
+    // the ROM predecoded for the text memory size it was last loaded into;
+    // a microcontroller with a different size predecodes its own
+    private volatile RV32PredecodedImage predecoded = null;
+    
+    private FirmwareImage(byte[] rom, byte[][] ramPages) {
+      this.rom = rom;
+      this.ramPages = ramPages;
+    }
+  }
+  
+  private static final Map<ELFImage, FirmwareImage> firmwareImages =
+      Collections.synchronizedMap(new WeakHashMap<ELFImage, FirmwareImage>());
+  
   public void loadELF(ELFImage elf) {
-    ArrayList<Byte> romData = new ArrayList<Byte>();
-    ArrayList<Byte> ramData = new ArrayList<Byte>();
+    FirmwareImage image = firmwareImages.get(elf);
+    if (image == null) {
+      image = buildFirmwareImage(elf);
+      firmwareImages.put(elf, image);
+    }
+    // ROM is shared outright; RAM pages are copied as they are written
+    textMemory.setSharedContents(image.rom);
+    dataMemory.setSharedPages(image.ramPages);
+    cpu.getSystemBus().clearInstructionCache();
+    RV32PredecodedImage predecoded = image.predecoded;
+    if (predecoded == null || predecoded.getLength() != textMemory.getNumberOfPages() * (1024 / 4)) {
+      try {
+        predecoded = RV32DecodeCache.predecode(textMemory, textMemoryBase);
+      } catch (AddressTrapException e) {
+        // every address in the text memory is readable
+        throw new IllegalStateException(e);
+      }
+      image.predecoded = predecoded;
+    }
+    cpu.setPredecodedImage(predecoded);
+  }
+  
+  // Lays out every PT_LOAD segment in the ROM and RAM images. A segment may
+  // straddle the boundary between the two, in which case each part goes to
+  // its own memory; anything outside both is an error. Both memories read
+  // as zero past the end of their images, so zero-filled space is not stored.
+  private static FirmwareImage buildFirmwareImage(ELFImage elf) {
+    // first pass: how much of each memory the image covers
+    long romSize = 0L;
+    long ramSize = 0L;
     for (ELFImage.ELFProgramHeader phdr : elf.getProgramHeaders()) {
-      if (phdr.headerType != HeaderType.PT_LOAD) {
+      if (phdr.headerType != HeaderType.PT_LOAD || phdr.memorySize == 0) {
         continue;
       }
-      int baseAddress = phdr.baseAddress;
-      int topAddress = baseAddress + phdr.segmentData.length;
-      if (baseAddress >= 0 && baseAddress < dataMemoryBase && topAddress >= 0 && topAddress < dataMemoryBase) {
-        // segment fits completely within ROM
-        int requiredSize = topAddress - textMemoryBase;
-        romData.ensureCapacity(requiredSize);
-        while (romData.size() < requiredSize) {
-          romData.add((byte)0);
-        }
-        for (byte b : phdr.segmentData) {
-          romData.set(baseAddress, b);
-          baseAddress++;
-        }
-      } else if (baseAddress >= dataMemoryBase && baseAddress < dataMemoryTop && topAddress >= dataMemoryBase && topAddress < dataMemoryTop) {
-        // segment fits completely within RAM
-        int requiredSize = topAddress - dataMemoryBase;
-        ramData.ensureCapacity(requiredSize);
-        while (ramData.size() < requiredSize) {
-          ramData.add((byte)0);
-        }
-        baseAddress -= dataMemoryBase;
-        for (byte b : phdr.segmentData) {
-          ramData.set(baseAddress, b);
-          baseAddress++;
+      long baseAddress = phdr.baseAddress & 0xFFFFFFFFL;
+      if (baseAddress < textMemoryBase || baseAddress + phdr.memorySize > dataMemoryTop) {
+        throw new IllegalArgumentException("segment at 0x" + Long.toHexString(baseAddress)
+            + " does not fit in ROM or RAM");
+      }
+      long topAddress = baseAddress + phdr.segmentData.length;
+      if (topAddress == baseAddress) {
+        continue;
+      }
+      if (baseAddress < dataMemoryBase) {
+        romSize = Math.max(romSize, Math.min(topAddress, dataMemoryBase) - textMemoryBase);
+      }
+      if (topAddress > dataMemoryBase) {
+        ramSize = Math.max(ramSize, topAddress - dataMemoryBase);
+      }
+    }
+    
+    // second pass: copy each segment straight into place
+    byte[] rom = new byte[(int)romSize];
+    byte[][] ramPages = new byte[(int)((ramSize + 1023) / 1024)][1024];
+    for (ELFImage.ELFProgramHeader phdr : elf.getProgramHeaders()) {
+      if (phdr.headerType != HeaderType.PT_LOAD || phdr.segmentData.length == 0) {
+        continue;
+      }
+      byte[] data = phdr.segmentData;
+      long baseAddress = phdr.baseAddress & 0xFFFFFFFFL;
+      // bytes of this segment below the start of RAM
+      int romPart = (int)Math.max(0L, Math.min(data.length, dataMemoryBase - baseAddress));
+      if (romPart > 0) {
+        System.arraycopy(data, 0, rom, (int)(baseAddress - textMemoryBase), romPart);
+      }
+      int ramOffset = (int)(baseAddress + romPart - dataMemoryBase);
+      for (int pos = romPart; pos < data.length; ) {
+        int page = ramOffset >>> 10;
+        int pageOffset = ramOffset & 1023;
+        int length = Math.min(data.length - pos, 1024 - pageOffset);
+        System.arraycopy(data, pos, ramPages[page], pageOffset, length);
+        pos += length;
+        ramOffset += length;
+      }
+    }
+    return new FirmwareImage(rom, ramPages);
+  }
+  
+  // Checkpoints hold everything that defines the microcontroller's state: CPU
+  // registers and CSRs, LR/SC reservations, the cycle count, every RAM page
+  // written since loadELF(), the interrupt controller and each attached
+  // peripheral. They are written with primitive puts to any ByteBuffer, a
+  // MappedByteBuffer over a file included, and can be restored into any
+  // microcontroller built the same way (same memory sizes, same peripherals
+  // attached in the same order, same ELF loaded), which then carries on exactly
+  // where the saved one was. Neither may be called from inside runCycles().
+  private static final int STATE_MAGIC = 0x53534D43; // "SSMC"
+  private static final int STATE_VERSION = 2;
+  
+  public void saveState(ByteBuffer state) {
+    ByteOrder order = state.order();
+    state.order(ByteOrder.BIG_ENDIAN);
+    try {
+      state.putInt(STATE_MAGIC);
+      state.putInt(STATE_VERSION);
+      cpu.saveState(state);
+      scheduler.saveState(state);
+      dataMemory.saveState(state);
+      interruptController.saveState(state);
+      state.putInt(peripherals.size());
+      for (SystemBusPeripheral p : peripherals) {
+        // each peripheral's state is prefixed with its length, so that a mismatch is caught on restore
+        int lengthPosition = state.position();
+        state.putInt(0);
+        p.saveState(state);
+        state.putInt(lengthPosition, state.position() - lengthPosition - 4);
+      }
+    } finally {
+      state.order(order);
+    }
+  }
+  
+  public void restoreState(ByteBuffer state) {
+    ByteOrder order = state.order();
+    state.order(ByteOrder.BIG_ENDIAN);
+    try {
+      if (state.getInt() != STATE_MAGIC) {
+        throw new IllegalArgumentException("not a saved microcontroller state");
+      }
+      int version = state.getInt();
+      if (version != STATE_VERSION) {
+        throw new IllegalArgumentException("unsupported saved state version " + version);
+      }
+      cpu.restoreState(state);
+      scheduler.restoreState(state);
+      dataMemory.restoreState(state);
+      interruptController.restoreState(state);
+      int count = state.getInt();
+      if (count != peripherals.size()) {
+        throw new IllegalArgumentException("saved state has " + count + " peripherals, but "
+            + peripherals.size() + " are attached");
+      }
+      for (SystemBusPeripheral p : peripherals) {
+        int length = state.getInt();
+        int start = state.position();
+        p.restoreState(state);
+        if (state.position() - start != length) {
+          throw new IllegalArgumentException("saved state does not match "
+              + p.getClass().getSimpleName() + " attached in its place");
         }
-      } else {
-        // TODO may be split between two sections, or in a completely different part of memory
-        throw new UnsupportedOperationException("not yet implemented");
       }
+    } finally {
+      state.order(order);
     }
-    textMemory.setContents(ArrayUtils.toPrimitive(romData.toArray(new Byte[]{})));
-    dataMemory.setContents(ArrayUtils.toPrimitive(ramData.toArray(new Byte[]{})));
+    // code in RAM may have changed underneath cached instructions and blocks
+    cpu.getSystemBus().clearInstructionCache();
   }
   
   public void reset() {
@@ -116,14 +295,17 @@ public class Microcontroller {
   }
   
   public void cycle() {
-    cpu.step();
-    for (SystemBusPeripheral p : peripherals) {
-      p.cycle();
-    }
-    interruptController.cycle();
+    runCycles(1);
+  }
+  
+  // same as calling cycle() the given number of times, but the CPU runs
+  // in batches between the cycles on which peripherals need attention
+  public void runCycles(int cycles) {
+    scheduler.run(cycles);
   }
   
   public void timestep() {
+    cpu.advanceTime();
     for (SystemBusPeripheral p : peripherals) {
       p.timestep();
     }
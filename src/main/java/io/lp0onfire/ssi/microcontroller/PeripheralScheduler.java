@@ -0,0 +1,402 @@
+package io.lp0onfire.ssi.microcontroller;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.lp0onfire.ssi.microcontroller.instructions.*;
+import io.lp0onfire.ssi.microcontroller.peripherals.InterruptController;
+
+// Clocks a microcontroller's peripherals only on the cycles where they need it.
+// Each peripheral reports how many of its upcoming cycle() calls would be no-ops
+// (SystemBusPeripheral.getIdleCycles()), and the CPU runs uninterrupted batches
+// up to the earliest of those deadlines; the skipped cycles are caught up in bulk
+// with skipCycles(). Peripherals are mapped onto the bus behind a guard that stops
+// a batch in front of any instruction touching them, so that instruction runs on
+// its own with the peripheral brought up to date first. The CPU therefore sees
+// exactly what it would if every peripheral were cycled on every cycle.
+// A core sleeping in WFI skips straight to the next peripheral deadline, and so
+// does a core spinning in a loop that polls a peripheral register (see skipBusyWait()).
+public class PeripheralScheduler {
+
+  private final RV32Core cpu;
+  private final InterruptController interruptController;
+  private final Guard interruptControllerGuard;
+
+  private final List<Guard> guards = new ArrayList<>();
+
+  // number of cycles completed so far
+  private long cycleCount = 0L;
+  public long getCycleCount() {
+    return this.cycleCount;
+  }
+
+  // true while the CPU is running ahead of the peripherals
+  private boolean inBatch = false;
+
+  // cycle on which the interrupt controller must run next
+  private long interruptControllerDeadline = 0L;
+
+  // busy-wait detection: set whenever something happens that a polling loop could notice
+  private boolean disturbed = false;
+  // loop length in instructions of the polling loop around each PC, or 0 if it isn't in one
+  private final Map<Integer, Integer> pollingLoops = new HashMap<>();
+  private int pollingLoopsGeneration = -1;
+  private static final int MAX_POLLING_LOOP_LENGTH = 16;
+  // cycles fast-forwarded through polling loops, for profiling
+  private long busyWaitCycles = 0L;
+  public long getBusyWaitCycles() {
+    return this.busyWaitCycles;
+  }
+  // state saved before running one iteration of a polling loop, reused every time
+  private final int[] savedRegisters = new int[32];
+  private final long[] savedEvents = new long[RV32Core.NUMBER_OF_COUNTERS];
+
+  public PeripheralScheduler(RV32Core cpu, InterruptController interruptController, int baseAddress) {
+    this.cpu = cpu;
+    this.interruptController = interruptController;
+    this.interruptControllerGuard = new Guard(interruptController, RV32Core.HPM_MMIO_PERIPHERAL_BASE, 0);
+    cpu.getSystemBus().attachPeripheral(interruptControllerGuard, baseAddress);
+  }
+
+  public void attachPeripheral(SystemBusPeripheral peripheral, int baseAddress) {
+    // peripherals past the last hpmcounter are only counted in the total
+    int counter = RV32Core.HPM_MMIO_PERIPHERAL_BASE + 1 + guards.size();
+    Guard guard = new Guard(peripheral, counter < RV32Core.NUMBER_OF_COUNTERS ? counter : -1, guards.size() + 1);
+    guard.syncedCycles = cycleCount;
+    guards.add(guard);
+    cpu.getSystemBus().attachPeripheral(guard, baseAddress);
+    // DMA goes straight to the bus
+    peripheral.setSystemBus(cpu.getSystemBus());
+  }
+
+  // the cycle count, for Microcontroller.saveState(); peripherals save their own state
+  public void saveState(ByteBuffer state) {
+    state.putLong(cycleCount);
+  }
+  
+  // every peripheral must have been restored already and is up to date as of the restored cycle
+  public void restoreState(ByteBuffer state) {
+    cycleCount = state.getLong();
+    for (Guard guard : guards) {
+      guard.syncedCycles = cycleCount;
+    }
+  }
+
+  public void run(int cycles) {
+    // peripherals may have been changed from outside since the last call
+    for (Guard guard : guards) {
+      guard.touched = false;
+      guard.deadline = deadline(cycleCount, guard.peripheral.getIdleCycles());
+    }
+    interruptControllerGuard.touched = false;
+    interruptControllerDeadline = cycleCount;
+
+    long end = cycleCount + cycles;
+    while (cycleCount < end) {
+      long quietCycles = Math.min(end - 1, nextDeadline()) - cycleCount;
+      if (quietCycles > 0) {
+        inBatch = true;
+        cycleCount += cpu.run((int)quietCycles);
+        inBatch = false;
+        if (cpu.isPeripheralAccessPending()) {
+          skipBusyWait(end);
+          if (cycleCount >= end) {
+            break;
+          }
+        }
+      }
+      // this cycle has a deadline or touches a peripheral, so it runs on its own
+      cpu.step();
+      endOfCycle();
+    }
+
+    // leave everything up to date for timestep() and for callers inspecting peripherals
+    for (Guard guard : guards) {
+      guard.catchUp(cycleCount);
+    }
+  }
+
+  private long nextDeadline() {
+    long next = interruptControllerDeadline;
+    for (Guard guard : guards) {
+      if (guard.deadline < next) {
+        next = guard.deadline;
+      }
+    }
+    return next;
+  }
+
+  // the peripheral half of cycle number cycleCount, after the CPU has executed it
+  private void endOfCycle() {
+    long cycle = cycleCount;
+    boolean poll = interruptControllerGuard.touched
+        || interruptControllerDeadline <= cycle;
+    boolean event = false;
+    for (Guard guard : guards) {
+      if (guard.touched || guard.deadline <= cycle) {
+        if (guard.deadline <= cycle) {
+          disturbed = true;
+        }
+        guard.catchUp(cycle);
+        guard.peripheral.cycle();
+        guard.syncedCycles = cycle + 1;
+        guard.touched = false;
+        guard.deadline = deadline(cycle + 1, guard.peripheral.getIdleCycles());
+        // it may have raised its interrupt line
+        poll = true;
+        event = true;
+      }
+    }
+    if (poll) {
+      if (interruptControllerDeadline <= cycle) {
+        disturbed = true;
+      }
+      interruptControllerGuard.touched = false;
+      interruptController.cycle();
+    }
+    // a core stopped by WFI sleeps until an interrupt is waiting or any peripheral does something
+    if (cpu.isSleeping() && (event || interruptController.interruptWaiting())) {
+      cpu.wakeUp();
+    }
+    cycleCount = cycle + 1;
+    interruptControllerDeadline = deadline(cycleCount, interruptController.getIdleCycles());
+  }
+
+  // The CPU is about to access a peripheral. If that access is part of a short
+  // loop that only reads registers and stable peripheral registers, run one
+  // iteration and check whether it changed anything; if not, every further
+  // iteration up to the next peripheral deadline would do exactly the same,
+  // so those are skipped, charging their cycles and instructions as if they had run.
+  private void skipBusyWait(long end) {
+    if (cpu.getTracer() != null) {
+      // a trace shows every iteration
+      return;
+    }
+    int pc = cpu.getPC();
+    int loopLength = pollingLoopLength(pc);
+    if (loopLength == 0 || end - cycleCount < 2 * loopLength) {
+      return;
+    }
+    for (int i = 0; i < 32; ++i) {
+      savedRegisters[i] = cpu.getXRegister(i);
+    }
+    long startInstret = cpu.instret;
+    cpu.getEventCounters(savedEvents);
+    disturbed = false;
+    for (int i = 0; i < loopLength; ++i) {
+      cpu.step();
+      endOfCycle();
+    }
+    if (disturbed || cpu.getPC() != pc || cpu.instret - startInstret != loopLength) {
+      return;
+    }
+    for (int i = 0; i < 32; ++i) {
+      if (cpu.getXRegister(i) != savedRegisters[i]) {
+        return;
+      }
+    }
+    long horizon = Math.min(end, nextDeadline());
+    long iterations = (horizon - cycleCount) / loopLength;
+    if (iterations > 0) {
+      cycleCount += iterations * loopLength;
+      cpu.instret += iterations * loopLength;
+      // every skipped iteration would have counted the same events as the one that ran
+      cpu.repeatEvents(savedEvents, iterations);
+      if (cpu.getProfiler() != null) {
+        cpu.getProfiler().countLoop(pc, loopLength, iterations);
+      }
+      busyWaitCycles += iterations * loopLength;
+    }
+  }
+
+  private int pollingLoopLength(int pc) {
+    RV32SystemBus bus = cpu.getSystemBus();
+    if (pollingLoopsGeneration != bus.getInstructionCacheGeneration()) {
+      pollingLoops.clear();
+      pollingLoopsGeneration = bus.getInstructionCacheGeneration();
+    }
+    Integer length = pollingLoops.get(pc);
+    if (length == null) {
+      length = findPollingLoop(bus, pc);
+      pollingLoops.put(pc, length);
+    }
+    return length;
+  }
+
+  // Looks for a backward conditional branch after pc that jumps to or before it,
+  // with only register and load instructions in between; returns the number of
+  // instructions in the loop, or 0 if pc isn't in such a loop.
+  private static int findPollingLoop(RV32SystemBus bus, int pc) {
+    try {
+      for (int i = 0; i < MAX_POLLING_LOOP_LENGTH; ++i) {
+        int branchPC = pc + (i << 2);
+        RV32Instruction insn = bus.fetchInstruction(branchPC);
+        if (insn instanceof SBTypeInstruction) {
+          int target = branchPC + ((SBTypeInstruction)insn).getImm();
+          if (target > pc || branchPC - target >= (MAX_POLLING_LOOP_LENGTH << 2)) {
+            return 0;
+          }
+          for (int addr = target; addr < pc; addr += 4) {
+            if (!isPollingInstruction(bus.fetchInstruction(addr))) {
+              return 0;
+            }
+          }
+          return ((branchPC - target) >>> 2) + 1;
+        }
+        if (!isPollingInstruction(insn)) {
+          return 0;
+        }
+      }
+    } catch (AddressTrapException e) {
+      // runs off the end of mapped memory
+    }
+    return 0;
+  }
+
+  // instructions with no effect other than writing rd
+  private static boolean isPollingInstruction(RV32Instruction insn) {
+    return insn instanceof RV32_ADD || insn instanceof RV32_SUB
+        || insn instanceof RV32_AND || insn instanceof RV32_OR || insn instanceof RV32_XOR
+        || insn instanceof RV32_SLL || insn instanceof RV32_SRL || insn instanceof RV32_SRA
+        || insn instanceof RV32_SLT || insn instanceof RV32_SLTU
+        || insn instanceof RV32_ADDI || insn instanceof RV32_ANDI
+        || insn instanceof RV32_ORI || insn instanceof RV32_XORI
+        || insn instanceof RV32_SLTI || insn instanceof RV32_SLTIU
+        || insn instanceof RV32_SLLI || insn instanceof RV32_SRLI || insn instanceof RV32_SRAI
+        || insn instanceof RV32_LUI || insn instanceof RV32_AUIPC
+        || insn instanceof RV32_LB || insn instanceof RV32_LBU
+        || insn instanceof RV32_LH || insn instanceof RV32_LHU || insn instanceof RV32_LW;
+  }
+
+  private static long deadline(long cycle, long idleCycles) {
+    if (idleCycles >= Long.MAX_VALUE - cycle) {
+      return Long.MAX_VALUE;
+    }
+    return cycle + idleCycles;
+  }
+
+  // what the bus actually maps for each peripheral
+  private class Guard implements SystemBusPeripheral {
+    private final SystemBusPeripheral peripheral;
+    // cycle() has been applied for every cycle before this one
+    private long syncedCycles = 0L;
+    // the cycle on which cycle() must really be called
+    private long deadline = 0L;
+    // accessed by the CPU during the current cycle
+    private boolean touched = false;
+
+    // hpmcounter for accesses to this peripheral, or -1
+    private final int counter;
+    // the peripheral's number in traces
+    private final int traceIndex;
+
+    private Guard(SystemBusPeripheral peripheral, int counter, int traceIndex) {
+      this.peripheral = peripheral;
+      this.counter = counter;
+      this.traceIndex = traceIndex;
+    }
+
+    private void catchUp(long cycle) {
+      if (cycle > syncedCycles) {
+        peripheral.skipCycles(cycle - syncedCycles);
+        syncedCycles = cycle;
+      }
+    }
+
+    private void access(int pAddr, boolean write) throws AddressTrapException {
+      if (inBatch) {
+        throw BatchExitException.INSTANCE;
+      }
+      catchUp(cycleCount);
+      touched = true;
+      cpu.countEvent(RV32Core.HPM_MMIO_ACCESSES);
+      if (counter >= 0) {
+        cpu.countEvent(counter);
+      }
+      if (write || !peripheral.isStableRegister(pAddr)) {
+        disturbed = true;
+      }
+    }
+
+    @Override
+    public int getNumberOfPages() {
+      return peripheral.getNumberOfPages();
+    }
+
+    @Override
+    public int translateAddress(int pAddr) {
+      return peripheral.translateAddress(pAddr);
+    }
+
+    @Override
+    public int readByte(int pAddr) throws AddressTrapException {
+      access(pAddr, false);
+      int value = peripheral.readByte(pAddr);
+      if (cpu.getTracer() != null) {
+        cpu.getTracer().mmio(traceIndex, false, pAddr, value, 1);
+      }
+      return value;
+    }
+
+    @Override
+    public int readHalfword(int pAddr) throws AddressTrapException {
+      access(pAddr, false);
+      int value = peripheral.readHalfword(pAddr);
+      if (cpu.getTracer() != null) {
+        cpu.getTracer().mmio(traceIndex, false, pAddr, value, 2);
+      }
+      return value;
+    }
+
+    @Override
+    public int readWord(int pAddr) throws AddressTrapException {
+      access(pAddr, false);
+      int value = peripheral.readWord(pAddr);
+      if (cpu.getTracer() != null) {
+        cpu.getTracer().mmio(traceIndex, false, pAddr, value, 4);
+      }
+      return value;
+    }
+
+    @Override
+    public void writeByte(int pAddr, int value) throws AddressTrapException {
+      access(pAddr, true);
+      peripheral.writeByte(pAddr, value);
+      if (cpu.getTracer() != null) {
+        cpu.getTracer().mmio(traceIndex, true, pAddr, value, 1);
+      }
+    }
+
+    @Override
+    public void writeHalfword(int pAddr, int value) throws AddressTrapException {
+      access(pAddr, true);
+      peripheral.writeHalfword(pAddr, value);
+      if (cpu.getTracer() != null) {
+        cpu.getTracer().mmio(traceIndex, true, pAddr, value, 2);
+      }
+    }
+
+    @Override
+    public void writeWord(int pAddr, int value) throws AddressTrapException {
+      access(pAddr, true);
+      peripheral.writeWord(pAddr, value);
+      if (cpu.getTracer() != null) {
+        cpu.getTracer().mmio(traceIndex, true, pAddr, value, 4);
+      }
+    }
+
+    @Override
+    public void cycle() {
+      // only ever cycled through the scheduler
+    }
+
+    @Override
+    public void timestep() {
+    }
+
+  }
+
+}
@@ -11,7 +11,10 @@ public class ProcessorTrapException extends Exception {
     return this.mcause;
   }
   
+  // Firmware traps on purpose (system calls, faults it handles itself), so traps
+  // are ordinary control flow and are thrown without a stack trace.
   public ProcessorTrapException(int mcause) {
+    super(null, null, false, false);
     this.mcause = mcause;
   }
   
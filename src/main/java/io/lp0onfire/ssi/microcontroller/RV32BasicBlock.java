@@ -0,0 +1,122 @@
+package io.lp0onfire.ssi.microcontroller;
+
+import io.lp0onfire.ssi.microcontroller.instructions.*;
+
+// a straight-line run of decoded instructions, starting at entryPC and ending
+// at the first instruction that may change control flow (see RV32Instruction.endsBasicBlock())
+public class RV32BasicBlock {
+
+  private final int entryPC;
+  public int getEntryPC() {
+    return this.entryPC;
+  }
+
+  private final RV32Instruction[] instructions;
+  public RV32Instruction[] getInstructions() {
+    return this.instructions;
+  }
+  public int getLength() {
+    return this.instructions.length;
+  }
+
+  // address of the instruction following the last one in this block
+  public int getFallthroughPC() {
+    return entryPC + (instructions.length << 2);
+  }
+
+  // a block ends in at most a two-way branch, so we remember up to two
+  // successors by their entry PC; anything else (JALR to many targets)
+  // just replaces the least recently linked successor
+  private int successorPC0, successorPC1;
+  private RV32BasicBlock successor0 = null, successor1 = null;
+
+  // bookkeeping for RV32Translator
+  private int executionCount = 0;
+  public int incrementExecutionCount() {
+    return ++executionCount;
+  }
+  private RV32CompiledBlock compiledBlock = null;
+  public RV32CompiledBlock getCompiledBlock() {
+    return this.compiledBlock;
+  }
+  public void setCompiledBlock(RV32CompiledBlock compiledBlock) {
+    this.compiledBlock = compiledBlock;
+  }
+  private boolean untranslatable = false;
+  public boolean isUntranslatable() {
+    return this.untranslatable;
+  }
+  public void setUntranslatable() {
+    this.untranslatable = true;
+  }
+
+  // for the performance counters of translated blocks, which run as a whole
+  private final int loads, stores;
+  private final boolean endsInBranch;
+
+  public RV32BasicBlock(int entryPC, RV32Instruction[] instructions) {
+    this.entryPC = entryPC;
+    this.instructions = instructions;
+    this.loads = countLoads(instructions, instructions.length);
+    this.stores = countStores(instructions, instructions.length);
+    this.endsInBranch = instructions.length > 0
+        && instructions[instructions.length - 1] instanceof SBTypeInstruction;
+  }
+
+  // number of loads among the first n instructions
+  public int countLoads(int n) {
+    return (n == instructions.length) ? loads : countLoads(instructions, n);
+  }
+
+  // number of stores among the first n instructions
+  public int countStores(int n) {
+    return (n == instructions.length) ? stores : countStores(instructions, n);
+  }
+
+  // true if the last instruction is a conditional branch
+  public boolean endsInBranch() {
+    return this.endsInBranch;
+  }
+
+  // only the loads and stores RV32Translator can compile are counted here
+  private static int countLoads(RV32Instruction[] instructions, int n) {
+    int count = 0;
+    for (int i = 0; i < n; ++i) {
+      RV32Instruction insn = instructions[i];
+      if (insn instanceof RV32_LB || insn instanceof RV32_LBU || insn instanceof RV32_LH
+          || insn instanceof RV32_LHU || insn instanceof RV32_LW) {
+        ++count;
+      }
+    }
+    return count;
+  }
+
+  private static int countStores(RV32Instruction[] instructions, int n) {
+    int count = 0;
+    for (int i = 0; i < n; ++i) {
+      RV32Instruction insn = instructions[i];
+      if (insn instanceof RV32_SB || insn instanceof RV32_SH || insn instanceof RV32_SW) {
+        ++count;
+      }
+    }
+    return count;
+  }
+
+  public RV32BasicBlock getSuccessor(int pc) {
+    if (successor0 != null && successorPC0 == pc) {
+      return successor0;
+    }
+    if (successor1 != null && successorPC1 == pc) {
+      return successor1;
+    }
+    return null;
+  }
+
+  public void linkSuccessor(RV32BasicBlock successor) {
+    successorPC1 = successorPC0;
+    successor1 = successor0;
+    successorPC0 = successor.getEntryPC();
+    successor0 = successor;
+  }
+
+}
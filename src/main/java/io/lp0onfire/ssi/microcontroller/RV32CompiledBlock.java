@@ -0,0 +1,12 @@
+package io.lp0onfire.ssi.microcontroller;
+
+// a basic block that RV32Translator has turned into JVM bytecode
+public interface RV32CompiledBlock {
+
+  // Runs the whole block against the register file xRegister and returns the next PC.
+  // If a memory access traps, every register written by an earlier instruction
+  // in the block has been stored back into xRegister, and faultIndex[0] holds the
+  // index (within the block) of the instruction that trapped.
+  int execute(int[] xRegister, RV32SystemBus bus, int[] faultIndex) throws AddressTrapException;
+
+}
@@ -1,5 +1,7 @@
 package io.lp0onfire.ssi.microcontroller;
 
+import java.nio.ByteBuffer;
+
 import io.lp0onfire.ssi.microcontroller.instructions.*;
 
 public class RV32Core {
@@ -19,6 +21,9 @@ public class RV32Core {
       return;
     } else {
       xRegister[idx] = value;
+      if (tracer != null) {
+        tracer.registerWrite(idx, value);
+      }
     }
   }
   
@@ -74,7 +79,77 @@ public class RV32Core {
   protected int mbadaddr;
   
   // instructions-retired counter
-  protected int instret = 0;
+  protected long instret = 0L;
+  
+  // cycles that retired no instruction: one for each synchronous trap and one
+  // for each cycle spent asleep in WFI. Every other cycle retires exactly one
+  // instruction, so the cycle counter is instret + stallCycles.
+  private long stallCycles = 0L;
+  
+  // real-time counter, advanced once per world timestep (see Microcontroller.timestep())
+  private long time = 0L;
+  public void advanceTime() {
+    time += 1L;
+  }
+  
+  // Hardware performance monitor: counter n is hpmcounter<n>, readable by firmware
+  // through CSRs 0xC03-0xC1F (low half) and 0xC83-0xC9F (high half).
+  public static final int HPM_LOADS = 3;
+  public static final int HPM_STORES = 4;
+  public static final int HPM_TAKEN_BRANCHES = 5;
+  public static final int HPM_TRAPS = 6; // exceptions and interrupts taken
+  public static final int HPM_MMIO_ACCESSES = 7; // to any peripheral
+  public static final int HPM_DECODE_CACHE_MISSES = 8;
+  // MMIO accesses to the interrupt controller, then to each attached peripheral in turn
+  public static final int HPM_MMIO_PERIPHERAL_BASE = 9;
+  public static final int NUMBER_OF_COUNTERS = 32;
+  private final long[] eventCounters = new long[NUMBER_OF_COUNTERS];
+  public void countEvent(int counter) {
+    eventCounters[counter] += 1L;
+  }
+  
+  // a copy of the event counters, for repeatEvents()
+  public long[] getEventCounters() {
+    return eventCounters.clone();
+  }
+  // the same, copied into an array of at least NUMBER_OF_COUNTERS
+  public void getEventCounters(long[] into) {
+    System.arraycopy(eventCounters, 0, into, 0, NUMBER_OF_COUNTERS);
+  }
+  // adds the events counted since the given copy was taken again, the given number of times
+  public void repeatEvents(long[] since, long times) {
+    for (int i = 0; i < NUMBER_OF_COUNTERS; ++i) {
+      eventCounters[i] += (eventCounters[i] - since[i]) * times;
+    }
+  }
+  
+  // counter 0 is cycle, 1 is time, 2 is instret, and the rest are hpmcounters
+  public long getPerformanceCounter(int counter) {
+    switch (counter) {
+    case 0:
+      return instret + stallCycles;
+    case 1:
+      return time;
+    case 2:
+      return instret;
+    case HPM_DECODE_CACHE_MISSES:
+      return systemBus.getDecodeCacheMisses();
+    default:
+      return eventCounters[counter];
+    }
+  }
+  
+  // traps that carry nothing but their cause are thrown without allocating
+  private static final IllegalInstructionException NO_SUCH_CSR = new IllegalInstructionException(0);
+  private static final ProcessorTrapException BREAKPOINT = new ProcessorTrapException(3);
+  private static final ProcessorTrapException ENVIRONMENT_CALL = new ProcessorTrapException(11);
+  private static final InterruptException EXTERNAL_INTERRUPT = new InterruptException(15);
+  // one per core, since it carries the faulting instruction word
+  private final IllegalInstructionException illegalInstruction = new IllegalInstructionException(0);
+  
+  IllegalInstructionException illegalInstruction(int insn) {
+    return illegalInstruction.at(insn);
+  }
   
   protected int readCSR(int csr) throws IllegalInstructionException {
     switch (csr) {
@@ -88,24 +163,6 @@ public class RV32Core {
       return mcause;
     case 0x343:
       return mbadaddr;
-    case 0xC00:
-      // TODO RDCYCLE
-      throw new IllegalInstructionException(0);
-    case 0xC80:
-      // TODO RDCYCLEH
-      throw new IllegalInstructionException(0);
-    case 0xC01:
-      // TODO RDTIME
-      throw new IllegalInstructionException(0);
-    case 0xC81:
-      // TODO RDTIMEH
-      throw new IllegalInstructionException(0); 
-    case 0xC02:
-      // RDINSTRET
-      return (int)(instret & 0x00000000FFFFFFFFL);
-    case 0xC82:
-      // RDINSTRETH
-      return (int)((instret & 0xFFFFFFFF00000000L) >>> 32); 
     case 0xF00:
       // mcpuid
       // base 00 (RV32I),
@@ -121,8 +178,16 @@ public class RV32Core {
       // mhartid
       return 0;
     default:
+      if (csr >= 0xC00 && csr < 0xC00 + NUMBER_OF_COUNTERS) {
+        // RDCYCLE, RDTIME, RDINSTRET, hpmcounters
+        return (int)getPerformanceCounter(csr - 0xC00);
+      }
+      if (csr >= 0xC80 && csr < 0xC80 + NUMBER_OF_COUNTERS) {
+        // RDCYCLEH, RDTIMEH, RDINSTRETH, hpmcounter high halves
+        return (int)(getPerformanceCounter(csr - 0xC80) >>> 32);
+      }
       // attempts to access a non-existent CSR raise an illegal instruction exception
-      throw new IllegalInstructionException(0);
+      throw NO_SUCH_CSR;
     }
   }
   
@@ -147,7 +212,7 @@ public class RV32Core {
       // attempts to access a non-existent CSR
       // or write to a read-only CSR 
       // raise an illegal instruction exception
-      throw new IllegalInstructionException(0);
+      throw NO_SUCH_CSR;
     }
   }
   
@@ -158,17 +223,510 @@ public class RV32Core {
     systemBus = new RV32SystemBus();
   }
   
+  // registers, CSRs and sleep state, for Microcontroller.saveState();
+  // LR/SC reservations are saved with the system bus
+  public void saveState(ByteBuffer state) {
+    for (int i = 0; i < 32; ++i) {
+      state.putInt(xRegister[i]);
+    }
+    state.putInt(pc);
+    state.putInt(next_pc);
+    state.putInt(getMstatus());
+    state.putInt(mscratch);
+    state.putInt(mepc);
+    state.putInt(mcause);
+    state.putInt(mbadaddr);
+    state.putLong(instret);
+    state.putLong(stallCycles);
+    state.putLong(time);
+    for (int i = 0; i < NUMBER_OF_COUNTERS; ++i) {
+      state.putLong(eventCounters[i]);
+    }
+    state.put((byte)(sleeping ? 1 : 0));
+    systemBus.saveReservations(state);
+  }
+  
+  public void restoreState(ByteBuffer state) {
+    for (int i = 0; i < 32; ++i) {
+      xRegister[i] = state.getInt();
+    }
+    xRegister[0] = 0;
+    pc = state.getInt();
+    next_pc = state.getInt();
+    setMstatus(state.getInt());
+    mscratch = state.getInt();
+    mepc = state.getInt();
+    mcause = state.getInt();
+    mbadaddr = state.getInt();
+    instret = state.getLong();
+    stallCycles = state.getLong();
+    time = state.getLong();
+    for (int i = 0; i < NUMBER_OF_COUNTERS; ++i) {
+      eventCounters[i] = state.getLong();
+    }
+    sleeping = (state.get() != 0);
+    trapped = false;
+    peripheralAccessPending = false;
+    systemBus.restoreReservations(state);
+  }
+  
+  // optional dynamic translator for hot blocks; null means interpret everything
+  private RV32Translator translator = null;
+  public RV32Translator getTranslator() {
+    return this.translator;
+  }
+  public void setTranslator(RV32Translator translator) {
+    this.translator = translator;
+  }
+  private final int[] faultIndex = new int[1];
+  
+  // optional execution profiler; while one is set, everything runs through step()
+  private RV32Profiler profiler = null;
+  public RV32Profiler getProfiler() {
+    return this.profiler;
+  }
+  public void setProfiler(RV32Profiler profiler) {
+    this.profiler = profiler;
+  }
+  
+  // optional execution trace; likewise forces everything through step()
+  private RV32Tracer tracer = null;
+  public RV32Tracer getTracer() {
+    return this.tracer;
+  }
+  public void setTracer(RV32Tracer tracer) {
+    this.tracer = tracer;
+    systemBus.setTracer(tracer);
+  }
+  
+  // set whenever a trap is taken, so that an instruction that traps
+  // from inside execute() does not also retire and advance the PC
+  private boolean trapped = false;
+  
+  // set when execution stopped in front of an instruction that accesses
+  // a peripheral (see BatchExitException); that instruction has not run yet
+  private boolean peripheralAccessPending = false;
+  public boolean isPeripheralAccessPending() {
+    return this.peripheralAccessPending;
+  }
+  
+  // set by WFI; a sleeping core spends every cycle doing nothing
+  private boolean sleeping = false;
+  public boolean isSleeping() {
+    return this.sleeping;
+  }
+  public void wakeUp() {
+    this.sleeping = false;
+  }
+  
+  // Runs up to maxCycles cycles with the fastest engine available
+  // and returns the number of cycles executed, which is smaller than maxCycles
+  // only if isPeripheralAccessPending().
+  public int run(int maxCycles) {
+    if (sleeping) {
+      stallCycles += maxCycles;
+      if (profiler != null) {
+        profiler.countSleep(maxCycles);
+      }
+      return maxCycles;
+    }
+    if (profiler != null || tracer != null) {
+      return runStepped(maxCycles);
+    }
+    if (translator == null && predecodedImage != null) {
+      return runPredecoded(maxCycles);
+    } else {
+      return runBlocks(maxCycles);
+    }
+  }
+  
   public void step() {
+    trapped = false;
+    peripheralAccessPending = false;
+    if (sleeping) {
+      stallCycles += 1L;
+      if (profiler != null) {
+        profiler.countSleep(1L);
+      }
+      return;
+    }
+    int startPC = pc;
+    long traceMark = (tracer == null) ? 0L : tracer.getRecordsWritten();
     try {
       // fetch + decode
       RV32Instruction instruction = systemBus.fetchInstruction(pc);
       next_pc = pc + 4;
+      if (tracer != null) {
+        tracer.beginInstruction(pc, instruction.getInsn(), instret + stallCycles);
+      }
       instruction.execute(this);
-      instret += 1L;
-      pc = next_pc;
+      if (!trapped) {
+        instret += 1L;
+        pc = next_pc;
+      }
     } catch (ProcessorTrapException e) {
       processorTrap(e);
     }
+    if (tracer != null) {
+      if (peripheralAccessPending) {
+        tracer.rewind(traceMark);
+      } else {
+        tracer.endInstruction();
+      }
+    }
+    if (profiler != null && !peripheralAccessPending) {
+      profiler.countCycle(startPC);
+    }
+  }
+  
+  // run() with a profiler or tracer attached: one step() per cycle, so that
+  // every cycle is accounted to the instruction that used it
+  private int runStepped(int maxCycles) {
+    peripheralAccessPending = false;
+    int cycles = 0;
+    while (cycles < maxCycles) {
+      step();
+      if (peripheralAccessPending) {
+        break;
+      }
+      cycles += 1;
+      if (sleeping) {
+        stallCycles += maxCycles - cycles;
+        if (profiler != null) {
+          profiler.countSleep(maxCycles - cycles);
+        }
+        cycles = maxCycles;
+      }
+    }
+    return cycles;
+  }
+  
+  // Runs whole basic blocks, following the links between them, until maxCycles
+  // cycles have been used up; the last block may be cut short to fit.
+  // Each instruction (retired or trapped) and each instruction fetch fault
+  // costs one cycle, exactly as if step() had been called that many times.
+  // Returns the number of cycles executed.
+  public int runBlocks(int maxCycles) {
+    peripheralAccessPending = false;
+    int cycles = 0;
+    int generation = systemBus.getInstructionCacheGeneration();
+    RV32BasicBlock block = null;
+    while (cycles < maxCycles) {
+      if (block == null) {
+        try {
+          block = systemBus.fetchBasicBlock(pc);
+        } catch (AddressTrapException e) {
+          processorTrap(e);
+          if (peripheralAccessPending) {
+            break;
+          }
+          cycles += 1;
+          continue;
+        }
+      }
+      int remaining = maxCycles - cycles;
+      RV32CompiledBlock compiled = block.getCompiledBlock();
+      if (compiled == null && translator != null) {
+        compiled = translator.compileIfHot(block);
+      }
+      int blockCycles;
+      if (compiled != null && block.getLength() <= remaining) {
+        blockCycles = executeCompiledBlock(block, compiled);
+      } else {
+        blockCycles = executeBlock(block, remaining);
+      }
+      cycles += blockCycles;
+      if (peripheralAccessPending) {
+        break;
+      }
+      if (sleeping) {
+        // nothing else happens in this run
+        stallCycles += maxCycles - cycles;
+        cycles = maxCycles;
+        break;
+      }
+      if (trapped || blockCycles < block.getLength()
+          || generation != systemBus.getInstructionCacheGeneration()) {
+        // left the block early, or FENCE.I invalidated it
+        generation = systemBus.getInstructionCacheGeneration();
+        block = null;
+        continue;
+      }
+      RV32BasicBlock successor = block.getSuccessor(pc);
+      if (successor == null && cycles < maxCycles) {
+        try {
+          successor = systemBus.fetchBasicBlock(pc);
+          block.linkSuccessor(successor);
+        } catch (AddressTrapException e) {
+          // taken on the next iteration
+        }
+      }
+      block = successor;
+    }
+    return cycles;
+  }
+  
+  // pre-decoded copy of the text memory, used by runPredecoded()
+  private RV32PredecodedImage predecodedImage = null;
+  public RV32PredecodedImage getPredecodedImage() {
+    return this.predecodedImage;
+  }
+  public void setPredecodedImage(RV32PredecodedImage image) {
+    this.predecodedImage = image;
+  }
+  
+  // Runs maxCycles cycles out of the pre-decoded image with a single switch
+  // per instruction; any PC outside the image falls back to step().
+  // Cycle, instret and trap behaviour are the same as calling step() maxCycles times.
+  public int runPredecoded(int maxCycles) {
+    final RV32PredecodedImage image = predecodedImage;
+    final int base = image.getBaseAddress();
+    final int length = image.getLength();
+    final int[] opcode = image.getOpcodes();
+    final int[] rdA = image.getRd();
+    final int[] rs1A = image.getRs1();
+    final int[] rs2A = image.getRs2();
+    final int[] immA = image.getImm();
+    final int[] x = xRegister;
+    final long[] events = eventCounters;
+    
+    peripheralAccessPending = false;
+    int cycles = 0;
+    // only instructions that go through step() or the decoded object can trap
+    boolean lastTrapped = false;
+    loop:
+    while (cycles < maxCycles) {
+      cycles += 1;
+      lastTrapped = false;
+      int offset = pc - base;
+      int i = offset >>> 2;
+      if ((offset & 0x00000003) != 0 || i >= length) {
+        step();
+        lastTrapped = trapped;
+        if (peripheralAccessPending) {
+          cycles -= 1;
+          break loop;
+        }
+        if (sleeping) {
+          stallCycles += maxCycles - cycles;
+          cycles = maxCycles;
+        }
+        continue;
+      }
+      int rd = rdA[i];
+      int imm = immA[i];
+      int result;
+      switch (opcode[i]) {
+      case RV32PredecodedImage.OP_ADD: result = x[rs1A[i]] + x[rs2A[i]]; break;
+      case RV32PredecodedImage.OP_SUB: result = x[rs1A[i]] - x[rs2A[i]]; break;
+      case RV32PredecodedImage.OP_AND: result = x[rs1A[i]] & x[rs2A[i]]; break;
+      case RV32PredecodedImage.OP_OR: result = x[rs1A[i]] | x[rs2A[i]]; break;
+      case RV32PredecodedImage.OP_XOR: result = x[rs1A[i]] ^ x[rs2A[i]]; break;
+      case RV32PredecodedImage.OP_SLL: result = x[rs1A[i]] << (x[rs2A[i]] & 0x0000001F); break;
+      case RV32PredecodedImage.OP_SRL: result = x[rs1A[i]] >>> (x[rs2A[i]] & 0x0000001F); break;
+      case RV32PredecodedImage.OP_SRA: result = x[rs1A[i]] >> (x[rs2A[i]] & 0x0000001F); break;
+      case RV32PredecodedImage.OP_SLT: result = (x[rs1A[i]] < x[rs2A[i]]) ? 1 : 0; break;
+      case RV32PredecodedImage.OP_SLTU: result = (Integer.compareUnsigned(x[rs1A[i]], x[rs2A[i]]) < 0) ? 1 : 0; break;
+      case RV32PredecodedImage.OP_MUL: result = x[rs1A[i]] * x[rs2A[i]]; break;
+      case RV32PredecodedImage.OP_MULH: result = mulh(x[rs1A[i]], x[rs2A[i]]); break;
+      case RV32PredecodedImage.OP_MULHSU: result = mulhsu(x[rs1A[i]], x[rs2A[i]]); break;
+      case RV32PredecodedImage.OP_MULHU: result = mulhu(x[rs1A[i]], x[rs2A[i]]); break;
+      case RV32PredecodedImage.OP_DIV: result = div(x[rs1A[i]], x[rs2A[i]]); break;
+      case RV32PredecodedImage.OP_DIVU: result = divu(x[rs1A[i]], x[rs2A[i]]); break;
+      case RV32PredecodedImage.OP_REM: result = rem(x[rs1A[i]], x[rs2A[i]]); break;
+      case RV32PredecodedImage.OP_REMU: result = remu(x[rs1A[i]], x[rs2A[i]]); break;
+      case RV32PredecodedImage.OP_ADDI: result = x[rs1A[i]] + imm; break;
+      case RV32PredecodedImage.OP_ANDI: result = x[rs1A[i]] & imm; break;
+      case RV32PredecodedImage.OP_ORI: result = x[rs1A[i]] | imm; break;
+      case RV32PredecodedImage.OP_XORI: result = x[rs1A[i]] ^ imm; break;
+      case RV32PredecodedImage.OP_SLTI: result = (x[rs1A[i]] < imm) ? 1 : 0; break;
+      case RV32PredecodedImage.OP_SLTIU: result = (Integer.compareUnsigned(x[rs1A[i]], imm) < 0) ? 1 : 0; break;
+      case RV32PredecodedImage.OP_SLLI: result = x[rs1A[i]] << imm; break;
+      case RV32PredecodedImage.OP_SRLI: result = x[rs1A[i]] >>> imm; break;
+      case RV32PredecodedImage.OP_SRAI: result = x[rs1A[i]] >> imm; break;
+      case RV32PredecodedImage.OP_LUI: result = imm; break;
+      case RV32PredecodedImage.OP_AUIPC: result = imm; break;
+      case RV32PredecodedImage.OP_LB:
+      case RV32PredecodedImage.OP_LBU:
+      case RV32PredecodedImage.OP_LH:
+      case RV32PredecodedImage.OP_LHU:
+      case RV32PredecodedImage.OP_LW:
+      {
+        int addr = x[rs1A[i]] + imm;
+        try {
+          switch (opcode[i]) {
+          case RV32PredecodedImage.OP_LB: result = (systemBus.loadByte(addr) << 24) >> 24; break;
+          case RV32PredecodedImage.OP_LBU: result = systemBus.loadByte(addr) & 0x000000FF; break;
+          case RV32PredecodedImage.OP_LH: result = (systemBus.loadHalfword(addr) << 16) >> 16; break;
+          case RV32PredecodedImage.OP_LHU: result = systemBus.loadHalfword(addr) & 0x0000FFFF; break;
+          default: result = systemBus.loadWord(addr); break;
+          }
+          events[HPM_LOADS] += 1L;
+        } catch (AddressTrapException e) {
+          processorTrap(e);
+          if (peripheralAccessPending) {
+            cycles -= 1;
+            break loop;
+          }
+          continue;
+        }
+      } break;
+      case RV32PredecodedImage.OP_SB:
+      case RV32PredecodedImage.OP_SH:
+      case RV32PredecodedImage.OP_SW:
+      {
+        int addr = x[rs1A[i]] + imm;
+        int data = x[rs2A[i]];
+        try {
+          switch (opcode[i]) {
+          case RV32PredecodedImage.OP_SB: systemBus.storeByte(addr, data & 0x000000FF); break;
+          case RV32PredecodedImage.OP_SH: systemBus.storeHalfword(addr, data & 0x0000FFFF); break;
+          default: systemBus.storeWord(addr, data); break;
+          }
+          events[HPM_STORES] += 1L;
+        } catch (AddressTrapException e) {
+          processorTrap(e);
+          if (peripheralAccessPending) {
+            cycles -= 1;
+            break loop;
+          }
+          continue;
+        }
+        instret += 1;
+        pc += 4;
+        continue;
+      }
+      case RV32PredecodedImage.OP_BEQ:
+      case RV32PredecodedImage.OP_BNE:
+      case RV32PredecodedImage.OP_BLT:
+      case RV32PredecodedImage.OP_BGE:
+      case RV32PredecodedImage.OP_BLTU:
+      case RV32PredecodedImage.OP_BGEU:
+      {
+        int a = x[rs1A[i]];
+        int b = x[rs2A[i]];
+        boolean taken;
+        switch (opcode[i]) {
+        case RV32PredecodedImage.OP_BEQ: taken = (a == b); break;
+        case RV32PredecodedImage.OP_BNE: taken = (a != b); break;
+        case RV32PredecodedImage.OP_BLT: taken = (a < b); break;
+        case RV32PredecodedImage.OP_BGE: taken = (a >= b); break;
+        case RV32PredecodedImage.OP_BLTU: taken = (Integer.compareUnsigned(a, b) < 0); break;
+        default: taken = (Integer.compareUnsigned(a, b) >= 0); break;
+        }
+        instret += 1;
+        if (taken) {
+          events[HPM_TAKEN_BRANCHES] += 1L;
+          pc = imm;
+        } else {
+          pc += 4;
+        }
+        continue;
+      }
+      case RV32PredecodedImage.OP_JAL:
+        if (rd != 0) {
+          x[rd] = pc + 4;
+        }
+        instret += 1;
+        pc = imm;
+        continue;
+      case RV32PredecodedImage.OP_JALR:
+      {
+        int target = (x[rs1A[i]] + imm) & ~(0x00000001);
+        if (rd != 0) {
+          x[rd] = pc + 4;
+        }
+        instret += 1;
+        pc = target;
+        continue;
+      }
+      case RV32PredecodedImage.OP_FENCE:
+        instret += 1;
+        pc += 4;
+        continue;
+      default:
+      {
+        // everything else goes through the decoded object, as in step()
+        trapped = false;
+        next_pc = pc + 4;
+        try {
+          image.getInstructions()[i].execute(this);
+        } catch (IllegalInstructionException e) {
+          processorTrap(e);
+        }
+        lastTrapped = trapped;
+        if (!trapped) {
+          instret += 1;
+          pc = next_pc;
+          if (sleeping) {
+            stallCycles += maxCycles - cycles;
+            cycles = maxCycles;
+          }
+        } else if (peripheralAccessPending) {
+          cycles -= 1;
+          break loop;
+        }
+        continue;
+      }
+      }
+      // common tail for instructions that write rd
+      if (rd != 0) {
+        x[rd] = result;
+      }
+      instret += 1;
+      pc += 4;
+    }
+    // as after step(), next_pc is where the last instruction went unless it trapped
+    if (!lastTrapped) {
+      next_pc = pc;
+    }
+    return cycles;
+  }
+  
+  private int executeCompiledBlock(RV32BasicBlock block, RV32CompiledBlock compiled) {
+    trapped = false;
+    try {
+      pc = compiled.execute(xRegister, systemBus, faultIndex);
+      instret += block.getLength();
+      eventCounters[HPM_LOADS] += block.countLoads(block.getLength());
+      eventCounters[HPM_STORES] += block.countStores(block.getLength());
+      if (block.endsInBranch() && pc != block.getFallthroughPC()) {
+        eventCounters[HPM_TAKEN_BRANCHES] += 1L;
+      }
+      return block.getLength();
+    } catch (AddressTrapException e) {
+      // everything before the faulting instruction has retired
+      int index = faultIndex[0];
+      pc = block.getEntryPC() + (index << 2);
+      instret += index;
+      eventCounters[HPM_LOADS] += block.countLoads(index);
+      eventCounters[HPM_STORES] += block.countStores(index);
+      processorTrap(e);
+      return peripheralAccessPending ? index : index + 1;
+    }
+  }
+  
+  private int executeBlock(RV32BasicBlock block, int maxInstructions) {
+    RV32Instruction[] instructions = block.getInstructions();
+    int n = Math.min(instructions.length, maxInstructions);
+    int blockPC = block.getEntryPC();
+    trapped = false;
+    for (int i = 0; i < n; ++i) {
+      pc = blockPC + (i << 2);
+      next_pc = pc + 4;
+      try {
+        instructions[i].execute(this);
+      } catch (IllegalInstructionException e) {
+        processorTrap(e);
+      }
+      if (trapped) {
+        return peripheralAccessPending ? i : i + 1;
+      }
+      // retired one at a time, so that a CSR read later in the block sees the right counts
+      instret += 1;
+    }
+    pc = next_pc;
+    return n;
   }
   
   public boolean interruptsEnabled() {
@@ -176,10 +734,22 @@ public class RV32Core {
   }
   
   public void externalInterrupt() {
-    processorTrap(new InterruptException(15));
+    processorTrap(EXTERNAL_INTERRUPT);
   }
   
   private void processorTrap(ProcessorTrapException e) {
+    trapped = true;
+    if (e == BatchExitException.INSTANCE) {
+      // nothing happened; the instruction runs again outside the batch
+      peripheralAccessPending = true;
+      return;
+    }
+    sleeping = false;
+    eventCounters[HPM_TRAPS] += 1L;
+    if (e != EXTERNAL_INTERRUPT) {
+      // the trapping instruction used up its cycle without retiring
+      stallCycles += 1L;
+    }
     if (e instanceof AddressTrapException) {
       mbadaddr = ((AddressTrapException)e).getBadAddr();
     }
@@ -191,6 +761,9 @@ public class RV32Core {
     mepc = pc;
     // set mcause
     mcause = e.getMCause();
+    if (tracer != null) {
+      tracer.trap(e == EXTERNAL_INTERRUPT, mepc, mcause, mbadaddr);
+    }
     // counts as a context switch
     systemBus.clearAllReservations();
     // jump to the correct trap handler, which is always at 0x100 + whatever offset
@@ -200,6 +773,59 @@ public class RV32Core {
     }
   }
   
+  // arithmetic shared by the interpreter and by translated code;
+  // these are public so that generated classes can call them
+  public static int mulh(int rs1, int rs2) {
+    long product = (long)rs1 * (long)rs2;
+    return (int)(product >>> 32);
+  }
+  public static int mulhsu(int rs1, int rs2) {
+    long product = (long)rs1 * ((long)rs2 & 0x00000000FFFFFFFFL);
+    return (int)(product >>> 32);
+  }
+  public static int mulhu(int rs1, int rs2) {
+    long product = ((long)rs1 & 0x00000000FFFFFFFFL) * ((long)rs2 & 0x00000000FFFFFFFFL);
+    return (int)(product >>> 32);
+  }
+  public static int div(int rs1, int rs2) {
+    if (rs2 == 0) {
+      // DIV/0
+      return -1;
+    } else if (rs1 == Integer.MIN_VALUE && rs2 == -1) {
+      // signed overflow
+      return Integer.MIN_VALUE;
+    } else {
+      return rs1 / rs2;
+    }
+  }
+  public static int divu(int rs1, int rs2) {
+    if (rs2 == 0) {
+      // DIV/0
+      return 0xFFFFFFFF;
+    } else {
+      return Integer.divideUnsigned(rs1, rs2);
+    }
+  }
+  public static int rem(int rs1, int rs2) {
+    if (rs2 == 0) {
+      // DIV/0
+      return rs1;
+    } else if (rs1 == Integer.MIN_VALUE && rs2 == -1) {
+      // signed overflow
+      return 0;
+    } else {
+      return rs1 % rs2;
+    }
+  }
+  public static int remu(int rs1, int rs2) {
+    if (rs2 == 0) {
+      // DIV/0
+      return rs1;
+    } else {
+      return Integer.remainderUnsigned(rs1, rs2);
+    }
+  }
+  
   public void execute(RV32_ADD rv32_ADD) {
     int rs1 = getXRegister(rv32_ADD.getRs1());
     int rs2 = getXRegister(rv32_ADD.getRs2());
@@ -216,6 +842,8 @@ public class RV32Core {
       int loadedValue = systemBus.loadWord(addr);
       setXRegister(rv32_AMOADDW.getRd(), loadedValue);
       systemBus.storeWord(addr, loadedValue + appliedValue);
+      eventCounters[HPM_LOADS] += 1L;
+      eventCounters[HPM_STORES] += 1L;
     } catch (AddressTrapException e) {
       processorTrap(e);
     }
@@ -227,6 +855,8 @@ public class RV32Core {
       int loadedValue = systemBus.loadWord(addr);
       setXRegister(rv32_AMOANDW.getRd(), loadedValue);
       systemBus.storeWord(addr, loadedValue & appliedValue);
+      eventCounters[HPM_LOADS] += 1L;
+      eventCounters[HPM_STORES] += 1L;
     } catch (AddressTrapException e) {
       processorTrap(e);
     }
@@ -238,6 +868,8 @@ public class RV32Core {
       int loadedValue = systemBus.loadWord(addr);
       setXRegister(rv32_AMOMAXUW.getRd(), loadedValue);
       systemBus.storeWord(addr, Integer.compareUnsigned(loadedValue, appliedValue) > 0 ? loadedValue : appliedValue);
+      eventCounters[HPM_LOADS] += 1L;
+      eventCounters[HPM_STORES] += 1L;
     } catch (AddressTrapException e) {
       processorTrap(e);
     }
@@ -249,6 +881,8 @@ public class RV32Core {
       int loadedValue = systemBus.loadWord(addr);
       setXRegister(rv32_AMOMAXW.getRd(), loadedValue);
       systemBus.storeWord(addr, loadedValue > appliedValue ? loadedValue : appliedValue);
+      eventCounters[HPM_LOADS] += 1L;
+      eventCounters[HPM_STORES] += 1L;
     } catch (AddressTrapException e) {
       processorTrap(e);
     }
@@ -260,6 +894,8 @@ public class RV32Core {
       int loadedValue = systemBus.loadWord(addr);
       setXRegister(rv32_AMOMINUW.getRd(), loadedValue);
       systemBus.storeWord(addr, Integer.compareUnsigned(loadedValue, appliedValue) < 0 ? loadedValue : appliedValue);
+      eventCounters[HPM_LOADS] += 1L;
+      eventCounters[HPM_STORES] += 1L;
     } catch (AddressTrapException e) {
       processorTrap(e);
     }
@@ -271,6 +907,8 @@ public class RV32Core {
       int loadedValue = systemBus.loadWord(addr);
       setXRegister(rv32_AMOMINW.getRd(), loadedValue);
       systemBus.storeWord(addr, loadedValue < appliedValue ? loadedValue : appliedValue);
+      eventCounters[HPM_LOADS] += 1L;
+      eventCounters[HPM_STORES] += 1L;
     } catch (AddressTrapException e) {
       processorTrap(e);
     }
@@ -282,6 +920,8 @@ public class RV32Core {
       int loadedValue = systemBus.loadWord(addr);
       setXRegister(rv32_AMOORW.getRd(), loadedValue);
       systemBus.storeWord(addr, loadedValue | appliedValue);
+      eventCounters[HPM_LOADS] += 1L;
+      eventCounters[HPM_STORES] += 1L;
     } catch (AddressTrapException e) {
       processorTrap(e);
     }
@@ -293,6 +933,8 @@ public class RV32Core {
       int loadedValue = systemBus.loadWord(addr);
       setXRegister(rv32_AMOSWAPW.getRd(), loadedValue);
       systemBus.storeWord(addr, appliedValue);
+      eventCounters[HPM_LOADS] += 1L;
+      eventCounters[HPM_STORES] += 1L;
     } catch (AddressTrapException e) {
       processorTrap(e);
     }
@@ -304,6 +946,8 @@ public class RV32Core {
       int loadedValue = systemBus.loadWord(addr);
       setXRegister(rv32_AMOXORW.getRd(), loadedValue);
       systemBus.storeWord(addr, loadedValue ^ appliedValue);
+      eventCounters[HPM_LOADS] += 1L;
+      eventCounters[HPM_STORES] += 1L;
     } catch (AddressTrapException e) {
       processorTrap(e);
     }
@@ -325,6 +969,7 @@ public class RV32Core {
     int rs2 = getXRegister(rv32_BEQ.getRs2());
     if (rs1 == rs2) {
       setNextPC(getPC() + rv32_BEQ.getImm());
+      eventCounters[HPM_TAKEN_BRANCHES] += 1L;
     }
   }
   public void execute(RV32_BGE rv32_BGE) {
@@ -332,6 +977,7 @@ public class RV32Core {
     int rs2 = getXRegister(rv32_BGE.getRs2());
     if (rs1 >= rs2) {
       setNextPC(getPC() + rv32_BGE.getImm());
+      eventCounters[HPM_TAKEN_BRANCHES] += 1L;
     }
   }
   public void execute(RV32_BGEU rv32_BGEU) {
@@ -340,6 +986,7 @@ public class RV32Core {
     boolean isLT = (rs1 < rs2) ^ (rs1 < 0) ^ (rs2 < 0);
     if (!isLT) {
       setNextPC(getPC() + rv32_BGEU.getImm());
+      eventCounters[HPM_TAKEN_BRANCHES] += 1L;
     }
   }
   public void execute(RV32_BLT rv32_BLT) {
@@ -347,6 +994,7 @@ public class RV32Core {
     int rs2 = getXRegister(rv32_BLT.getRs2());
     if (rs1 < rs2) {
       setNextPC(getPC() + rv32_BLT.getImm());
+      eventCounters[HPM_TAKEN_BRANCHES] += 1L;
     }
   }
   public void execute(RV32_BLTU rv32_BLTU) {
@@ -355,6 +1003,7 @@ public class RV32Core {
     boolean isLT = (rs1 < rs2) ^ (rs1 < 0) ^ (rs2 < 0);
     if (isLT) {
       setNextPC(getPC() + rv32_BLTU.getImm());
+      eventCounters[HPM_TAKEN_BRANCHES] += 1L;
     }
   }
   public void execute(RV32_BNE rv32_BNE) {
@@ -362,11 +1011,12 @@ public class RV32Core {
     int rs2 = getXRegister(rv32_BNE.getRs2());
     if (rs1 != rs2) {
       setNextPC(getPC() + rv32_BNE.getImm());
+      eventCounters[HPM_TAKEN_BRANCHES] += 1L;
     }
   }
   public void execute(RV32_CSRRC rv32_CSRRC) throws IllegalInstructionException {
     try {
-      int csr = rv32_CSRRC.getImm();
+      int csr = rv32_CSRRC.getImm() & 0x00000FFF;
       int old_value = readCSR(csr);
       if (rv32_CSRRC.getRs1() != 0) {
         writeCSR(csr, old_value & ~getXRegister(rv32_CSRRC.getRs1()));
@@ -374,12 +1024,12 @@ public class RV32Core {
       setXRegister(rv32_CSRRC.getRd(), old_value);
     } catch (IllegalInstructionException e) {
       // re-raise with correct instruction word
-      throw new IllegalInstructionException(rv32_CSRRC.getInsn());
+      throw illegalInstruction(rv32_CSRRC.getInsn());
     }
   }
   public void execute(RV32_CSRRCI rv32_CSRRCI) throws IllegalInstructionException {
     try {
-      int csr = rv32_CSRRCI.getImm();
+      int csr = rv32_CSRRCI.getImm() & 0x00000FFF;
       int old_value = readCSR(csr);
       if (rv32_CSRRCI.getRs1() != 0) {
         writeCSR(csr, old_value | rv32_CSRRCI.getRs1());
@@ -387,12 +1037,12 @@ public class RV32Core {
       setXRegister(rv32_CSRRCI.getRd(), old_value);
     } catch (IllegalInstructionException e) {
       // re-raise with correct instruction word
-      throw new IllegalInstructionException(rv32_CSRRCI.getInsn());
+      throw illegalInstruction(rv32_CSRRCI.getInsn());
     }
   }
   public void execute(RV32_CSRRS rv32_CSRRS) throws IllegalInstructionException {
     try {
-      int csr = rv32_CSRRS.getImm();
+      int csr = rv32_CSRRS.getImm() & 0x00000FFF;
       int old_value = readCSR(csr);
       if (rv32_CSRRS.getRs1() != 0) {
         writeCSR(csr, old_value | getXRegister(rv32_CSRRS.getRs1()));
@@ -400,12 +1050,12 @@ public class RV32Core {
       setXRegister(rv32_CSRRS.getRd(), old_value);
     } catch (IllegalInstructionException e) {
       // re-raise with correct instruction word
-      throw new IllegalInstructionException(rv32_CSRRS.getInsn());
+      throw illegalInstruction(rv32_CSRRS.getInsn());
     }
   }
   public void execute(RV32_CSRRSI rv32_CSRRSI) throws IllegalInstructionException {
     try {
-      int csr = rv32_CSRRSI.getImm();
+      int csr = rv32_CSRRSI.getImm() & 0x00000FFF;
       int old_value = readCSR(csr);
       if (rv32_CSRRSI.getRs1() != 0) {
         writeCSR(csr, old_value | rv32_CSRRSI.getRs1());
@@ -413,23 +1063,23 @@ public class RV32Core {
       setXRegister(rv32_CSRRSI.getRd(), old_value);
     } catch (IllegalInstructionException e) {
       // re-raise with correct instruction word
-      throw new IllegalInstructionException(rv32_CSRRSI.getInsn());
+      throw illegalInstruction(rv32_CSRRSI.getInsn());
     }
   }
   public void execute(RV32_CSRRW rv32_CSRRW) throws IllegalInstructionException {
     try {
-      int csr = rv32_CSRRW.getImm();
+      int csr = rv32_CSRRW.getImm() & 0x00000FFF;
       int old_value = readCSR(csr);
       writeCSR(csr, getXRegister(rv32_CSRRW.getRs1()));
       setXRegister(rv32_CSRRW.getRd(), old_value);
     } catch (IllegalInstructionException e) {
       // re-raise with correct instruction word
-      throw new IllegalInstructionException(rv32_CSRRW.getInsn());
+      throw illegalInstruction(rv32_CSRRW.getInsn());
     }
   }
   public void execute(RV32_CSRRWI rv32_CSRRWI) throws IllegalInstructionException {
     try {
-      int csr = rv32_CSRRWI.getImm();
+      int csr = rv32_CSRRWI.getImm() & 0x00000FFF;
       int old_value = readCSR(csr);
       if (rv32_CSRRWI.getRs1() != 0) {
         writeCSR(csr, rv32_CSRRWI.getRs1());
@@ -437,31 +1087,18 @@ public class RV32Core {
       setXRegister(rv32_CSRRWI.getRd(), old_value);
     } catch (IllegalInstructionException e) {
       // re-raise with correct instruction word
-      throw new IllegalInstructionException(rv32_CSRRWI.getInsn());
+      throw illegalInstruction(rv32_CSRRWI.getInsn());
     }
   }
   public void execute(RV32_DIV rv32_DIV) {
     int rs1 = getXRegister(rv32_DIV.getRs1());
     int rs2 = getXRegister(rv32_DIV.getRs2());
-    if (rs2 == 0) {
-      // DIV/0
-      setXRegister(rv32_DIV.getRd(), -1);
-    } else if(rs1 == Integer.MIN_VALUE && rs2 == -1) {
-      // signed overflow
-      setXRegister(rv32_DIV.getRd(), Integer.MIN_VALUE);
-    } else {
-      setXRegister(rv32_DIV.getRd(), rs1 / rs2);
-    }
+    setXRegister(rv32_DIV.getRd(), div(rs1, rs2));
   }
   public void execute(RV32_DIVU rv32_DIVU) {
     int rs1 = getXRegister(rv32_DIVU.getRs1());
     int rs2 = getXRegister(rv32_DIVU.getRs2());
-    if (rs2 == 0) {
-      // DIV/0
-      setXRegister(rv32_DIVU.getRd(), 0xFFFFFFFF);
-    } else {
-      setXRegister(rv32_DIVU.getRd(), Integer.divideUnsigned(rs1, rs2));
-    }
+    setXRegister(rv32_DIVU.getRd(), divu(rs1, rs2));
   }
   public void execute(RV32_ERET rv32_ERET) {
     // pop the interrupt stack to the right and set 
@@ -469,9 +1106,17 @@ public class RV32Core {
     mstatus_ie = mstatus_ie1;
     mstatus_ie1 = true;
     next_pc = mepc;
+    if (tracer != null) {
+      tracer.trapReturn(pc, mepc);
+    }
     // counts as a context switch
     systemBus.clearAllReservations();
   }
+  public void execute(RV32_WFI rv32_WFI) {
+    // stall until woken up by an interrupt or a peripheral event;
+    // execution resumes at the next instruction
+    sleeping = true;
+  }
   public void execute(RV32_FENCE rv32_FENCE) {
     // this should just be a no-op on this implementation...
   }
@@ -482,19 +1127,26 @@ public class RV32Core {
     int target = getPC() + rv32_JAL.getImm();
     setNextPC(target);
     setXRegister(rv32_JAL.getRd(), getPC() + 4);
+    if (profiler != null && rv32_JAL.getRd() == 1) {
+      profiler.countCall(getPC(), target);
+    }
   }
   public void execute(RV32_JALR rv32_JALR) {
     int target = (getXRegister(rv32_JALR.getRs1()) + rv32_JALR.getImm()) & ~(0x00000001);
     setNextPC(target);
     setXRegister(rv32_JALR.getRd(), getPC() + 4);
+    if (profiler != null && rv32_JALR.getRd() == 1) {
+      profiler.countCall(getPC(), target);
+    }
   }
   public void execute(RV32_LB rv32_LB) {
     int addr = getXRegister(rv32_LB.getRs1()) + rv32_LB.getImm();
     try {
-      int data = systemBus.loadWord(addr);
+      int data = systemBus.loadByte(addr);
       // sign-extend to 32 bits
       data = (data << 24) >> 24;
       setXRegister(rv32_LB.getRd(), data);
+      eventCounters[HPM_LOADS] += 1L;
     } catch (AddressTrapException e) {
       processorTrap(e);
     }
@@ -502,10 +1154,11 @@ public class RV32Core {
   public void execute(RV32_LBU rv32_LBU) {
     int addr = getXRegister(rv32_LBU.getRs1()) + rv32_LBU.getImm();
     try {
-      int data = systemBus.loadWord(addr);
+      int data = systemBus.loadByte(addr);
       // zero-extend to 32 bits
       data = (data & 0x000000FF);
       setXRegister(rv32_LBU.getRd(), data);
+      eventCounters[HPM_LOADS] += 1L;
     } catch (AddressTrapException e) {
       processorTrap(e);
     }
@@ -513,10 +1166,11 @@ public class RV32Core {
   public void execute(RV32_LH rv32_LH) {
     int addr = getXRegister(rv32_LH.getRs1()) + rv32_LH.getImm();
     try {
-      int data = systemBus.loadWord(addr);
+      int data = systemBus.loadHalfword(addr);
       // sign-extend to 32 bits
       data = (data << 16) >> 16;
       setXRegister(rv32_LH.getRd(), data);
+      eventCounters[HPM_LOADS] += 1L;
     } catch (AddressTrapException e) {
       processorTrap(e);
     }
@@ -524,10 +1178,11 @@ public class RV32Core {
   public void execute(RV32_LHU rv32_LHU) {
     int addr = getXRegister(rv32_LHU.getRs1()) + rv32_LHU.getImm();
     try {
-      int data = systemBus.loadWord(addr);
+      int data = systemBus.loadHalfword(addr);
       // zero-extend to 32 bits
       data = (data & 0x0000FFFF);
       setXRegister(rv32_LHU.getRd(), data);
+      eventCounters[HPM_LOADS] += 1L;
     } catch (AddressTrapException e) {
       processorTrap(e);
     }
@@ -537,6 +1192,7 @@ public class RV32Core {
     try {
       int data = systemBus.loadWord(addr);
       setXRegister(rv32_LRW.getRd(), data);
+      eventCounters[HPM_LOADS] += 1L;
       systemBus.setReservation(addr);
     } catch (AddressTrapException e) {
       processorTrap(e);
@@ -550,6 +1206,7 @@ public class RV32Core {
     try {
       int data = systemBus.loadWord(addr);
       setXRegister(rv32_LW.getRd(), data);
+      eventCounters[HPM_LOADS] += 1L;
     } catch (AddressTrapException e) {
       processorTrap(e);
     }
@@ -562,20 +1219,17 @@ public class RV32Core {
   public void execute(RV32_MULH rv32_MULH) {
     int rs1 = getXRegister(rv32_MULH.getRs1());
     int rs2 = getXRegister(rv32_MULH.getRs2());
-    long product = (long)rs1 * (long)rs2;
-    setXRegister(rv32_MULH.getRd(), (int)(product >>> 32));
+    setXRegister(rv32_MULH.getRd(), mulh(rs1, rs2));
   }
   public void execute(RV32_MULHSU rv32_MULHSU) {
     int rs1 = getXRegister(rv32_MULHSU.getRs1());
     int rs2 = getXRegister(rv32_MULHSU.getRs2());
-    long product = ((long)rs1) * ((long)rs2)&0x00000000FFFFFFFFL;
-    setXRegister(rv32_MULHSU.getRd(), (int)(product >>> 32));
+    setXRegister(rv32_MULHSU.getRd(), mulhsu(rs1, rs2));
   }
   public void execute(RV32_MULHU rv32_MULHU) {
     int rs1 = getXRegister(rv32_MULHU.getRs1());
     int rs2 = getXRegister(rv32_MULHU.getRs2());
-    long product = ((long)rs1)&0x00000000FFFFFFFFL * ((long)rs2)&0x00000000FFFFFFFFL;
-    setXRegister(rv32_MULHU.getRd(), (int)(product >>> 32));
+    setXRegister(rv32_MULHU.getRd(), mulhu(rs1, rs2));
   }
   public void execute(RV32_OR rv32_OR) {
     int rs1 = getXRegister(rv32_OR.getRs1());
@@ -589,42 +1243,30 @@ public class RV32Core {
   public void execute(RV32_REM rv32_REM) {
     int rs1 = getXRegister(rv32_REM.getRs1());
     int rs2 = getXRegister(rv32_REM.getRs2());
-    if (rs2 == 0) {
-      // DIV/0
-      setXRegister(rv32_REM.getRd(), rs1);
-    } else if(rs1 == Integer.MIN_VALUE && rs2 == -1) {
-      // signed overflow
-      setXRegister(rv32_REM.getRd(), 0);
-    } else {
-      setXRegister(rv32_REM.getRd(), rs1 % rs2);
-    }
+    setXRegister(rv32_REM.getRd(), rem(rs1, rs2));
   }
   public void execute(RV32_REMU rv32_REMU) {
     int rs1 = getXRegister(rv32_REMU.getRs1());
     int rs2 = getXRegister(rv32_REMU.getRs2());
-    if (rs2 == 0) {
-      // DIV/0
-      setXRegister(rv32_REMU.getRd(), 0xFFFFFFFF);
-    } else {
-      setXRegister(rv32_REMU.getRd(), Integer.remainderUnsigned(rs1, rs2));
-    }
+    setXRegister(rv32_REMU.getRd(), remu(rs1, rs2));
   }
   public void execute(RV32_SB rv32_SB) {
     int addr = getXRegister(rv32_SB.getRs1()) + rv32_SB.getImm();
     int data = getXRegister(rv32_SB.getRs2()) & 0x000000FF;
     try {
       systemBus.storeByte(addr, data);
+      eventCounters[HPM_STORES] += 1L;
     } catch (AddressTrapException e) {
       processorTrap(e);
     }
   }
   public void execute(RV32_SBREAK rv32_SBREAK) {
     // causes a "breakpoint" exception
-    processorTrap(new ProcessorTrapException(3));
+    processorTrap(BREAKPOINT);
   }
   public void execute(RV32_SCALL rv32_SCALL) {
     // causes an "environment call" exception
-    processorTrap(new ProcessorTrapException(11));
+    processorTrap(ENVIRONMENT_CALL);
   }
   public void execute(RV32_SCW rv32_SCW) {
     int addr = getXRegister(rv32_SCW.getRs1());
@@ -632,6 +1274,7 @@ public class RV32Core {
     if (systemBus.isReserved(addr)) {
       try {
         systemBus.storeWord(addr, data);
+        eventCounters[HPM_STORES] += 1L;
       } catch (AddressTrapException e) {
         processorTrap(e);
       }
@@ -646,6 +1289,7 @@ public class RV32Core {
     int data = getXRegister(rv32_SH.getRs2()) & 0x0000FFFF;
     try {
       systemBus.storeHalfword(addr, data);
+      eventCounters[HPM_STORES] += 1L;
     } catch (AddressTrapException e) {
       processorTrap(e);
     }
@@ -718,13 +1362,14 @@ public class RV32Core {
   public void execute(RV32_SUB rv32_SUB) {
     int rs1 = getXRegister(rv32_SUB.getRs1());
     int rs2 = getXRegister(rv32_SUB.getRs2());
-    setXRegister(rv32_SUB.getRd(), rs1 + rs2);
+    setXRegister(rv32_SUB.getRd(), rs1 - rs2);
   }
   public void execute(RV32_SW rv32_SW) {
     int addr = getXRegister(rv32_SW.getRs1()) + rv32_SW.getImm();
     int data = getXRegister(rv32_SW.getRs2());
     try {
       systemBus.storeWord(addr, data);
+      eventCounters[HPM_STORES] += 1L;
     } catch (AddressTrapException e) {
       processorTrap(e);
     }
@@ -0,0 +1,94 @@
+package io.lp0onfire.ssi.microcontroller;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Process-wide cache of decoded instructions, shared by every microcontroller.
+// Decoded instructions carry no state other than their instruction word, so
+// one RV32Instruction per distinct word is enough no matter how many robots
+// run the same firmware. Predecoded images are shared the same way, keyed by
+// the contents and base address of the memory they were decoded from.
+// Both caches stop growing at a fixed size; past that we decode without caching.
+public final class RV32DecodeCache {
+
+  private RV32DecodeCache() {
+  }
+
+  private static final int MAX_INSTRUCTIONS = 1 << 16;
+  private static final int MAX_IMAGES = 64;
+
+  private static final RV32InstructionDecoder decoder = new RV32InstructionDecoder();
+  private static final ConcurrentHashMap<Integer, RV32Instruction> instructions = new ConcurrentHashMap<>();
+  private static final ConcurrentHashMap<ContentKey, RV32PredecodedImage> images = new ConcurrentHashMap<>();
+
+  public static RV32Instruction decode(int insn) {
+    RV32Instruction instruction = instructions.get(insn);
+    if (instruction != null) {
+      return instruction;
+    }
+    // the decoder keeps no state, so racing threads at worst decode the same word twice
+    instruction = decoder.decode(insn);
+    if (instructions.size() < MAX_INSTRUCTIONS) {
+      RV32Instruction previous = instructions.putIfAbsent(insn, instruction);
+      if (previous != null) {
+        return previous;
+      }
+    }
+    return instruction;
+  }
+
+  // returns the predecoded image of a memory mapped at baseAddress,
+  // reusing the image of any earlier memory with identical contents
+  public static RV32PredecodedImage predecode(SystemBusPeripheral memory, int baseAddress) throws AddressTrapException {
+    int[] words = new int[memory.getNumberOfPages() * (1024 / 4)];
+    for (int i = 0; i < words.length; ++i) {
+      words[i] = memory.readWord(baseAddress + (i << 2));
+    }
+    ContentKey key = new ContentKey(baseAddress, words);
+    RV32PredecodedImage image = images.get(key);
+    if (image != null) {
+      return image;
+    }
+    image = new RV32PredecodedImage(memory, baseAddress);
+    if (images.size() < MAX_IMAGES) {
+      RV32PredecodedImage previous = images.putIfAbsent(key, image);
+      if (previous != null) {
+        return previous;
+      }
+    }
+    return image;
+  }
+
+  // number of distinct instruction words cached so far
+  public static int getCachedInstructionCount() {
+    return instructions.size();
+  }
+
+  // a run of instruction words at a given address
+  static final class ContentKey {
+    private final int address;
+    private final int[] words;
+    private final int hash;
+
+    ContentKey(int address, int[] words) {
+      this.address = address;
+      this.words = words;
+      this.hash = 31 * Arrays.hashCode(words) + address;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof ContentKey)) {
+        return false;
+      }
+      ContentKey k = (ContentKey)o;
+      return hash == k.hash && address == k.address && Arrays.equals(words, k.words);
+    }
+  }
+
+}
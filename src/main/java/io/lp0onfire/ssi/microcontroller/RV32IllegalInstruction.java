@@ -8,7 +8,12 @@ public class RV32IllegalInstruction extends RV32Instruction {
   
   @Override
   public void execute(RV32Core cpu) throws IllegalInstructionException {
-    throw new IllegalInstructionException(getInsn());
+    throw cpu.illegalInstruction(getInsn());
+  }
+
+  @Override
+  public boolean endsBasicBlock() {
+    return true;
   }
 
 }
@@ -13,4 +13,10 @@ public abstract class RV32Instruction {
   
   public abstract void execute(RV32Core cpu) throws IllegalInstructionException;
   
+  // true if this instruction can change control flow or machine state
+  // in a way that must end a basic block (branches, jumps, CSR accesses, SYSTEM, FENCE.I)
+  public boolean endsBasicBlock() {
+    return false;
+  }
+  
 }
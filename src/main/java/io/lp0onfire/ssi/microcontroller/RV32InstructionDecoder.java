@@ -311,6 +311,8 @@ public class RV32InstructionDecoder {
         return new RV32_SBREAK(insn);
       case 0b000100000000:
         return new RV32_ERET(insn);
+      case 0b000100000010:
+        return new RV32_WFI(insn);
       default:
         return new RV32IllegalInstruction(insn);
       }
@@ -0,0 +1,233 @@
+package io.lp0onfire.ssi.microcontroller;
+
+import io.lp0onfire.ssi.microcontroller.instructions.*;
+
+// The whole text segment of a read-only memory, decoded ahead of time into
+// parallel arrays indexed by (pc - baseAddress) >> 2, for RV32Core.runPredecoded().
+// Operands are stored in whatever form is cheapest to execute:
+// shift instructions keep their shift amount in imm, and for AUIPC, JAL
+// and conditional branches imm holds the absolute result/target address.
+// Anything without a dedicated opcode id (CSR, SYSTEM, AMO, LR/SC, FENCE.I,
+// illegal instructions) is OP_OBJECT and runs through the decoded instruction object.
+// Images never change once built, so microcontrollers with the same firmware
+// share one through RV32DecodeCache.predecode().
+public class RV32PredecodedImage {
+
+  public static final int OP_OBJECT = 0;
+  public static final int OP_ADD = 1;
+  public static final int OP_SUB = 2;
+  public static final int OP_AND = 3;
+  public static final int OP_OR = 4;
+  public static final int OP_XOR = 5;
+  public static final int OP_SLL = 6;
+  public static final int OP_SRL = 7;
+  public static final int OP_SRA = 8;
+  public static final int OP_SLT = 9;
+  public static final int OP_SLTU = 10;
+  public static final int OP_MUL = 11;
+  public static final int OP_MULH = 12;
+  public static final int OP_MULHSU = 13;
+  public static final int OP_MULHU = 14;
+  public static final int OP_DIV = 15;
+  public static final int OP_DIVU = 16;
+  public static final int OP_REM = 17;
+  public static final int OP_REMU = 18;
+  public static final int OP_ADDI = 19;
+  public static final int OP_ANDI = 20;
+  public static final int OP_ORI = 21;
+  public static final int OP_XORI = 22;
+  public static final int OP_SLTI = 23;
+  public static final int OP_SLTIU = 24;
+  public static final int OP_SLLI = 25;
+  public static final int OP_SRLI = 26;
+  public static final int OP_SRAI = 27;
+  public static final int OP_LUI = 28;
+  public static final int OP_AUIPC = 29;
+  public static final int OP_LB = 30;
+  public static final int OP_LBU = 31;
+  public static final int OP_LH = 32;
+  public static final int OP_LHU = 33;
+  public static final int OP_LW = 34;
+  public static final int OP_SB = 35;
+  public static final int OP_SH = 36;
+  public static final int OP_SW = 37;
+  public static final int OP_BEQ = 38;
+  public static final int OP_BNE = 39;
+  public static final int OP_BLT = 40;
+  public static final int OP_BGE = 41;
+  public static final int OP_BLTU = 42;
+  public static final int OP_BGEU = 43;
+  public static final int OP_JAL = 44;
+  public static final int OP_JALR = 45;
+  public static final int OP_FENCE = 46;
+
+  private final int baseAddress;
+  public int getBaseAddress() {
+    return this.baseAddress;
+  }
+
+  private final int[] opcode;
+  private final int[] rd;
+  private final int[] rs1;
+  private final int[] rs2;
+  private final int[] imm;
+  private final RV32Instruction[] instructions;
+
+  public int[] getOpcodes() {
+    return this.opcode;
+  }
+  public int[] getRd() {
+    return this.rd;
+  }
+  public int[] getRs1() {
+    return this.rs1;
+  }
+  public int[] getRs2() {
+    return this.rs2;
+  }
+  public int[] getImm() {
+    return this.imm;
+  }
+  // only meaningful for OP_OBJECT entries
+  public RV32Instruction[] getInstructions() {
+    return this.instructions;
+  }
+  public int getLength() {
+    return this.opcode.length;
+  }
+
+  // decodes every word of a memory mapped at baseAddress
+  public RV32PredecodedImage(SystemBusPeripheral memory, int baseAddress) throws AddressTrapException {
+    this.baseAddress = baseAddress;
+    int length = memory.getNumberOfPages() * (1024 / 4);
+    opcode = new int[length];
+    rd = new int[length];
+    rs1 = new int[length];
+    rs2 = new int[length];
+    imm = new int[length];
+    instructions = new RV32Instruction[length];
+    for (int i = 0; i < length; ++i) {
+      int pc = baseAddress + (i << 2);
+      decode(i, pc, RV32DecodeCache.decode(memory.readWord(pc)));
+    }
+  }
+
+  private void decode(int i, int pc, RV32Instruction insn) {
+    if (insn instanceof RV32_SLLI) {
+      shift(i, OP_SLLI, (RTypeInstruction)insn, ((RV32_SLLI)insn).getShamt());
+    } else if (insn instanceof RV32_SRLI) {
+      shift(i, OP_SRLI, (RTypeInstruction)insn, ((RV32_SRLI)insn).getShamt());
+    } else if (insn instanceof RV32_SRAI) {
+      shift(i, OP_SRAI, (RTypeInstruction)insn, ((RV32_SRAI)insn).getShamt());
+    } else if (insn instanceof RTypeInstruction) {
+      RTypeInstruction r = (RTypeInstruction)insn;
+      int op = registerOpcode(insn);
+      if (op == OP_OBJECT) {
+        object(i, insn);
+      } else {
+        opcode[i] = op;
+        rd[i] = r.getRd();
+        rs1[i] = r.getRs1();
+        rs2[i] = r.getRs2();
+      }
+    } else if (insn instanceof ITypeInstruction) {
+      ITypeInstruction r = (ITypeInstruction)insn;
+      int op = immediateOpcode(insn);
+      if (op == OP_OBJECT) {
+        object(i, insn);
+      } else {
+        opcode[i] = op;
+        rd[i] = r.getRd();
+        rs1[i] = r.getRs1();
+        imm[i] = r.getImm();
+      }
+    } else if (insn instanceof STypeInstruction) {
+      STypeInstruction r = (STypeInstruction)insn;
+      if (insn instanceof RV32_SB) opcode[i] = OP_SB;
+      else if (insn instanceof RV32_SH) opcode[i] = OP_SH;
+      else opcode[i] = OP_SW;
+      rs1[i] = r.getRs1();
+      rs2[i] = r.getRs2();
+      imm[i] = r.getImm();
+    } else if (insn instanceof SBTypeInstruction) {
+      SBTypeInstruction r = (SBTypeInstruction)insn;
+      if (insn instanceof RV32_BEQ) opcode[i] = OP_BEQ;
+      else if (insn instanceof RV32_BNE) opcode[i] = OP_BNE;
+      else if (insn instanceof RV32_BLT) opcode[i] = OP_BLT;
+      else if (insn instanceof RV32_BGE) opcode[i] = OP_BGE;
+      else if (insn instanceof RV32_BLTU) opcode[i] = OP_BLTU;
+      else opcode[i] = OP_BGEU;
+      rs1[i] = r.getRs1();
+      rs2[i] = r.getRs2();
+      imm[i] = pc + r.getImm();
+    } else if (insn instanceof RV32_LUI) {
+      opcode[i] = OP_LUI;
+      rd[i] = ((RV32_LUI)insn).getRd();
+      imm[i] = ((RV32_LUI)insn).getImm();
+    } else if (insn instanceof RV32_AUIPC) {
+      opcode[i] = OP_AUIPC;
+      rd[i] = ((RV32_AUIPC)insn).getRd();
+      imm[i] = pc + ((RV32_AUIPC)insn).getImm();
+    } else if (insn instanceof RV32_JAL) {
+      opcode[i] = OP_JAL;
+      rd[i] = ((RV32_JAL)insn).getRd();
+      imm[i] = pc + ((RV32_JAL)insn).getImm();
+    } else {
+      object(i, insn);
+    }
+  }
+
+  private void shift(int i, int op, RTypeInstruction insn, int shamt) {
+    opcode[i] = op;
+    rd[i] = insn.getRd();
+    rs1[i] = insn.getRs1();
+    imm[i] = shamt;
+  }
+
+  private void object(int i, RV32Instruction insn) {
+    opcode[i] = OP_OBJECT;
+    instructions[i] = insn;
+  }
+
+  private static int registerOpcode(RV32Instruction insn) {
+    if (insn instanceof RV32_ADD) return OP_ADD;
+    if (insn instanceof RV32_SUB) return OP_SUB;
+    if (insn instanceof RV32_AND) return OP_AND;
+    if (insn instanceof RV32_OR) return OP_OR;
+    if (insn instanceof RV32_XOR) return OP_XOR;
+    if (insn instanceof RV32_SLL) return OP_SLL;
+    if (insn instanceof RV32_SRL) return OP_SRL;
+    if (insn instanceof RV32_SRA) return OP_SRA;
+    if (insn instanceof RV32_SLT) return OP_SLT;
+    if (insn instanceof RV32_SLTU) return OP_SLTU;
+    if (insn instanceof RV32_MUL) return OP_MUL;
+    if (insn instanceof RV32_MULH) return OP_MULH;
+    if (insn instanceof RV32_MULHSU) return OP_MULHSU;
+    if (insn instanceof RV32_MULHU) return OP_MULHU;
+    if (insn instanceof RV32_DIV) return OP_DIV;
+    if (insn instanceof RV32_DIVU) return OP_DIVU;
+    if (insn instanceof RV32_REM) return OP_REM;
+    if (insn instanceof RV32_REMU) return OP_REMU;
+    // AMOs, LR/SC
+    return OP_OBJECT;
+  }
+
+  private static int immediateOpcode(RV32Instruction insn) {
+    if (insn instanceof RV32_ADDI) return OP_ADDI;
+    if (insn instanceof RV32_ANDI) return OP_ANDI;
+    if (insn instanceof RV32_ORI) return OP_ORI;
+    if (insn instanceof RV32_XORI) return OP_XORI;
+    if (insn instanceof RV32_SLTI) return OP_SLTI;
+    if (insn instanceof RV32_SLTIU) return OP_SLTIU;
+    if (insn instanceof RV32_LB) return OP_LB;
+    if (insn instanceof RV32_LBU) return OP_LBU;
+    if (insn instanceof RV32_LH) return OP_LH;
+    if (insn instanceof RV32_LHU) return OP_LHU;
+    if (insn instanceof RV32_LW) return OP_LW;
+    if (insn instanceof RV32_JALR) return OP_JALR;
+    if (insn instanceof RV32_FENCE) return OP_FENCE;
+    // CSR, SYSTEM, FENCE.I
+    return OP_OBJECT;
+  }
+
+}
@@ -0,0 +1,230 @@
+package io.lp0onfire.ssi.microcontroller;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Exact execution profile of one microcontroller: the cycles spent at every
+// instruction address in the text memory, the cycles spent asleep, and the
+// number of times each call site (JAL/JALR that writes ra) called each target.
+// Profiles of several robots running the same firmware can be merged and
+// reported against that firmware's symbol table. Not thread-safe; give each
+// microcontroller its own profiler and merge them afterwards.
+public class RV32Profiler {
+
+  private final int baseAddress;
+  // cycles per instruction word, starting at baseAddress
+  private final long[] cycles;
+  // cycles at addresses outside the histogram
+  private long otherCycles = 0L;
+  private long sleepCycles = 0L;
+
+  // open-addressed table of call edges, keyed by (call site << 32 | target);
+  // a zero count marks an empty slot
+  private long[] callKeys = new long[64];
+  private long[] callCounts = new long[64];
+  private int callEdges = 0;
+
+  public RV32Profiler(int baseAddress, int length) {
+    this.baseAddress = baseAddress;
+    this.cycles = new long[length >>> 2];
+  }
+
+  public int getBaseAddress() {
+    return this.baseAddress;
+  }
+
+  public int getLength() {
+    return cycles.length << 2;
+  }
+
+  // one cycle spent on the instruction at pc, whether it retired or trapped
+  public void countCycle(int pc) {
+    int offset = pc - baseAddress;
+    int i = offset >>> 2;
+    if ((offset & 0x00000003) == 0 && i < cycles.length) {
+      cycles[i] += 1L;
+    } else {
+      otherCycles += 1L;
+    }
+  }
+
+  // a straight-line loop of length instructions starting at pc, run the given number of times
+  public void countLoop(int pc, int length, long iterations) {
+    for (int n = 0; n < length; ++n) {
+      int offset = pc + (n << 2) - baseAddress;
+      int i = offset >>> 2;
+      if ((offset & 0x00000003) == 0 && i < cycles.length) {
+        cycles[i] += iterations;
+      } else {
+        otherCycles += iterations;
+      }
+    }
+  }
+
+  public void countSleep(long sleptCycles) {
+    sleepCycles += sleptCycles;
+  }
+
+  public void countCall(int callSite, int target) {
+    addCalls(((long)callSite << 32) | (target & 0xFFFFFFFFL), 1L);
+  }
+
+  private void addCalls(long key, long count) {
+    int mask = callKeys.length - 1;
+    int slot = (int)(key ^ (key >>> 29)) * 0x9E3779B9 >>> 7 & mask;
+    while (callCounts[slot] != 0L) {
+      if (callKeys[slot] == key) {
+        callCounts[slot] += count;
+        return;
+      }
+      slot = (slot + 1) & mask;
+    }
+    callKeys[slot] = key;
+    callCounts[slot] = count;
+    ++callEdges;
+    if (callEdges * 2 > callKeys.length) {
+      long[] oldKeys = callKeys;
+      long[] oldCounts = callCounts;
+      callKeys = new long[oldKeys.length * 2];
+      callCounts = new long[oldCounts.length * 2];
+      callEdges = 0;
+      for (int i = 0; i < oldKeys.length; ++i) {
+        if (oldCounts[i] != 0L) {
+          addCalls(oldKeys[i], oldCounts[i]);
+        }
+      }
+    }
+  }
+
+  // cycles spent on the instruction at pc
+  public long getCycles(int pc) {
+    int offset = pc - baseAddress;
+    int i = offset >>> 2;
+    if ((offset & 0x00000003) == 0 && i < cycles.length) {
+      return cycles[i];
+    }
+    return 0L;
+  }
+
+  public long getOtherCycles() {
+    return this.otherCycles;
+  }
+
+  public long getSleepCycles() {
+    return this.sleepCycles;
+  }
+
+  // every cycle counted, asleep or not
+  public long getTotalCycles() {
+    long total = otherCycles + sleepCycles;
+    for (long c : cycles) {
+      total += c;
+    }
+    return total;
+  }
+
+  // number of calls from callSite to target
+  public long getCalls(int callSite, int target) {
+    long key = ((long)callSite << 32) | (target & 0xFFFFFFFFL);
+    int mask = callKeys.length - 1;
+    int slot = (int)(key ^ (key >>> 29)) * 0x9E3779B9 >>> 7 & mask;
+    while (callCounts[slot] != 0L) {
+      if (callKeys[slot] == key) {
+        return callCounts[slot];
+      }
+      slot = (slot + 1) & mask;
+    }
+    return 0L;
+  }
+
+  // adds another profile of the same address range into this one,
+  // e.g. to sum up every robot of one type
+  public void merge(RV32Profiler other) {
+    if (other.baseAddress != baseAddress || other.cycles.length != cycles.length) {
+      throw new IllegalArgumentException("profiles cover different address ranges");
+    }
+    for (int i = 0; i < cycles.length; ++i) {
+      cycles[i] += other.cycles[i];
+    }
+    otherCycles += other.otherCycles;
+    sleepCycles += other.sleepCycles;
+    for (int i = 0; i < other.callKeys.length; ++i) {
+      if (other.callCounts[i] != 0L) {
+        addCalls(other.callKeys[i], other.callCounts[i]);
+      }
+    }
+  }
+
+  public void reset() {
+    Arrays.fill(cycles, 0L);
+    otherCycles = 0L;
+    sleepCycles = 0L;
+    Arrays.fill(callKeys, 0L);
+    Arrays.fill(callCounts, 0L);
+    callEdges = 0;
+  }
+
+  // Per-function totals, hottest first: cycles spent in each function of
+  // the given firmware, and below that the calls between functions.
+  // Addresses with no symbol are reported by themselves; at most
+  // maxLines functions and maxLines call edges are listed.
+  public String report(ELFImage elf, int maxLines) {
+    Map<String, long[]> functions = new HashMap<>();
+    for (int i = 0; i < cycles.length; ++i) {
+      if (cycles[i] != 0L) {
+        addTo(functions, functionName(elf, baseAddress + (i << 2)), cycles[i]);
+      }
+    }
+    Map<String, long[]> calls = new HashMap<>();
+    for (int i = 0; i < callKeys.length; ++i) {
+      if (callCounts[i] != 0L) {
+        int callSite = (int)(callKeys[i] >>> 32);
+        int target = (int)callKeys[i];
+        addTo(calls, functionName(elf, callSite) + " -> " + functionName(elf, target), callCounts[i]);
+      }
+    }
+    long total = getTotalCycles();
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("%d cycles, %d asleep, %d outside text memory%n", total, sleepCycles, otherCycles));
+    sb.append(String.format("%14s %7s  %s%n", "cycles", "%", "function"));
+    for (Map.Entry<String, long[]> e : hottest(functions, maxLines)) {
+      long c = e.getValue()[0];
+      sb.append(String.format("%14d %6.2f%%  %s%n", c, total == 0 ? 0.0 : 100.0 * c / total, e.getKey()));
+    }
+    sb.append(String.format("%14s  %s%n", "calls", "caller -> callee"));
+    for (Map.Entry<String, long[]> e : hottest(calls, maxLines)) {
+      sb.append(String.format("%14d  %s%n", e.getValue()[0], e.getKey()));
+    }
+    return sb.toString();
+  }
+
+  private static String functionName(ELFImage elf, int address) {
+    ELFImage.ELFSymbol sym = (elf == null) ? null : elf.findSymbol(address);
+    if (sym == null) {
+      return String.format("0x%08x", address);
+    }
+    return sym.name;
+  }
+
+  private static void addTo(Map<String, long[]> totals, String key, long count) {
+    long[] total = totals.get(key);
+    if (total == null) {
+      total = new long[1];
+      totals.put(key, total);
+    }
+    total[0] += count;
+  }
+
+  private static List<Map.Entry<String, long[]>> hottest(Map<String, long[]> totals, int maxLines) {
+    List<Map.Entry<String, long[]>> entries = new ArrayList<>(totals.entrySet());
+    entries.sort((a, b) -> {
+      int c = Long.compare(b.getValue()[0], a.getValue()[0]);
+      return (c != 0) ? c : a.getKey().compareTo(b.getKey());
+    });
+    return entries.subList(0, Math.min(maxLines, entries.size()));
+  }
+
+}
@@ -1,27 +1,63 @@
 package io.lp0onfire.ssi.microcontroller;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 public class RV32SystemBus {
 
   // divide the address space into 1024-byte pages and
-  // track which peripherals are mapped into each page
-  private Map<Integer, SystemBusPeripheral> mappedPages = new HashMap<>();
+  // track which peripherals are mapped into each page.
+  // the 2^22 pages are split into a two-level table: the top 10 bits
+  // of the page number select a page table, which is only allocated
+  // once something is mapped into it, and the low 12 bits index into it
+  private static final int PAGE_SHIFT = 10;
+  private static final int PAGE_TABLE_BITS = 12;
+  private static final int PAGE_TABLE_MASK = (1 << PAGE_TABLE_BITS) - 1;
+  private SystemBusPeripheral[][] pageDirectory = new SystemBusPeripheral[1 << (32 - PAGE_SHIFT - PAGE_TABLE_BITS)][];
   
   private static final int LAST_VALID_PAGE = 0xFFFFFFFF >>> 10;
   
-  private RV32InstructionDecoder decoder;
+  // most accesses are sequential, so remember the last page we looked up
+  // (separately for data and instruction accesses, since they usually
+  // target different peripherals)
+  private int lastDataPage = -1;
+  private SystemBusPeripheral lastDataPeripheral = null;
+  private int lastFetchPage = -1;
+  private SystemBusPeripheral lastFetchPeripheral = null;
+  
+  // Misaligned and unmapped accesses throw one preallocated trap per cause,
+  // updated with the faulting address; the core takes the trap before this
+  // bus can fault again, so nothing is allocated however often firmware faults.
+  private final AddressTrapException[] traps = new AddressTrapException[8];
+  private AddressTrapException trap(int mcause, int address) {
+    AddressTrapException trap = traps[mcause];
+    if (trap == null) {
+      trap = new AddressTrapException(mcause, address);
+      traps[mcause] = trap;
+    }
+    return trap.at(address);
+  }
   
   // reservations are always made on word-aligned addresses
   private Set<Integer> reservedAddresses = new HashSet<>();
   
+  // decoded instructions by address; the instructions themselves come from RV32DecodeCache
   private Map<Integer, RV32Instruction> instructionCache = new HashMap<>();
   
-  public RV32SystemBus() {
-    this.decoder = new RV32InstructionDecoder();
+  // decoded basic blocks, by entry PC
+  private Map<Integer, RV32BasicBlock> blockCache = new HashMap<>();
+  private static final int MAX_BLOCK_LENGTH = 64;
+  
+  // incremented every time the instruction cache is cleared,
+  // so that the CPU knows to stop following links between stale blocks
+  private int instructionCacheGeneration = 0;
+  public int getInstructionCacheGeneration() {
+    return this.instructionCacheGeneration;
   }
   
   public void attachPeripheral(SystemBusPeripheral p, int baseAddress) {
@@ -31,49 +67,106 @@ public class RV32SystemBus {
       if (i > LAST_VALID_PAGE) {
         throw new IllegalStateException("attempt to map peripheral beyond a legal address");
       }
-      if (mappedPages.containsKey(i)) {
+      if (lookupPage(i) != null) {
         throw new IllegalStateException("attempt to map two peripherals into the same page");
       }
     }
     // second pass to map
     for (int i = basePage; i < basePage + p.getNumberOfPages(); ++i) {
-      mappedPages.put(i, p);
+      int tableIndex = i >>> PAGE_TABLE_BITS;
+      if (pageDirectory[tableIndex] == null) {
+        pageDirectory[tableIndex] = new SystemBusPeripheral[1 << PAGE_TABLE_BITS];
+      }
+      pageDirectory[tableIndex][i & PAGE_TABLE_MASK] = p;
+    }
+    // the last-hit caches may remember an unmapped page that is now mapped
+    lastDataPage = -1;
+    lastDataPeripheral = null;
+    lastFetchPage = -1;
+    lastFetchPeripheral = null;
+  }
+  
+  private SystemBusPeripheral lookupPage(int pageNumber) {
+    SystemBusPeripheral[] pageTable = pageDirectory[pageNumber >>> PAGE_TABLE_BITS];
+    if (pageTable == null) {
+      return null;
+    }
+    return pageTable[pageNumber & PAGE_TABLE_MASK];
+  }
+  
+  // returns the peripheral mapped at this address, or null if the page is unmapped
+  private SystemBusPeripheral dataPeripheral(int address) {
+    int pageNumber = address >>> PAGE_SHIFT;
+    if (pageNumber != lastDataPage) {
+      lastDataPeripheral = lookupPage(pageNumber);
+      lastDataPage = pageNumber;
+    }
+    return lastDataPeripheral;
+  }
+  
+  private SystemBusPeripheral fetchPeripheral(int address) {
+    int pageNumber = address >>> PAGE_SHIFT;
+    if (pageNumber != lastFetchPage) {
+      lastFetchPeripheral = lookupPage(pageNumber);
+      lastFetchPage = pageNumber;
     }
+    return lastFetchPeripheral;
+  }
+  
+  // optional trace of every load and store
+  private RV32Tracer tracer = null;
+  public void setTracer(RV32Tracer tracer) {
+    this.tracer = tracer;
   }
   
   public int loadByte(int address) throws AddressTrapException {
-    int pageNumber = (address & 0xFFFFF800) >>> 10;
-    if (mappedPages.containsKey(pageNumber)) {
-      return mappedPages.get(pageNumber).readByte(address);
-    } else {
-      throw new AddressTrapException(5, address);
+    SystemBusPeripheral p = dataPeripheral(address);
+    if (p == null) {
+      throw trap(5, address);
     }
+    int value = p.readByte(address);
+    if (tracer != null) {
+      tracer.load(address, value, 1);
+    }
+    return value;
   }
   
   public int loadHalfword(int address) throws AddressTrapException {
     // must be 2-byte aligned
     if ((address & 0x00000001) != 0) {
-      throw new AddressTrapException(4, address);
+      throw trap(4, address);
+    }
+    SystemBusPeripheral p = dataPeripheral(address);
+    if (p == null) {
+      throw trap(5, address);
     }
-    int pageNumber = (address & 0xFFFFF800) >>> 10;
-    if (mappedPages.containsKey(pageNumber)) {
-      return mappedPages.get(pageNumber).readHalfword(address);
-    } else {
-      throw new AddressTrapException(5, address);
+    int value = p.readHalfword(address);
+    if (tracer != null) {
+      tracer.load(address, value, 2);
     }
+    return value;
   }
   
   public int loadWord(int address) throws AddressTrapException {
     // must be 4-byte aligned
     if ((address & 0x00000003) != 0) {
-      throw new AddressTrapException(4, address);
+      throw trap(4, address);
     }
-    int pageNumber = (address & 0xFFFFF800) >>> 10;
-    if (mappedPages.containsKey(pageNumber)) {
-      return mappedPages.get(pageNumber).readWord(address);
-    } else {
-      throw new AddressTrapException(5, address);
+    SystemBusPeripheral p = dataPeripheral(address);
+    if (p == null) {
+      throw trap(5, address);
     }
+    int value = p.readWord(address);
+    if (tracer != null) {
+      tracer.load(address, value, 4);
+    }
+    return value;
+  }
+  
+  // instruction fetches that missed this bus's instruction cache, for hpmcounter8
+  private long decodeCacheMisses = 0L;
+  public long getDecodeCacheMisses() {
+    return this.decodeCacheMisses;
   }
   
   public RV32Instruction fetchInstruction(int address) throws AddressTrapException {
@@ -82,54 +175,86 @@ public class RV32SystemBus {
     }
     // must be 4-byte aligned
     if ((address & 0x00000003) != 0) {
-      throw new AddressTrapException(0, address);
+      throw trap(0, address);
     }
-    int pageNumber = (address & 0xFFFFF800) >>> 10;
-    if (mappedPages.containsKey(pageNumber)) {
-      int insn = mappedPages.get(pageNumber).readWord(address);
-      RV32Instruction instruction = decoder.decode(insn);
-      instructionCache.put(address, instruction);
-      return instruction;
-    } else {
-      throw new AddressTrapException(1, address);
+    SystemBusPeripheral p = fetchPeripheral(address);
+    if (p == null) {
+      throw trap(1, address);
     }
+    int insn = p.readWord(address);
+    RV32Instruction instruction = RV32DecodeCache.decode(insn);
+    instructionCache.put(address, instruction);
+    decodeCacheMisses += 1L;
+    return instruction;
+  }
+  
+  // decodes (or returns the cached) basic block starting at this address.
+  // only a fault on the first instruction is reported; a block that runs into
+  // an unmapped page is cut short, and the fault is taken when execution gets there
+  public RV32BasicBlock fetchBasicBlock(int address) throws AddressTrapException {
+    RV32BasicBlock block = blockCache.get(address);
+    if (block != null) {
+      return block;
+    }
+    List<RV32Instruction> instructions = new ArrayList<>();
+    RV32Instruction instruction = fetchInstruction(address);
+    instructions.add(instruction);
+    int nextAddress = address;
+    while (!instruction.endsBasicBlock() && instructions.size() < MAX_BLOCK_LENGTH) {
+      nextAddress += 4;
+      try {
+        instruction = fetchInstruction(nextAddress);
+      } catch (AddressTrapException e) {
+        break;
+      }
+      instructions.add(instruction);
+    }
+    block = new RV32BasicBlock(address, instructions.toArray(new RV32Instruction[instructions.size()]));
+    blockCache.put(address, block);
+    return block;
   }
   
   public void storeByte(int address, int value) throws AddressTrapException {
-    int pageNumber = (address & 0xFFFFF800) >>> 10;
-    if (mappedPages.containsKey(pageNumber)) {
-      mappedPages.get(pageNumber).writeByte(address, value);
-      clearReservation(address);
-    } else {
-      throw new AddressTrapException(7, address);
+    SystemBusPeripheral p = dataPeripheral(address);
+    if (p == null) {
+      throw trap(7, address);
+    }
+    p.writeByte(address, value);
+    clearReservation(address);
+    if (tracer != null) {
+      tracer.store(address, value, 1);
     }
   }
   
   public void storeHalfword(int address, int value) throws AddressTrapException {
     // must be 2-byte aligned
     if ((address & 0x00000001) != 0) {
-      throw new AddressTrapException(6, address);
+      throw trap(6, address);
     }
-    int pageNumber = (address & 0xFFFFF800) >>> 10;
-    if (mappedPages.containsKey(pageNumber)) {
-      mappedPages.get(pageNumber).writeHalfword(address, value);
-      clearReservation(address);
-    } else {
-      throw new AddressTrapException(7, address);
+    SystemBusPeripheral p = dataPeripheral(address);
+    if (p == null) {
+      throw trap(7, address);
+    }
+    p.writeHalfword(address, value);
+    clearReservation(address);
+    if (tracer != null) {
+      tracer.store(address, value, 2);
     }
   }
   
   public void storeWord(int address, int value) throws AddressTrapException {
     // must be 4-byte aligned
     if ((address & 0x00000003) != 0) {
-      throw new AddressTrapException(6, address);
+      throw trap(6, address);
+    }
+    SystemBusPeripheral p = dataPeripheral(address);
+    if (p == null) {
+      throw trap(7, address);
     }
-    int pageNumber = (address & 0xFFFFF800) >>> 10;
-    if (mappedPages.containsKey(pageNumber)) {
-      mappedPages.get(pageNumber).writeWord(address, value);
-      clearReservation(address);
-    } else {
-      throw new AddressTrapException(7, address);
+    p.writeWord(address, value);
+    clearReservation(address);
+    if (tracer != null) {
+      tracer.store(address, value, 4);
     }
   }
   
@@ -149,8 +274,25 @@ public class RV32SystemBus {
     reservedAddresses.clear();
   }
   
+  public void saveReservations(ByteBuffer state) {
+    state.putInt(reservedAddresses.size());
+    for (int wordAddress : reservedAddresses) {
+      state.putInt(wordAddress);
+    }
+  }
+  
+  public void restoreReservations(ByteBuffer state) {
+    reservedAddresses.clear();
+    int count = state.getInt();
+    for (int i = 0; i < count; ++i) {
+      reservedAddresses.add(state.getInt());
+    }
+  }
+  
   public void clearInstructionCache() {
     instructionCache.clear();
+    blockCache.clear();
+    instructionCacheGeneration += 1;
   }
   
 }
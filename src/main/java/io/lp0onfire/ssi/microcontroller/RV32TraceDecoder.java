@@ -0,0 +1,90 @@
+package io.lp0onfire.ssi.microcontroller;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+// Turns a trace written by RV32Tracer.dump() back into text, one line per record.
+// Run as: java io.lp0onfire.ssi.microcontroller.RV32TraceDecoder trace.bin
+public class RV32TraceDecoder {
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 1) {
+      System.err.println("usage: RV32TraceDecoder <trace file>");
+      System.exit(1);
+    }
+    for (String line : decode(new File(args[0]))) {
+      System.out.println(line);
+    }
+  }
+
+  public static List<String> decode(File traceFile) throws IOException {
+    try (FileChannel channel = FileChannel.open(traceFile.toPath(), StandardOpenOption.READ)) {
+      MappedByteBuffer trace = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      trace.order(ByteOrder.LITTLE_ENDIAN);
+      if (trace.remaining() < RV32Tracer.DUMP_HEADER_SIZE || trace.getInt() != RV32Tracer.DUMP_MAGIC) {
+        throw new IllegalArgumentException("file is not a trace");
+      }
+      short version = trace.getShort();
+      short recordSize = trace.getShort();
+      if (version != RV32Tracer.DUMP_VERSION || recordSize != RV32Tracer.RECORD_SIZE) {
+        throw new IllegalArgumentException("unsupported trace version " + version);
+      }
+      long written = trace.getLong();
+      int held = trace.getInt();
+      if (held < 0 || (long)held * recordSize > trace.remaining()) {
+        throw new IllegalArgumentException("trace is truncated");
+      }
+      List<String> lines = new ArrayList<>();
+      lines.add(String.format("# %d records, %d earlier records lost", held, written - held));
+      for (int i = 0; i < held; ++i) {
+        ByteBuffer record = trace.slice().order(ByteOrder.LITTLE_ENDIAN);
+        record.limit(recordSize);
+        lines.add(format(record));
+        trace.position(trace.position() + recordSize);
+      }
+      return lines;
+    }
+  }
+
+  // one RV32Tracer.RECORD_SIZE-byte record as text
+  public static String format(ByteBuffer record) {
+    byte type = record.get(0);
+    int aux = record.get(1) & 0x000000FF;
+    int flags = record.getShort(2) & 0x0000FFFF;
+    int pc = record.getInt(4);
+    int a = record.getInt(8);
+    int b = record.getInt(12);
+    int size = flags & RV32Tracer.FLAG_SIZE_MASK;
+    String dma = ((flags & RV32Tracer.FLAG_DMA) != 0) ? " (dma)" : "";
+    switch (type) {
+    case RV32Tracer.INSTRUCTION:
+      return String.format("%08x  insn   %08x  cycle %d", pc, a, b & 0xFFFFFFFFL);
+    case RV32Tracer.REGISTER_WRITE:
+      return String.format("%08x  x%-2d <- %08x", pc, aux, a);
+    case RV32Tracer.LOAD:
+      return String.format("%08x  load%d  [%08x] -> %08x%s", pc, size, a, b, dma);
+    case RV32Tracer.STORE:
+      return String.format("%08x  store%d [%08x] <- %08x%s", pc, size, a, b, dma);
+    case RV32Tracer.TRAP:
+      return String.format("%08x  trap   mcause %d mbadaddr %08x", pc, a, b);
+    case RV32Tracer.INTERRUPT:
+      return String.format("%08x  interrupt mcause %08x", pc, a);
+    case RV32Tracer.TRAP_RETURN:
+      return String.format("%08x  eret   -> %08x", pc, a);
+    case RV32Tracer.MMIO:
+      return String.format("%08x  mmio%d  peripheral %d %s [%08x] %s %08x%s", pc, size, aux,
+          ((flags & RV32Tracer.FLAG_WRITE) != 0) ? "write" : "read", a,
+          ((flags & RV32Tracer.FLAG_WRITE) != 0) ? "<-" : "->", b, dma);
+    default:
+      return String.format("%08x  unknown record type %d", pc, type);
+    }
+  }
+
+}
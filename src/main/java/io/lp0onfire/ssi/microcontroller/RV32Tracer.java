@@ -0,0 +1,188 @@
+package io.lp0onfire.ssi.microcontroller;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+// Execution trace of one microcontroller, kept in an off-heap ring buffer
+// of fixed-size binary records so that the last N events are always at hand
+// for post-mortem debugging. Each record is RECORD_SIZE bytes, little-endian:
+//   byte type, byte aux, short flags, int pc, int a, int b
+// with the fields meaning, per type:
+//   INSTRUCTION    pc, a = instruction word, b = low 32 bits of the cycle counter
+//   REGISTER_WRITE aux = register, pc, a = value
+//   LOAD, STORE    flags = size in bytes | FLAG_DMA, pc, a = address, b = value
+//   TRAP           pc = mepc, a = mcause, b = mbadaddr
+//   INTERRUPT      pc = mepc, a = mcause
+//   TRAP_RETURN    pc, a = the address returned to
+//   MMIO           aux = peripheral (0 is the interrupt controller, then each
+//                  attached peripheral in turn), flags = size | FLAG_WRITE,
+//                  pc, a = address, b = value
+// Accesses made by peripherals (DMA) rather than by an instruction carry FLAG_DMA
+// and the PC of the last instruction. Use dump() to write the buffer to a file,
+// and RV32TraceDecoder to read it back.
+public class RV32Tracer {
+
+  public static final int RECORD_SIZE = 16;
+
+  public static final byte INSTRUCTION = 1;
+  public static final byte REGISTER_WRITE = 2;
+  public static final byte LOAD = 3;
+  public static final byte STORE = 4;
+  public static final byte TRAP = 5;
+  public static final byte INTERRUPT = 6;
+  public static final byte TRAP_RETURN = 7;
+  public static final byte MMIO = 8;
+
+  public static final short FLAG_SIZE_MASK = 0x000F;
+  public static final short FLAG_WRITE = 0x0100;
+  public static final short FLAG_DMA = 0x0200;
+
+  // header of a dumped trace
+  static final int DUMP_MAGIC = 0x52565452; // "RVTR"
+  static final short DUMP_VERSION = 1;
+  static final int DUMP_HEADER_SIZE = 20;
+
+  private final ByteBuffer buffer;
+  private final int capacity;
+  // records written since the last clear(); only the last capacity are kept
+  private long written = 0L;
+  // records numbered below this were overwritten by records since rewound
+  private long floor = 0L;
+
+  // the instruction being executed, if any
+  private int currentPC = 0;
+  private boolean inInstruction = false;
+
+  // keeps the last capacity records, which must be a power of two
+  public RV32Tracer(int capacity) {
+    if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+      throw new IllegalArgumentException("trace capacity must be a power of two");
+    }
+    this.capacity = capacity;
+    this.buffer = ByteBuffer.allocateDirect(capacity * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  public int getCapacity() {
+    return this.capacity;
+  }
+
+  public long getRecordsWritten() {
+    return this.written;
+  }
+
+  // number of records currently held
+  public int size() {
+    return (int)(written - Math.max(floor, written - capacity));
+  }
+
+  public void clear() {
+    written = 0L;
+    floor = 0L;
+    inInstruction = false;
+  }
+
+  private void record(byte type, int aux, int flags, int pc, int a, int b) {
+    int offset = (int)(written & (capacity - 1)) * RECORD_SIZE;
+    buffer.put(offset, type);
+    buffer.put(offset + 1, (byte)aux);
+    buffer.putShort(offset + 2, (short)flags);
+    buffer.putInt(offset + 4, pc);
+    buffer.putInt(offset + 8, a);
+    buffer.putInt(offset + 12, b);
+    written += 1L;
+  }
+
+  void beginInstruction(int pc, int insn, long cycle) {
+    currentPC = pc;
+    inInstruction = true;
+    record(INSTRUCTION, 0, 0, pc, insn, (int)cycle);
+  }
+
+  void endInstruction() {
+    inInstruction = false;
+  }
+
+  // The instruction since mark never ran (see BatchExitException), so forget
+  // it. Its records may have overwritten the oldest ones, which are gone too.
+  void rewind(long mark) {
+    floor = Math.max(floor, written - capacity);
+    written = mark;
+    inInstruction = false;
+  }
+
+  void registerWrite(int register, int value) {
+    record(REGISTER_WRITE, register, 0, currentPC, value, 0);
+  }
+
+  void load(int address, int value, int size) {
+    record(LOAD, 0, inInstruction ? size : (size | FLAG_DMA), currentPC, address, value);
+  }
+
+  void store(int address, int value, int size) {
+    record(STORE, 0, inInstruction ? size : (size | FLAG_DMA), currentPC, address, value);
+  }
+
+  void trap(boolean interrupt, int mepc, int mcause, int mbadaddr) {
+    record(interrupt ? INTERRUPT : TRAP, 0, 0, mepc, mcause, interrupt ? 0 : mbadaddr);
+  }
+
+  void trapReturn(int pc, int target) {
+    record(TRAP_RETURN, 0, 0, pc, target, 0);
+  }
+
+  void mmio(int peripheral, boolean write, int address, int value, int size) {
+    int flags = size | (write ? FLAG_WRITE : 0) | (inInstruction ? 0 : FLAG_DMA);
+    record(MMIO, peripheral, flags, currentPC, address, value);
+  }
+
+  // the i-th record held, oldest first, as a RECORD_SIZE-byte little-endian buffer
+  public ByteBuffer getRecord(int i) {
+    if (i < 0 || i >= size()) {
+      throw new IndexOutOfBoundsException("no trace record " + i);
+    }
+    long n = written - size() + i;
+    int offset = (int)(n & (capacity - 1)) * RECORD_SIZE;
+    ByteBuffer record = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    record.position(offset);
+    record.limit(offset + RECORD_SIZE);
+    return record.slice().order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  // Writes the records held, oldest first, after a header of:
+  //   int magic, short version, short record size, long records written, int records held
+  public void dump(File file) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(DUMP_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(DUMP_MAGIC);
+    header.putShort(DUMP_VERSION);
+    header.putShort((short)RECORD_SIZE);
+    header.putLong(written);
+    header.putInt(size());
+    header.flip();
+    try (FileChannel channel = FileChannel.open(file.toPath(),
+        StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      while (header.hasRemaining()) {
+        channel.write(header);
+      }
+      int start = (int)((written - size()) & (capacity - 1));
+      int held = size();
+      // at most two pieces: from the oldest record to the end of the buffer, then from the start
+      int first = Math.min(held, capacity - start);
+      writeRecords(channel, start, first);
+      writeRecords(channel, 0, held - first);
+    }
+  }
+
+  private void writeRecords(FileChannel channel, int start, int count) throws IOException {
+    ByteBuffer records = buffer.duplicate();
+    records.position(start * RECORD_SIZE);
+    records.limit((start + count) * RECORD_SIZE);
+    while (records.hasRemaining()) {
+      channel.write(records);
+    }
+  }
+
+}
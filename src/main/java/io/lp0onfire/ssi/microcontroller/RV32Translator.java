@@ -0,0 +1,500 @@
+package io.lp0onfire.ssi.microcontroller;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import io.lp0onfire.ssi.microcontroller.instructions.*;
+
+// Dynamic binary translator: once a basic block has been entered
+// often enough, turn it into a generated class implementing RV32CompiledBlock,
+// so that HotSpot can compile the guest code directly.
+// Guest registers live in JVM locals for the duration of the block;
+// only loads and stores go through the RV32SystemBus.
+// Blocks containing instructions we don't translate (CSR, SYSTEM, AMO, LR/SC, FENCE.I)
+// are left to the interpreter.
+// Compiled blocks are remembered by entry PC and instruction words, so one
+// translator can be shared by any number of microcontrollers (from any thread)
+// and identical firmware is only ever compiled once.
+public class RV32Translator {
+
+  public static final int DEFAULT_THRESHOLD = 1000;
+
+  private final int threshold;
+  public int getThreshold() {
+    return this.threshold;
+  }
+
+  private final BlockClassLoader classLoader;
+  private final AtomicInteger nextClassID = new AtomicInteger(0);
+
+  private static final int MAX_COMPILED_BLOCKS = 1 << 14;
+  private final ConcurrentHashMap<RV32DecodeCache.ContentKey, RV32CompiledBlock> compiledBlocks = new ConcurrentHashMap<>();
+  public int getCompiledBlockCount() {
+    return compiledBlocks.size();
+  }
+
+  public RV32Translator() {
+    this(DEFAULT_THRESHOLD);
+  }
+
+  public RV32Translator(int threshold) {
+    if (threshold < 1) {
+      throw new IllegalArgumentException("translation threshold must be at least 1");
+    }
+    this.threshold = threshold;
+    this.classLoader = new BlockClassLoader(RV32Translator.class.getClassLoader());
+  }
+
+  // called every time the CPU enters a block that has not been compiled yet;
+  // returns the compiled block once the block is hot, or null to keep interpreting
+  public RV32CompiledBlock compileIfHot(RV32BasicBlock block) {
+    if (block.isUntranslatable()) {
+      return null;
+    }
+    if (block.incrementExecutionCount() < threshold) {
+      return null;
+    }
+    RV32CompiledBlock compiled = translate(block);
+    if (compiled == null) {
+      block.setUntranslatable();
+    } else {
+      block.setCompiledBlock(compiled);
+    }
+    return compiled;
+  }
+
+  public static boolean canTranslate(RV32BasicBlock block) {
+    for (RV32Instruction insn : block.getInstructions()) {
+      if (!canTranslate(insn)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean canTranslate(RV32Instruction insn) {
+    return insn instanceof RV32_ADD || insn instanceof RV32_SUB
+        || insn instanceof RV32_AND || insn instanceof RV32_OR || insn instanceof RV32_XOR
+        || insn instanceof RV32_SLL || insn instanceof RV32_SRL || insn instanceof RV32_SRA
+        || insn instanceof RV32_SLT || insn instanceof RV32_SLTU
+        || insn instanceof RV32_MUL || insn instanceof RV32_MULH
+        || insn instanceof RV32_MULHSU || insn instanceof RV32_MULHU
+        || insn instanceof RV32_DIV || insn instanceof RV32_DIVU
+        || insn instanceof RV32_REM || insn instanceof RV32_REMU
+        || insn instanceof RV32_ADDI || insn instanceof RV32_ANDI
+        || insn instanceof RV32_ORI || insn instanceof RV32_XORI
+        || insn instanceof RV32_SLTI || insn instanceof RV32_SLTIU
+        || insn instanceof RV32_SLLI || insn instanceof RV32_SRLI || insn instanceof RV32_SRAI
+        || insn instanceof RV32_LUI || insn instanceof RV32_AUIPC
+        || insn instanceof RV32_LB || insn instanceof RV32_LBU
+        || insn instanceof RV32_LH || insn instanceof RV32_LHU || insn instanceof RV32_LW
+        || insn instanceof RV32_SB || insn instanceof RV32_SH || insn instanceof RV32_SW
+        || insn instanceof RV32_FENCE
+        || insn instanceof SBTypeInstruction
+        || insn instanceof RV32_JAL || insn instanceof RV32_JALR;
+  }
+
+  public RV32CompiledBlock translate(RV32BasicBlock block) {
+    if (!canTranslate(block)) {
+      return null;
+    }
+    RV32Instruction[] instructions = block.getInstructions();
+    int[] words = new int[instructions.length];
+    for (int i = 0; i < instructions.length; ++i) {
+      words[i] = instructions[i].getInsn();
+    }
+    RV32DecodeCache.ContentKey key = new RV32DecodeCache.ContentKey(block.getEntryPC(), words);
+    RV32CompiledBlock compiled = compiledBlocks.get(key);
+    if (compiled != null) {
+      return compiled;
+    }
+    String className = "io/lp0onfire/ssi/microcontroller/generated/Block_"
+        + Integer.toHexString(block.getEntryPC()) + "_" + nextClassID.getAndIncrement();
+    byte[] classFile = new BlockCompiler(block).compile(className);
+    try {
+      Class<?> blockClass = classLoader.define(className.replace('/', '.'), classFile);
+      compiled = (RV32CompiledBlock)blockClass.getDeclaredConstructor().newInstance();
+      if (compiledBlocks.size() < MAX_COMPILED_BLOCKS) {
+        RV32CompiledBlock previous = compiledBlocks.putIfAbsent(key, compiled);
+        if (previous != null) {
+          return previous;
+        }
+      }
+      return compiled;
+    } catch (ReflectiveOperationException | LinkageError e) {
+      // should never happen; if it does, the interpreter can still run this block
+      return null;
+    }
+  }
+
+  private static class BlockClassLoader extends ClassLoader {
+    public BlockClassLoader(ClassLoader parent) {
+      super(parent);
+    }
+    public Class<?> define(String name, byte[] classFile) {
+      return defineClass(name, classFile, 0, classFile.length);
+    }
+  }
+
+  private static final String BUS = Type.getInternalName(RV32SystemBus.class);
+  private static final String CORE = Type.getInternalName(RV32Core.class);
+  private static final String TRAP = Type.getInternalName(AddressTrapException.class);
+
+  // local variable slots in the generated execute() method
+  private static final int LOCAL_XREGISTER = 1;
+  private static final int LOCAL_BUS = 2;
+  private static final int LOCAL_FAULTINDEX = 3;
+  private static final int LOCAL_INDEX = 4;
+  private static final int LOCAL_X0 = 5; // guest register i lives in LOCAL_X0 + i
+
+  private static class BlockCompiler {
+
+    private final RV32BasicBlock block;
+    private final RV32Instruction[] instructions;
+    private final boolean[] used = new boolean[32];
+    private final boolean[] written = new boolean[32];
+    private MethodVisitor mv;
+
+    public BlockCompiler(RV32BasicBlock block) {
+      this.block = block;
+      this.instructions = block.getInstructions();
+    }
+
+    public byte[] compile(String className) {
+      findRegisters();
+      ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS);
+      cw.visit(V1_8, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, className, null,
+          "java/lang/Object", new String[]{Type.getInternalName(RV32CompiledBlock.class)});
+
+      MethodVisitor init = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+      init.visitCode();
+      init.visitVarInsn(ALOAD, 0);
+      init.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+      init.visitInsn(RETURN);
+      init.visitMaxs(0, 0);
+      init.visitEnd();
+
+      mv = cw.visitMethod(ACC_PUBLIC, "execute", "([IL" + BUS + ";[I)I", null, new String[]{TRAP});
+      mv.visitCode();
+      // copy guest registers into locals
+      for (int r = 1; r < 32; ++r) {
+        if (used[r]) {
+          mv.visitVarInsn(ALOAD, LOCAL_XREGISTER);
+          pushInt(r);
+          mv.visitInsn(IALOAD);
+          mv.visitVarInsn(ISTORE, LOCAL_X0 + r);
+        }
+      }
+      pushInt(0);
+      mv.visitVarInsn(ISTORE, LOCAL_INDEX);
+
+      Label tryStart = new Label();
+      Label tryEnd = new Label();
+      Label handler = new Label();
+      mv.visitTryCatchBlock(tryStart, tryEnd, handler, TRAP);
+      mv.visitLabel(tryStart);
+      boolean terminated = false;
+      for (int i = 0; i < instructions.length; ++i) {
+        terminated = compileInstruction(i, instructions[i]);
+      }
+      mv.visitLabel(tryEnd);
+      if (!terminated) {
+        exitTo(block.getFallthroughPC());
+      }
+
+      // trap handler: store back everything written so far and report which instruction faulted
+      mv.visitLabel(handler);
+      writeBack();
+      mv.visitVarInsn(ALOAD, LOCAL_FAULTINDEX);
+      pushInt(0);
+      mv.visitVarInsn(ILOAD, LOCAL_INDEX);
+      mv.visitInsn(IASTORE);
+      mv.visitInsn(ATHROW);
+
+      mv.visitMaxs(0, 0);
+      mv.visitEnd();
+      cw.visitEnd();
+      return cw.toByteArray();
+    }
+
+    private void findRegisters() {
+      for (RV32Instruction insn : instructions) {
+        if (insn instanceof RTypeInstruction) {
+          RTypeInstruction r = (RTypeInstruction)insn;
+          use(r.getRs1());
+          use(r.getRs2());
+          write(r.getRd());
+        } else if (insn instanceof ITypeInstruction) {
+          ITypeInstruction r = (ITypeInstruction)insn;
+          use(r.getRs1());
+          write(r.getRd());
+        } else if (insn instanceof STypeInstruction) {
+          STypeInstruction r = (STypeInstruction)insn;
+          use(r.getRs1());
+          use(r.getRs2());
+        } else if (insn instanceof SBTypeInstruction) {
+          SBTypeInstruction r = (SBTypeInstruction)insn;
+          use(r.getRs1());
+          use(r.getRs2());
+        } else if (insn instanceof UTypeInstruction) {
+          write(((UTypeInstruction)insn).getRd());
+        } else if (insn instanceof UJTypeInstruction) {
+          write(((UJTypeInstruction)insn).getRd());
+        }
+      }
+    }
+
+    private void use(int r) {
+      if (r != 0) {
+        used[r] = true;
+      }
+    }
+
+    private void write(int r) {
+      if (r != 0) {
+        used[r] = true;
+        written[r] = true;
+      }
+    }
+
+    private void pushInt(int value) {
+      if (value >= -1 && value <= 5) {
+        mv.visitInsn(ICONST_0 + value);
+      } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+        mv.visitIntInsn(BIPUSH, value);
+      } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+        mv.visitIntInsn(SIPUSH, value);
+      } else {
+        mv.visitLdcInsn(value);
+      }
+    }
+
+    private void loadRegister(int r) {
+      if (r == 0) {
+        mv.visitInsn(ICONST_0);
+      } else {
+        mv.visitVarInsn(ILOAD, LOCAL_X0 + r);
+      }
+    }
+
+    // stores the value on top of the stack into guest register r
+    private void storeRegister(int r) {
+      if (r == 0) {
+        mv.visitInsn(POP);
+      } else {
+        mv.visitVarInsn(ISTORE, LOCAL_X0 + r);
+      }
+    }
+
+    private void writeBack() {
+      for (int r = 1; r < 32; ++r) {
+        if (written[r]) {
+          mv.visitVarInsn(ALOAD, LOCAL_XREGISTER);
+          pushInt(r);
+          mv.visitVarInsn(ILOAD, LOCAL_X0 + r);
+          mv.visitInsn(IASTORE);
+        }
+      }
+    }
+
+    private void exitTo(int nextPC) {
+      writeBack();
+      pushInt(nextPC);
+      mv.visitInsn(IRETURN);
+    }
+
+    private void callCore(String method) {
+      mv.visitMethodInsn(INVOKESTATIC, CORE, method, "(II)I", false);
+    }
+
+    // returns true if this instruction ended the generated method
+    private boolean compileInstruction(int index, RV32Instruction insn) {
+      int pc = block.getEntryPC() + (index << 2);
+      if (insn instanceof RTypeInstruction) {
+        RTypeInstruction r = (RTypeInstruction)insn;
+        loadRegister(r.getRs1());
+        if (insn instanceof RV32_SLLI) {
+          pushInt(((RV32_SLLI)insn).getShamt());
+          mv.visitInsn(ISHL);
+        } else if (insn instanceof RV32_SRLI) {
+          pushInt(((RV32_SRLI)insn).getShamt());
+          mv.visitInsn(IUSHR);
+        } else if (insn instanceof RV32_SRAI) {
+          pushInt(((RV32_SRAI)insn).getShamt());
+          mv.visitInsn(ISHR);
+        } else {
+          loadRegister(r.getRs2());
+          // JVM shifts already use only the low 5 bits of the shift amount
+          if (insn instanceof RV32_ADD) mv.visitInsn(IADD);
+          else if (insn instanceof RV32_SUB) mv.visitInsn(ISUB);
+          else if (insn instanceof RV32_AND) mv.visitInsn(IAND);
+          else if (insn instanceof RV32_OR) mv.visitInsn(IOR);
+          else if (insn instanceof RV32_XOR) mv.visitInsn(IXOR);
+          else if (insn instanceof RV32_SLL) mv.visitInsn(ISHL);
+          else if (insn instanceof RV32_SRL) mv.visitInsn(IUSHR);
+          else if (insn instanceof RV32_SRA) mv.visitInsn(ISHR);
+          else if (insn instanceof RV32_MUL) mv.visitInsn(IMUL);
+          else if (insn instanceof RV32_SLT) setLessThan(false);
+          else if (insn instanceof RV32_SLTU) setLessThan(true);
+          else if (insn instanceof RV32_MULH) callCore("mulh");
+          else if (insn instanceof RV32_MULHSU) callCore("mulhsu");
+          else if (insn instanceof RV32_MULHU) callCore("mulhu");
+          else if (insn instanceof RV32_DIV) callCore("div");
+          else if (insn instanceof RV32_DIVU) callCore("divu");
+          else if (insn instanceof RV32_REM) callCore("rem");
+          else if (insn instanceof RV32_REMU) callCore("remu");
+          else throw new IllegalStateException("cannot translate " + insn.getClass().getSimpleName());
+        }
+        storeRegister(r.getRd());
+        return false;
+      } else if (insn instanceof RV32_JALR) {
+        RV32_JALR jalr = (RV32_JALR)insn;
+        // compute the target before rd is overwritten, in case rd == rs1
+        loadRegister(jalr.getRs1());
+        pushInt(jalr.getImm());
+        mv.visitInsn(IADD);
+        pushInt(~0x00000001);
+        mv.visitInsn(IAND);
+        pushInt(pc + 4);
+        storeRegister(jalr.getRd());
+        writeBack();
+        mv.visitInsn(IRETURN);
+        return true;
+      } else if (insn instanceof RV32_FENCE) {
+        // no-op on this implementation
+        return false;
+      } else if (insn instanceof RV32_LB || insn instanceof RV32_LBU
+          || insn instanceof RV32_LH || insn instanceof RV32_LHU || insn instanceof RV32_LW) {
+        ITypeInstruction load = (ITypeInstruction)insn;
+        markIndex(index);
+        mv.visitVarInsn(ALOAD, LOCAL_BUS);
+        loadRegister(load.getRs1());
+        pushInt(load.getImm());
+        mv.visitInsn(IADD);
+        if (insn instanceof RV32_LB) {
+          mv.visitMethodInsn(INVOKEVIRTUAL, BUS, "loadByte", "(I)I", false);
+          mv.visitInsn(I2B);
+        } else if (insn instanceof RV32_LBU) {
+          mv.visitMethodInsn(INVOKEVIRTUAL, BUS, "loadByte", "(I)I", false);
+          pushInt(0x000000FF);
+          mv.visitInsn(IAND);
+        } else if (insn instanceof RV32_LH) {
+          mv.visitMethodInsn(INVOKEVIRTUAL, BUS, "loadHalfword", "(I)I", false);
+          mv.visitInsn(I2S);
+        } else if (insn instanceof RV32_LHU) {
+          mv.visitMethodInsn(INVOKEVIRTUAL, BUS, "loadHalfword", "(I)I", false);
+          pushInt(0x0000FFFF);
+          mv.visitInsn(IAND);
+        } else {
+          mv.visitMethodInsn(INVOKEVIRTUAL, BUS, "loadWord", "(I)I", false);
+        }
+        storeRegister(load.getRd());
+        return false;
+      } else if (insn instanceof ITypeInstruction) {
+        ITypeInstruction r = (ITypeInstruction)insn;
+        loadRegister(r.getRs1());
+        pushInt(r.getImm());
+        if (insn instanceof RV32_ADDI) mv.visitInsn(IADD);
+        else if (insn instanceof RV32_ANDI) mv.visitInsn(IAND);
+        else if (insn instanceof RV32_ORI) mv.visitInsn(IOR);
+        else if (insn instanceof RV32_XORI) mv.visitInsn(IXOR);
+        else if (insn instanceof RV32_SLTI) setLessThan(false);
+        else if (insn instanceof RV32_SLTIU) setLessThan(true);
+        else throw new IllegalStateException("cannot translate " + insn.getClass().getSimpleName());
+        storeRegister(r.getRd());
+        return false;
+      } else if (insn instanceof STypeInstruction) {
+        STypeInstruction store = (STypeInstruction)insn;
+        markIndex(index);
+        mv.visitVarInsn(ALOAD, LOCAL_BUS);
+        loadRegister(store.getRs1());
+        pushInt(store.getImm());
+        mv.visitInsn(IADD);
+        loadRegister(store.getRs2());
+        if (insn instanceof RV32_SB) {
+          pushInt(0x000000FF);
+          mv.visitInsn(IAND);
+          mv.visitMethodInsn(INVOKEVIRTUAL, BUS, "storeByte", "(II)V", false);
+        } else if (insn instanceof RV32_SH) {
+          pushInt(0x0000FFFF);
+          mv.visitInsn(IAND);
+          mv.visitMethodInsn(INVOKEVIRTUAL, BUS, "storeHalfword", "(II)V", false);
+        } else {
+          mv.visitMethodInsn(INVOKEVIRTUAL, BUS, "storeWord", "(II)V", false);
+        }
+        return false;
+      } else if (insn instanceof RV32_LUI) {
+        RV32_LUI lui = (RV32_LUI)insn;
+        pushInt(lui.getImm());
+        storeRegister(lui.getRd());
+        return false;
+      } else if (insn instanceof RV32_AUIPC) {
+        RV32_AUIPC auipc = (RV32_AUIPC)insn;
+        pushInt(pc + auipc.getImm());
+        storeRegister(auipc.getRd());
+        return false;
+      } else if (insn instanceof RV32_JAL) {
+        RV32_JAL jal = (RV32_JAL)insn;
+        pushInt(pc + 4);
+        storeRegister(jal.getRd());
+        exitTo(pc + jal.getImm());
+        return true;
+      } else if (insn instanceof SBTypeInstruction) {
+        SBTypeInstruction branch = (SBTypeInstruction)insn;
+        Label taken = new Label();
+        loadRegister(branch.getRs1());
+        loadRegister(branch.getRs2());
+        if (insn instanceof RV32_BEQ) {
+          mv.visitJumpInsn(IF_ICMPEQ, taken);
+        } else if (insn instanceof RV32_BNE) {
+          mv.visitJumpInsn(IF_ICMPNE, taken);
+        } else if (insn instanceof RV32_BLT) {
+          mv.visitJumpInsn(IF_ICMPLT, taken);
+        } else if (insn instanceof RV32_BGE) {
+          mv.visitJumpInsn(IF_ICMPGE, taken);
+        } else if (insn instanceof RV32_BLTU) {
+          mv.visitMethodInsn(INVOKESTATIC, "java/lang/Integer", "compareUnsigned", "(II)I", false);
+          mv.visitJumpInsn(IFLT, taken);
+        } else if (insn instanceof RV32_BGEU) {
+          mv.visitMethodInsn(INVOKESTATIC, "java/lang/Integer", "compareUnsigned", "(II)I", false);
+          mv.visitJumpInsn(IFGE, taken);
+        } else {
+          throw new IllegalStateException("cannot translate " + insn.getClass().getSimpleName());
+        }
+        exitTo(pc + 4);
+        mv.visitLabel(taken);
+        exitTo(pc + branch.getImm());
+        return true;
+      } else {
+        throw new IllegalStateException("cannot translate " + insn.getClass().getSimpleName());
+      }
+    }
+
+    // remember which instruction is about to touch the bus, in case it traps
+    private void markIndex(int index) {
+      pushInt(index);
+      mv.visitVarInsn(ISTORE, LOCAL_INDEX);
+    }
+
+    // replaces the two ints on top of the stack with 1 if the first is less than the second
+    private void setLessThan(boolean unsigned) {
+      if (unsigned) {
+        mv.visitMethodInsn(INVOKESTATIC, "java/lang/Integer", "compareUnsigned", "(II)I", false);
+      } else {
+        mv.visitMethodInsn(INVOKESTATIC, "java/lang/Integer", "compare", "(II)I", false);
+      }
+      // compare() < 0 iff the sign bit of the result is set
+      pushInt(31);
+      mv.visitInsn(IUSHR);
+    }
+
+  }
+
+}
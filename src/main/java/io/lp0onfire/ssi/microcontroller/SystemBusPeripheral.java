@@ -1,18 +1,23 @@
 package io.lp0onfire.ssi.microcontroller;
 
+import java.nio.ByteBuffer;
+
 public interface SystemBusPeripheral {
 
   int getNumberOfPages(); // number of 1024-byte pages mapped by this peripheral
 
   default int translateAddress(int pAddr) {
-    int v = getNumberOfPages() * 1024;
-    // this is very slow
-    int mask = 1;
-    while (mask < v) {
-      mask = mask << 1;
+    return pAddr & addressMask(getNumberOfPages());
+  }
+  
+  // mask that selects the offset into a peripheral of the given size,
+  // i.e. the size rounded up to the next power of two, minus one
+  static int addressMask(int numberOfPages) {
+    int v = numberOfPages * 1024;
+    if (v <= 1) {
+      return 0;
     }
-    mask -= 1;
-    return pAddr & mask;
+    return 0xFFFFFFFF >>> Integer.numberOfLeadingZeros(v - 1);
   }
   
   int readByte(int pAddr) throws AddressTrapException;
@@ -23,9 +28,33 @@ public interface SystemBusPeripheral {
   void writeWord(int pAddr, int value) throws AddressTrapException;
   
   void cycle();
+  
+  // Scheduling hints for PeripheralScheduler, which only calls cycle() when a
+  // peripheral actually needs it. getIdleCycles() is the number of upcoming
+  // cycle() calls that would have no effect visible to the CPU (register reads,
+  // interrupt lines, DMA) and may be replaced by a single skipCycles() call;
+  // 0 means cycle() must run on the very next cycle.
+  default long getIdleCycles() {
+    return 0L;
+  }
+  // same as calling cycle() the given number of times, which is at most getIdleCycles()
+  default void skipCycles(long cycles) {}
+  // true if reading this address has no side effects and the value read can only
+  // change through a write or on a cycle where cycle() has to run; lets the
+  // scheduler fast-forward firmware that polls the register in a loop
+  default boolean isStableRegister(int pAddr) {
+    return false;
+  }
+  
   // called exactly once per timestep, and after all global cycles have completed
   void timestep();
   
   default void setSystemBus(RV32SystemBus bus) {}
   
+  // Checkpointing for Microcontroller.saveState(): writes everything that defines
+  // this peripheral's state with primitive puts, and restoreState() reads it back
+  // in the same order. Peripherals with nothing to save write nothing.
+  default void saveState(ByteBuffer state) {}
+  default void restoreState(ByteBuffer state) {}
+  
 }
@@ -14,4 +14,9 @@ public class RV32_CSRRSI extends ITypeInstruction {
     cpu.execute(this);
   }
 
+  @Override
+  public boolean endsBasicBlock() {
+    return true;
+  }
+
 }
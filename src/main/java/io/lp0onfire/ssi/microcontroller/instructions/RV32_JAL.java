@@ -14,4 +14,9 @@ public class RV32_JAL extends UJTypeInstruction {
     cpu.execute(this);
   }
 
+  @Override
+  public boolean endsBasicBlock() {
+    return true;
+  }
+
 }
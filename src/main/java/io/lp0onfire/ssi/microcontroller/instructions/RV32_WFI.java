@@ -0,0 +1,22 @@
+package io.lp0onfire.ssi.microcontroller.instructions;
+
+import io.lp0onfire.ssi.microcontroller.IllegalInstructionException;
+import io.lp0onfire.ssi.microcontroller.RV32Core;
+
+public class RV32_WFI extends ITypeInstruction {
+
+  public RV32_WFI(int instruction) {
+    super(instruction);
+  }
+
+  @Override
+  public void execute(RV32Core cpu) throws IllegalInstructionException {
+    cpu.execute(this);
+  }
+
+  @Override
+  public boolean endsBasicBlock() {
+    return true;
+  }
+
+}
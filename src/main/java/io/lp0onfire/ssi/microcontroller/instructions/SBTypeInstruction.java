@@ -36,4 +36,9 @@ public abstract class SBTypeInstruction extends RV32Instruction {
     funct3 = (instruction & 0b00000000000000000111000000000000) >>> 12;
     opcode = (instruction & 0b00000000000000000000000001111111);
   }
+  
+  @Override
+  public boolean endsBasicBlock() {
+    return true;
+  }
 }
@@ -216,6 +216,17 @@ public class EngineController implements SystemBusPeripheral {
   @Override
   public void cycle() {
   }
+  
+  @Override
+  public boolean isStableRegister(int pAddr) {
+    return true;
+  }
+  
+  @Override
+  public long getIdleCycles() {
+    // all the work happens in timestep()
+    return Long.MAX_VALUE;
+  }
 
   @Override
   public void timestep() {
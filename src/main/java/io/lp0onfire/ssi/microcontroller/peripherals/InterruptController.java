@@ -1,10 +1,15 @@
 package io.lp0onfire.ssi.microcontroller.peripherals;
 
+import java.nio.ByteBuffer;
+
 import io.lp0onfire.ssi.microcontroller.AddressTrapException;
 import io.lp0onfire.ssi.microcontroller.InterruptSource;
 import io.lp0onfire.ssi.microcontroller.RV32Core;
 import io.lp0onfire.ssi.microcontroller.SystemBusPeripheral;
 
+// Pending and enabled state lives in the two 32-bit registers the firmware sees.
+// Sources raise their lines through an InterruptLine callback instead of being
+// polled, and the highest-priority interrupt is found with one mask per priority level.
 public class InterruptController implements SystemBusPeripheral {
 
   private final RV32Core cpu;
@@ -13,20 +18,14 @@ public class InterruptController implements SystemBusPeripheral {
   
   public InterruptController(RV32Core cpu) {
     this.cpu = cpu;
-    this.interruptEnabled = new boolean[32];
-    for (int i = 0; i < 32; ++i) {
-      this.interruptEnabled[i] = false;
-    }
-    
-    this.interruptPending = new boolean[32];
-    for (int i = 0; i < 32; ++i) {
-      this.interruptPending[i] = false;
-    }
-    
     this.interruptPriority = new int[32];
     for (int i = 0; i < 32; ++i) {
       this.interruptPriority[i] = 0;
     }
+    this.priorityMask = new int[32];
+    // everything starts out at priority 0
+    this.priorityMask[0] = 0xFFFFFFFF;
+    this.prioritiesInUse = 0x00000001;
     
     this.devices = new InterruptSource[32];
     for (int i = 0; i < 32; ++i) {
@@ -40,6 +39,10 @@ public class InterruptController implements SystemBusPeripheral {
       throw new IllegalStateException("device already registered for interrupt #" + irq);
     }
     devices[irq] = src;
+    src.setInterruptLine(() -> assertInterrupt(irq));
+    if (src.interruptAsserted()) {
+      assertInterrupt(irq);
+    }
   }
   
   @Override
@@ -97,18 +100,18 @@ public class InterruptController implements SystemBusPeripheral {
       setMasterEnable((value & 0x80000000) != 0);
       break;
     case 1: // Interrupt Enable Register
-      for (int i = 0; i < 32; ++i) {
-        setInterruptEnabled(i, (value & 0x00000001) != 0);
-        value = value >>> 1;
-      }
+      interruptEnableRegister = value;
+      stateChange = true;
       break;
     case 3: // Interrupt Acknowledge Register
-      for (int i = 0; i < 32; ++i) {
-        if ((value & 0x00000001) != 0) {
-          acknowledgeInterrupt(i);
-        }
-        value = value >>> 1;
+    {
+      int acknowledged = value & interruptPendingRegister;
+      while (acknowledged != 0) {
+        int irq = Integer.numberOfTrailingZeros(acknowledged);
+        acknowledged &= acknowledged - 1;
+        acknowledgeInterrupt(irq);
       }
+    }
       break;
     default:
       if (registerNumber >= 4 && registerNumber < 4+32) {
@@ -135,15 +138,12 @@ public class InterruptController implements SystemBusPeripheral {
   }
 
   private int interruptEnableRegister = 0;
-  private boolean[] interruptEnabled;
   
   public boolean getInterruptEnabled(int i) {
-    return interruptEnabled[i];
+    return (interruptEnableRegister & (1 << i)) != 0;
   }
   
   public void setInterruptEnabled(int i, boolean e) {
-    interruptEnabled[i] = e;
-    // update interruptEnableRegister;
     if (e) {
       interruptEnableRegister |= (1 << i);
     } else {
@@ -158,32 +158,51 @@ public class InterruptController implements SystemBusPeripheral {
     if (!masterEnable) {
       return -1;
     }
-    int nextInterrupt = -1;
-    int currentPriority = 32;
-    for (int i = 31; i >= 0; --i) {
-      if (interruptPending[i] && interruptEnabled[i]) {
-        // priority check: priority must be smaller than
-        // last priority, or equal priority and lower interrupt number
-        if (interruptPriority[i] <= currentPriority) {
-          nextInterrupt = i;
-          currentPriority = interruptPriority[i];
-        }
+    int active = interruptPendingRegister & interruptEnableRegister;
+    if (active == 0) {
+      return -1;
+    }
+    // the smallest priority value wins, then the lowest interrupt number
+    int priorities = prioritiesInUse;
+    while (priorities != 0) {
+      int priority = Integer.numberOfTrailingZeros(priorities);
+      priorities &= priorities - 1;
+      int candidates = active & priorityMask[priority];
+      if (candidates != 0) {
+        return Integer.numberOfTrailingZeros(candidates);
       }
     }
-    return nextInterrupt;
+    return -1;
   }
   
   @Override
-  public void cycle() {
-    for (int i = 0; i < 32; ++i) {
-      if (devices[i] != null) {
-        boolean irqStatus = devices[i].interruptAsserted();
-        if (irqStatus && !interruptPending[i]) {
-          assertInterrupt(i);
-        }
+  public boolean isStableRegister(int pAddr) {
+    return true;
+  }
+  
+  // true if an interrupt would be delivered as soon as the CPU enables interrupts
+  public boolean interruptWaiting() {
+    if (stateChange && masterEnable) {
+      int nextInterrupt = nextInterrupt();
+      if (nextInterrupt != -1 && nextInterrupt != currentInterrupt) {
+        return true;
       }
     }
-    
+    return false;
+  }
+  
+  @Override
+  public long getIdleCycles() {
+    // sources raise their own lines, so we only need to run
+    // while an interrupt is waiting to be delivered
+    if (interruptWaiting()) {
+      return 0L;
+    }
+    return Long.MAX_VALUE;
+  }
+  
+  @Override
+  public void cycle() {
     if (stateChange) {
       if (masterEnable) {
         int nextInterrupt = nextInterrupt();
@@ -206,37 +225,80 @@ public class InterruptController implements SystemBusPeripheral {
   public void timestep() {
   }
   
+  @Override
+  public void saveState(ByteBuffer state) {
+    int flags = 0;
+    if (masterEnable) flags |= 1<<0;
+    if (stateChange) flags |= 1<<1;
+    state.putInt(flags);
+    state.putInt(currentInterrupt);
+    state.putInt(interruptEnableRegister);
+    state.putInt(interruptPendingRegister);
+    for (int i = 0; i < 32; ++i) {
+      state.putInt(interruptPriority[i]);
+    }
+  }
+  
+  @Override
+  public void restoreState(ByteBuffer state) {
+    int flags = state.getInt();
+    currentInterrupt = state.getInt();
+    interruptEnableRegister = state.getInt();
+    interruptPendingRegister = state.getInt();
+    for (int i = 0; i < 32; ++i) {
+      setInterruptPriority(i, state.getInt());
+    }
+    masterEnable = (flags & 1<<0) != 0;
+    stateChange = (flags & 1<<1) != 0;
+  }
+  
   private int interruptPendingRegister;
-  private boolean[] interruptPending;
   
   public void assertInterrupt(int irq) {
-    if (!interruptPending[irq]) {
-      interruptPending[irq] = true;
-      interruptPendingRegister |= (1 << irq);
+    int bit = 1 << irq;
+    if ((interruptPendingRegister & bit) == 0) {
+      interruptPendingRegister |= bit;
       stateChange = true;
     }
   }
   
   public void acknowledgeInterrupt(int irq) {
-    if (interruptPending[irq]) {
-      interruptPending[irq] = false;
-      interruptPendingRegister &= ~(1 << irq);
+    int bit = 1 << irq;
+    if ((interruptPendingRegister & bit) != 0) {
+      interruptPendingRegister &= ~bit;
       stateChange = true;
-      if (devices[irq] != null) {
-        devices[irq].acknowledgeInterrupt();
-      }
       if (currentInterrupt == irq) {
         currentInterrupt = -1;
       }
+      if (devices[irq] != null) {
+        devices[irq].acknowledgeInterrupt();
+        // a source that still holds its line high is pending again straight away
+        if (devices[irq].interruptAsserted()) {
+          assertInterrupt(irq);
+        }
+      }
     }
   }
   
   private int[] interruptPriority;
+  // bit i of priorityMask[p] is set if interrupt i has priority p
+  private int[] priorityMask;
+  // bit p is set if priorityMask[p] is non-zero
+  private int prioritiesInUse;
+  
   public int getInterruptPriority(int irq) {
     return interruptPriority[irq];
   }
   public void setInterruptPriority(int irq, int priority) {
+    int bit = 1 << irq;
+    int oldPriority = interruptPriority[irq];
+    priorityMask[oldPriority] &= ~bit;
+    if (priorityMask[oldPriority] == 0) {
+      prioritiesInUse &= ~(1 << oldPriority);
+    }
     interruptPriority[irq] = priority;
+    priorityMask[priority] |= bit;
+    prioritiesInUse |= (1 << priority);
     stateChange = true;
   }
   
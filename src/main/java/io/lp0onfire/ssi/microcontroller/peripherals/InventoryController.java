@@ -9,6 +9,7 @@ import java.util.Map;
 import java.util.UUID;
 
 import io.lp0onfire.ssi.microcontroller.AddressTrapException;
+import io.lp0onfire.ssi.microcontroller.InterruptLine;
 import io.lp0onfire.ssi.microcontroller.InterruptSource;
 import io.lp0onfire.ssi.microcontroller.RV32SystemBus;
 import io.lp0onfire.ssi.microcontroller.SystemBusPeripheral;
@@ -189,6 +190,10 @@ public class InventoryController implements SystemBusPeripheral, InterruptSource
       executedCycles += 1;
     }
     
+    public void skipCycles(long cycles) {
+      executedCycles += (int)cycles;
+    }
+    
     private void type0Init() {
       switch (opcode) {
       case 1: // MOVE
@@ -791,6 +796,74 @@ public class InventoryController implements SystemBusPeripheral, InterruptSource
     }
   }
   
+  // Object buffers hold items that belong to the world and are not saved here;
+  // the command queue, registers and any DMA in progress are.
+  @Override
+  public void saveState(ByteBuffer state) {
+    state.put((byte)(commandQueueStalled ? 1 : 0));
+    state.putShort(errorCommand);
+    state.putShort(errorCode);
+    for (int i = 0; i < 4; ++i) {
+      for (int j = 0; j < 4; ++j) {
+        state.putInt(uuidRawWords[i][j]);
+      }
+    }
+    for (int i = 0; i < 32; ++i) {
+      state.putInt(reactionIDRegister[i]);
+    }
+    for (int i = 0; i < 32; ++i) {
+      state.putInt(responseAddressRegister[i]);
+    }
+    state.putInt(numberOfCommands);
+    for (int i = 0; i < numberOfCommands; ++i) {
+      Command cmd = commandQueue[i];
+      state.putShort(cmd.insn);
+      int flags = 0;
+      if (cmd.manipulatorCommandIssued) flags |= 1<<0;
+      if (cmd.manipulatorCommandCompleted) flags |= 1<<1;
+      state.put((byte)flags);
+      state.putInt(cmd.currentAddress);
+      state.putInt(cmd.executedCycles);
+      SavedBuffers.put(state, cmd.responseBuffer);
+    }
+  }
+  
+  @Override
+  public void restoreState(ByteBuffer state) {
+    commandQueueStalled = (state.get() != 0);
+    errorCommand = state.getShort();
+    errorCode = state.getShort();
+    for (int i = 0; i < 4; ++i) {
+      for (int j = 0; j < 4; ++j) {
+        uuidRawWords[i][j] = state.getInt();
+      }
+      uuidRegister[i] = null;
+    }
+    for (int i = 0; i < 32; ++i) {
+      reactionIDRegister[i] = state.getInt();
+    }
+    for (int i = 0; i < 32; ++i) {
+      responseAddressRegister[i] = state.getInt();
+    }
+    numberOfCommands = state.getInt();
+    if (numberOfCommands < 0 || numberOfCommands > MAXIMUM_NUMBER_OF_COMMANDS) {
+      throw new IllegalArgumentException("saved inventory command queue has " + numberOfCommands + " commands");
+    }
+    for (int i = 0; i < MAXIMUM_NUMBER_OF_COMMANDS; ++i) {
+      commandQueue[i] = null;
+    }
+    for (int i = 0; i < numberOfCommands; ++i) {
+      Command cmd = new Command(state.getShort());
+      int flags = state.get();
+      cmd.manipulatorCommandIssued = (flags & 1<<0) != 0;
+      cmd.manipulatorCommandCompleted = (flags & 1<<1) != 0;
+      cmd.currentAddress = state.getInt();
+      cmd.executedCycles = state.getInt();
+      cmd.responseBuffer = SavedBuffers.get(state);
+      commandQueue[i] = cmd;
+    }
+  }
+  
   @Override
   public void cycle() {
     if (commandQueueStalled) {
@@ -896,6 +969,70 @@ public class InventoryController implements SystemBusPeripheral, InterruptSource
     }
   }
 
+  @Override
+  public boolean isStableRegister(int pAddr) {
+    return true;
+  }
+  
+  private boolean commandCanExecute(int i) {
+    for (int j = 0; j < i; ++j) {
+      if (commandBlocks(commandQueue[j], commandQueue[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+  
+  // true if cycle() would only be counting down the command's execution time
+  private boolean commandIsCounting(Command cmd) {
+    if (cmd.isQueryCommand()) {
+      return cmd.getResponseBuffer() == null;
+    } else if (cmd.isManipulatorCommand()) {
+      return cmd.getManipulatorCommandIssued() && cmd.getManipulatorCommandCompleted();
+    } else {
+      return true;
+    }
+  }
+  
+  // an issued manipulator command does nothing until timestep() sees it complete
+  private boolean commandIsWaiting(Command cmd) {
+    return !cmd.isQueryCommand() && cmd.isManipulatorCommand()
+        && cmd.getManipulatorCommandIssued() && !cmd.getManipulatorCommandCompleted();
+  }
+  
+  @Override
+  public long getIdleCycles() {
+    if (commandQueueStalled) {
+      return Long.MAX_VALUE;
+    }
+    long idleCycles = Long.MAX_VALUE;
+    for (int i = 0; i < numberOfCommands; ++i) {
+      Command cmd = commandQueue[i];
+      if (!commandCanExecute(i) || commandIsWaiting(cmd)) {
+        continue;
+      }
+      if (!commandIsCounting(cmd)) {
+        return 0L;
+      }
+      long remaining = Math.max(0L, (long)cmd.getTotalCycles() - cmd.getExecutedCycles() - 1L);
+      idleCycles = Math.min(idleCycles, remaining);
+    }
+    return idleCycles;
+  }
+  
+  @Override
+  public void skipCycles(long cycles) {
+    if (commandQueueStalled) {
+      return;
+    }
+    for (int i = 0; i < numberOfCommands; ++i) {
+      Command cmd = commandQueue[i];
+      if (commandCanExecute(i) && !commandIsWaiting(cmd)) {
+        cmd.skipCycles(cycles);
+      }
+    }
+  }
+
   @Override
   public void timestep() {
     // check whether each manipulator command has completed
@@ -925,4 +1062,9 @@ public class InventoryController implements SystemBusPeripheral, InterruptSource
     
   }
   
+  @Override
+  public void setInterruptLine(InterruptLine line) {
+    // never asserted yet
+  }
+  
 }
@@ -1,16 +1,51 @@
 package io.lp0onfire.ssi.microcontroller.peripherals;
 
+import java.nio.ByteBuffer;
+
 import io.lp0onfire.ssi.microcontroller.AddressTrapException;
 import io.lp0onfire.ssi.microcontroller.SystemBusPeripheral;
 
+// Memory is held in 1024-byte pages. A page starts out shared, either with
+// a read-only initial image (see setSharedPages()) or with the all-zero page,
+// and is only copied into a private array the first time it is written.
+// Identical robots therefore share everything except the pages they dirty.
+// Pages are found through a two-level directory whose tables are only
+// allocated once a page in their range is written or given an initial image,
+// so a large, mostly untouched RAM costs next to nothing.
 public class RAM implements SystemBusPeripheral {
 
+  private static final int PAGE_SHIFT = 10;
+  private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+  private static final int PAGE_OFFSET_MASK = PAGE_SIZE - 1;
+  // never written; shared by every RAM
+  private static final byte[] ZERO_PAGE = new byte[PAGE_SIZE];
+
+  // each page table covers 256 pages (256 KiB)
+  private static final int TABLE_BITS = 8;
+  private static final int TABLE_SIZE = 1 << TABLE_BITS;
+  private static final int TABLE_MASK = TABLE_SIZE - 1;
+
   private final int numberOfPages;
-  private byte[] memory;
-  
+  private final int addressMask;
+  // a null table reads as all zero pages
+  private final byte[][][] pageDirectory;
+  // true for pages we own and may write in place
+  private final boolean[][] privatePages;
+  // the image given to setSharedPages(), which a saved state is relative to
+  private byte[][] initialPages = new byte[0][];
+
+  // most accesses hit the same page as the last one
+  private int lastReadPage = -1;
+  private byte[] lastReadData = null;
+  private int lastWritePage = -1;
+  private byte[] lastWriteData = null;
+
   public RAM(int numberOfPages) {
     this.numberOfPages = numberOfPages;
-    memory = new byte[this.numberOfPages * 1024];
+    this.addressMask = SystemBusPeripheral.addressMask(numberOfPages);
+    int tables = (numberOfPages + TABLE_MASK) >>> TABLE_BITS;
+    this.pageDirectory = new byte[tables][][];
+    this.privatePages = new boolean[tables][];
   }
 
   @Override
@@ -18,19 +53,161 @@ public class RAM implements SystemBusPeripheral {
     return this.numberOfPages;
   }
 
+  @Override
+  public int translateAddress(int pAddr) {
+    return pAddr & addressMask;
+  }
+
   public void setContents(byte[] contents) {
-    if (contents.length > memory.length) {
-      throw new IllegalArgumentException("out of memory:" + 
-          "attempted to fill with " + contents.length + " bytes, but only " + memory.length + " bytes available");
+    long capacity = (long)numberOfPages * PAGE_SIZE;
+    if (contents.length > capacity) {
+      throw new IllegalArgumentException("out of memory:" +
+          "attempted to fill with " + contents.length + " bytes, but only " + capacity + " bytes available");
+    }
+    for (int offset = 0; offset < contents.length; offset += PAGE_SIZE) {
+      System.arraycopy(contents, offset, writablePage(offset >>> PAGE_SHIFT), 0,
+          Math.min(PAGE_SIZE, contents.length - offset));
+    }
+  }
+
+  // splits an initial memory image into pages for setSharedPages();
+  // the last page is zero-padded
+  public static byte[][] toPages(byte[] contents) {
+    byte[][] result = new byte[(contents.length + PAGE_OFFSET_MASK) >>> PAGE_SHIFT][];
+    for (int i = 0; i < result.length; ++i) {
+      result[i] = new byte[PAGE_SIZE];
+      int offset = i << PAGE_SHIFT;
+      System.arraycopy(contents, offset, result[i], 0, Math.min(PAGE_SIZE, contents.length - offset));
+    }
+    return result;
+  }
+
+  // Resets the memory to an initial image without copying it. The given pages
+  // (as made by toPages()) are shared with every other RAM they are passed to,
+  // and must not be modified afterwards; everything past them reads as zero.
+  public void setSharedPages(byte[][] initialPages) {
+    if (initialPages.length > numberOfPages) {
+      throw new IllegalArgumentException("out of memory:" +
+          "attempted to fill with " + initialPages.length + " pages, but only " + numberOfPages + " pages available");
+    }
+    for (int t = 0; t < pageDirectory.length; ++t) {
+      pageDirectory[t] = null;
+      privatePages[t] = null;
+    }
+    for (int i = 0; i < initialPages.length; ++i) {
+      byte[][] table = pageTable(i);
+      table[i & TABLE_MASK] = initialPages[i];
     }
-    System.arraycopy(contents, 0, memory, 0, contents.length);
+    this.initialPages = initialPages;
+    lastReadPage = -1;
+    lastReadData = null;
+    lastWritePage = -1;
+    lastWriteData = null;
   }
-  
+
+  // number of pages that have been copied on write
+  public int getPrivatePageCount() {
+    int count = 0;
+    for (boolean[] table : privatePages) {
+      if (table == null) continue;
+      for (boolean b : table) {
+        if (b) {
+          ++count;
+        }
+      }
+    }
+    return count;
+  }
+
+  // Only pages that have been written are saved, as their index followed by
+  // their contents; every other page still holds the initial image, so the
+  // state can only be restored into a RAM given the same setSharedPages() image.
+  @Override
+  public void saveState(ByteBuffer state) {
+    state.putInt(numberOfPages);
+    state.putInt(initialPages.length);
+    state.putInt(getPrivatePageCount());
+    for (int t = 0; t < pageDirectory.length; ++t) {
+      boolean[] owned = privatePages[t];
+      if (owned == null) continue;
+      for (int i = 0; i < TABLE_SIZE; ++i) {
+        if (owned[i]) {
+          state.putInt((t << TABLE_BITS) | i);
+          state.put(pageDirectory[t][i]);
+        }
+      }
+    }
+  }
+
+  @Override
+  public void restoreState(ByteBuffer state) {
+    int savedPages = state.getInt();
+    int savedInitialPages = state.getInt();
+    if (savedPages != numberOfPages || savedInitialPages != initialPages.length) {
+      throw new IllegalArgumentException("saved RAM state does not match this memory and its initial image");
+    }
+    setSharedPages(initialPages);
+    int count = state.getInt();
+    for (int n = 0; n < count; ++n) {
+      int page = state.getInt();
+      if (page < 0 || page >= numberOfPages) {
+        throw new IllegalArgumentException("saved RAM page " + page + " out of range");
+      }
+      state.get(writablePage(page));
+    }
+  }
+
+  // the page table covering this page, allocated if necessary
+  private byte[][] pageTable(int page) {
+    int t = page >>> TABLE_BITS;
+    if (pageDirectory[t] == null) {
+      byte[][] table = new byte[TABLE_SIZE][];
+      for (int i = 0; i < TABLE_SIZE; ++i) {
+        table[i] = ZERO_PAGE;
+      }
+      pageDirectory[t] = table;
+      privatePages[t] = new boolean[TABLE_SIZE];
+    }
+    return pageDirectory[t];
+  }
+
+  private byte[] readablePage(int page) {
+    if (page == lastReadPage) {
+      return lastReadData;
+    }
+    byte[][] table = pageDirectory[page >>> TABLE_BITS];
+    byte[] data = (table == null) ? ZERO_PAGE : table[page & TABLE_MASK];
+    lastReadPage = page;
+    lastReadData = data;
+    return data;
+  }
+
+  private byte[] writablePage(int page) {
+    if (page == lastWritePage) {
+      return lastWriteData;
+    }
+    byte[][] table = pageTable(page);
+    boolean[] owned = privatePages[page >>> TABLE_BITS];
+    int i = page & TABLE_MASK;
+    if (!owned[i]) {
+      table[i] = table[i].clone();
+      owned[i] = true;
+      // the read cache may still point at the shared copy
+      if (page == lastReadPage) {
+        lastReadData = table[i];
+      }
+    }
+    lastWritePage = page;
+    lastWriteData = table[i];
+    return table[i];
+  }
+
   @Override
   public int readByte(int address) throws AddressTrapException {
     int localAddr = translateAddress(address);
-    if (localAddr >= 0 && localAddr < memory.length) {
-      return ((int)memory[localAddr]) & 0x0FF;
+    int page = localAddr >>> PAGE_SHIFT;
+    if (page < numberOfPages) {
+      return ((int)readablePage(page)[localAddr & PAGE_OFFSET_MASK]) & 0x0FF;
     } else {
       return 0;
     }
@@ -40,25 +217,32 @@ public class RAM implements SystemBusPeripheral {
   @Override
   public int readHalfword(int address) throws AddressTrapException {
     int localAddr = translateAddress(address);
-    if (localAddr >= 0 && localAddr+1 < memory.length) {
+    int page = localAddr >>> PAGE_SHIFT;
+    if (page < numberOfPages) {
+      byte[] memory = readablePage(page);
+      int offset = localAddr & PAGE_OFFSET_MASK;
       return
-          (memory[localAddr+0] & 0x000000FF) |
-          (memory[localAddr+1] & 0x000000FF) << 8
+          (memory[offset+0] & 0x000000FF) |
+          (memory[offset+1] & 0x000000FF) << 8
           ;
     } else {
       return 0;
     }
   }
 
+  // precondition: address is word aligned
   @Override
   public int readWord(int address) throws AddressTrapException {
     int localAddr = translateAddress(address);
-    if (localAddr >= 0 && localAddr+3 < memory.length) {
+    int page = localAddr >>> PAGE_SHIFT;
+    if (page < numberOfPages) {
+      byte[] memory = readablePage(page);
+      int offset = localAddr & PAGE_OFFSET_MASK;
       return
-          (memory[localAddr+0] & 0x000000FF) |
-          (memory[localAddr+1] & 0x000000FF) <<  8 |
-          (memory[localAddr+2] & 0x000000FF) << 16 |
-          (memory[localAddr+3] & 0x000000FF) << 24
+          (memory[offset+0] & 0x000000FF) |
+          (memory[offset+1] & 0x000000FF) <<  8 |
+          (memory[offset+2] & 0x000000FF) << 16 |
+          (memory[offset+3] & 0x000000FF) << 24
           ;
     } else {
       return 0;
@@ -68,28 +252,37 @@ public class RAM implements SystemBusPeripheral {
   @Override
   public void writeByte(int address, int value) throws AddressTrapException {
     int localAddr = translateAddress(address);
-    if (localAddr >= 0 && localAddr < memory.length) {
-      memory[localAddr] = (byte)(value & 0x0FF);
+    int page = localAddr >>> PAGE_SHIFT;
+    if (page < numberOfPages) {
+      writablePage(page)[localAddr & PAGE_OFFSET_MASK] = (byte)(value & 0x0FF);
     }
   }
 
+  // precondition: address is halfword aligned
   @Override
   public void writeHalfword(int address, int value) throws AddressTrapException {
     int localAddr = translateAddress(address);
-    if (localAddr >= 0 && localAddr+1 < memory.length) {
-      memory[localAddr+0] = (byte)((value & 0x000000FF));
-      memory[localAddr+1] = (byte)((value & 0x0000FF00) >>> 8);
+    int page = localAddr >>> PAGE_SHIFT;
+    if (page < numberOfPages) {
+      byte[] memory = writablePage(page);
+      int offset = localAddr & PAGE_OFFSET_MASK;
+      memory[offset+0] = (byte)((value & 0x000000FF));
+      memory[offset+1] = (byte)((value & 0x0000FF00) >>> 8);
     }
   }
 
+  // precondition: address is word aligned
   @Override
   public void writeWord(int address, int value) throws AddressTrapException {
     int localAddr = translateAddress(address);
-    if (localAddr >= 0 && localAddr+3 < memory.length) {
-      memory[localAddr+0] = (byte)((value & 0x000000FF));
-      memory[localAddr+1] = (byte)((value & 0x0000FF00) >>>  8);
-      memory[localAddr+2] = (byte)((value & 0x00FF0000) >>> 16);
-      memory[localAddr+3] = (byte)((value & 0xFF000000) >>> 24);
+    int page = localAddr >>> PAGE_SHIFT;
+    if (page < numberOfPages) {
+      byte[] memory = writablePage(page);
+      int offset = localAddr & PAGE_OFFSET_MASK;
+      memory[offset+0] = (byte)((value & 0x000000FF));
+      memory[offset+1] = (byte)((value & 0x0000FF00) >>>  8);
+      memory[offset+2] = (byte)((value & 0x00FF0000) >>> 16);
+      memory[offset+3] = (byte)((value & 0xFF000000) >>> 24);
     }
   }
 
@@ -97,7 +290,11 @@ public class RAM implements SystemBusPeripheral {
   public void cycle() {
   }
   @Override
-  public void timestep() { 
+  public long getIdleCycles() {
+    return Long.MAX_VALUE;
+  }
+  @Override
+  public void timestep() {
   }
 
 }
@@ -1,16 +1,26 @@
 package io.lp0onfire.ssi.microcontroller.peripherals;
 
+import java.util.Arrays;
+
 import io.lp0onfire.ssi.microcontroller.AddressTrapException;
 import io.lp0onfire.ssi.microcontroller.SystemBusPeripheral;
 
+// The backing array is allocated on the first setContents(); anything
+// past its end reads as zero. Since we are never written, any number of
+// ROMs can share one image through setSharedContents().
 public class ROM implements SystemBusPeripheral {
 
+  private static final byte[] EMPTY = new byte[0];
+
   private final int numberOfPages;
-  private byte[] memory;
+  private final int addressMask;
+  private byte[] memory = EMPTY;
+  // true if memory belongs to someone else and must be copied before setContents()
+  private boolean shared = false;
   
   public ROM(int numberOfPages) {
     this.numberOfPages = numberOfPages;
-    memory = new byte[this.numberOfPages * 1024];
+    this.addressMask = SystemBusPeripheral.addressMask(numberOfPages);
   }
 
   @Override
@@ -18,13 +28,33 @@ public class ROM implements SystemBusPeripheral {
     return this.numberOfPages;
   }
 
+  @Override
+  public int translateAddress(int pAddr) {
+    return pAddr & addressMask;
+  }
+
   public void setContents(byte[] contents) {
-    if (contents.length > memory.length) {
+    int size = this.numberOfPages * 1024;
+    if (contents.length > size) {
       throw new IllegalArgumentException();
     }
+    if (shared || memory.length < size) {
+      memory = Arrays.copyOf(memory, size);
+      shared = false;
+    }
     System.arraycopy(contents, 0, memory, 0, contents.length);
   }
   
+  // replaces the contents with image, without copying it;
+  // image must not be modified afterwards
+  public void setSharedContents(byte[] image) {
+    if (image.length > this.numberOfPages * 1024) {
+      throw new IllegalArgumentException();
+    }
+    memory = image;
+    shared = true;
+  }
+  
   @Override
   public int readByte(int address) throws AddressTrapException {
     int localAddr = translateAddress(address);
@@ -80,6 +110,10 @@ public class ROM implements SystemBusPeripheral {
   public void cycle() {
   }
   @Override
+  public long getIdleCycles() {
+    return Long.MAX_VALUE;
+  }
+  @Override
   public void timestep() { 
   }
 
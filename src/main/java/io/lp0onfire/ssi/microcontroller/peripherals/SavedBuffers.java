@@ -0,0 +1,39 @@
+package io.lp0onfire.ssi.microcontroller.peripherals;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// saves and restores the DMA buffers peripherals keep between cycles,
+// including their position and byte order; null is saved as well
+final class SavedBuffers {
+
+  private SavedBuffers() {
+  }
+
+  static void put(ByteBuffer state, ByteBuffer buffer) {
+    if (buffer == null) {
+      state.putInt(-1);
+      return;
+    }
+    state.putInt(buffer.capacity());
+    state.putInt(buffer.position());
+    state.put((byte)(buffer.order() == ByteOrder.LITTLE_ENDIAN ? 1 : 0));
+    for (int i = 0; i < buffer.capacity(); ++i) {
+      state.put(buffer.get(i));
+    }
+  }
+
+  static ByteBuffer get(ByteBuffer state) {
+    int capacity = state.getInt();
+    if (capacity < 0) {
+      return null;
+    }
+    int position = state.getInt();
+    ByteBuffer buffer = ByteBuffer.allocate(capacity);
+    buffer.order(state.get() != 0 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+    state.get(buffer.array());
+    buffer.position(position);
+    return buffer;
+  }
+
+}
@@ -4,8 +4,10 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Set;
+import java.util.UUID;
 
 import io.lp0onfire.ssi.microcontroller.AddressTrapException;
+import io.lp0onfire.ssi.microcontroller.InterruptLine;
 import io.lp0onfire.ssi.microcontroller.InterruptSource;
 import io.lp0onfire.ssi.microcontroller.RV32SystemBus;
 import io.lp0onfire.ssi.microcontroller.SystemBusPeripheral;
@@ -215,9 +217,12 @@ public class SensorSystem implements SystemBusPeripheral, InterruptSource {
         case Q_LOCAL_SCAN:
         {
           if (queryCycle == 1) {
-            // grab list of all items in our voxel
+            // grab list of all items in our voxel, as they were at the start
+            // of the timestep, or as they are now if no timestep is running
             queryResultSet.clear();
-            Set<VoxelOccupant> occupants = world.getOccupants(robot.getPosition(), robot.getExtents());
+            Set<VoxelOccupant> occupants = world.isInTimestep()
+                ? world.getSnapshot().getOccupants(robot.getPosition(), robot.getExtents())
+                : world.getOccupants(robot.getPosition(), robot.getExtents());
             occupants.remove(robot);
             queryResultSet.addAll(occupants);
           } else {
@@ -289,6 +294,87 @@ public class SensorSystem implements SystemBusPeripheral, InterruptSource {
     }
   }
   
+  @Override
+  public boolean isStableRegister(int pAddr) {
+    return true;
+  }
+  
+  @Override
+  public long getIdleCycles() {
+    switch (state) {
+    case STATE_IDLE:
+      return Long.MAX_VALUE;
+    case STATE_EXECUTE_QUERY:
+      if (queryType == QueryType.Q_LOCAL_SCAN && queryCycle > 0) {
+        // only counting until the result buffer is prepared
+        return queryType.getNumberOfQueryCycles() - queryCycle - 1;
+      }
+      return 0L;
+    default:
+      // DMA runs every cycle
+      return 0L;
+    }
+  }
+  
+  @Override
+  public void skipCycles(long cycles) {
+    if (state == SensorState.STATE_EXECUTE_QUERY) {
+      queryCycle += (int)cycles;
+    }
+  }
+  
+  // The objects found by a scan in progress are saved by UUID, and looked up
+  // again around the robot on restore; any that have gone are left out.
+  @Override
+  public void saveState(ByteBuffer state) {
+    state.put((byte)this.state.ordinal());
+    state.put((byte)(queryError ? 1 : 0));
+    state.putInt(queryBufferAddress);
+    state.putInt(dmaCycle);
+    state.putShort(queryType == null ? -1 : queryType.getIndex());
+    state.putInt(queryCycle);
+    state.putInt(maxObjectsPerResponse);
+    state.putInt(responseBufferAddress);
+    state.putInt(responseBufferSize);
+    SavedBuffers.put(state, queryBuffer);
+    SavedBuffers.put(state, responseBuffer);
+    state.putInt(queryResultSet.size());
+    for (VoxelOccupant obj : queryResultSet) {
+      state.putLong(obj.getUUID().getMostSignificantBits());
+      state.putLong(obj.getUUID().getLeastSignificantBits());
+    }
+  }
+  
+  @Override
+  public void restoreState(ByteBuffer state) {
+    this.state = SensorState.values()[state.get()];
+    queryError = (state.get() != 0);
+    queryBufferAddress = state.getInt();
+    dmaCycle = state.getInt();
+    short qtype = state.getShort();
+    queryType = (qtype == -1) ? null : QueryType.getQueryByIndex(qtype);
+    queryCycle = state.getInt();
+    maxObjectsPerResponse = state.getInt();
+    responseBufferAddress = state.getInt();
+    responseBufferSize = state.getInt();
+    queryBuffer = SavedBuffers.get(state);
+    responseBuffer = SavedBuffers.get(state);
+    queryResultSet.clear();
+    int results = state.getInt();
+    if (results > 0) {
+      Set<VoxelOccupant> occupants = world.getOccupants(robot.getPosition(), robot.getExtents());
+      for (int i = 0; i < results; ++i) {
+        UUID id = new UUID(state.getLong(), state.getLong());
+        for (VoxelOccupant obj : occupants) {
+          if (id.equals(obj.getUUID())) {
+            queryResultSet.add(obj);
+            break;
+          }
+        }
+      }
+    }
+  }
+  
   @Override
   public void timestep() {
     // TODO Auto-generated method stub
@@ -306,6 +392,11 @@ public class SensorSystem implements SystemBusPeripheral, InterruptSource {
     // TODO Auto-generated method stub
     
   }
+  
+  @Override
+  public void setInterruptLine(InterruptLine line) {
+    // never asserted yet
+  }
 
   
 }
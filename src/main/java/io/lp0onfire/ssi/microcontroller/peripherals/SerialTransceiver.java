@@ -1,9 +1,11 @@
 package io.lp0onfire.ssi.microcontroller.peripherals;
 
+import java.nio.ByteBuffer;
 import java.util.LinkedList;
 import java.util.Queue;
 
 import io.lp0onfire.ssi.microcontroller.AddressTrapException;
+import io.lp0onfire.ssi.microcontroller.InterruptLine;
 import io.lp0onfire.ssi.microcontroller.InterruptSource;
 import io.lp0onfire.ssi.microcontroller.SystemBusPeripheral;
 
@@ -196,6 +198,7 @@ public class SerialTransceiver implements SystemBusPeripheral, InterruptSource {
     default:
       throw new AddressTrapException(7, pAddr);
     }
+    updateInterruptLine();
   }
 
   @Override
@@ -215,12 +218,30 @@ public class SerialTransceiver implements SystemBusPeripheral, InterruptSource {
             ++receiveBufferCapacity;
           }
         }
+        updateInterruptLine();
       }
     } else {
       transceiverPollingCount++;
     }
   }
   
+  @Override
+  public boolean isStableRegister(int pAddr) {
+    // reading the receive data register dequeues a packet
+    return translateAddress(pAddr) != 0x0;
+  }
+  
+  @Override
+  public long getIdleCycles() {
+    // nothing happens until the polling count reaches the transceiver period
+    return transceiverPeriod - transceiverPollingCount;
+  }
+  
+  @Override
+  public void skipCycles(long cycles) {
+    transceiverPollingCount += cycles;
+  }
+  
   public boolean transmitThresholdInterruptAsserted() {
     return transmitBufferCapacity <= transmitBufferThreshold;
   }
@@ -243,11 +264,70 @@ public class SerialTransceiver implements SystemBusPeripheral, InterruptSource {
     // interrupts are acknowledged by clearing the condition
     // that caused the interrupt
   }
+  
+  private InterruptLine interruptLine = null;
+  @Override
+  public void setInterruptLine(InterruptLine line) {
+    this.interruptLine = line;
+  }
+  
+  private void updateInterruptLine() {
+    if (interruptLine != null && interruptAsserted()) {
+      interruptLine.raise();
+    }
+  }
+
+  // the cable is not part of the saved state; it is reattached by whoever owns both ends
+  @Override
+  public void saveState(ByteBuffer state) {
+    int flags = 0;
+    if (transmitThresholdInterruptEnabled) flags |= 1<<0;
+    if (receiveThresholdInterruptEnabled) flags |= 1<<1;
+    if (modemStatusInterruptEnabled) flags |= 1<<2;
+    state.putInt(flags);
+    state.putLong(transceiverPeriod);
+    state.putLong(transceiverPollingCount);
+    state.putInt(transmitBufferThreshold);
+    state.putInt(receiveBufferThreshold);
+    saveBuffer(state, transmitBuffer);
+    saveBuffer(state, receiveBuffer);
+  }
+  
+  private static void saveBuffer(ByteBuffer state, Queue<Packet> buffer) {
+    state.putInt(buffer.size());
+    for (Packet p : buffer) {
+      state.put((byte)p.getData());
+    }
+  }
+  
+  @Override
+  public void restoreState(ByteBuffer state) {
+    int flags = state.getInt();
+    transmitThresholdInterruptEnabled = (flags & 1<<0) != 0;
+    receiveThresholdInterruptEnabled = (flags & 1<<1) != 0;
+    modemStatusInterruptEnabled = (flags & 1<<2) != 0;
+    transceiverPeriod = state.getLong();
+    transceiverPollingCount = state.getLong();
+    transmitBufferThreshold = state.getInt();
+    receiveBufferThreshold = state.getInt();
+    transmitBufferCapacity = restoreBuffer(state, transmitBuffer);
+    receiveBufferCapacity = restoreBuffer(state, receiveBuffer);
+  }
+  
+  private int restoreBuffer(ByteBuffer state, Queue<Packet> buffer) {
+    buffer.clear();
+    int size = state.getInt();
+    for (int i = 0; i < size; ++i) {
+      buffer.offer(new Packet(state.get()));
+    }
+    return size;
+  }
 
   @Override
   public void timestep() {
     if (getCable() == null) return;
     getCable().sync(this);
+    updateInterruptLine();
   }
 
 }
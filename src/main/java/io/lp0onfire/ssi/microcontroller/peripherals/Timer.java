@@ -1,6 +1,9 @@
 package io.lp0onfire.ssi.microcontroller.peripherals;
 
+import java.nio.ByteBuffer;
+
 import io.lp0onfire.ssi.microcontroller.AddressTrapException;
+import io.lp0onfire.ssi.microcontroller.InterruptLine;
 import io.lp0onfire.ssi.microcontroller.InterruptSource;
 import io.lp0onfire.ssi.microcontroller.SystemBusPeripheral;
 
@@ -224,6 +227,7 @@ public class Timer implements SystemBusPeripheral, InterruptSource {
     default:
       throw new AddressTrapException(7, pAddr);
     }
+    updateInterruptLine();
   }
 
   @Override
@@ -254,13 +258,167 @@ public class Timer implements SystemBusPeripheral, InterruptSource {
       if (incrementCounter && counter == match) {
         matchInterruptAsserted = true;
       }
+      updateInterruptLine();
+    }
+    
+  }
+  
+  // Fast-forwarding. Between interrupt events the counter just counts, so
+  // skipCycles() and getIdleCycles() work out the counter, prescaler and
+  // match/overflow state in closed form instead of calling cycle() repeatedly.
+  
+  private static final long COUNTER_RANGE = 0x100000000L;
+  
+  private static long unsigned(int v) {
+    return (long)v & 0x00000000FFFFFFFFL;
+  }
+  
+  // the value the counter restarts from after an overflow
+  private long restartValue() {
+    return autoReload ? unsigned(reload) : 0L;
+  }
+  
+  // number of cycles until the counter is next incremented
+  private long cyclesToFirstIncrement() {
+    if (prescalerEnabled) {
+      return Math.max(1L, prescalerPeriod - prescalerCounter);
+    } else {
+      return 1L;
+    }
+  }
+  
+  private long incrementPeriod() {
+    return prescalerEnabled ? prescalerPeriod : 1L;
+  }
+  
+  // number of increments until the counter next becomes equal to value, or -1 if it never does
+  private long incrementsUntil(long value) {
+    long c = unsigned(counter);
+    long toOverflow = 0xFFFFFFFFL - c + 1L;
+    if (value > c) {
+      return value - c;
+    }
+    long r = restartValue();
+    if (value >= r) {
+      return toOverflow + (value - r);
+    }
+    return -1L;
+  }
+  
+  @Override
+  public boolean isStableRegister(int pAddr) {
+    // the counter changes on every cycle while the timer runs
+    int registerNumber = (translateAddress(pAddr) & 0x00000FFF) >>> 2;
+    return registerNumber != 1 || !timerRunning;
+  }
+  
+  @Override
+  public long getIdleCycles() {
+    if (!timerRunning) {
+      return Long.MAX_VALUE;
+    }
+    // the next cycle that raises an interrupt flag which isn't raised already
+    long increments = Long.MAX_VALUE;
+    if (!overflowInterruptAsserted) {
+      increments = 0xFFFFFFFFL - unsigned(counter) + 1L;
+    }
+    if (!matchInterruptAsserted) {
+      long toMatch = incrementsUntil(unsigned(match));
+      if (toMatch != -1L && toMatch < increments) {
+        increments = toMatch;
+      }
+    }
+    if (increments == Long.MAX_VALUE) {
+      return Long.MAX_VALUE;
+    }
+    return cyclesToFirstIncrement() + (increments - 1L) * incrementPeriod() - 1L;
+  }
+  
+  @Override
+  public void skipCycles(long cycles) {
+    if (!timerRunning || cycles <= 0L) {
+      return;
+    }
+    long increments;
+    if (prescalerEnabled) {
+      long first = cyclesToFirstIncrement();
+      if (cycles < first) {
+        prescalerCounter += (int)cycles;
+        return;
+      }
+      increments = 1L + (cycles - first) / prescalerPeriod;
+      prescalerCounter = (int)((cycles - first) % prescalerPeriod);
+    } else {
+      increments = cycles;
     }
     
+    long c = unsigned(counter);
+    long m = unsigned(match);
+    long toOverflow = 0xFFFFFFFFL - c + 1L;
+    if (increments < toOverflow) {
+      if (m > c && m <= c + increments) {
+        matchInterruptAsserted = true;
+      }
+      counter = (int)(c + increments);
+      updateInterruptLine();
+      return;
+    }
+    // counts up to the overflow, then cycles through [r, 2^32)
+    overflowInterruptAsserted = true;
+    if (m > c) {
+      matchInterruptAsserted = true;
+    }
+    long r = restartValue();
+    long afterRestart = increments - toOverflow;
+    long period = COUNTER_RANGE - r;
+    if (m >= r && (afterRestart >= period - 1L || m <= r + afterRestart)) {
+      matchInterruptAsserted = true;
+    }
+    counter = (int)(r + afterRestart % period);
+    updateInterruptLine();
   }
   
+  
   @Override
   public void timestep() { 
   }
+  
+  @Override
+  public void saveState(ByteBuffer state) {
+    int flags = 0;
+    if (autoReload) flags |= 1<<0;
+    if (prescalerEnabled) flags |= 1<<1;
+    if (interruptsEnabled) flags |= 1<<2;
+    if (timerRunning) flags |= 1<<3;
+    if (matchInterruptEnabled) flags |= 1<<4;
+    if (overflowInterruptEnabled) flags |= 1<<5;
+    if (matchInterruptAsserted) flags |= 1<<6;
+    if (overflowInterruptAsserted) flags |= 1<<7;
+    state.putInt(flags);
+    state.putInt(rawPrescalerPeriod);
+    state.putInt(prescalerCounter);
+    state.putInt(counter);
+    state.putInt(reload);
+    state.putInt(match);
+  }
+  
+  @Override
+  public void restoreState(ByteBuffer state) {
+    int flags = state.getInt();
+    autoReload = (flags & 1<<0) != 0;
+    prescalerEnabled = (flags & 1<<1) != 0;
+    interruptsEnabled = (flags & 1<<2) != 0;
+    timerRunning = (flags & 1<<3) != 0;
+    matchInterruptEnabled = (flags & 1<<4) != 0;
+    overflowInterruptEnabled = (flags & 1<<5) != 0;
+    matchInterruptAsserted = (flags & 1<<6) != 0;
+    overflowInterruptAsserted = (flags & 1<<7) != 0;
+    setPrescalerPeriod(state.getInt());
+    prescalerCounter = state.getInt();
+    counter = state.getInt();
+    reload = state.getInt();
+    match = state.getInt();
+  }
 
   @Override
   public boolean interruptAsserted() {
@@ -279,5 +437,17 @@ public class Timer implements SystemBusPeripheral, InterruptSource {
     // we don't need to do anything special here as we
     // have our own interrupt acknowledge register
   }
+  
+  private InterruptLine interruptLine = null;
+  @Override
+  public void setInterruptLine(InterruptLine line) {
+    this.interruptLine = line;
+  }
+  
+  private void updateInterruptLine() {
+    if (interruptLine != null && interruptAsserted()) {
+      interruptLine.raise();
+    }
+  }
 
 }
@@ -0,0 +1,52 @@
+package io.lp0onfire.ssi.model;
+
+// Voxel coordinates packed into a single long, for code that handles many
+// positions and should not allocate a Vector for each one. Each component
+// is a 21-bit two's complement field (x in bits 42-62, y in bits 21-41,
+// z in bits 0-20), so components from -2^20 to 2^20 - 1 round-trip exactly.
+// Packed positions can be compared with == but not added directly; use offset().
+public final class Coordinates {
+
+  private Coordinates() {
+  }
+
+  private static final int BITS = 21;
+  private static final long MASK = (1L << BITS) - 1L;
+
+  public static final int MIN_COMPONENT = -(1 << (BITS - 1));
+  public static final int MAX_COMPONENT = (1 << (BITS - 1)) - 1;
+
+  public static long pack(int x, int y, int z) {
+    return ((x & MASK) << (2 * BITS)) | ((y & MASK) << BITS) | (z & MASK);
+  }
+
+  public static long pack(Vector v) {
+    return pack(v.getX(), v.getY(), v.getZ());
+  }
+
+  // shift each field to the top of the long, then sign-extend it back down
+  public static int x(long p) {
+    return (int)((p << (64 - 3 * BITS)) >> (64 - BITS));
+  }
+
+  public static int y(long p) {
+    return (int)((p << (64 - 2 * BITS)) >> (64 - BITS));
+  }
+
+  public static int z(long p) {
+    return (int)((p << (64 - BITS)) >> (64 - BITS));
+  }
+
+  public static long offset(long p, int dx, int dy, int dz) {
+    return pack(x(p) + dx, y(p) + dy, z(p) + dz);
+  }
+
+  public static Vector toVector(long p) {
+    return new Vector(x(p), y(p), z(p));
+  }
+
+  public static String toString(long p) {
+    return "(" + x(p) + ", " + y(p) + ", " + z(p) + ")";
+  }
+
+}
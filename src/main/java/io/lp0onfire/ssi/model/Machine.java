@@ -8,7 +8,7 @@ import io.lp0onfire.ssi.model.reactions.Reaction;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -67,9 +67,7 @@ public abstract class Machine extends VoxelOccupant {
   public void preprocess() {
     // run the microcontroller, if there is one
     if (mcu == null) return;
-    for (int i = 0; i < TimeConstants.CLOCK_CYCLES_PER_TIMESTEP; ++i) {
-      mcu.cycle();
-    }
+    mcu.runCycles(TimeConstants.CLOCK_CYCLES_PER_TIMESTEP);
   }
   
   @Override
@@ -233,7 +231,8 @@ public abstract class Machine extends VoxelOccupant {
   private Map<Integer, Integer> manipulatorReactionTimeRemaining = new HashMap<>();
   private Map<Integer, LinkedList<Item>> manipulatorPrivateBuffer = new HashMap<>();
   private Map<Integer, Boolean> manipulatorReactionStartSinceLastMSTAT = new HashMap<>();
-  private Set<WorldUpdate> reactionObjectUpdates = new HashSet<>();
+  // insertion-ordered, so that updates are applied in the same order on every run
+  private Set<WorldUpdate> reactionObjectUpdates = new LinkedHashSet<>();
   
   public boolean manipulator_isReacting(int mIdx) {
     Boolean b = manipulatorIsPerformingReaction.get(mIdx);
@@ -0,0 +1,16 @@
+package io.lp0onfire.ssi.model;
+
+import java.util.UUID;
+
+// Hands out IDs for voxel occupants. Each ID has a compact long form, used for
+// indexing inside the simulation, and the 128-bit UUID form that objects carry
+// and the microcontroller interface reports (least significant long first).
+public interface ObjectIDAllocator {
+
+  // a new compact ID, never returned before by this allocator
+  long nextID();
+
+  // the UUID form of a compact ID from this allocator
+  UUID toUUID(long id);
+
+}
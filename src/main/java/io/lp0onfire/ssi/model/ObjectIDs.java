@@ -0,0 +1,50 @@
+package io.lp0onfire.ssi.model;
+
+import java.util.UUID;
+import java.util.function.Supplier;
+
+// Where new voxel occupants get their IDs: the allocator set on the creating
+// thread by withAllocator() (see World), or else one shared default with a random seed.
+public final class ObjectIDs {
+
+  private ObjectIDs() {
+  }
+
+  private static final ObjectIDAllocator defaultAllocator =
+      new SequentialIDAllocator(UUID.randomUUID().getMostSignificantBits());
+
+  private static final ThreadLocal<ObjectIDAllocator> current = new ThreadLocal<>();
+
+  public static ObjectIDAllocator getAllocator() {
+    ObjectIDAllocator allocator = current.get();
+    return (allocator == null) ? defaultAllocator : allocator;
+  }
+
+  // Makes objects created on this thread by factory take their IDs from
+  // allocator, then puts back whatever allocator was set before.
+  public static <T> T withAllocator(ObjectIDAllocator allocator, Supplier<T> factory) {
+    ObjectIDAllocator previous = current.get();
+    current.set(allocator);
+    try {
+      return factory.get();
+    } finally {
+      current.set(previous);
+    }
+  }
+
+  public static void runWithAllocator(ObjectIDAllocator allocator, Runnable action) {
+    ObjectIDAllocator previous = current.get();
+    current.set(allocator);
+    try {
+      action.run();
+    } finally {
+      current.set(previous);
+    }
+  }
+
+  // the compact form of an ID from any allocator: its least significant long without the variant bits
+  public static long compactID(UUID id) {
+    return id.getLeastSignificantBits() & 0x3FFFFFFFFFFFFFFFL;
+  }
+
+}
@@ -30,7 +30,7 @@ public class ReduceDurabilityUpdate extends WorldUpdate {
       // a serialized world update, so we can chain world updates without
       // worrying about concurrency problems.
       if (durability <= 0) {
-        List<WorldUpdate> updates = target.onDestroy();
+        List<WorldUpdate> updates = target.onDestroy(w);
         for (WorldUpdate update : updates) {
           update.apply(w);
         }
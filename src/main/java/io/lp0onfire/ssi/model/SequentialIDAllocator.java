@@ -0,0 +1,39 @@
+package io.lp0onfire.ssi.model;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Allocates compact IDs 1, 2, 3, ... from a single counter, so the IDs
+// depend only on the order objects are created in, not on which threads
+// create them. The UUID form is a version 4 UUID whose most significant
+// long is derived from the seed and whose least significant long holds the
+// compact ID, so IDs from allocators with different seeds do not collide,
+// and creating objects in the same order always gets the same IDs.
+public class SequentialIDAllocator implements ObjectIDAllocator {
+
+  private final long prefix;
+  // the last ID handed out
+  private final AtomicLong lastID = new AtomicLong(0L);
+
+  public SequentialIDAllocator(long seed) {
+    // spread the seed over all bits (SplitMix64 finalizer),
+    // then mark it as version 4 like UUID.randomUUID()
+    long z = seed + 0x9E3779B97F4A7C15L;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    z = z ^ (z >>> 31);
+    this.prefix = (z & ~0x000000000000F000L) | 0x0000000000004000L;
+  }
+
+  @Override
+  public long nextID() {
+    return lastID.incrementAndGet();
+  }
+
+  @Override
+  public UUID toUUID(long id) {
+    // the top two bits are the IETF variant; IDs never get that far
+    return new UUID(prefix, (id & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L);
+  }
+
+}
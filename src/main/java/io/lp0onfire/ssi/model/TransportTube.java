@@ -1,6 +1,6 @@
 package io.lp0onfire.ssi.model;
 
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Set;
 
 public class TransportTube extends VoxelOccupant implements TransportDevice {
@@ -77,7 +77,7 @@ public class TransportTube extends VoxelOccupant implements TransportDevice {
   }
   
   public Set<Item> getContents() {
-    Set<Item> contents = new HashSet<>();
+    Set<Item> contents = new LinkedHashSet<>();
     if (outgoingToA != null) {
       contents.add(outgoingToA);
     }
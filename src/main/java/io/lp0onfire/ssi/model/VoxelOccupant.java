@@ -15,15 +15,29 @@ public abstract class VoxelOccupant {
     return this.uuid;
   }
   public void setUUID(UUID id) {
+    UUID previous = this.uuid;
     this.uuid = id;
+    this.id = ObjectIDs.compactID(id);
+    if (world != null) {
+      world.uuidChanged(previous, this);
+    }
+  }
+  // compact form of the UUID, for indexing; unique among objects
+  // whose IDs came from the same allocator
+  private long id;
+  public long getID() {
+    return this.id;
   }
   
   public VoxelOccupant() {
-    this.uuid = UUID.randomUUID();
+    ObjectIDAllocator allocator = ObjectIDs.getAllocator();
+    this.id = allocator.nextID();
+    this.uuid = allocator.toUUID(id);
   }
   
   public VoxelOccupant(UUID uuid) {
     this.uuid = uuid;
+    this.id = ObjectIDs.compactID(uuid);
   }
   
   public abstract boolean impedesXYMovement();
@@ -63,6 +77,9 @@ public abstract class VoxelOccupant {
   }
   public void setVelocity(Vector v) {
     this.velocity = v;
+    if (world != null) {
+      world.velocityChanged(this);
+    }
   }
   // invariant: the absolute value of each component of
   // subvoxelVelocity is no larger than TimeConstants.SUBVOXELS_PER_VOXEL
@@ -72,6 +89,16 @@ public abstract class VoxelOccupant {
   }
   public void setSubvoxelVelocity(Vector v) {
     this.subvoxelVelocity = v;
+    if (world != null) {
+      world.velocityChanged(this);
+    }
+  }
+  
+  // the world this is in, if any, to be told when it starts or stops moving
+  // or changes its UUID
+  private World world = null;
+  void setWorld(World world) {
+    this.world = world;
   }
   
   // true iff the object has stuff to do before the timestep update,
@@ -99,7 +126,8 @@ public abstract class VoxelOccupant {
   
   public abstract int getMaximumDurability();
   
-  public List<WorldUpdate> onDestroy() {
+  // w is the world the destruction happens in
+  public List<WorldUpdate> onDestroy(World w) {
     List<WorldUpdate> updates = new LinkedList<>();
     updates.add(new RemoveObjectUpdate(this));
     return updates;
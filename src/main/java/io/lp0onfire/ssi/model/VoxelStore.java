@@ -0,0 +1,285 @@
+package io.lp0onfire.ssi.model;
+
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+// The contents of every voxel in a world, kept in dense chunks of
+// CHUNK_SIZE^3 voxels. The world is bounded in x and y, so each z layer of
+// chunks is a flat array; layers are added as things are built higher.
+// Most voxels hold nothing or a single occupant (terrain), which is stored
+// directly; only voxels with more than one occupant get an occupant list.
+// Each voxel also has flags summarizing what its occupants do to movement,
+// so that collision checks need not visit the occupants at all. These assume
+// an occupant's impedes/supports properties do not change while it is stored.
+// Every voxel changed is also logged, packed (see Coordinates), until the
+// log is cleared; WorldSnapshot uses it to catch up with the changes.
+// All coordinates passed in must be in bounds (see World.inBounds()).
+class VoxelStore {
+
+  static final int CHUNK_SHIFT = 4;
+  static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+  static final int CHUNK_MASK = CHUNK_SIZE - 1;
+  static final int CHUNK_VOLUME = CHUNK_SIZE * CHUNK_SIZE * CHUNK_SIZE;
+
+  // some occupant impedes movement in the XY plane
+  static final byte IMPEDES_XY = 0x01;
+  // some occupant impedes movement in the Z direction
+  static final byte IMPEDES_Z = 0x02;
+  // some occupant impedes both, so nothing else can move in
+  static final byte BLOCKED = 0x04;
+  // some occupant supports others
+  static final byte SUPPORTS = 0x08;
+
+  private static final class Chunk {
+    // the occupant of each voxel with exactly one
+    final VoxelOccupant[] single = new VoxelOccupant[CHUNK_VOLUME];
+    // the occupants of each voxel with more than one; allocated on first use
+    OccupantList[] crowded = null;
+    final byte[] flags = new byte[CHUNK_VOLUME];
+  }
+
+  private final int chunksX;
+  private final int chunksY;
+  // indexed by chunk z, then chunk y * chunksX + chunk x
+  private Chunk[][] layers = new Chunk[1][];
+
+  VoxelStore(int xDim, int yDim) {
+    this.chunksX = (xDim + CHUNK_MASK) >> CHUNK_SHIFT;
+    this.chunksY = (yDim + CHUNK_MASK) >> CHUNK_SHIFT;
+  }
+
+  // voxels changed since the last clearChanges(), possibly more than once each
+  private long[] changes = new long[64];
+  private int changeCount = 0;
+
+  int getChangeCount() {
+    return changeCount;
+  }
+
+  long getChange(int i) {
+    return changes[i];
+  }
+
+  void clearChanges() {
+    changeCount = 0;
+  }
+
+  private void logChange(int x, int y, int z) {
+    if (changeCount == changes.length) {
+      long[] larger = new long[changeCount * 2];
+      System.arraycopy(changes, 0, larger, 0, changeCount);
+      changes = larger;
+    }
+    changes[changeCount++] = Coordinates.pack(x, y, z);
+  }
+
+  static int voxelIndex(int x, int y, int z) {
+    return ((z & CHUNK_MASK) << (2 * CHUNK_SHIFT)) | ((y & CHUNK_MASK) << CHUNK_SHIFT) | (x & CHUNK_MASK);
+  }
+
+  // the chunk holding (x, y, z), or null if nothing was ever stored there
+  private Chunk findChunk(int x, int y, int z) {
+    int cz = z >> CHUNK_SHIFT;
+    if (cz >= layers.length || layers[cz] == null) {
+      return null;
+    }
+    return layers[cz][(y >> CHUNK_SHIFT) * chunksX + (x >> CHUNK_SHIFT)];
+  }
+
+  private Chunk getChunk(int x, int y, int z) {
+    int cz = z >> CHUNK_SHIFT;
+    if (cz >= layers.length) {
+      Chunk[][] newLayers = new Chunk[Math.max(cz + 1, layers.length * 2)][];
+      System.arraycopy(layers, 0, newLayers, 0, layers.length);
+      layers = newLayers;
+    }
+    if (layers[cz] == null) {
+      layers[cz] = new Chunk[chunksX * chunksY];
+    }
+    int c = (y >> CHUNK_SHIFT) * chunksX + (x >> CHUNK_SHIFT);
+    Chunk chunk = layers[cz][c];
+    if (chunk == null) {
+      chunk = new Chunk();
+      layers[cz][c] = chunk;
+    }
+    return chunk;
+  }
+
+  // a read-only view of the occupants of (x, y, z), in the order they were added
+  Set<VoxelOccupant> get(int x, int y, int z) {
+    Chunk chunk = findChunk(x, y, z);
+    if (chunk == null) {
+      return Collections.emptySet();
+    }
+    int i = voxelIndex(x, y, z);
+    if (chunk.crowded != null && chunk.crowded[i] != null) {
+      return chunk.crowded[i];
+    }
+    VoxelOccupant occupant = chunk.single[i];
+    return (occupant == null) ? Collections.<VoxelOccupant>emptySet() : Collections.singleton(occupant);
+  }
+
+  boolean contains(int x, int y, int z, VoxelOccupant obj) {
+    Chunk chunk = findChunk(x, y, z);
+    if (chunk == null) {
+      return false;
+    }
+    int i = voxelIndex(x, y, z);
+    if (chunk.crowded != null && chunk.crowded[i] != null) {
+      return chunk.crowded[i].contains(obj);
+    }
+    return chunk.single[i] == obj;
+  }
+
+  // the flags of (x, y, z), or 0 if it is empty
+  int getFlags(int x, int y, int z) {
+    Chunk chunk = findChunk(x, y, z);
+    return (chunk == null) ? 0 : chunk.flags[voxelIndex(x, y, z)];
+  }
+
+  void add(int x, int y, int z, VoxelOccupant obj) {
+    Chunk chunk = getChunk(x, y, z);
+    int i = voxelIndex(x, y, z);
+    if (chunk.crowded != null && chunk.crowded[i] != null) {
+      if (!chunk.crowded[i].addOccupant(obj)) {
+        return;
+      }
+    } else if (chunk.single[i] == null) {
+      chunk.single[i] = obj;
+    } else if (chunk.single[i] != obj) {
+      if (chunk.crowded == null) {
+        chunk.crowded = new OccupantList[CHUNK_VOLUME];
+      }
+      OccupantList list = new OccupantList();
+      list.addOccupant(chunk.single[i]);
+      list.addOccupant(obj);
+      chunk.crowded[i] = list;
+      chunk.single[i] = null;
+    } else {
+      return;
+    }
+    chunk.flags[i] |= flagsOf(obj);
+    logChange(x, y, z);
+  }
+
+  // returns false if obj was not at (x, y, z)
+  boolean remove(int x, int y, int z, VoxelOccupant obj) {
+    Chunk chunk = findChunk(x, y, z);
+    if (chunk == null) {
+      return false;
+    }
+    int i = voxelIndex(x, y, z);
+    if (chunk.crowded != null && chunk.crowded[i] != null) {
+      OccupantList list = chunk.crowded[i];
+      if (!list.removeOccupant(obj)) {
+        return false;
+      }
+      if (list.size() == 1) {
+        chunk.single[i] = list.get(0);
+        chunk.crowded[i] = null;
+        chunk.flags[i] = flagsOf(chunk.single[i]);
+      } else {
+        byte flags = 0;
+        for (int n = 0; n < list.size(); ++n) {
+          flags |= flagsOf(list.get(n));
+        }
+        chunk.flags[i] = flags;
+      }
+      logChange(x, y, z);
+      return true;
+    }
+    if (chunk.single[i] != obj) {
+      return false;
+    }
+    chunk.single[i] = null;
+    chunk.flags[i] = 0;
+    logChange(x, y, z);
+    return true;
+  }
+
+  private static byte flagsOf(VoxelOccupant obj) {
+    boolean xy = obj.impedesXYMovement();
+    boolean z = obj.impedesZMovement();
+    byte flags = 0;
+    if (xy) flags |= IMPEDES_XY;
+    if (z) flags |= IMPEDES_Z;
+    if (xy && z) flags |= BLOCKED;
+    if (obj.supportsOthers()) flags |= SUPPORTS;
+    return flags;
+  }
+
+  // A small set kept as an array in insertion order. Sets of occupants in
+  // one voxel rarely hold more than a handful, so a linear scan is cheapest.
+  // Only VoxelStore changes it; as a Set it is read-only.
+  private static final class OccupantList extends AbstractSet<VoxelOccupant> {
+
+    private VoxelOccupant[] occupants = new VoxelOccupant[4];
+    private int size = 0;
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+    VoxelOccupant get(int n) {
+      return occupants[n];
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      for (int n = 0; n < size; ++n) {
+        if (occupants[n] == o) return true;
+      }
+      return false;
+    }
+
+    boolean addOccupant(VoxelOccupant obj) {
+      if (contains(obj)) {
+        return false;
+      }
+      if (size == occupants.length) {
+        VoxelOccupant[] larger = new VoxelOccupant[size * 2];
+        System.arraycopy(occupants, 0, larger, 0, size);
+        occupants = larger;
+      }
+      occupants[size++] = obj;
+      return true;
+    }
+
+    boolean removeOccupant(VoxelOccupant o) {
+      for (int n = 0; n < size; ++n) {
+        if (occupants[n] == o) {
+          System.arraycopy(occupants, n + 1, occupants, n, size - n - 1);
+          occupants[--size] = null;
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public Iterator<VoxelOccupant> iterator() {
+      return new Iterator<VoxelOccupant>() {
+        private int n = 0;
+
+        @Override
+        public boolean hasNext() {
+          return n < size;
+        }
+
+        @Override
+        public VoxelOccupant next() {
+          if (n >= size) {
+            throw new NoSuchElementException();
+          }
+          return occupants[n++];
+        }
+      };
+    }
+
+  }
+
+}
@@ -1,22 +1,34 @@
 package io.lp0onfire.ssi.model;
 
 import io.lp0onfire.ssi.TimeConstants;
+import io.lp0onfire.ssi.microcontroller.ELFImage;
 import io.lp0onfire.ssi.model.structures.Bedrock;
 import io.lp0onfire.ssi.model.structures.Ramp;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
+import java.util.Random;
 import java.util.Set;
-import java.util.HashSet;
-import java.util.function.Supplier;
-import java.util.stream.Collectors;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
+// The world visits objects in a fixed spatial order (see VoxelStore) and every
+// collection it iterates over keeps insertion order, so given the same inputs,
+// a timestep always visits objects and applies updates in the same order.
+// Together with seeded object IDs (see World(int, int, long)) that makes a
+// run reproducible from its inputs; see WorldJournal.
 public class World {
   
-  private Map<Vector, Set<VoxelOccupant>> voxels = new HashMap<>();
+  private final VoxelStore voxels;
   private final int xDim;
   public int getXDim() {
     return this.xDim;
@@ -29,50 +41,194 @@ public class World {
   public World(int xDim, int yDim) {
     this.xDim = xDim;
     this.yDim = yDim;
-    createBedrockLayer();
+    this.seed = null;
+    this.voxels = new VoxelStore(xDim, yDim);
+    this.snapshot = new WorldSnapshot(xDim, yDim);
+    this.backSnapshot = new WorldSnapshot(xDim, yDim);
+    this.idAllocator = new SequentialIDAllocator(UUID.randomUUID().getMostSignificantBits());
+    this.random = new Random();
+    ObjectIDs.runWithAllocator(idAllocator, this::createBedrockLayer);
+    publishSnapshot();
   }
   
+  // A deterministic world: object IDs and random numbers come from sequences
+  // fixed by the seed, so building the world and its contents in the same
+  // order gives the same IDs, and running it the same draws.
+  public World(int xDim, int yDim, long seed) {
+    this.xDim = xDim;
+    this.yDim = yDim;
+    this.seed = seed;
+    this.voxels = new VoxelStore(xDim, yDim);
+    this.snapshot = new WorldSnapshot(xDim, yDim);
+    this.backSnapshot = new WorldSnapshot(xDim, yDim);
+    this.idAllocator = new SequentialIDAllocator(seed);
+    this.random = new Random(seed);
+    ObjectIDs.runWithAllocator(idAllocator, this::createBedrockLayer);
+    publishSnapshot();
+  }
+  
+  // null unless the world is deterministic
+  private final Long seed;
+  public Long getSeed() {
+    return this.seed;
+  }
+  
+  // Every object made for this world should take its ID from here: create it
+  // inside ObjectIDs.withAllocator(getIDAllocator(), ...). The world does this
+  // itself while it runs a timestep, so objects created along the way
+  // (e.g. by reactions) get it too.
+  private final ObjectIDAllocator idAllocator;
+  public ObjectIDAllocator getIDAllocator() {
+    return this.idAllocator;
+  }
+  
+  // Everything random in the simulation (e.g. mining drops) should draw from
+  // here, and only while changes to the world are applied serially, so that
+  // the draws come in the same order on every run.
+  private final Random random;
+  public Random getRandom() {
+    return this.random;
+  }
+  
+  // number of completed calls to timestep()
+  private long timestepCount = 0L;
+  public long getTimestepCount() {
+    return this.timestepCount;
+  }
+  
+  // records every input from outside the simulation, if set
+  private WorldJournal journal = null;
+  public WorldJournal getJournal() {
+    return this.journal;
+  }
+  public void setJournal(WorldJournal journal) {
+    this.journal = journal;
+  }
+  
+  // Commands are how the outside world acts on the simulation between timesteps
+  // (e.g. feeding serial input to a robot); going through executeCommand()
+  // gets them journaled. Handlers must be registered under the same names
+  // on a world that is to replay the journal.
+  public interface CommandHandler {
+    void execute(World world, VoxelOccupant target, byte[] argument);
+  }
+  private Map<String, CommandHandler> commandHandlers = new HashMap<>();
+  public void registerCommand(String name, CommandHandler handler) {
+    commandHandlers.put(name, handler);
+  }
+  
+  // target may be null for commands that are not aimed at any one object
+  public void executeCommand(String name, VoxelOccupant target, byte[] argument) {
+    CommandHandler handler = commandHandlers.get(name);
+    if (handler == null) {
+      throw new IllegalArgumentException("no command named '" + name + "'");
+    }
+    if (journal != null) {
+      journal.recordCommand(name, target == null ? null : target.getUUID(), argument);
+    }
+    // anything the command creates belongs to this world
+    ObjectIDs.runWithAllocator(idAllocator, () -> handler.execute(this, target, argument));
+  }
+  
+  // loads and starts new firmware on a machine's microcontroller
+  public void loadFirmware(Machine machine, File elfFile) throws IOException {
+    if (machine.getMCU() == null) {
+      throw new IllegalArgumentException("machine has no microcontroller");
+    }
+    ELFImage elf = ELFImage.load(elfFile);
+    if (journal != null) {
+      journal.recordFirmware(machine.getUUID(), elfFile);
+    }
+    machine.getMCU().loadELF(elf);
+    machine.getMCU().reset();
+  }
+  
+  // the object in the world with the given ID, or null
+  public VoxelOccupant findOccupant(UUID id) {
+    return byUUID.get(id);
+  }
+  
+  // Positions can be given as Vectors, as separate coordinates, or packed
+  // into a long (see Coordinates); code that touches many voxels per
+  // timestep should use the latter two, which do not allocate.
+  
   public boolean inBounds(Vector position) {
-    if (position.getX() < 0 || position.getY() < 0 || position.getZ() < 0) return false;
-    if (position.getX() >= xDim || position.getY() >= yDim) return false;
-    return true;
+    return inBounds(position.getX(), position.getY(), position.getZ());
   }
   
+  public boolean inBounds(long position) {
+    return inBounds(Coordinates.x(position), Coordinates.y(position), Coordinates.z(position));
+  }
+  
+  public boolean inBounds(int x, int y, int z) {
+    return x >= 0 && y >= 0 && z >= 0 && x < xDim && y < yDim;
+  }
+  
+  // a read-only view of what is in one voxel
   public Set<VoxelOccupant> getOccupants(Vector position) {
-    if (!inBounds(position)) return new HashSet<>();
-    if (!voxels.containsKey(position)) return new HashSet<>();
-    return voxels.get(position);
+    return getOccupants(position.getX(), position.getY(), position.getZ());
+  }
+  
+  public Set<VoxelOccupant> getOccupants(long position) {
+    return getOccupants(Coordinates.x(position), Coordinates.y(position), Coordinates.z(position));
+  }
+  
+  public Set<VoxelOccupant> getOccupants(int x, int y, int z) {
+    if (!inBounds(x, y, z)) return Collections.emptySet();
+    return voxels.get(x, y, z);
   }
   
   public Set<VoxelOccupant> getOccupants(Vector position, Vector extents) {
-    Set<VoxelOccupant> allOccupants = new HashSet<>();
+    Set<VoxelOccupant> allOccupants = new LinkedHashSet<>();
     for (int x = position.getX(); x < position.getX() + extents.getX(); ++x) {
       for (int y = position.getY(); y < position.getY() + extents.getY(); ++y) {
         for (int z = position.getZ(); z < position.getZ() + extents.getZ(); ++z) {
-          Vector v = new Vector(x, y, z);
-          Set<VoxelOccupant> occupants = getOccupants(v);
-          allOccupants.addAll(occupants);
+          if (!inBounds(x, y, z)) continue;
+          allOccupants.addAll(voxels.get(x, y, z));
         } 
       } 
     }
     return allOccupants;
   }
   
+  // the OR of the VoxelStore flags of every voxel in the given box
+  private int getFlags(int x0, int y0, int z0, int xExtent, int yExtent, int zExtent) {
+    int flags = 0;
+    for (int x = x0; x < x0 + xExtent; ++x) {
+      for (int y = y0; y < y0 + yExtent; ++y) {
+        for (int z = z0; z < z0 + zExtent; ++z) {
+          if (inBounds(x, y, z)) {
+            flags |= voxels.getFlags(x, y, z);
+          }
+        }
+      }
+    }
+    return flags;
+  }
+  
   public boolean canOccupy(Vector position, VoxelOccupant obj) {
-    if (!inBounds(position)) return false;
+    return canOccupy(position.getX(), position.getY(), position.getZ(), obj);
+  }
+  
+  public boolean canOccupy(long position, VoxelOccupant obj) {
+    return canOccupy(Coordinates.x(position), Coordinates.y(position), Coordinates.z(position), obj);
+  }
+  
+  public boolean canOccupy(int x0, int y0, int z0, VoxelOccupant obj) {
+    if (!inBounds(x0, y0, z0)) return false;
 
-    for (int x = position.getX(); x < position.getX() + obj.getExtents().getX(); ++x) {
-      for (int y = position.getY(); y < position.getY() + obj.getExtents().getY(); ++y) {
-        for (int z = position.getZ(); z < position.getZ() + obj.getExtents().getZ(); ++z) {
-          Vector v = new Vector(x, y, z);
-          if (!inBounds(v)) return false;
-          Set<VoxelOccupant> occupants = getOccupants(v);
-          for (VoxelOccupant occ : occupants) {
-            if (occ.impedesXYMovement() && occ.impedesZMovement()) {
-              // cannot move there
-              return false;
-            }
-            if (occ instanceof TransportTube && obj instanceof TransportTube) {
+    Vector extents = obj.getExtents();
+    for (int x = x0; x < x0 + extents.getX(); ++x) {
+      for (int y = y0; y < y0 + extents.getY(); ++y) {
+        for (int z = z0; z < z0 + extents.getZ(); ++z) {
+          if (!inBounds(x, y, z)) return false;
+          if ((voxels.getFlags(x, y, z) & VoxelStore.BLOCKED) != 0) {
+            // cannot move there
+            return false;
+          }
+          if (!(obj instanceof TransportTube)) continue;
+          for (VoxelOccupant occ : voxels.get(x, y, z)) {
+            if (occ instanceof TransportTube) {
               TransportTube tThis = (TransportTube)obj;
               TransportTube tThat = (TransportTube)occ;
               if (tThis.getTransportID().equals(tThat.getTransportID())) {
@@ -94,24 +250,49 @@ public class World {
    * @return true if the object could be placed there, and false otherwise
    */
   public boolean addOccupant(Vector position, Vector subvoxelPosition, VoxelOccupant obj) {
-    if (!canOccupy(position, obj)) return false;
+    checkNotPreprocessing();
+    if (!placeOccupant(position.getX(), position.getY(), position.getZ(), obj)) return false;
+    obj.setPosition(position);
+    obj.setSubvoxelPosition(subvoxelPosition);
+    register(obj);
+    return true;
+  }
+  
+  // as above; obj keeps its position Vector if it is already placed there
+  public boolean addOccupant(long position, Vector subvoxelPosition, VoxelOccupant obj) {
+    checkNotPreprocessing();
+    if (!placeOccupant(position, subvoxelPosition, obj)) return false;
+    register(obj);
+    return true;
+  }
+  
+  // places obj and sets its position, without touching the registries
+  private boolean placeOccupant(long position, Vector subvoxelPosition, VoxelOccupant obj) {
+    int x = Coordinates.x(position);
+    int y = Coordinates.y(position);
+    int z = Coordinates.z(position);
+    if (!placeOccupant(x, y, z, obj)) return false;
+    Vector p = obj.getPosition();
+    if (p == null || p.getX() != x || p.getY() != y || p.getZ() != z) {
+      obj.setPosition(new Vector(x, y, z));
+    }
+    obj.setSubvoxelPosition(subvoxelPosition);
+    return true;
+  }
+  
+  private boolean placeOccupant(int x0, int y0, int z0, VoxelOccupant obj) {
+    if (!canOccupy(x0, y0, z0, obj)) return false;
     
     // all checks passed, place the object
     // add the object to every voxel that it occupies
-    for (int x = position.getX(); x < position.getX() + obj.getExtents().getX(); ++x) {
-      for (int y = position.getY(); y < position.getY() + obj.getExtents().getY(); ++y) {
-        for (int z = position.getZ(); z < position.getZ() + obj.getExtents().getZ(); ++z) {
-          if (!voxels.containsKey(position)) {
-            voxels.put(position, new HashSet<>());
-          }
-          Set<VoxelOccupant> occupants = getOccupants(new Vector(x, y, z));
-          occupants.add(obj);
+    Vector extents = obj.getExtents();
+    for (int x = x0; x < x0 + extents.getX(); ++x) {
+      for (int y = y0; y < y0 + extents.getY(); ++y) {
+        for (int z = z0; z < z0 + extents.getZ(); ++z) {
+          voxels.add(x, y, z, obj);
         } 
       } 
     }
-
-    obj.setPosition(position);
-    obj.setSubvoxelPosition(subvoxelPosition);
     return true;
   }
   
@@ -128,21 +309,31 @@ public class World {
   }
   
   public void removeOccupant(VoxelOccupant obj) {
-    for (int x = obj.getPosition().getX(); x < obj.getPosition().getX() + obj.getExtents().getX(); ++x) {
-      for (int y = obj.getPosition().getY(); y < obj.getPosition().getY() + obj.getExtents().getY(); ++y) {
-        for (int z = obj.getPosition().getZ(); z < obj.getPosition().getZ() + obj.getExtents().getZ(); ++z) {
-          Set<VoxelOccupant> occupants = getOccupants(new Vector(x, y, z));
-          if (occupants.contains(obj)) {
+    checkNotPreprocessing();
+    removeFromVoxels(obj);
+    unregister(obj);
+  }
+  
+  private void removeFromVoxels(VoxelOccupant obj) {
+    Vector position = obj.getPosition();
+    Vector extents = obj.getExtents();
+    int x0 = position.getX();
+    int y0 = position.getY();
+    int z0 = position.getZ();
+    for (int x = x0; x < x0 + extents.getX(); ++x) {
+      for (int y = y0; y < y0 + extents.getY(); ++y) {
+        for (int z = z0; z < z0 + extents.getZ(); ++z) {
+          if (!inBounds(x, y, z)) continue;
+          if (voxels.contains(x, y, z, obj)) {
             if (obj instanceof TransportTube) {
               removeTransportTube((TransportTube)obj);
             }
-            occupants.remove(obj);
+            voxels.remove(x, y, z, obj);
           }
         } 
       } 
     }
   }
-  
   private void createBedrockLayer() {
     Vector subvoxelPos = new Vector(0, 0, 0);
     for (int y = 0; y < yDim; ++y) {
@@ -187,14 +378,20 @@ public class World {
    */
   public List<Vector> raycast(Vector origin, Vector direction) {
     List<Vector> visitedVoxels = new LinkedList<>();
-    
-    int x = origin.getX();
-    int y = origin.getY();
-    int z = origin.getZ();
-    
-    int dx = direction.getX();
-    int dy = direction.getY();
-    int dz = direction.getZ();
+    int length = raycast(origin.getX(), origin.getY(), origin.getZ(),
+        direction.getX(), direction.getY(), direction.getZ());
+    for (int i = 0; i < length; ++i) {
+      visitedVoxels.add(Coordinates.toVector(raycastBuffer[i]));
+    }
+    return visitedVoxels;
+  }
+  
+  // the voxels visited by the last raycast, packed (see Coordinates)
+  private long[] raycastBuffer = new long[16];
+  
+  // As above, but leaves the voxels visited in raycastBuffer and returns how many there are.
+  private int raycast(int x, int y, int z, int dx, int dy, int dz) {
+    int length = 0;
     
     int stepX = Integer.signum(dx);
     int stepY = Integer.signum(dy);
@@ -209,10 +406,12 @@ public class World {
     double tDeltaZ = (double)(stepZ) / (double)(dz);
     
     if (dx == 0 && dy == 0 && dz == 0) {
-      return visitedVoxels;
+      return length;
     }
     
-    Vector destination = origin.add(direction);
+    int destX = x + dx;
+    int destY = y + dy;
+    int destZ = z + dz;
     while (true) {
       // find the next voxel we enter
       if (tMaxX < tMaxY) {
@@ -232,65 +431,86 @@ public class World {
           tMaxZ += tDeltaZ;
         }
       }
-      Vector nextVoxel = new Vector(x, y, z);
-      if (!inBounds(nextVoxel)) break;
-      visitedVoxels.add(nextVoxel);
-      if (nextVoxel.equals(destination)) break;
+      if (!inBounds(x, y, z)) break;
+      if (length == raycastBuffer.length) {
+        long[] larger = new long[length * 2];
+        System.arraycopy(raycastBuffer, 0, larger, 0, length);
+        raycastBuffer = larger;
+      }
+      raycastBuffer[length++] = Coordinates.pack(x, y, z);
+      if (x == destX && y == destY && z == destZ) break;
     } // while()
     
-    return visitedVoxels;
+    return length;
+  }
+  
+  // whether the given box holds a ramp whose preferred direction is (dx, dy, dz)
+  private boolean hasRamp(int x0, int y0, int z0, int xExtent, int yExtent, int zExtent,
+      int dx, int dy, int dz) {
+    for (int x = x0; x < x0 + xExtent; ++x) {
+      for (int y = y0; y < y0 + yExtent; ++y) {
+        for (int z = z0; z < z0 + zExtent; ++z) {
+          if (!inBounds(x, y, z)) continue;
+          for (VoxelOccupant occ : voxels.get(x, y, z)) {
+            if (occ instanceof Ramp) {
+              Vector preferredDirection = ((Ramp)occ).getPreferredDirection();
+              if (preferredDirection.getX() == dx && preferredDirection.getY() == dy
+                  && preferredDirection.getZ() == dz) {
+                return true;
+              }
+            }
+          }
+        }
+      }
+    }
+    return false;
   }
   
   /**
    * 
    * @param obj the object to be moved
-   * @param traj a list of voxel positions, in order, that the object will enter
-   * @return the final voxel position of obj
+   * @param traj the voxel positions, packed, that the object will enter, in order
+   * @param length the number of positions in traj
+   * @return the final voxel position of obj, packed
    */
-  private Vector calculateTrajectory(VoxelOccupant obj, List<Vector> traj) {
-    Queue<Vector> trajectory = new LinkedList<Vector>();
-    // the first one is so that staying still will resolve gravity and other things
-    trajectory.add(obj.getPosition());
-    trajectory.addAll(traj);
-    Vector currentPosition = obj.getPosition();
-    Vector nextPosition = currentPosition;
-    while (!trajectory.isEmpty()) {
-      nextPosition = trajectory.remove();
+  private long calculateTrajectory(VoxelOccupant obj, long[] traj, int length) {
+    Vector extents = obj.getExtents();
+    int xExtent = extents.getX();
+    int yExtent = extents.getY();
+    int zExtent = extents.getZ();
+    long currentPosition = Coordinates.pack(obj.getPosition());
+    // added to the z of the rest of the trajectory after going up or down a ramp
+    int zShift = 0;
+    // the first step is to where we already are,
+    // so that staying still will resolve gravity and other things
+    for (int step = -1; step < length; ++step) {
+      long nextPosition = (step < 0) ? currentPosition : Coordinates.offset(traj[step], 0, 0, zShift);
+      int cx = Coordinates.x(currentPosition);
+      int cy = Coordinates.y(currentPosition);
+      int cz = Coordinates.z(currentPosition);
+      int nx = Coordinates.x(nextPosition);
+      int ny = Coordinates.y(nextPosition);
+      int nz = Coordinates.z(nextPosition);
       // based on what we so far believe to be the next position,
       // if at this point we can't actually move into that voxel coming from
       // that direction, we don't make any further moves
       // (checking each voxel that could be entered this way due to extents)
-      Vector deltaP = nextPosition.subtract(currentPosition);
-      boolean moveXY = deltaP.getX() != 0 || deltaP.getY() != 0;
-      boolean moveZ = deltaP.getZ() != 0;
-      boolean canMove = true;
+      int dx = nx - cx;
+      int dy = ny - cy;
+      int dz = nz - cz;
+      boolean moveXY = dx != 0 || dy != 0;
+      boolean moveZ = dz != 0;
       
-      for (VoxelOccupant occ : getOccupants(currentPosition, obj.getExtents())) {
-        // check for special stuff in our current position that might let us move differently
-        if (occ instanceof Ramp) {
-          Ramp ramp = (Ramp)occ;
-          Vector preferredDirection = ramp.getPreferredDirection();
-          if (deltaP.equals(preferredDirection)) {
-            // increase nextPosition.z by 1, we attempt to move up the ramp
-            nextPosition = nextPosition.add(new Vector(0, 0, 1));
-            // correct the rest of the trajectory to have z+1
-            Supplier<Queue<Vector>> supplier = () -> new LinkedList<Vector>();
-            Queue<Vector> newTrajectory = trajectory.stream()
-                .map((v) -> v.add(new Vector(0, 0, 1)))
-                .collect(Collectors.toCollection(supplier));
-            trajectory = newTrajectory;
-            break;
-          }
-        }
+      // check for special stuff in our current position that might let us move differently
+      if (hasRamp(cx, cy, cz, xExtent, yExtent, zExtent, dx, dy, dz)) {
+        // increase nextPosition.z by 1, we attempt to move up the ramp,
+        // and correct the rest of the trajectory to have z+1
+        ++nz;
+        ++zShift;
       }
       
-      for (VoxelOccupant occ : getOccupants(nextPosition, obj.getExtents())) {
-        if ((moveXY && occ.impedesXYMovement()) || (moveZ && occ.impedesZMovement())) {
-          canMove = false;
-          break;
-        }
-      }
-      if (!canMove) {
+      int flags = getFlags(nx, ny, nz, xExtent, yExtent, zExtent);
+      if ((moveXY && (flags & VoxelStore.IMPEDES_XY) != 0) || (moveZ && (flags & VoxelStore.IMPEDES_Z) != 0)) {
         // do not change currentPosition, we cannot make this move
         break;
       }
@@ -298,47 +518,21 @@ public class World {
       // check to see whether any voxel in the target position + extents, only on the lowest z-level,
       // provides support
       if (obj.needsSupport()) {
-        boolean isSupported = false;
-        Vector footprintSize = new Vector(obj.getExtents().getX(), obj.getExtents().getY(), 1);
-        for (VoxelOccupant occ : getOccupants(nextPosition, footprintSize)) {
-          if (occ.supportsOthers()) {
-            isSupported = true;
-            break;
-          }
-        }
+        boolean isSupported = (getFlags(nx, ny, nz, xExtent, yExtent, 1) & VoxelStore.SUPPORTS) != 0;
         // if we're not supported, we might fall
         if (!isSupported) {
           // if there's anything below us that might impede our movement in the z-direction,
           // we cannot fall
-          boolean canMoveDown = true;
-          // save a copy of this set as we will use it more than once
-          Set<VoxelOccupant> occupantsBelowNewPosition = getOccupants(nextPosition.subtract(new Vector(0, 0, 1)), footprintSize);
-          for (VoxelOccupant occ : occupantsBelowNewPosition) {
-            if (occ.impedesZMovement()) {
-              canMoveDown = false;
-              break;
-            }
-          }
+          boolean canMoveDown = (getFlags(nx, ny, nz - 1, xExtent, yExtent, 1) & VoxelStore.IMPEDES_Z) == 0;
           if (canMoveDown) {
             // now check to see whether any of the voxels below us contains a ramp
             // that we are attempting to traverse in the reverse of its preferred direction;
             // if this is the case, we move down one voxel and continue on our current trajectory
-            for (VoxelOccupant occ : occupantsBelowNewPosition) {
-              if (occ instanceof Ramp) {
-                Ramp ramp = (Ramp)occ;
-                Vector preferredDirection = ramp.getPreferredDirection();
-                if (deltaP.equals(preferredDirection.negate())) {
-                  // decrease nextPosition.z by 1, we move down the ramp
-                  nextPosition = nextPosition.subtract(new Vector(0, 0, 1));
-                  // correct the rest of the trajectory to have z-1
-                  Supplier<Queue<Vector>> supplier = () -> new LinkedList<Vector>();
-                  Queue<Vector> newTrajectory = trajectory.stream()
-                      .map((v) -> v.subtract(new Vector(0, 0, 1)))
-                      .collect(Collectors.toCollection(supplier));
-                  trajectory = newTrajectory;
-                  break;
-                }
-              }
+            if (hasRamp(nx, ny, nz - 1, xExtent, yExtent, 1, -dx, -dy, -dz)) {
+              // decrease nextPosition.z by 1, we move down the ramp,
+              // and correct the rest of the trajectory to have z-1
+              --nz;
+              --zShift;
             }
             // TODO gravity and whatever else
           }
@@ -346,51 +540,284 @@ public class World {
       }
       
       // now the move was successful, so in the next iteration we start here
-      currentPosition = nextPosition;
+      currentPosition = Coordinates.pack(nx, ny, nz);
     }
     return currentPosition;
   }
   
-  public void timestep() {
-    // build up a list of all objects that require pre-timestep processing
-    // TODO maybe cache this?
-    List<VoxelOccupant> preprocessList = new LinkedList<>();
-    for (Set<VoxelOccupant> occupants : voxels.values()) {
-      for (VoxelOccupant occupant : occupants) {
-        if (occupant.requiresPreprocessing()) {
-          preprocessList.add(occupant);
-        }
+  private static boolean isZero(Vector v) {
+    return v.getX() == 0 && v.getY() == 0 && v.getZ() == 0;
+  }
+  
+  // Registries of the objects the timestep has to visit, kept up to date as
+  // objects are added, removed, and change velocity, so that a timestep costs
+  // time in proportion to the number of objects that do anything rather than
+  // to the size of the world. Each keeps objects in the order they were added.
+  // requiresPreprocessing() and requiresTimestep() must not change while
+  // an object is in the world.
+  private final Set<VoxelOccupant> preprocessed = new LinkedHashSet<>();
+  private final Set<VoxelOccupant> timestepped = new LinkedHashSet<>();
+  // Everything preprocessed or timestepped. Only these are asked for world
+  // updates: an object that neither runs a processor nor has a timestep
+  // never acts on its own, so never has updates of its own to hand in.
+  private final Set<VoxelOccupant> active = new LinkedHashSet<>();
+  // everything with a non-zero velocity
+  private final Set<VoxelOccupant> moving = new LinkedHashSet<>();
+  // everything in the world, by UUID, for findOccupant()
+  private final Map<UUID, VoxelOccupant> byUUID = new HashMap<>();
+  // copy of one registry, reused by each phase in turn, as the objects
+  // visited may add or remove others
+  private final List<VoxelOccupant> visiting = new ArrayList<>();
+  
+  private void register(VoxelOccupant obj) {
+    obj.setWorld(this);
+    byUUID.put(obj.getUUID(), obj);
+    boolean isActive = false;
+    if (obj.requiresPreprocessing()) {
+      preprocessed.add(obj);
+      isActive = true;
+    }
+    if (obj.requiresTimestep()) {
+      timestepped.add(obj);
+      isActive = true;
+    }
+    if (isActive) {
+      active.add(obj);
+    }
+    velocityChanged(obj);
+  }
+  
+  private void unregister(VoxelOccupant obj) {
+    preprocessed.remove(obj);
+    timestepped.remove(obj);
+    active.remove(obj);
+    moving.remove(obj);
+    byUUID.remove(obj.getUUID(), obj);
+    obj.setWorld(null);
+  }
+  
+  // called by obj when it is given a new UUID
+  void uuidChanged(UUID previous, VoxelOccupant obj) {
+    byUUID.remove(previous, obj);
+    byUUID.put(obj.getUUID(), obj);
+  }
+  
+  // called by obj whenever its velocity changes
+  void velocityChanged(VoxelOccupant obj) {
+    checkNotPreprocessing();
+    // if velocity component is non-zero, the object is moving
+    if (!isZero(obj.getSubvoxelVelocity()) || !isZero(obj.getVelocity())) {
+      moving.add(obj);
+    } else {
+      moving.remove(obj);
+    }
+  }
+  
+  // the number of objects timestep() will visit in each of its phases
+  public int getActiveObjectCount() {
+    return active.size();
+  }
+  public int getMovingObjectCount() {
+    return moving.size();
+  }
+  
+  // Preprocessing (running every machine's microcontroller for a timestep)
+  // can be spread over a ForkJoinPool; null, the default, runs it serially on
+  // the calling thread. Either way gives the same results, because while
+  // preprocessing, an object may only:
+  //   - change its own state, including its microcontroller and peripherals
+  //   - read the world, preferably through getSnapshot(), though the
+  //     world itself does not change during preprocessing either
+  //   - read other objects' identity and placement: UUID, kind, type,
+  //     position and extents, none of which change during preprocessing
+  // Anything that would change the world or another object (adding, removing
+  // or moving objects, or setting a velocity) must instead be handed in as a
+  // WorldUpdate, which are applied serially after the timestep phase; so must
+  // creating new objects, which could otherwise get different IDs from run to
+  // run. Either one while preprocessing throws IllegalStateException.
+  private ForkJoinPool preprocessPool = null;
+  public ForkJoinPool getPreprocessPool() {
+    return this.preprocessPool;
+  }
+  public void setPreprocessPool(ForkJoinPool pool) {
+    this.preprocessPool = pool;
+  }
+  
+  private volatile boolean preprocessing = false;
+  
+  private void checkNotPreprocessing() {
+    if (preprocessing) {
+      throw new IllegalStateException("the world cannot be changed while preprocessing");
+    }
+  }
+  
+  // in effect while preprocessing, so that creating an object throws
+  private static final ObjectIDAllocator NO_NEW_OBJECTS = new ObjectIDAllocator() {
+    @Override
+    public long nextID() {
+      throw new IllegalStateException("objects cannot be created while preprocessing");
+    }
+
+    @Override
+    public UUID toUUID(long id) {
+      throw new IllegalStateException("objects cannot be created while preprocessing");
+    }
+  };
+  
+  // preprocesses objects[from, to), splitting down to one object per task,
+  // as each runs a whole timestep of microcontroller cycles
+  private class PreprocessTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    
+    private final VoxelOccupant[] objects;
+    private final int from;
+    private final int to;
+    
+    PreprocessTask(VoxelOccupant[] objects, int from, int to) {
+      this.objects = objects;
+      this.from = from;
+      this.to = to;
+    }
+    
+    @Override
+    protected void compute() {
+      if (to - from == 1) {
+        ObjectIDs.runWithAllocator(NO_NEW_OBJECTS, objects[from]::preprocess);
+      } else {
+        int middle = (from + to) >>> 1;
+        invokeAll(new PreprocessTask(objects, from, middle), new PreprocessTask(objects, middle, to));
       }
     }
-    // run processing for each occupant
-    // TODO these can be run in parallel
-    for (VoxelOccupant proc : preprocessList) {
-      proc.preprocess();
+  }
+  
+  private void preprocess() {
+    visiting.clear();
+    visiting.addAll(preprocessed);
+    preprocessing = true;
+    try {
+      if (preprocessPool == null || visiting.size() < 2) {
+        ObjectIDs.runWithAllocator(NO_NEW_OBJECTS, () -> {
+          for (VoxelOccupant proc : visiting) {
+            proc.preprocess();
+          }
+        });
+      } else {
+        VoxelOccupant[] objects = visiting.toArray(new VoxelOccupant[visiting.size()]);
+        preprocessPool.invoke(new PreprocessTask(objects, 0, objects.length));
+      }
+    } finally {
+      preprocessing = false;
+    }
+  }
+  
+  // Double-buffered snapshots of the world (see WorldSnapshot). During a
+  // timestep, getSnapshot() is the world as it was when the timestep began,
+  // while world updates and movement change the world itself; the changes
+  // go into the other buffer, which is published when the timestep ends.
+  // Changes made between timesteps are published when the next one begins,
+  // or earlier by calling publishSnapshot(); getSnapshot() itself never
+  // publishes, so it is safe to call from any thread. Between timesteps,
+  // code on the thread that changes the world (e.g. driving a peripheral
+  // directly) should read the world itself; see isInTimestep(). Publishing
+  // costs time in proportion to the number of voxels changed since the last
+  // one, not to the size of the world.
+  private volatile WorldSnapshot snapshot;
+  private WorldSnapshot backSnapshot;
+  // voxels changed between the back snapshot and the front one
+  private long[] snapshotChanges = new long[64];
+  private int snapshotChangeCount = 0;
+  private boolean inTimestep = false;
+  
+  public WorldSnapshot getSnapshot() {
+    return snapshot;
+  }
+  
+  // true from the start of timestep() until it returns, including preprocessing
+  public boolean isInTimestep() {
+    return this.inTimestep;
+  }
+  
+  // Like any other change to the world, this must be called from the thread
+  // that changes it, and not during a timestep.
+  public void publishSnapshot() {
+    if (inTimestep) {
+      throw new IllegalStateException("snapshots cannot be published during a timestep");
+    }
+    if (voxels.getChangeCount() > 0) {
+      swapSnapshots();
+    }
+  }
+  
+  private void swapSnapshots() {
+    WorldSnapshot front = snapshot;
+    WorldSnapshot next = backSnapshot;
+    // next is two versions old: first it gets the changes the front one has
+    // over it, copied from the front, then the changes since, from the world
+    for (int i = 0; i < snapshotChangeCount; ++i) {
+      long p = snapshotChanges[i];
+      int x = Coordinates.x(p);
+      int y = Coordinates.y(p);
+      int z = Coordinates.z(p);
+      next.setArray(x, y, z, front.getArray(x, y, z));
+    }
+    int changeCount = voxels.getChangeCount();
+    if (snapshotChanges.length < changeCount) {
+      snapshotChanges = new long[changeCount];
     }
+    for (int i = 0; i < changeCount; ++i) {
+      long p = voxels.getChange(i);
+      snapshotChanges[i] = p;
+      int x = Coordinates.x(p);
+      int y = Coordinates.y(p);
+      int z = Coordinates.z(p);
+      Set<VoxelOccupant> occupants = voxels.get(x, y, z);
+      next.setArray(x, y, z, occupants.isEmpty() ? null : occupants.toArray(new VoxelOccupant[occupants.size()]));
+    }
+    snapshotChangeCount = changeCount;
+    voxels.clearChanges();
+    next.setVersion(front.getVersion() + 1);
+    backSnapshot = front;
+    snapshot = next;
+  }
+  
+  public void timestep() {
+    publishSnapshot();
+    inTimestep = true;
+    try {
+      ObjectIDs.runWithAllocator(idAllocator, this::timestepPhases);
+    } finally {
+      inTimestep = false;
+    }
+    publishSnapshot();
+    
+    ++timestepCount;
+    if (journal != null) {
+      journal.recordTimestep();
+    }
+  }
+  
+  private void timestepPhases() {
+    // run processing for each occupant
+    preprocess();
     
     // perform timestep update
-    // TODO maybe cache these too
-    for (Set<VoxelOccupant> occupants : voxels.values()) {
-      for (VoxelOccupant occupant : occupants) {
-        if (occupant.requiresTimestep()) {
-          occupant.timestep();
-        }
-      }
+    visiting.clear();
+    visiting.addAll(timestepped);
+    for (VoxelOccupant occupant : visiting) {
+      occupant.timestep();
     }
     
     // perform world updates
-    Map<VoxelOccupant, List<WorldUpdate>> worldUpdates = new HashMap<>();
-    for (Set<VoxelOccupant> occupants : voxels.values()) {
-      for (VoxelOccupant occupant : occupants) {
-        if (occupant.hasWorldUpdates()) {
-          worldUpdates.put(occupant, occupant.getWorldUpdates());
-        }
+    Map<VoxelOccupant, List<WorldUpdate>> worldUpdates = new LinkedHashMap<>();
+    for (VoxelOccupant occupant : active) {
+      if (occupant.hasWorldUpdates()) {
+        worldUpdates.put(occupant, occupant.getWorldUpdates());
       }
     }
     for (Map.Entry<VoxelOccupant, List<WorldUpdate>> entry : worldUpdates.entrySet()) {
       VoxelOccupant obj = entry.getKey();
       List<WorldUpdate> updates = entry.getValue();
-      Map<WorldUpdate, WorldUpdateResult> results = new HashMap<>();
+      Map<WorldUpdate, WorldUpdateResult> results = new LinkedHashMap<>();
       for (WorldUpdate update : updates) {
         WorldUpdateResult result = update.apply(this);
         results.put(update, result);
@@ -398,31 +825,23 @@ public class World {
       obj.collectUpdateResults(results);
     }
     
-    Vector zeroVector = new Vector(0, 0, 0);
-    Set<VoxelOccupant> movingObjects = new HashSet<>();
-    for (Set<VoxelOccupant> occupants : voxels.values()) {
-      for (VoxelOccupant occupant : occupants) {
-        // if velocity component is non-zero, the object is moving
-        if (!occupant.getSubvoxelVelocity().equals(zeroVector)
-            || !occupant.getVelocity().equals(zeroVector)) {
-          movingObjects.add(occupant);
-        }
-      }
-    }
-
     // perform movement updates
     // TODO this could potentially be parallelized, but updating the map would require locking/concurrent data structures
     // at least as much as calculating new positions could be done in parallel
-    for (VoxelOccupant obj : movingObjects) {
+    visiting.clear();
+    visiting.addAll(moving);
+    for (VoxelOccupant obj : visiting) {
       // calculate new position
-      Vector newPos = obj.getPosition().add(obj.getVelocity());
-      int newX = newPos.getX();
-      int newY = newPos.getY();
-      int newZ = newPos.getZ();
-      Vector newSVPos = obj.getSubvoxelPosition().add(obj.getSubvoxelVelocity());
-      int newX_sv = newSVPos.getX();
-      int newY_sv = newSVPos.getY();
-      int newZ_sv = newSVPos.getZ();
+      Vector position = obj.getPosition();
+      Vector velocity = obj.getVelocity();
+      int newX = position.getX() + velocity.getX();
+      int newY = position.getY() + velocity.getY();
+      int newZ = position.getZ() + velocity.getZ();
+      Vector subvoxelPosition = obj.getSubvoxelPosition();
+      Vector subvoxelVelocity = obj.getSubvoxelVelocity();
+      int newX_sv = subvoxelPosition.getX() + subvoxelVelocity.getX();
+      int newY_sv = subvoxelPosition.getY() + subvoxelVelocity.getY();
+      int newZ_sv = subvoxelPosition.getZ() + subvoxelVelocity.getZ();
       
       // determine whether we've ended up in a new voxel
       
@@ -450,15 +869,18 @@ public class World {
         ++newZ;
       }
       
-      newPos = new Vector(newX, newY, newZ);
-      newSVPos = new Vector(newX_sv, newY_sv, newZ_sv);
+      Vector newSVPos = isZero(subvoxelVelocity) ? subvoxelPosition : new Vector(newX_sv, newY_sv, newZ_sv);
 
-      List<Vector> visitedPositions = raycast(obj.getPosition(), newPos.subtract(obj.getPosition()));
-      newPos = calculateTrajectory(obj, visitedPositions);
+      int length = raycast(position.getX(), position.getY(), position.getZ(),
+          newX - position.getX(), newY - position.getY(), newZ - position.getZ());
+      long newPos = calculateTrajectory(obj, raycastBuffer, length);
       // now newPos and newSVPos are correct;
-      // we remove the object from its old position and add it to its new one
-      removeOccupant(obj);
-      addOccupant(newPos, newSVPos, obj);
+      // we remove the object from its old position and add it to its new one,
+      // keeping its place in the registries
+      removeFromVoxels(obj);
+      if (!placeOccupant(newPos, newSVPos, obj)) {
+        unregister(obj);
+      }
     }
   }
   
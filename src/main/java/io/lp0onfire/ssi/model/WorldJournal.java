@@ -0,0 +1,167 @@
+package io.lp0onfire.ssi.model;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+// Compact log of everything that enters a deterministic world from outside:
+// firmware loads, external commands, and the timesteps between them.
+// Replaying the log into an identically built world (same dimensions, seed,
+// and construction code, with the same command handlers registered) repeats
+// the original run exactly. Replay applies the inputs and calls timestep();
+// nothing else is recorded or checked, so it runs at full speed.
+public class WorldJournal {
+
+  private static final int MAGIC = 0x53534A4C; // "SSJL"
+  private static final short VERSION = 1;
+
+  private static final byte FIRMWARE = 1;
+  private static final byte COMMAND = 2;
+  private static final byte TIMESTEP = 3;
+
+  private final DataOutputStream out;
+
+  // starts a journal of the given world, which must be deterministic
+  // and must not have run any timesteps yet
+  public WorldJournal(World world, OutputStream out) throws IOException {
+    if (world.getSeed() == null) {
+      throw new IllegalArgumentException("only a deterministic world can be journaled");
+    }
+    if (world.getTimestepCount() != 0L) {
+      throw new IllegalArgumentException("journal must start before the first timestep");
+    }
+    this.out = new DataOutputStream(out);
+    this.out.writeInt(MAGIC);
+    this.out.writeShort(VERSION);
+    this.out.writeInt(world.getXDim());
+    this.out.writeInt(world.getYDim());
+    this.out.writeLong(world.getSeed());
+  }
+
+  // Firmware is journaled by path, length and checksum rather than contents;
+  // the same file must still be there to replay.
+  void recordFirmware(UUID machine, File elfFile) throws IOException {
+    byte[] contents = Files.readAllBytes(elfFile.toPath());
+    out.writeByte(FIRMWARE);
+    writeUUID(machine);
+    out.writeUTF(elfFile.getPath());
+    out.writeInt(contents.length);
+    out.writeLong(checksum(contents));
+  }
+
+  void recordCommand(String name, UUID target, byte[] argument) {
+    try {
+      out.writeByte(COMMAND);
+      out.writeUTF(name);
+      out.writeBoolean(target != null);
+      if (target != null) {
+        writeUUID(target);
+      }
+      out.writeInt(argument.length);
+      out.write(argument);
+    } catch (IOException e) {
+      throw new IllegalStateException("failed to write journal", e);
+    }
+  }
+
+  void recordTimestep() {
+    try {
+      out.writeByte(TIMESTEP);
+    } catch (IOException e) {
+      throw new IllegalStateException("failed to write journal", e);
+    }
+  }
+
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  // Feeds a journal into a freshly built world, running every timestep it records.
+  // Returns the number of timesteps run.
+  public static long replay(InputStream journal, World world) throws IOException {
+    DataInputStream in = new DataInputStream(journal);
+    if (in.readInt() != MAGIC || in.readShort() != VERSION) {
+      throw new IllegalArgumentException("not a world journal");
+    }
+    int xDim = in.readInt();
+    int yDim = in.readInt();
+    long seed = in.readLong();
+    if (xDim != world.getXDim() || yDim != world.getYDim()
+        || world.getSeed() == null || seed != world.getSeed()) {
+      throw new IllegalArgumentException("journal was recorded in a different world");
+    }
+    long timesteps = 0L;
+    while (true) {
+      int type = in.read();
+      if (type == -1) {
+        return timesteps;
+      }
+      try {
+        switch (type) {
+        case FIRMWARE:
+        {
+          VoxelOccupant target = findTarget(world, readUUID(in));
+          if (!(target instanceof Machine)) {
+            throw new IllegalStateException("replay diverged: object " + target.getUUID() + " is not a machine");
+          }
+          File elfFile = new File(in.readUTF());
+          int length = in.readInt();
+          long crc = in.readLong();
+          byte[] contents = Files.readAllBytes(elfFile.toPath());
+          if (contents.length != length || checksum(contents) != crc) {
+            throw new IllegalStateException("firmware " + elfFile + " has changed since it was journaled");
+          }
+          world.loadFirmware((Machine)target, elfFile);
+        } break;
+        case COMMAND:
+        {
+          String name = in.readUTF();
+          VoxelOccupant target = in.readBoolean() ? findTarget(world, readUUID(in)) : null;
+          byte[] argument = new byte[in.readInt()];
+          in.readFully(argument);
+          world.executeCommand(name, target, argument);
+        } break;
+        case TIMESTEP:
+          world.timestep();
+          ++timesteps;
+          break;
+        default:
+          throw new IllegalArgumentException("bad journal entry type " + type);
+        }
+      } catch (EOFException e) {
+        throw new IllegalArgumentException("journal is truncated", e);
+      }
+    }
+  }
+
+  private static VoxelOccupant findTarget(World world, UUID id) {
+    VoxelOccupant target = world.findOccupant(id);
+    if (target == null) {
+      throw new IllegalStateException("replay diverged: no object " + id);
+    }
+    return target;
+  }
+
+  private void writeUUID(UUID id) throws IOException {
+    out.writeLong(id.getMostSignificantBits());
+    out.writeLong(id.getLeastSignificantBits());
+  }
+
+  private static UUID readUUID(DataInputStream in) throws IOException {
+    return new UUID(in.readLong(), in.readLong());
+  }
+
+  private static long checksum(byte[] contents) {
+    CRC32 crc = new CRC32();
+    crc.update(contents);
+    return crc.getValue();
+  }
+
+}
@@ -0,0 +1,108 @@
+package io.lp0onfire.ssi.model;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+// A read-only copy of where everything in a world is, as of the start of a
+// timestep (see World.getSnapshot()). Sensors and anything else that looks at
+// the world while machines run should read this rather than the world itself:
+// it is never changed once published, so it can be read from any number of
+// threads without locking. It fixes only occupancy; an object's UUID, kind
+// and type do not change while it is in the world.
+//
+// A world keeps two snapshots and alternates between them, so a snapshot is
+// only good until the world publishes the next-but-one; don't hold on to one
+// across timesteps.
+public final class WorldSnapshot {
+
+  private final int xDim;
+  private final int yDim;
+  private final int chunksX;
+  private final int chunksY;
+  // as in VoxelStore, indexed by chunk z, then chunk y * chunksX + chunk x,
+  // then voxel; each voxel's occupants, in the order they were added,
+  // are null if there are none and never change once set
+  private VoxelOccupant[][][][] layers = new VoxelOccupant[1][][][];
+
+  private long version = 0L;
+
+  WorldSnapshot(int xDim, int yDim) {
+    this.xDim = xDim;
+    this.yDim = yDim;
+    this.chunksX = (xDim + VoxelStore.CHUNK_MASK) >> VoxelStore.CHUNK_SHIFT;
+    this.chunksY = (yDim + VoxelStore.CHUNK_MASK) >> VoxelStore.CHUNK_SHIFT;
+  }
+
+  // increases by one every time the world publishes a snapshot
+  public long getVersion() {
+    return this.version;
+  }
+
+  void setVersion(long version) {
+    this.version = version;
+  }
+
+  public boolean inBounds(int x, int y, int z) {
+    return x >= 0 && y >= 0 && z >= 0 && x < xDim && y < yDim;
+  }
+
+  VoxelOccupant[] getArray(int x, int y, int z) {
+    int cz = z >> VoxelStore.CHUNK_SHIFT;
+    if (cz >= layers.length || layers[cz] == null) {
+      return null;
+    }
+    VoxelOccupant[][] chunk = layers[cz][(y >> VoxelStore.CHUNK_SHIFT) * chunksX + (x >> VoxelStore.CHUNK_SHIFT)];
+    return (chunk == null) ? null : chunk[VoxelStore.voxelIndex(x, y, z)];
+  }
+
+  void setArray(int x, int y, int z, VoxelOccupant[] occupants) {
+    int cz = z >> VoxelStore.CHUNK_SHIFT;
+    if (cz >= layers.length) {
+      if (occupants == null) return;
+      layers = Arrays.copyOf(layers, Math.max(cz + 1, layers.length * 2));
+    }
+    if (layers[cz] == null) {
+      if (occupants == null) return;
+      layers[cz] = new VoxelOccupant[chunksX * chunksY][][];
+    }
+    int c = (y >> VoxelStore.CHUNK_SHIFT) * chunksX + (x >> VoxelStore.CHUNK_SHIFT);
+    if (layers[cz][c] == null) {
+      if (occupants == null) return;
+      layers[cz][c] = new VoxelOccupant[VoxelStore.CHUNK_VOLUME][];
+    }
+    layers[cz][c][VoxelStore.voxelIndex(x, y, z)] = occupants;
+  }
+
+  // what was in one voxel
+  public List<VoxelOccupant> getOccupants(int x, int y, int z) {
+    if (!inBounds(x, y, z)) return Collections.emptyList();
+    VoxelOccupant[] occupants = getArray(x, y, z);
+    if (occupants == null) return Collections.emptyList();
+    return Collections.unmodifiableList(Arrays.asList(occupants));
+  }
+
+  public List<VoxelOccupant> getOccupants(Vector position) {
+    return getOccupants(position.getX(), position.getY(), position.getZ());
+  }
+
+  // everything that was in a box of voxels, as World.getOccupants(Vector, Vector)
+  public Set<VoxelOccupant> getOccupants(Vector position, Vector extents) {
+    Set<VoxelOccupant> allOccupants = new LinkedHashSet<>();
+    for (int x = position.getX(); x < position.getX() + extents.getX(); ++x) {
+      for (int y = position.getY(); y < position.getY() + extents.getY(); ++y) {
+        for (int z = position.getZ(); z < position.getZ() + extents.getZ(); ++z) {
+          if (!inBounds(x, y, z)) continue;
+          VoxelOccupant[] occupants = getArray(x, y, z);
+          if (occupants != null) {
+            Collections.addAll(allOccupants, occupants);
+          }
+        }
+      }
+    }
+    return allOccupants;
+  }
+
+}
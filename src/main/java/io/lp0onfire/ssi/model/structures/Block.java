@@ -9,6 +9,7 @@ import io.lp0onfire.ssi.model.MiningProduct;
 import io.lp0onfire.ssi.model.RelativeAddObjectUpdate;
 import io.lp0onfire.ssi.model.Structure;
 import io.lp0onfire.ssi.model.Vector;
+import io.lp0onfire.ssi.model.World;
 import io.lp0onfire.ssi.model.WorldUpdate;
 
 /**
@@ -61,12 +62,13 @@ public class Block extends Structure {
   public int getBaseDurability() { return 200; }
   
   @Override
-  public List<WorldUpdate> onDestroy() {
-    List<WorldUpdate> updates = super.onDestroy();
+  public List<WorldUpdate> onDestroy(World w) {
+    List<WorldUpdate> updates = super.onDestroy(w);
     
-    // Figure out which materials may be dropped by this block.
+    // Figure out which materials may be dropped by this block,
+    // drawing from the world's generator so that seeded runs repeat.
     List<MiningProduct> products = getMaterial().getMiningProducts();
-    Random rng = new Random();
+    Random rng = w.getRandom();
     for (MiningProduct product : products) {
       if (rng.nextDouble() < product.getProbability()) {
         Item i = product.getProduct(getMaterial());
@@ -0,0 +1,65 @@
+package io.lp0onfire.ssi.microcontroller;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// builds minimal RV32 executables for tests
+public class ELFTestFiles {
+
+  // writes an executable with one PT_LOAD segment per entry of segmentData,
+  // loaded at the corresponding entry of baseAddresses
+  public static void write(File file, int entryPoint, int[] baseAddresses, byte[][] segmentData) throws IOException {
+    int[] memorySizes = new int[segmentData.length];
+    for (int i = 0; i < segmentData.length; ++i) {
+      memorySizes[i] = segmentData[i].length;
+    }
+    write(file, entryPoint, baseAddresses, segmentData, memorySizes);
+  }
+  
+  // as above, but each segment is zero-filled up to the corresponding entry of memorySizes
+  public static void write(File file, int entryPoint, int[] baseAddresses, byte[][] segmentData, int[] memorySizes) throws IOException {
+    int phoff = 52;
+    int dataOffset = phoff + 32 * baseAddresses.length;
+    int size = dataOffset;
+    for (byte[] data : segmentData) {
+      size += data.length;
+    }
+    ByteBuffer elf = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    elf.put(new byte[] {0x7f, 'E', 'L', 'F', 1, 1, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0});
+    elf.putShort((short)2); // e_type: executable
+    elf.putShort((short)0x00f3); // e_machine: RISC-V
+    elf.putInt(1); // e_version
+    elf.putInt(entryPoint);
+    elf.putInt(phoff);
+    elf.putInt(0); // e_shoff
+    elf.putInt(0); // e_flags
+    elf.putShort((short)52); // e_ehsize
+    elf.putShort((short)32); // e_phentsize
+    elf.putShort((short)baseAddresses.length);
+    elf.putShort((short)40); // e_shentsize
+    elf.putShort((short)0); // e_shnum
+    elf.putShort((short)0); // e_shstrndx
+    int offset = dataOffset;
+    for (int i = 0; i < baseAddresses.length; ++i) {
+      elf.putInt(1); // PT_LOAD
+      elf.putInt(offset);
+      elf.putInt(baseAddresses[i]);
+      elf.putInt(baseAddresses[i]);
+      elf.putInt(segmentData[i].length);
+      elf.putInt(memorySizes[i]);
+      elf.putInt(7); // RWX
+      elf.putInt(4);
+      offset += segmentData[i].length;
+    }
+    for (byte[] data : segmentData) {
+      elf.put(data);
+    }
+    try (FileOutputStream os = new FileOutputStream(file)) {
+      os.write(elf.array());
+    }
+  }
+  
+}
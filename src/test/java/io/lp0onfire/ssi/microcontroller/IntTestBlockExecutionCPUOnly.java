@@ -0,0 +1,146 @@
+package io.lp0onfire.ssi.microcontroller;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import io.lp0onfire.ssi.microcontroller.peripherals.RAM;
+import io.lp0onfire.ssi.microcontroller.peripherals.ROM;
+
+// Same setup as IntTestCodeExecutionCPUOnly, but runs code through the
+// basic-block engine (RV32Core.runBlocks) instead of single steps.
+public class IntTestBlockExecutionCPUOnly {
+
+  private static final int textMemoryBase = 0x00000000;
+  private static final int textMemoryPages = 4;
+  private static final int dataMemoryBase = 0x10000000;
+  private static final int dataMemoryPages = 4;
+
+  private static final int retTarget = 0xDDCCDDCC;
+
+  private RV32Core cpu;
+  private ROM textMemory;
+  private RAM dataMemory;
+
+  @Before
+  public void setup() {
+    cpu = new RV32Core();
+    textMemory = new ROM(textMemoryPages);
+    cpu.getSystemBus().attachPeripheral(textMemory, textMemoryBase);
+    dataMemory = new RAM(dataMemoryPages);
+    cpu.getSystemBus().attachPeripheral(dataMemory, dataMemoryBase);
+    // stack pointer initially goes to top of RAM, 16-byte aligned
+    int dataMemoryTop = dataMemoryBase + (dataMemoryPages * 1024) - 1;
+    cpu.setXRegister(2, dataMemoryTop & 0xFFFFFFF0);
+    // prime ra (x1) with a target return address
+    cpu.setXRegister(1, retTarget);
+  }
+
+  private void loadProgram(int[] text) {
+    loadProgram(textMemory, text);
+  }
+
+  private static void loadProgram(ROM rom, int[] text) {
+    byte[] bText = new byte[text.length * 4];
+    for (int tPtr = 0; tPtr < text.length; ++tPtr) {
+      int insn = text[tPtr];
+      int bPtr = 4*tPtr;
+      bText[bPtr+0] = (byte)((insn & 0x000000FF));
+      bText[bPtr+1] = (byte)((insn & 0x0000FF00) >>>  8);
+      bText[bPtr+2] = (byte)((insn & 0x00FF0000) >>> 16);
+      bText[bPtr+3] = (byte)((insn & 0xFF000000) >>> 24);
+    }
+    rom.setContents(bText);
+  }
+
+  private static final int[] fibProgram = {
+      0xfe010113,
+      0x00112e23,
+      0x00812c23,
+      0x00912a23,
+      0x02010413,
+      0xfea42623,
+      0xfec42703,
+      0x00100793,
+      0x00e7c663,
+      0xfec42783,
+      0x0300006f,
+      0xfec42783,
+      0xfff78793,
+      0x00078513,
+      0xfc9ff0ef,
+      0x00050493,
+      0xfec42783,
+      0xffe78793,
+      0x00078513,
+      0xfb5ff0ef,
+      0x00050793,
+      0x00f487b3,
+      0x00078513,
+      0x01c12083,
+      0x01812403,
+      0x01412483,
+      0x02010113,
+      0x00008067,
+  };
+
+  @Test
+  public void testFibonacciRecursive() {
+    loadProgram(fibProgram);
+    cpu.setXRegister(10, 15);
+    // exactly as many cycles as single-stepping takes for fib(15)
+    int cycles = cpu.runBlocks(42415);
+    assertEquals(42415, cycles);
+    assertEquals(retTarget, cpu.getPC());
+    assertEquals(610, cpu.getXRegister(10));
+    assertEquals(42415, cpu.instret);
+  }
+
+  @Test
+  public void testBlocksMatchSingleStep() {
+    loadProgram(fibProgram);
+    cpu.setXRegister(10, 10);
+    // stop somewhere in the middle of a block
+    cpu.runBlocks(1001);
+
+    RV32Core reference = new RV32Core();
+    ROM refText = new ROM(textMemoryPages);
+    reference.getSystemBus().attachPeripheral(refText, textMemoryBase);
+    reference.getSystemBus().attachPeripheral(new RAM(dataMemoryPages), dataMemoryBase);
+    loadProgram(refText, fibProgram);
+    reference.setXRegister(2, (dataMemoryBase + (dataMemoryPages * 1024) - 1) & 0xFFFFFFF0);
+    reference.setXRegister(1, retTarget);
+    reference.setXRegister(10, 10);
+    for (int i = 0; i < 1001; ++i) {
+      reference.step();
+    }
+
+    assertEquals(reference.getPC(), cpu.getPC());
+    assertEquals(reference.instret, cpu.instret);
+    for (int r = 0; r < 32; ++r) {
+      assertEquals("register " + r, reference.getXRegister(r), cpu.getXRegister(r));
+    }
+  }
+
+  @Test
+  public void testLoadFaultEndsBlock() {
+    int[] program = {
+        0x00150513, // addi a0, a0, 1
+        0x0005a503, // lw a0, 0(a1)
+        0x00150513, // addi a0, a0, 1
+        0x00008067,
+    };
+    loadProgram(program);
+    cpu.setXRegister(11, 0xABADD000);
+    int cycles = cpu.runBlocks(2);
+    assertEquals(2, cycles);
+    assertEquals(0x000001C0, cpu.getPC());
+    assertEquals(0x00000004, cpu.mepc);
+    assertEquals(5, cpu.mcause);
+    assertEquals(0xABADD000, cpu.mbadaddr);
+    assertEquals(1, cpu.getXRegister(10));
+    assertEquals(1, cpu.instret);
+  }
+
+}
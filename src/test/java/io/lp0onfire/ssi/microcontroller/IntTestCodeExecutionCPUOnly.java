@@ -12,13 +12,13 @@ import io.lp0onfire.ssi.microcontroller.peripherals.ROM;
 // except ROM and RAM.
 public class IntTestCodeExecutionCPUOnly {
 
-  private static final int textMemoryBase = 0x00000000;
+  protected static final int textMemoryBase = 0x00000000;
   private static final int textMemoryPages = 4;
   private static final int dataMemoryBase = 0x10000000;
   private static final int dataMemoryPages = 4;
   
-  private RV32Core cpu;
-  private ROM textMemory;
+  protected RV32Core cpu;
+  protected ROM textMemory;
   private RAM dataMemory;
   
   @Before
@@ -49,12 +49,17 @@ public class IntTestCodeExecutionCPUOnly {
     textMemory.setContents(bText);
   }
   
+  // runs one cycle; subclasses run it through another engine
+  protected void step() {
+    cpu.step();
+  }
+  
   private void run(int maxCycles) {
     // prime ra (x1) with a target return address
     int retTarget = 0xDDCCDDCC;
     cpu.setXRegister(1, retTarget);
     for (int i = 0; i < maxCycles; ++i) {
-      cpu.step();
+      step();
       if (cpu.getPC() == retTarget) {
         return;
       }
@@ -0,0 +1,85 @@
+package io.lp0onfire.ssi.microcontroller;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class IntTestMicrocontroller_LoadELF {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+  
+  private static final int textMemoryPages = 4;
+  private static final int dataMemoryPages = 4;
+  
+  private static byte[] bytes(int length, int first) {
+    byte[] b = new byte[length];
+    for (int i = 0; i < length; ++i) {
+      b[i] = (byte)(first + i);
+    }
+    return b;
+  }
+  
+  @Test
+  public void testSegmentsInBothMemories() throws IOException, AddressTrapException {
+    File elfFile = folder.newFile("both.rv32");
+    ELFTestFiles.write(elfFile, 0x200, new int[] {0x00000200, 0x10000804},
+        new byte[][] {bytes(8, 0x10), bytes(0x400, 0x40)});
+    Microcontroller mcu = new Microcontroller(textMemoryPages, dataMemoryPages);
+    mcu.loadELF(ELFImage.load(elfFile));
+    assertEquals(0x13121110, mcu.getTextMemory().readWord(0x200));
+    assertEquals(0x17161514, mcu.getTextMemory().readWord(0x204));
+    assertEquals(0, mcu.getTextMemory().readWord(0x1FC));
+    // the RAM segment crosses a page boundary
+    assertEquals(0x43424140, mcu.getDataMemory().readWord(0x10000804));
+    assertEquals(0x3F3E3D3C, mcu.getDataMemory().readWord(0x10000C00));
+    assertEquals(0, mcu.getDataMemory().readWord(0x10000800));
+  }
+  
+  @Test
+  public void testSegmentStraddlesROMAndRAM() throws IOException, AddressTrapException {
+    File elfFile = folder.newFile("straddle.rv32");
+    // code in ROM, then zero fill running on into the start of RAM
+    ELFTestFiles.write(elfFile, 0x200, new int[] {0x00000200, 0x10000000},
+        new byte[][] {bytes(8, 0x01), bytes(8, 0x11)},
+        new int[] {0x10000000 - 0x200 + 0x100, 8});
+    Microcontroller mcu = new Microcontroller(textMemoryPages, dataMemoryPages);
+    mcu.loadELF(ELFImage.load(elfFile));
+    assertEquals(0x04030201, mcu.getTextMemory().readWord(0x200));
+    assertEquals(0, mcu.getTextMemory().readWord(0x208));
+    assertEquals(0x14131211, mcu.getDataMemory().readWord(0x10000000));
+    assertEquals(0, mcu.getDataMemory().readWord(0x10000008));
+  }
+  
+  @Test
+  public void testPredecodedImageReused() throws IOException, AddressTrapException {
+    File elfFile = folder.newFile("reused.rv32");
+    ELFTestFiles.write(elfFile, 0x200, new int[] {0x00000200}, new byte[][] {bytes(8, 0x10)});
+    ELFImage elf = ELFImage.load(elfFile);
+    Microcontroller first = new Microcontroller(textMemoryPages, dataMemoryPages);
+    first.loadELF(elf);
+    Microcontroller second = new Microcontroller(textMemoryPages, dataMemoryPages);
+    second.loadELF(elf);
+    assertSame(first.getCPU().getPredecodedImage(), second.getCPU().getPredecodedImage());
+    // a different text memory size needs an image of its own
+    Microcontroller larger = new Microcontroller(2 * textMemoryPages, dataMemoryPages);
+    larger.loadELF(elf);
+    assertEquals(2 * textMemoryPages * 256, larger.getCPU().getPredecodedImage().getLength());
+    assertEquals(textMemoryPages * 256, first.getCPU().getPredecodedImage().getLength());
+  }
+  
+  @Test(expected = IllegalArgumentException.class)
+  public void testSegmentOutsideMemory() throws IOException {
+    File elfFile = folder.newFile("outside.rv32");
+    // runs off the top of RAM
+    ELFTestFiles.write(elfFile, 0x200, new int[] {0x1FFFFFFC}, new byte[][] {bytes(4, 0)}, new int[] {8});
+    Microcontroller mcu = new Microcontroller(textMemoryPages, dataMemoryPages);
+    mcu.loadELF(ELFImage.load(elfFile));
+  }
+  
+}
@@ -0,0 +1,142 @@
+package io.lp0onfire.ssi.microcontroller;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import io.lp0onfire.ssi.microcontroller.peripherals.Timer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class IntTestMicrocontroller_SaveState {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+  
+  private ELFImage loadELFResource(String res) throws IOException {
+    ClassLoader classLoader = getClass().getClassLoader();
+    URL resUrl = classLoader.getResource(res);
+    if (resUrl == null) {
+      throw new FileNotFoundException(res);
+    }
+    File elfFile = new File(resUrl.getFile());
+    return new ELFImage(elfFile);
+  }
+  
+  private static final int textMemoryPages = 4;
+  private static final int dataMemoryPages = 5;
+  private static final int timer0_IRQ = 0;
+  
+  private Microcontroller createMCU() throws IOException {
+    Microcontroller mcu = new Microcontroller(textMemoryPages, dataMemoryPages);
+    Timer timer = new Timer();
+    mcu.attachPeripheral(timer, 0xE9000000);
+    mcu.registerInterrupt(timer, timer0_IRQ);
+    mcu.loadELF(loadELFResource("programs/test_timer_1.rv32"));
+    mcu.reset();
+    return mcu;
+  }
+  
+  private static int[] state(Microcontroller mcu) throws AddressTrapException {
+    RV32Core cpu = mcu.getCPU();
+    int[] state = new int[32 + 8];
+    for (int r = 0; r < 32; ++r) {
+      state[r] = cpu.getXRegister(r);
+    }
+    state[32] = cpu.getPC();
+    state[33] = (int)cpu.instret;
+    state[34] = cpu.mepc;
+    state[35] = cpu.mcause;
+    state[36] = mcu.getDataMemory().readWord(0x10001080);
+    state[37] = mcu.getInterruptController().getCurrentInterrupt();
+    state[38] = mcu.getInterruptController().readWord(0xEA001008);
+    state[39] = (int)mcu.getScheduler().getCycleCount();
+    return state;
+  }
+  
+  @Test
+  public void testRestoredCopyContinuesLikeOriginal() throws IOException, AddressTrapException {
+    Microcontroller reference = createMCU();
+    reference.runCycles(20000);
+    int[] expected = state(reference);
+    assertNotEquals("timer_count did not increase", 0, expected[36]);
+    
+    Microcontroller original = createMCU();
+    original.runCycles(7001);
+    ByteBuffer saved = ByteBuffer.allocate(64 * 1024);
+    original.saveState(saved);
+    saved.flip();
+    
+    Microcontroller copy = createMCU();
+    copy.restoreState(saved);
+    assertFalse("state not fully read", saved.hasRemaining());
+    assertArrayEquals(state(original), state(copy));
+    
+    original.runCycles(20000 - 7001);
+    copy.runCycles(20000 - 7001);
+    assertArrayEquals(expected, state(original));
+    assertArrayEquals(expected, state(copy));
+  }
+  
+  @Test
+  public void testSaveToMappedFile() throws IOException, AddressTrapException {
+    Microcontroller original = createMCU();
+    original.runCycles(5000);
+    File stateFile = folder.newFile("mcu.state");
+    try (RandomAccessFile f = new RandomAccessFile(stateFile, "rw");
+        FileChannel channel = f.getChannel()) {
+      MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, 64 * 1024);
+      original.saveState(map);
+    }
+    
+    Microcontroller copy = createMCU();
+    try (RandomAccessFile f = new RandomAccessFile(stateFile, "r");
+        FileChannel channel = f.getChannel()) {
+      copy.restoreState(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+    original.runCycles(5000);
+    copy.runCycles(5000);
+    assertArrayEquals(state(original), state(copy));
+  }
+  
+  @Test
+  public void testOnlyWrittenPagesAreSaved() throws IOException {
+    Microcontroller mcu = createMCU();
+    ByteBuffer saved = ByteBuffer.allocate(64 * 1024);
+    mcu.saveState(saved);
+    int before = saved.position();
+    
+    mcu.runCycles(20000);
+    saved.clear();
+    mcu.saveState(saved);
+    assertEquals(mcu.getDataMemory().getPrivatePageCount() * (4 + 1024), saved.position() - before);
+  }
+  
+  @Test(expected = IllegalArgumentException.class)
+  public void testRestoreWithDifferentPeripherals() throws IOException {
+    Microcontroller original = createMCU();
+    original.runCycles(1000);
+    ByteBuffer saved = ByteBuffer.allocate(64 * 1024);
+    original.saveState(saved);
+    saved.flip();
+    
+    Microcontroller other = new Microcontroller(textMemoryPages, dataMemoryPages);
+    other.loadELF(loadELFResource("programs/test_timer_1.rv32"));
+    other.restoreState(saved);
+  }
+  
+  @Test(expected = IllegalArgumentException.class)
+  public void testRestoreGarbage() throws IOException {
+    createMCU().restoreState(ByteBuffer.allocate(1024));
+  }
+  
+}
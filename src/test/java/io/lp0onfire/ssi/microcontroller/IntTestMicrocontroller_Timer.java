@@ -92,4 +92,20 @@ public class IntTestMicrocontroller_Timer {
     }
   }
   
+  @Test
+  public void testMicrocontrollersShareFirmware() throws IOException, AddressTrapException {
+    ELFImage elf = loadELFResource("programs/test_timer_1.rv32");
+    mcu.loadELF(elf);
+    mcu.reset();
+    Microcontroller idle = new Microcontroller(textMemoryPages, dataMemoryPages);
+    idle.loadELF(elf);
+    idle.reset();
+    assertSame(mcu.getCPU().getPredecodedImage(), idle.getCPU().getPredecodedImage());
+    mcu.runCycles(1000);
+    // the first microcontroller's writes went to its own pages
+    assertNotEquals(0, mcu.getDataMemory().readWord(0x10001080));
+    assertEquals(0, idle.getDataMemory().readWord(0x10001080));
+    assertTrue(mcu.getDataMemory().getPrivatePageCount() < dataMemoryPages);
+  }
+  
 }
@@ -0,0 +1,78 @@
+package io.lp0onfire.ssi.microcontroller;
+
+import static org.junit.Assert.*;
+
+import io.lp0onfire.ssi.microcontroller.peripherals.Timer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class IntTestMicrocontroller_WFI {
+
+  private static final int textMemoryPages = 4;
+  private static final int dataMemoryPages = 4;
+  private static final int timer0_IRQ = 0;
+  
+  private Microcontroller mcu;
+  private Timer timer;
+  
+  @Before
+  public void setup() {
+    this.mcu = new Microcontroller(textMemoryPages, dataMemoryPages);
+    timer = new Timer();
+    mcu.attachPeripheral(timer, 0xE9000000);
+    mcu.registerInterrupt(timer, timer0_IRQ);
+  }
+  
+  // loads the program at the reset vector
+  private void loadProgram(int[] program) {
+    byte[] bText = new byte[0x200 + program.length * 4];
+    for (int tPtr = 0; tPtr < program.length; ++tPtr) {
+      int insn = program[tPtr];
+      int bPtr = 0x200 + 4*tPtr;
+      bText[bPtr+0] = (byte)((insn & 0x000000FF));
+      bText[bPtr+1] = (byte)((insn & 0x0000FF00) >>>  8);
+      bText[bPtr+2] = (byte)((insn & 0x00FF0000) >>> 16);
+      bText[bPtr+3] = (byte)((insn & 0xFF000000) >>> 24);
+    }
+    mcu.getTextMemory().setContents(bText);
+    mcu.reset();
+  }
+  
+  @Test
+  public void testSleepUntilTimerMatch() {
+    loadProgram(new int[] {
+        0xE90002B7, // lui t0, 0xE9000
+        0x06400313, // li t1, 100
+        0x0062A623, // sw t1, 12(t0) -- TIMER_MATCH
+        0x00100313, // li t1, 1
+        0x0062A023, // sw t1, 0(t0) -- TIMER_CTRL: start
+        0x10200073, // wfi
+        0x0042A503, // lw a0, 4(t0) -- TIMER_COUNT
+        0x0000006F, // j .
+    });
+    mcu.runCycles(1000);
+    // the timer counts once per cycle from the end of cycle 4,
+    // so the match flag is raised at the end of cycle 103 and wakes the core
+    assertEquals(100, mcu.getCPU().getXRegister(10));
+    assertEquals(0x0000021C, mcu.getCPU().getPC());
+    assertEquals(7 + (1000 - 105), mcu.getCPU().instret);
+    assertFalse(mcu.getCPU().isSleeping());
+  }
+  
+  @Test
+  public void testSleepForever() {
+    loadProgram(new int[] {
+        0x10200073, // wfi
+        0x00100513, // li a0, 1
+    });
+    for (int t = 0; t < 100; ++t) {
+      mcu.runCycles(32768);
+    }
+    assertTrue(mcu.getCPU().isSleeping());
+    assertEquals(0x00000204, mcu.getCPU().getPC());
+    assertEquals(1, mcu.getCPU().instret);
+    assertEquals(0, mcu.getCPU().getXRegister(10));
+  }
+  
+}
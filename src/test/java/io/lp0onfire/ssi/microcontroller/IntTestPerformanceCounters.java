@@ -0,0 +1,179 @@
+package io.lp0onfire.ssi.microcontroller;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URL;
+
+import io.lp0onfire.ssi.microcontroller.peripherals.Timer;
+
+import org.junit.Test;
+
+public class IntTestPerformanceCounters {
+
+  private ELFImage loadELFResource(String res) throws IOException {
+    ClassLoader classLoader = getClass().getClassLoader();
+    URL resUrl = classLoader.getResource(res);
+    if (resUrl == null) {
+      throw new FileNotFoundException(res);
+    }
+    File elfFile = new File(resUrl.getFile());
+    return new ELFImage(elfFile);
+  }
+
+  private static final int textMemoryPages = 4;
+  private static final int dataMemoryPages = 5;
+  private static final int timer0_IRQ = 0;
+
+  private Microcontroller mcu;
+  private Timer timer;
+
+  private void setup() {
+    this.mcu = new Microcontroller(textMemoryPages, dataMemoryPages);
+    timer = new Timer();
+    mcu.attachPeripheral(timer, 0xE9000000);
+    mcu.registerInterrupt(timer, timer0_IRQ);
+  }
+
+  private void setupTimerProgram() throws IOException {
+    setup();
+    mcu.loadELF(loadELFResource("programs/test_timer_1.rv32"));
+    mcu.reset();
+  }
+
+  // loads the program at the reset vector
+  private void loadProgram(int[] program) {
+    byte[] bText = new byte[0x200 + program.length * 4];
+    for (int tPtr = 0; tPtr < program.length; ++tPtr) {
+      int insn = program[tPtr];
+      int bPtr = 0x200 + 4*tPtr;
+      bText[bPtr+0] = (byte)((insn & 0x000000FF));
+      bText[bPtr+1] = (byte)((insn & 0x0000FF00) >>>  8);
+      bText[bPtr+2] = (byte)((insn & 0x00FF0000) >>> 16);
+      bText[bPtr+3] = (byte)((insn & 0xFF000000) >>> 24);
+    }
+    mcu.getTextMemory().setContents(bText);
+    mcu.reset();
+  }
+
+  // the counters that do not depend on how the program was run
+  private long[] architecturalCounters() {
+    long[] counters = new long[RV32Core.HPM_MMIO_ACCESSES];
+    for (int i = 0; i < counters.length; ++i) {
+      counters[i] = mcu.getPerformanceCounter(i);
+    }
+    return counters;
+  }
+
+  @Test
+  public void testCountersMatchCycleByCycle() throws IOException {
+    int cycles = 20000;
+    setupTimerProgram();
+    for (int c = 0; c < cycles; ++c) {
+      mcu.getCPU().step();
+      timer.cycle();
+      mcu.getInterruptController().cycle();
+    }
+    long[] expected = architecturalCounters();
+    assertEquals(cycles, expected[0]);
+    assertNotEquals(0, expected[RV32Core.HPM_LOADS]);
+    assertNotEquals(0, expected[RV32Core.HPM_STORES]);
+    assertNotEquals(0, expected[RV32Core.HPM_TAKEN_BRANCHES]);
+    assertNotEquals(0, expected[RV32Core.HPM_TRAPS]);
+
+    for (int chunk : new int[] {1, 7, cycles}) {
+      setupTimerProgram();
+      for (int c = 0; c < cycles; c += chunk) {
+        mcu.runCycles(Math.min(chunk, cycles - c));
+      }
+      assertArrayEquals("chunk size " + chunk, expected, architecturalCounters());
+      assertEquals(mcu.getScheduler().getCycleCount(), mcu.getPerformanceCounter(0));
+    }
+
+    setupTimerProgram();
+    mcu.setTranslator(new RV32Translator(1));
+    mcu.runCycles(cycles);
+    assertArrayEquals("translated", expected, architecturalCounters());
+  }
+
+  @Test
+  public void testFirmwareReadsCounters() {
+    setup();
+    loadProgram(new int[] {
+        0x00012283, // lw t0, 0(sp)
+        0x00000013, // nop
+        0xC0202573, // csrr a0, instret
+        0xC00025F3, // csrr a1, cycle
+        0xC0302673, // csrr a2, hpmcounter3 -- loads
+        0xC82026F3, // csrr a3, instreth
+        0x0000006F, // j .
+    });
+    mcu.runCycles(100);
+    assertEquals(2, mcu.getCPU().getXRegister(10));
+    assertEquals(3, mcu.getCPU().getXRegister(11));
+    assertEquals(1, mcu.getCPU().getXRegister(12));
+    assertEquals(0, mcu.getCPU().getXRegister(13));
+  }
+
+  @Test
+  public void testSleepingCountsCyclesButNotInstructions() {
+    setup();
+    loadProgram(new int[] {
+        0x10200073, // wfi
+        0x00100513, // li a0, 1
+    });
+    for (int t = 0; t < 10; ++t) {
+      mcu.runCycles(32768);
+    }
+    assertEquals(10 * 32768, mcu.getPerformanceCounter(0));
+    assertEquals(1, mcu.getPerformanceCounter(2));
+  }
+
+  @Test
+  public void testTimeCountsTimesteps() {
+    setup();
+    loadProgram(new int[] {
+        0x0000006F, // j .
+    });
+    for (int t = 0; t < 3; ++t) {
+      mcu.runCycles(1000);
+      mcu.timestep();
+    }
+    assertEquals(3, mcu.getPerformanceCounter(1));
+  }
+
+  @Test
+  public void testSkippedPollingLoopCountsAccesses() {
+    int[] pollingProgram = {
+        0xE90002B7, // lui t0, 0xE9000
+        0x3E800313, // li t1, 1000
+        0x0062A623, // sw t1, 12(t0) -- TIMER_MATCH
+        0x00100313, // li t1, 1
+        0x0062A023, // sw t1, 0(t0) -- TIMER_CTRL: start
+        0x0142A503, // 1: lw a0, 20(t0) -- TIMER_IP
+        0x00257513, // andi a0, a0, 2
+        0xFE050CE3, // beqz a0, 1b
+        0x0042A583, // lw a1, 4(t0) -- TIMER_COUNT
+        0x0000006F, // j .
+    };
+    int cycles = 5000;
+    long[][] counters = new long[2][];
+    int[] chunks = {1, cycles};
+    for (int run = 0; run < chunks.length; ++run) {
+      setup();
+      loadProgram(pollingProgram);
+      for (int c = 0; c < cycles; c += chunks[run]) {
+        mcu.runCycles(Math.min(chunks[run], cycles - c));
+      }
+      counters[run] = mcu.getCPU().getEventCounters();
+      // the timer is the only peripheral the program touches
+      assertEquals(counters[run][RV32Core.HPM_MMIO_ACCESSES], counters[run][RV32Core.HPM_MMIO_PERIPHERAL_BASE + 1]);
+    }
+    assertTrue(mcu.getScheduler().getBusyWaitCycles() > 0);
+    assertTrue(counters[0][RV32Core.HPM_MMIO_ACCESSES] > 300);
+    assertArrayEquals(counters[0], counters[1]);
+  }
+
+}
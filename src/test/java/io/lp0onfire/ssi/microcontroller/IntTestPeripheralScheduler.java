@@ -0,0 +1,182 @@
+package io.lp0onfire.ssi.microcontroller;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URL;
+
+import io.lp0onfire.ssi.microcontroller.peripherals.Timer;
+
+import org.junit.Test;
+
+public class IntTestPeripheralScheduler {
+
+  private ELFImage loadELFResource(String res) throws IOException {
+    ClassLoader classLoader = getClass().getClassLoader();
+    URL resUrl = classLoader.getResource(res);
+    if (resUrl == null) {
+      throw new FileNotFoundException(res);
+    }
+    File elfFile = new File(resUrl.getFile());
+    return new ELFImage(elfFile);
+  }
+  
+  private static final int textMemoryPages = 4;
+  private static final int dataMemoryPages = 5;
+  private static final int timer0_IRQ = 0;
+  
+  private Microcontroller mcu;
+  private Timer timer;
+  
+  private void setup() throws IOException {
+    this.mcu = new Microcontroller(textMemoryPages, dataMemoryPages);
+    timer = new Timer();
+    mcu.attachPeripheral(timer, 0xE9000000);
+    mcu.registerInterrupt(timer, timer0_IRQ);
+    mcu.loadELF(loadELFResource("programs/test_timer_1.rv32"));
+    mcu.reset();
+  }
+  
+  // everything the firmware can see, after running the given number of cycles in chunks of the given size
+  private int[] runTimerProgram(int cycles, int chunk) throws IOException, AddressTrapException {
+    setup();
+    for (int c = 0; c < cycles; c += chunk) {
+      mcu.runCycles(Math.min(chunk, cycles - c));
+    }
+    return state();
+  }
+  
+  private int[] state() throws AddressTrapException {
+    RV32Core cpu = mcu.getCPU();
+    int[] state = new int[32 + 6];
+    for (int r = 0; r < 32; ++r) {
+      state[r] = cpu.getXRegister(r);
+    }
+    state[32] = cpu.getPC();
+    state[33] = (int)cpu.instret;
+    state[34] = cpu.mepc;
+    state[35] = timer.getCounter();
+    state[36] = mcu.getDataMemory().readWord(0x10001080);
+    state[37] = mcu.getInterruptController().getCurrentInterrupt();
+    return state;
+  }
+  
+  @Test
+  public void testTimerProgramMatchesCycleByCycle() throws IOException, AddressTrapException {
+    int cycles = 20000;
+    // reference: CPU, peripherals and interrupt controller clocked on every cycle
+    setup();
+    for (int c = 0; c < cycles; ++c) {
+      mcu.getCPU().step();
+      timer.cycle();
+      mcu.getInterruptController().cycle();
+    }
+    int[] expected = state();
+    assertNotEquals("timer_count did not increase", 0, expected[36]);
+    
+    assertArrayEquals(expected, runTimerProgram(cycles, 1));
+    assertArrayEquals(expected, runTimerProgram(cycles, 7));
+    assertArrayEquals(expected, runTimerProgram(cycles, cycles));
+  }
+  
+  @Test
+  public void testTimerProgramWithTranslatorMatchesCycleByCycle() throws IOException, AddressTrapException {
+    int cycles = 20000;
+    setup();
+    for (int c = 0; c < cycles; ++c) {
+      mcu.getCPU().step();
+      timer.cycle();
+      mcu.getInterruptController().cycle();
+    }
+    int[] expected = state();
+    
+    setup();
+    mcu.setTranslator(new RV32Translator(1));
+    mcu.runCycles(cycles);
+    assertArrayEquals(expected, state());
+  }
+  
+  // loads the program at the reset vector
+  private void loadProgram(int[] program) {
+    byte[] bText = new byte[0x200 + program.length * 4];
+    for (int tPtr = 0; tPtr < program.length; ++tPtr) {
+      int insn = program[tPtr];
+      int bPtr = 0x200 + 4*tPtr;
+      bText[bPtr+0] = (byte)((insn & 0x000000FF));
+      bText[bPtr+1] = (byte)((insn & 0x0000FF00) >>>  8);
+      bText[bPtr+2] = (byte)((insn & 0x00FF0000) >>> 16);
+      bText[bPtr+3] = (byte)((insn & 0xFF000000) >>> 24);
+    }
+    mcu.getTextMemory().setContents(bText);
+    mcu.reset();
+  }
+  
+  private static final int[] pollingProgram = {
+      0xE90002B7, // lui t0, 0xE9000
+      0x3E800313, // li t1, 1000
+      0x0062A623, // sw t1, 12(t0) -- TIMER_MATCH
+      0x00100313, // li t1, 1
+      0x0062A023, // sw t1, 0(t0) -- TIMER_CTRL: start
+      0x0142A503, // 1: lw a0, 20(t0) -- TIMER_IP
+      0x00257513, // andi a0, a0, 2
+      0xFE050CE3, // beqz a0, 1b
+      0x0042A583, // lw a1, 4(t0) -- TIMER_COUNT
+      0x0000006F, // j .
+  };
+  
+  private void setupPolling() {
+    this.mcu = new Microcontroller(textMemoryPages, dataMemoryPages);
+    timer = new Timer();
+    mcu.attachPeripheral(timer, 0xE9000000);
+    mcu.registerInterrupt(timer, timer0_IRQ);
+    loadProgram(pollingProgram);
+  }
+  
+  @Test
+  public void testPollingLoopMatchesCycleByCycle() throws AddressTrapException {
+    int cycles = 5000;
+    setupPolling();
+    for (int c = 0; c < cycles; ++c) {
+      mcu.getCPU().step();
+      timer.cycle();
+      mcu.getInterruptController().cycle();
+    }
+    int[] expected = state();
+    assertEquals(0x00000224, expected[32]);
+    
+    for (int chunk : new int[] {1, 7, 500, cycles}) {
+      setupPolling();
+      for (int c = 0; c < cycles; c += chunk) {
+        mcu.runCycles(Math.min(chunk, cycles - c));
+      }
+      assertArrayEquals("chunk size " + chunk, expected, state());
+    }
+    // most of the wait was skipped rather than executed
+    assertTrue(mcu.getScheduler().getBusyWaitCycles() > 900);
+  }
+  
+  @Test
+  public void testLoopWithStoreIsNotSkipped() {
+    setupPolling();
+    // poll with a store to RAM in the loop body
+    loadProgram(new int[] {
+        0xE90002B7, // lui t0, 0xE9000
+        0x100003B7, // lui t2, 0x10000
+        0x3E800313, // li t1, 1000
+        0x0062A623, // sw t1, 12(t0) -- TIMER_MATCH
+        0x00100313, // li t1, 1
+        0x0062A023, // sw t1, 0(t0) -- TIMER_CTRL: start
+        0x0142A503, // 1: lw a0, 20(t0) -- TIMER_IP
+        0x00A3A023, // sw a0, 0(t2)
+        0x00257513, // andi a0, a0, 2
+        0xFE050AE3, // beqz a0, 1b
+        0x0000006F, // j .
+    });
+    mcu.runCycles(5000);
+    assertEquals(0x00000228, mcu.getCPU().getPC());
+    assertEquals(0, mcu.getScheduler().getBusyWaitCycles());
+  }
+  
+}
@@ -0,0 +1,22 @@
+package io.lp0onfire.ssi.microcontroller;
+
+import static org.junit.Assert.*;
+
+// Runs every IntTestCodeExecutionCPUOnly program through the predecoded
+// engine (RV32Core.runPredecoded), one cycle at a time.
+public class IntTestPredecodedExecutionCPUOnly extends IntTestCodeExecutionCPUOnly {
+
+  @Override
+  protected void step() {
+    // the program is loaded by the time the first cycle runs
+    if (cpu.getPredecodedImage() == null) {
+      try {
+        cpu.setPredecodedImage(new RV32PredecodedImage(textMemory, textMemoryBase));
+      } catch (AddressTrapException e) {
+        throw new AssertionError(e);
+      }
+    }
+    assertEquals(1, cpu.runPredecoded(1));
+  }
+
+}
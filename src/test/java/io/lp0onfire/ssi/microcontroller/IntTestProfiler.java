@@ -0,0 +1,139 @@
+package io.lp0onfire.ssi.microcontroller;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URL;
+
+import io.lp0onfire.ssi.microcontroller.peripherals.Timer;
+
+import org.junit.Test;
+
+public class IntTestProfiler {
+
+  private ELFImage loadELFResource(String res) throws IOException {
+    ClassLoader classLoader = getClass().getClassLoader();
+    URL resUrl = classLoader.getResource(res);
+    if (resUrl == null) {
+      throw new FileNotFoundException(res);
+    }
+    File elfFile = new File(resUrl.getFile());
+    return new ELFImage(elfFile);
+  }
+
+  private static final int textMemoryPages = 4;
+  private static final int dataMemoryPages = 5;
+  private static final int timer0_IRQ = 0;
+
+  private Microcontroller mcu;
+  private Timer timer;
+  private ELFImage elf;
+
+  private void setup() throws IOException {
+    this.mcu = new Microcontroller(textMemoryPages, dataMemoryPages);
+    timer = new Timer();
+    mcu.attachPeripheral(timer, 0xE9000000);
+    mcu.registerInterrupt(timer, timer0_IRQ);
+    elf = loadELFResource("programs/test_timer_1.rv32");
+    mcu.loadELF(elf);
+    mcu.reset();
+  }
+
+  @Test
+  public void testProfileMatchesCycleByCycle() throws IOException {
+    int cycles = 20000;
+    setup();
+    RV32Profiler expected = mcu.startProfiling();
+    for (int c = 0; c < cycles; ++c) {
+      mcu.getCPU().step();
+      timer.cycle();
+      mcu.getInterruptController().cycle();
+    }
+    assertEquals(cycles, expected.getTotalCycles());
+
+    setup();
+    RV32Profiler profile = mcu.startProfiling();
+    mcu.runCycles(cycles);
+    assertSame(profile, mcu.stopProfiling());
+    assertEquals(cycles, profile.getTotalCycles());
+    for (int pc = 0; pc < profile.getLength(); pc += 4) {
+      assertEquals("pc " + Integer.toHexString(pc), expected.getCycles(pc), profile.getCycles(pc));
+    }
+    // the timer interrupt handler was dispatched through the handler table
+    ELFImage.ELFSymbol dispatch = null;
+    for (ELFImage.ELFSymbol sym : elf.getSymbols()) {
+      if (sym.name.equals("handle_external_interrupt")) {
+        dispatch = sym;
+      }
+    }
+    long calls = 0L;
+    long expectedCalls = 0L;
+    for (int site = dispatch.address; site < dispatch.address + dispatch.size; site += 4) {
+      calls += profile.getCalls(site, 0x340); // irq_timer0
+      expectedCalls += expected.getCalls(site, 0x340);
+    }
+    assertTrue(calls > 0);
+    assertEquals(expectedCalls, calls);
+
+    String report = profile.report(elf, 10);
+    assertTrue(report, report.contains("irq_timer0"));
+    assertTrue(report, report.contains("handle_external_interrupt -> irq_timer0"));
+  }
+
+  @Test
+  public void testMergedProfiles() throws IOException {
+    setup();
+    RV32Profiler first = mcu.startProfiling();
+    mcu.runCycles(5000);
+    setup();
+    RV32Profiler second = mcu.startProfiling();
+    mcu.runCycles(7000);
+    first.merge(second);
+    assertEquals(12000, first.getTotalCycles());
+    assertEquals(2 * second.getCycles(0x200), first.getCycles(0x200));
+  }
+
+  @Test
+  public void testSleepingAndSkippedLoopsAreCounted() {
+    this.mcu = new Microcontroller(textMemoryPages, dataMemoryPages);
+    timer = new Timer();
+    mcu.attachPeripheral(timer, 0xE9000000);
+    int[] program = {
+        0xE90002B7, // lui t0, 0xE9000
+        0x3E800313, // li t1, 1000
+        0x0062A623, // sw t1, 12(t0) -- TIMER_MATCH
+        0x00100313, // li t1, 1
+        0x0062A023, // sw t1, 0(t0) -- TIMER_CTRL: start
+        0x0142A503, // 1: lw a0, 20(t0) -- TIMER_IP
+        0x00257513, // andi a0, a0, 2
+        0xFE050CE3, // beqz a0, 1b
+        0x10200073, // wfi
+        0x0000006F, // j .
+    };
+    byte[] bText = new byte[0x200 + program.length * 4];
+    for (int tPtr = 0; tPtr < program.length; ++tPtr) {
+      int insn = program[tPtr];
+      int bPtr = 0x200 + 4*tPtr;
+      bText[bPtr+0] = (byte)((insn & 0x000000FF));
+      bText[bPtr+1] = (byte)((insn & 0x0000FF00) >>>  8);
+      bText[bPtr+2] = (byte)((insn & 0x00FF0000) >>> 16);
+      bText[bPtr+3] = (byte)((insn & 0xFF000000) >>> 24);
+    }
+    mcu.getTextMemory().setContents(bText);
+    mcu.reset();
+    RV32Profiler profile = mcu.startProfiling();
+    mcu.runCycles(5000);
+    assertTrue(mcu.getScheduler().getBusyWaitCycles() > 0);
+    assertEquals(5000, profile.getTotalCycles());
+    // each instruction of the polling loop ran the same number of times
+    long iterations = profile.getCycles(0x214);
+    assertTrue(iterations > 300);
+    assertEquals(iterations, profile.getCycles(0x218));
+    assertEquals(iterations, profile.getCycles(0x21C));
+    assertEquals(1, profile.getCycles(0x220));
+    assertTrue(profile.getSleepCycles() > 3000);
+  }
+
+}
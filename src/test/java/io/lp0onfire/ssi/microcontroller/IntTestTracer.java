@@ -0,0 +1,235 @@
+package io.lp0onfire.ssi.microcontroller;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import io.lp0onfire.ssi.microcontroller.peripherals.Timer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class IntTestTracer {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private ELFImage loadELFResource(String res) throws IOException {
+    ClassLoader classLoader = getClass().getClassLoader();
+    URL resUrl = classLoader.getResource(res);
+    if (resUrl == null) {
+      throw new FileNotFoundException(res);
+    }
+    File elfFile = new File(resUrl.getFile());
+    return new ELFImage(elfFile);
+  }
+
+  private static final int textMemoryPages = 4;
+  private static final int dataMemoryPages = 5;
+  private static final int timer0_IRQ = 0;
+
+  private Microcontroller mcu;
+  private Timer timer;
+
+  private void setup() {
+    this.mcu = new Microcontroller(textMemoryPages, dataMemoryPages);
+    timer = new Timer();
+    mcu.attachPeripheral(timer, 0xE9000000);
+    mcu.registerInterrupt(timer, timer0_IRQ);
+  }
+
+  // loads the program at the reset vector
+  private void loadProgram(int[] program) {
+    byte[] bText = new byte[0x200 + program.length * 4];
+    for (int tPtr = 0; tPtr < program.length; ++tPtr) {
+      int insn = program[tPtr];
+      int bPtr = 0x200 + 4*tPtr;
+      bText[bPtr+0] = (byte)((insn & 0x000000FF));
+      bText[bPtr+1] = (byte)((insn & 0x0000FF00) >>>  8);
+      bText[bPtr+2] = (byte)((insn & 0x00FF0000) >>> 16);
+      bText[bPtr+3] = (byte)((insn & 0xFF000000) >>> 24);
+    }
+    mcu.getTextMemory().setContents(bText);
+    mcu.reset();
+  }
+
+  private static final int[] pollingProgram = {
+      0xE90002B7, // lui t0, 0xE9000
+      0x3E800313, // li t1, 1000
+      0x0062A623, // sw t1, 12(t0) -- TIMER_MATCH
+      0x00100313, // li t1, 1
+      0x0062A023, // sw t1, 0(t0) -- TIMER_CTRL: start
+      0x0142A503, // 1: lw a0, 20(t0) -- TIMER_IP
+      0x00257513, // andi a0, a0, 2
+      0xFE050CE3, // beqz a0, 1b
+      0x0042A583, // lw a1, 4(t0) -- TIMER_COUNT
+      0x0000006F, // j .
+  };
+
+  @Test
+  public void testRecordsInstructionsAndEffects() {
+    setup();
+    loadProgram(pollingProgram);
+    RV32Tracer tracer = mcu.startTracing(1024);
+    mcu.runCycles(3);
+    assertEquals(7, tracer.size());
+
+    ByteBuffer r = tracer.getRecord(0);
+    assertEquals(RV32Tracer.INSTRUCTION, r.get(0));
+    assertEquals(0x00000200, r.getInt(4));
+    assertEquals(0xE90002B7, r.getInt(8));
+    assertEquals(0, r.getInt(12));
+
+    r = tracer.getRecord(1);
+    assertEquals(RV32Tracer.REGISTER_WRITE, r.get(0));
+    assertEquals(5, r.get(1));
+    assertEquals(0xE9000000, r.getInt(8));
+
+    // the store to TIMER_MATCH: the instruction, the peripheral access, then the bus store
+    r = tracer.getRecord(4);
+    assertEquals(RV32Tracer.INSTRUCTION, r.get(0));
+    assertEquals(0x00000208, r.getInt(4));
+    assertEquals(2, r.getInt(12));
+    r = tracer.getRecord(5);
+    assertEquals(RV32Tracer.MMIO, r.get(0));
+    assertEquals(1, r.get(1)); // the timer
+    assertEquals(4 | RV32Tracer.FLAG_WRITE, r.getShort(2));
+    assertEquals(0xE900000C, r.getInt(8));
+    assertEquals(1000, r.getInt(12));
+    r = tracer.getRecord(6);
+    assertEquals(RV32Tracer.STORE, r.get(0));
+    assertEquals(4, r.getShort(2));
+    assertEquals(0xE900000C, r.getInt(8));
+  }
+
+  @Test
+  public void testEachPeripheralAccessIsRecordedOnce() {
+    setup();
+    loadProgram(pollingProgram);
+    RV32Tracer tracer = mcu.startTracing(1 << 16);
+    mcu.runCycles(5000);
+    int mmio = 0;
+    for (int i = 0; i < tracer.size(); ++i) {
+      if (tracer.getRecord(i).get(0) == RV32Tracer.MMIO) {
+        ++mmio;
+      }
+    }
+    assertEquals(mcu.getPerformanceCounter(RV32Core.HPM_MMIO_ACCESSES), mmio);
+    assertEquals(0x00000224, mcu.getCPU().getPC());
+  }
+
+  @Test
+  public void testRingKeepsNewestRecords() {
+    setup();
+    loadProgram(new int[] {
+        0x00140413, // 1: addi s0, s0, 1
+        0xFFDFF06F, // j 1b
+    });
+    RV32Tracer tracer = mcu.startTracing(16);
+    mcu.runCycles(100);
+    assertEquals(16, tracer.size());
+    // one instruction and one register write per addi, one instruction per jump
+    assertEquals(150, tracer.getRecordsWritten());
+    ByteBuffer last = tracer.getRecord(15);
+    assertEquals(RV32Tracer.INSTRUCTION, last.get(0));
+    assertEquals(0x00000204, last.getInt(4));
+    assertEquals(99, last.getInt(12));
+  }
+
+  @Test
+  public void testRewindAfterWraparound() {
+    RV32Tracer tracer = new RV32Tracer(4);
+    for (int i = 0; i < 4; ++i) {
+      tracer.beginInstruction(0x200 + 4 * i, 0x00000013, i);
+      tracer.endInstruction();
+    }
+    // an instruction that exits the batch before it runs
+    long mark = tracer.getRecordsWritten();
+    tracer.beginInstruction(0xbad, 0x00000013, 4);
+    tracer.rewind(mark);
+    // its record took the place of the oldest one, which is no longer held
+    assertEquals(3, tracer.size());
+    for (int i = 0; i < 3; ++i) {
+      assertEquals(0x204 + 4 * i, tracer.getRecord(i).getInt(4));
+    }
+    // and the instruction running again fills the ring back up
+    tracer.beginInstruction(0x210, 0x00000013, 4);
+    tracer.endInstruction();
+    assertEquals(4, tracer.size());
+    assertEquals(0x204, tracer.getRecord(0).getInt(4));
+    assertEquals(0x210, tracer.getRecord(3).getInt(4));
+  }
+
+  @Test
+  public void testTrapsAndReturns() throws IOException {
+    setup();
+    byte[] text = new byte[0x208];
+    int[][] code = {
+        {0x1C0, 0x341022F3}, // csrr t0, mepc
+        {0x1C4, 0x00428293}, // addi t0, t0, 4
+        {0x1C8, 0x34129073}, // csrw mepc, t0
+        {0x1CC, 0x10000073}, // eret
+        {0x200, 0x00000073}, // ecall
+        {0x204, 0x0000006F}, // j .
+    };
+    for (int[] c : code) {
+      for (int b = 0; b < 4; ++b) {
+        text[c[0] + b] = (byte)(c[1] >>> (8 * b));
+      }
+    }
+    mcu.getTextMemory().setContents(text);
+    mcu.reset();
+    RV32Tracer tracer = mcu.startTracing(64);
+    mcu.runCycles(10);
+    assertSame(tracer, mcu.stopTracing());
+
+    File dump = folder.newFile("trace.bin");
+    tracer.dump(dump);
+    List<String> lines = RV32TraceDecoder.decode(dump);
+    assertEquals(tracer.size() + 1, lines.size());
+    assertTrue(lines.get(2), lines.get(2).contains("trap   mcause 11"));
+    boolean returned = false;
+    for (String line : lines) {
+      if (line.startsWith("000001cc  eret   -> 00000204")) {
+        returned = true;
+      }
+    }
+    assertTrue(returned);
+    
+    // not recorded once stopped
+    long written = tracer.getRecordsWritten();
+    mcu.runCycles(10);
+    assertEquals(written, tracer.getRecordsWritten());
+  }
+
+  @Test
+  public void testTracingDoesNotChangeExecution() throws IOException {
+    int cycles = 20000;
+    int[][] states = new int[2][];
+    for (int run = 0; run < 2; ++run) {
+      setup();
+      mcu.loadELF(loadELFResource("programs/test_timer_1.rv32"));
+      mcu.reset();
+      if (run == 1) {
+        mcu.startTracing(4096);
+      }
+      mcu.runCycles(cycles);
+      RV32Core cpu = mcu.getCPU();
+      int[] state = new int[34];
+      for (int i = 0; i < 32; ++i) {
+        state[i] = cpu.getXRegister(i);
+      }
+      state[32] = cpu.getPC();
+      state[33] = (int)cpu.instret;
+      states[run] = state;
+    }
+    assertArrayEquals(states[0], states[1]);
+  }
+
+}
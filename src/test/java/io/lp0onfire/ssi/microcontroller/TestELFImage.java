@@ -7,10 +7,15 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URL;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 public class TestELFImage {
 
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
   private ELFImage loadELFResource(String res) throws IOException {
     ClassLoader classLoader = getClass().getClassLoader();
     URL resUrl = classLoader.getResource(res);
@@ -49,4 +54,60 @@ public class TestELFImage {
     assertEquals((byte)0x00, phdr.segmentData[0x203]);
   }
   
+  @Test
+  public void testLoadUsesCache() throws IOException {
+    File elfFile = folder.newFile("cached.rv32");
+    ELFTestFiles.write(elfFile, 0x200, new int[] {0x0}, new byte[][] {{1, 2, 3, 4}});
+    ELFImage first = ELFImage.load(elfFile);
+    assertSame(first, ELFImage.load(elfFile));
+    assertEquals((byte)3, first.getProgramHeaders().get(0).segmentData[2]);
+    
+    // a changed file is parsed again
+    ELFTestFiles.write(elfFile, 0x200, new int[] {0x0}, new byte[][] {{5, 6, 7, 8}});
+    assertTrue(elfFile.setLastModified(elfFile.lastModified() - 10000));
+    ELFImage second = ELFImage.load(elfFile);
+    assertNotSame(first, second);
+    assertEquals((byte)7, second.getProgramHeaders().get(0).segmentData[2]);
+  }
+  
+  @Test
+  public void testSymbols() throws IOException {
+    ELFImage elf = loadELFResource("programs/test_timer_1.rv32");
+    ELFImage.ELFSymbol main = elf.findSymbol(0x75c);
+    assertEquals("main", main.name);
+    assertEquals(92, main.size);
+    assertTrue(main.function);
+    // inside a function
+    assertEquals("handle_trap", elf.findSymbol(0x714 + 8).name);
+    // assembly labels have no size and run up to the next symbol
+    assertEquals("_start", elf.findSymbol(0x200).name);
+    assertEquals("loop", elf.findSymbol(0x214).name);
+    // past the end of the last function
+    assertNull(elf.findSymbol(0x75c + 92));
+    assertNull(elf.findSymbol(0x0));
+    // aliases at one address are reported once
+    ELFImage.ELFSymbol previous = null;
+    for (ELFImage.ELFSymbol sym : elf.getSymbols()) {
+      if (previous != null) {
+        assertTrue(Integer.compareUnsigned(previous.address, sym.address) < 0);
+      }
+      previous = sym;
+    }
+  }
+  
+  @Test
+  public void testNoSymbols() throws IOException {
+    File elfFile = folder.newFile("stripped.rv32");
+    ELFTestFiles.write(elfFile, 0x200, new int[] {0x0}, new byte[][] {{1, 2, 3, 4}});
+    ELFImage elf = new ELFImage(elfFile);
+    assertTrue(elf.getSymbols().isEmpty());
+    assertNull(elf.findSymbol(0x200));
+  }
+  
+  @Test(expected = IllegalArgumentException.class)
+  public void testNotAnELF() throws IOException {
+    File notElf = folder.newFile("not_elf");
+    new ELFImage(notElf);
+  }
+  
 }
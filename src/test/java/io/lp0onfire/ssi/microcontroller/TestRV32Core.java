@@ -7,6 +7,15 @@ import org.junit.Test;
 
 public class TestRV32Core {
 
+  // runs one instruction at the current PC; subclasses run it through another engine
+  protected void execute(RV32Core cpu, RV32Instruction insn) {
+    try {
+      insn.execute(cpu);
+    } catch (IllegalInstructionException e) {
+      throw new AssertionError(e);
+    }
+  }
+
   class TestPeripheral implements SystemBusPeripheral {
     
     @Override
@@ -81,7 +90,7 @@ public class TestRV32Core {
     // ADDI x1, x0, 1
     RV32_ADDI insn = new RV32_ADDI(0b00000000000100000000000010010011);
     RV32Core cpu = new RV32Core();
-    cpu.execute(insn);
+    execute(cpu, insn);
     assertEquals(1, cpu.getXRegister(1));
   }
   
@@ -90,7 +99,7 @@ public class TestRV32Core {
     // ADDI x1, x0, -1
     RV32_ADDI insn = new RV32_ADDI(0b11111111111100000000000010010011);
     RV32Core cpu = new RV32Core();
-    cpu.execute(insn);
+    execute(cpu, insn);
     assertEquals(-1, cpu.getXRegister(1));
   }
   
@@ -103,7 +112,7 @@ public class TestRV32Core {
     RV32_ANDI insn = new RV32_ANDI(0b00001111111100001111000010010011);
     RV32Core cpu = new RV32Core();
     cpu.setXRegister(1, 0xFF000F0F);
-    cpu.execute(insn);
+    execute(cpu, insn);
     assertEquals(0x0000000F, cpu.getXRegister(1));
   }
   
@@ -116,7 +125,7 @@ public class TestRV32Core {
     RV32_ORI insn = new RV32_ORI(0b00001111111100001110000010010011);
     RV32Core cpu = new RV32Core();
     cpu.setXRegister(1, 0xFF000F0F);
-    cpu.execute(insn);
+    execute(cpu, insn);
     assertEquals(0xFF000FFF, cpu.getXRegister(1));
   }
   
@@ -129,7 +138,7 @@ public class TestRV32Core {
     RV32_SLLI insn = new RV32_SLLI(0b00000000100000001001000010010011);
     RV32Core cpu = new RV32Core();
     cpu.setXRegister(1, 0x000000FF);
-    cpu.execute(insn);
+    execute(cpu, insn);
     assertEquals(0x0000FF00, cpu.getXRegister(1));
   }
   
@@ -141,7 +150,7 @@ public class TestRV32Core {
     RV32_SLTI insn = new RV32_SLTI(0b11111111111100001010000100010011);
     RV32Core cpu = new RV32Core();
     cpu.setXRegister(1, -5);
-    cpu.execute(insn);
+    execute(cpu, insn);
     assertEquals(1, cpu.getXRegister(2));
   }
   
@@ -154,7 +163,7 @@ public class TestRV32Core {
     RV32Core cpu = new RV32Core();
     cpu.setXRegister(1, 3);
     cpu.setXRegister(2, -50); // allows us to check that x2 actually gets written
-    cpu.execute(insn);
+    execute(cpu, insn);
     assertEquals(0, cpu.getXRegister(2));
   }
   
@@ -167,7 +176,7 @@ public class TestRV32Core {
     RV32Core cpu = new RV32Core();
     cpu.setXRegister(1, -1);
     cpu.setXRegister(2, -50);
-    cpu.execute(insn);
+    execute(cpu, insn);
     assertEquals(0, cpu.getXRegister(2));
   }
   
@@ -180,7 +189,7 @@ public class TestRV32Core {
     RV32_SRAI insn = new RV32_SRAI(0b01000000100000001101000010010011);
     RV32Core cpu = new RV32Core();
     cpu.setXRegister(1, 0xFF000000);
-    cpu.execute(insn);
+    execute(cpu, insn);
     assertEquals(0xFFFF0000, cpu.getXRegister(1));
   }
   
@@ -193,7 +202,7 @@ public class TestRV32Core {
     RV32_SRLI insn = new RV32_SRLI(0b00000000100000001101000010010011);
     RV32Core cpu = new RV32Core();
     cpu.setXRegister(1, 0x0000FF00);
-    cpu.execute(insn);
+    execute(cpu, insn);
     assertEquals(0x000000FF, cpu.getXRegister(1));
   }
   
@@ -206,7 +215,7 @@ public class TestRV32Core {
     RV32_XORI insn = new RV32_XORI(0b00001111111100001100000010010011);
     RV32Core cpu = new RV32Core();
     cpu.setXRegister(1, 0xFF00F00F);
-    cpu.execute(insn);
+    execute(cpu, insn);
     assertEquals(0xFF00F0F0, cpu.getXRegister(1));
   }
   
@@ -222,7 +231,7 @@ public class TestRV32Core {
     RV32Core cpu = new RV32Core();
     cpu.setXRegister(1, 0x76543210);
     cpu.setPC(0xFEDCBA98);
-    cpu.execute(insn);
+    execute(cpu, insn);
     assertEquals(0x76543210, cpu.getNextPC());
     assertEquals(0xFEDCBA98 + 4, cpu.getXRegister(2));    
   }
@@ -236,7 +245,7 @@ public class TestRV32Core {
     RV32Core cpu = new RV32Core();
     cpu.setXRegister(10, -1);
     cpu.setXRegister(11, 1);
-    cpu.execute(insn);
+    execute(cpu, insn);
     assertEquals(8, cpu.getNextPC());
   }
   
@@ -249,7 +258,7 @@ public class TestRV32Core {
     RV32Core cpu = new RV32Core();
     cpu.setXRegister(10, 1);
     cpu.setXRegister(11, -1);
-    cpu.execute(insn);
+    execute(cpu, insn);
     assertNotEquals(8, cpu.getNextPC());
   }
   
@@ -261,7 +270,7 @@ public class TestRV32Core {
     RV32Core cpu = new RV32Core();
     cpu.setXRegister(10, -1);
     cpu.setXRegister(11, 1);
-    cpu.execute(insn);
+    execute(cpu, insn);
     assertEquals(8, cpu.getNextPC());
   }
   
@@ -273,7 +282,7 @@ public class TestRV32Core {
     RV32Core cpu = new RV32Core();
     cpu.setXRegister(10, 1);
     cpu.setXRegister(11, -1);
-    cpu.execute(insn);
+    execute(cpu, insn);
     assertNotEquals(8, cpu.getNextPC());
   }
   
@@ -284,7 +293,7 @@ public class TestRV32Core {
     RV32Core cpu = new RV32Core();
     cpu.getSystemBus().attachPeripheral(new TestPeripheral(), 0x10000000);
     cpu.setXRegister(5, 0x10000000);
-    cpu.execute(insn);
+    execute(cpu, insn);
     assertEquals(0xabadd00d, cpu.getXRegister(10));
   }
   
@@ -299,7 +308,7 @@ public class TestRV32Core {
     int updatedValue = 0xABADD00D;
     cpu.writeCSR(0x340, initialValue);
     cpu.setXRegister(1, updatedValue);
-    cpu.execute(insn);
+    execute(cpu, insn);
     assertEquals(initialValue, cpu.getXRegister(2));
     assertEquals(updatedValue, cpu.readCSR(0x340));
   }
@@ -314,10 +323,10 @@ public class TestRV32Core {
     cpu.getSystemBus().attachPeripheral(new TestPeripheral(), 0x10000000);
     cpu.setXRegister(1, 0x10000000);
     cpu.setXRegister(3, -1);
-    cpu.execute(lr);
+    execute(cpu, lr);
     assertEquals(0xabadd00d, cpu.getXRegister(2));
     assertTrue(cpu.getSystemBus().isReserved(0x10000000));
-    cpu.execute(sc);
+    execute(cpu, sc);
     assertEquals(0, cpu.getXRegister(3));
     assertFalse(cpu.getSystemBus().isReserved(0x10000000));
   }
@@ -327,7 +336,7 @@ public class TestRV32Core {
     RV32_SCALL insn = new RV32_SCALL(0b00000000000000000000000001110011);
     RV32Core cpu = new RV32Core();
     cpu.setPC(0xabcd1234);
-    cpu.execute(insn);
+    execute(cpu, insn);
     // check that we have entered the "trap from machine mode" handler
     assertEquals(0x000001C0, cpu.getPC());
     // check that mepc = the last PC when we executed this instruction
@@ -343,7 +352,7 @@ public class TestRV32Core {
     RV32_SBREAK insn = new RV32_SBREAK(0b00000000000100000000000001110011);
     RV32Core cpu = new RV32Core();
     cpu.setPC(0xabcd1234);
-    cpu.execute(insn);
+    execute(cpu, insn);
     // check that we have entered the "trap from machine mode" handler
     assertEquals(0x000001C0, cpu.getPC());
     // check that mepc = the last PC when we executed this instruction
@@ -359,7 +368,7 @@ public class TestRV32Core {
     RV32_ERET insn = new RV32_ERET(0b00010000000000000000000001110011);
     RV32Core cpu = new RV32Core();
     cpu.mepc = 0xabcd1234;
-    cpu.execute(insn);
+    execute(cpu, insn);
     assertEquals(0xabcd1234, cpu.mepc);
   }
   
@@ -0,0 +1,76 @@
+package io.lp0onfire.ssi.microcontroller;
+
+import static org.junit.Assert.*;
+
+// Runs every TestRV32Core instruction test through the predecoded engine
+// (RV32Core.runPredecoded), from an image holding just that instruction.
+public class TestRV32CorePredecoded extends TestRV32Core {
+
+  // one page of memory that reads as a single instruction at one address, and zero elsewhere
+  static class InstructionPage implements SystemBusPeripheral {
+
+    private final int address;
+    private final int insn;
+
+    InstructionPage(int address, int insn) {
+      this.address = address;
+      this.insn = insn;
+    }
+
+    @Override
+    public int getNumberOfPages() {
+      return 1;
+    }
+
+    @Override
+    public int readByte(int address) throws AddressTrapException {
+      throw new AddressTrapException(5, address);
+    }
+
+    @Override
+    public int readHalfword(int address) throws AddressTrapException {
+      throw new AddressTrapException(5, address);
+    }
+
+    @Override
+    public int readWord(int address) throws AddressTrapException {
+      return (address == this.address) ? insn : 0;
+    }
+
+    @Override
+    public void writeByte(int address, int value) throws AddressTrapException {
+      throw new AddressTrapException(7, address);
+    }
+
+    @Override
+    public void writeHalfword(int address, int value) throws AddressTrapException {
+      throw new AddressTrapException(7, address);
+    }
+
+    @Override
+    public void writeWord(int address, int value) throws AddressTrapException {
+      throw new AddressTrapException(7, address);
+    }
+
+    @Override
+    public void cycle() {
+    }
+
+    @Override
+    public void timestep() {
+    }
+
+  }
+
+  @Override
+  protected void execute(RV32Core cpu, RV32Instruction insn) {
+    int base = cpu.getPC() & ~0x000003FF;
+    try {
+      cpu.setPredecodedImage(new RV32PredecodedImage(new InstructionPage(cpu.getPC(), insn.getInsn()), base));
+    } catch (AddressTrapException e) {
+      throw new AssertionError(e);
+    }
+    assertEquals(1, cpu.runPredecoded(1));
+  }
+
+}
@@ -0,0 +1,64 @@
+package io.lp0onfire.ssi.microcontroller;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import io.lp0onfire.ssi.microcontroller.instructions.RV32_ADDI;
+import io.lp0onfire.ssi.microcontroller.peripherals.ROM;
+
+public class TestRV32DecodeCache {
+
+  private static ROM romWith(int... program) {
+    ROM rom = new ROM(1);
+    byte[] bText = new byte[program.length * 4];
+    for (int tPtr = 0; tPtr < program.length; ++tPtr) {
+      int insn = program[tPtr];
+      int bPtr = 4*tPtr;
+      bText[bPtr+0] = (byte)((insn & 0x000000FF));
+      bText[bPtr+1] = (byte)((insn & 0x0000FF00) >>>  8);
+      bText[bPtr+2] = (byte)((insn & 0x00FF0000) >>> 16);
+      bText[bPtr+3] = (byte)((insn & 0xFF000000) >>> 24);
+    }
+    rom.setContents(bText);
+    return rom;
+  }
+  
+  @Test
+  public void testSameWordSameInstruction() {
+    RV32Instruction a = RV32DecodeCache.decode(0x00150513);
+    RV32Instruction b = RV32DecodeCache.decode(0x00150513);
+    assertTrue(a instanceof RV32_ADDI);
+    assertSame(a, b);
+  }
+  
+  @Test
+  public void testBusesShareInstructions() throws AddressTrapException {
+    RV32SystemBus bus1 = new RV32SystemBus();
+    bus1.attachPeripheral(romWith(0x00150513, 0x00008067), 0x00000000);
+    RV32SystemBus bus2 = new RV32SystemBus();
+    bus2.attachPeripheral(romWith(0x00008067, 0x00150513), 0x00000000);
+    assertSame(bus1.fetchInstruction(0x0), bus2.fetchInstruction(0x4));
+    assertSame(bus1.fetchInstruction(0x4), bus2.fetchInstruction(0x0));
+  }
+  
+  @Test
+  public void testIdenticalMemoriesShareImage() throws AddressTrapException {
+    RV32PredecodedImage a = RV32DecodeCache.predecode(romWith(0x00150513, 0x7A300293), 0x00000000);
+    RV32PredecodedImage b = RV32DecodeCache.predecode(romWith(0x00150513, 0x7A300293), 0x00000000);
+    assertSame(a, b);
+  }
+  
+  @Test
+  public void testDifferentMemoriesDoNotShareImage() throws AddressTrapException {
+    RV32PredecodedImage a = RV32DecodeCache.predecode(romWith(0x00150513, 0x7A300393), 0x00000000);
+    RV32PredecodedImage b = RV32DecodeCache.predecode(romWith(0x00250513, 0x7A300393), 0x00000000);
+    RV32PredecodedImage c = RV32DecodeCache.predecode(romWith(0x00150513, 0x7A300393), 0x00000400);
+    assertNotSame(a, b);
+    assertNotSame(a, c);
+    assertEquals(1, a.getImm()[0]);
+    assertEquals(2, b.getImm()[0]);
+    assertEquals(0x00000400, c.getBaseAddress());
+  }
+  
+}
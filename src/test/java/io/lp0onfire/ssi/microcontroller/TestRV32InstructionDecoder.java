@@ -154,6 +154,13 @@ public class TestRV32InstructionDecoder {
     assertTrue(insn instanceof RV32_ERET);
   }
   
+  @Test
+  public void testDecodeWFI() {
+    RV32InstructionDecoder dec = new RV32InstructionDecoder();
+    RV32Instruction insn = dec.decode(0x10200073);
+    assertTrue(insn instanceof RV32_WFI);
+  }
+  
   @Test
   public void testDecodeLRW() {
     RV32InstructionDecoder dec = new RV32InstructionDecoder();
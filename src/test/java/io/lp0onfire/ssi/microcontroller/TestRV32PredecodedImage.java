@@ -0,0 +1,237 @@
+package io.lp0onfire.ssi.microcontroller;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import io.lp0onfire.ssi.microcontroller.peripherals.RAM;
+import io.lp0onfire.ssi.microcontroller.peripherals.ROM;
+
+public class TestRV32PredecodedImage {
+
+  private static final int textMemoryBase = 0x00000000;
+  private static final int textMemoryPages = 4;
+  private static final int dataMemoryBase = 0x10000000;
+  private static final int dataMemoryPages = 4;
+
+  private static final int retTarget = 0xDDCCDDCC;
+
+  private ROM textMemory;
+
+  private RV32Core createCPU(int[] program) {
+    RV32Core cpu = new RV32Core();
+    textMemory = new ROM(textMemoryPages);
+    cpu.getSystemBus().attachPeripheral(textMemory, textMemoryBase);
+    RAM dataMemory = new RAM(dataMemoryPages);
+    cpu.getSystemBus().attachPeripheral(dataMemory, dataMemoryBase);
+    int dataMemoryTop = dataMemoryBase + (dataMemoryPages * 1024) - 1;
+    cpu.setXRegister(2, dataMemoryTop & 0xFFFFFFF0);
+    cpu.setXRegister(1, retTarget);
+    byte[] bText = new byte[program.length * 4];
+    for (int tPtr = 0; tPtr < program.length; ++tPtr) {
+      int insn = program[tPtr];
+      int bPtr = 4*tPtr;
+      bText[bPtr+0] = (byte)((insn & 0x000000FF));
+      bText[bPtr+1] = (byte)((insn & 0x0000FF00) >>>  8);
+      bText[bPtr+2] = (byte)((insn & 0x00FF0000) >>> 16);
+      bText[bPtr+3] = (byte)((insn & 0xFF000000) >>> 24);
+    }
+    textMemory.setContents(bText);
+    return cpu;
+  }
+
+  private RV32Core createPredecodedCPU(int[] program) {
+    RV32Core cpu = createCPU(program);
+    try {
+      cpu.setPredecodedImage(new RV32PredecodedImage(textMemory, textMemoryBase));
+    } catch (AddressTrapException e) {
+      fail("text memory not mapped");
+    }
+    return cpu;
+  }
+
+  private void assertSameState(RV32Core expected, RV32Core actual) {
+    assertEquals(expected.getPC(), actual.getPC());
+    assertEquals(expected.instret, actual.instret);
+    assertEquals(expected.mepc, actual.mepc);
+    assertEquals(expected.mcause, actual.mcause);
+    for (int r = 0; r < 32; ++r) {
+      assertEquals("register " + r, expected.getXRegister(r), actual.getXRegister(r));
+    }
+  }
+
+  private static final int[] fibProgram = {
+      0xfe010113, 0x00112e23, 0x00812c23, 0x00912a23,
+      0x02010413, 0xfea42623, 0xfec42703, 0x00100793,
+      0x00e7c663, 0xfec42783, 0x0300006f, 0xfec42783,
+      0xfff78793, 0x00078513, 0xfc9ff0ef, 0x00050493,
+      0xfec42783, 0xffe78793, 0x00078513, 0xfb5ff0ef,
+      0x00050793, 0x00f487b3, 0x00078513, 0x01c12083,
+      0x01812403, 0x01412483, 0x02010113, 0x00008067,
+  };
+
+  @Test
+  public void testFibonacciRecursive() {
+    RV32Core cpu = createPredecodedCPU(fibProgram);
+    cpu.setXRegister(10, 15);
+    assertEquals(42415, cpu.runPredecoded(42415));
+    assertEquals(retTarget, cpu.getPC());
+    assertEquals(610, cpu.getXRegister(10));
+    assertEquals(42415, cpu.instret);
+  }
+
+  @Test
+  public void testFibonacciMatchesInterpreter() {
+    RV32Core expected = createCPU(fibProgram);
+    RV32Core actual = createPredecodedCPU(fibProgram);
+    expected.setXRegister(10, 12);
+    actual.setXRegister(10, 12);
+    for (int i = 0; i < 1001; ++i) {
+      expected.step();
+    }
+    actual.runPredecoded(1001);
+    assertSameState(expected, actual);
+  }
+
+  @Test
+  public void testLoadFault() {
+    int[] program = {
+        0x00150513, // addi a0, a0, 1
+        0x0005a503, // lw a0, 0(a1)
+        0x00150513, // addi a0, a0, 1
+        0x00008067, // ret
+    };
+    RV32Core cpu = createPredecodedCPU(program);
+    cpu.setXRegister(11, 0xABADD000);
+    assertEquals(2, cpu.runPredecoded(2));
+    assertEquals(0x000001C0, cpu.getPC());
+    assertEquals(0x00000004, cpu.mepc);
+    assertEquals(5, cpu.mcause);
+    assertEquals(0xABADD000, cpu.mbadaddr);
+    assertEquals(1, cpu.getXRegister(10));
+    assertEquals(1, cpu.instret);
+  }
+
+  @Test
+  public void testObjectInstruction() {
+    int[] program = {
+        0x00150513, // addi a0, a0, 1
+        0x34002573, // csrr a0, mscratch
+        0x00008067, // ret
+    };
+    RV32Core cpu = createPredecodedCPU(program);
+    cpu.setXRegister(10, 7);
+    assertEquals(RV32PredecodedImage.OP_OBJECT, cpu.getPredecodedImage().getOpcodes()[1]);
+    cpu.runPredecoded(3);
+    assertEquals(retTarget, cpu.getPC());
+    assertEquals(0, cpu.getXRegister(10));
+    assertEquals(3, cpu.instret);
+  }
+
+  @Test
+  public void testOutsideImageFallsBackToStep() {
+    int[] program = {
+        0x00008067, // ret
+    };
+    RV32Core cpu = createPredecodedCPU(program);
+    // ret jumps to an unmapped address, so the next cycle takes an instruction fetch trap
+    assertEquals(2, cpu.runPredecoded(2));
+    assertEquals(0x000001C0, cpu.getPC());
+    assertEquals(retTarget, cpu.mepc);
+    assertEquals(1, cpu.instret);
+  }
+
+  // (funct7, funct3) pairs of the OP instructions
+  private static final int[][] opFunctions = {
+      {0x00, 0}, {0x20, 0}, {0x00, 1}, {0x00, 2}, {0x00, 3}, {0x00, 4}, {0x00, 5}, {0x20, 5},
+      {0x00, 6}, {0x00, 7},
+      {0x01, 0}, {0x01, 1}, {0x01, 2}, {0x01, 3}, {0x01, 4}, {0x01, 5}, {0x01, 6}, {0x01, 7},
+  };
+
+  private static int randomInstruction(Random rng) {
+    int rd = rng.nextInt(32);
+    int rs1 = rng.nextInt(32);
+    int rs2 = rng.nextInt(32);
+    switch (rng.nextInt(6)) {
+    case 0:
+    {
+      // OP
+      int[] f = opFunctions[rng.nextInt(opFunctions.length)];
+      return (f[0] << 25) | (rs2 << 20) | (rs1 << 15) | (f[1] << 12) | (rd << 7) | 0b0110011;
+    }
+    case 1:
+    {
+      // OP-IMM, except shifts
+      int[] funct3s = {0, 2, 3, 4, 6, 7};
+      int imm = rng.nextInt(4096);
+      return (imm << 20) | (rs1 << 15) | (funct3s[rng.nextInt(funct3s.length)] << 12) | (rd << 7) | 0b0010011;
+    }
+    case 2:
+    {
+      // shifts by immediate
+      int[][] shifts = {{0x00, 1}, {0x00, 5}, {0x20, 5}};
+      int[] f = shifts[rng.nextInt(shifts.length)];
+      return (f[0] << 25) | (rng.nextInt(32) << 20) | (rs1 << 15) | (f[1] << 12) | (rd << 7) | 0b0010011;
+    }
+    case 3:
+    {
+      // loads relative to sp (x2), which points into data memory and is never overwritten
+      int[] funct3s = {0, 1, 2, 4, 5};
+      int funct3 = funct3s[rng.nextInt(funct3s.length)];
+      int imm = -4 * (1 + rng.nextInt(64));
+      if (rd == 2) rd = 3;
+      return (imm << 20) | (2 << 15) | (funct3 << 12) | (rd << 7) | 0b0000011;
+    }
+    case 4:
+    {
+      // stores relative to sp
+      int funct3 = rng.nextInt(3);
+      int imm = -4 * (1 + rng.nextInt(64));
+      return ((imm >> 5) << 25) | (rs2 << 20) | (2 << 15) | (funct3 << 12) | ((imm & 0x1F) << 7) | 0b0100011;
+    }
+    default:
+      // LUI / AUIPC
+      if (rd == 2) rd = 3;
+      return (rng.nextInt() & 0xFFFFF000) | (rd << 7) | (rng.nextBoolean() ? 0b0110111 : 0b0010111);
+    }
+  }
+
+  @Test
+  public void testRandomProgramsMatchInterpreter() {
+    Random rng = new Random(0x5EED);
+    for (int trial = 0; trial < 200; ++trial) {
+      int length = 1 + rng.nextInt(20);
+      int[] program = new int[length + 1];
+      for (int i = 0; i < length; ++i) {
+        program[i] = randomInstruction(rng);
+        // keep sp intact for the memory instructions
+        if (((program[i] >> 7) & 0x1F) == 2 && (program[i] & 0x7F) != 0b0100011) {
+          program[i] = (program[i] & ~(0x1F << 7)) | (3 << 7);
+        }
+      }
+      // end with a BLTU back to the start, taken or not depending on the registers
+      int rs1 = rng.nextInt(32);
+      int rs2 = rng.nextInt(32);
+      int offset = -4 * length;
+      int branch = ((offset >> 12) & 1) << 31 | ((offset >> 5) & 0x3F) << 25 | (rs2 << 20) | (rs1 << 15)
+          | (0b110 << 12) | ((offset >> 1) & 0xF) << 8 | ((offset >> 11) & 1) << 7 | 0b1100011;
+      program[length] = branch;
+
+      RV32Core expected = createCPU(program);
+      RV32Core actual = createPredecodedCPU(program);
+      for (int r = 3; r < 32; ++r) {
+        int value = rng.nextInt();
+        expected.setXRegister(r, value);
+        actual.setXRegister(r, value);
+      }
+      for (int i = 0; i < 3 * (length + 1); ++i) {
+        expected.step();
+      }
+      actual.runPredecoded(3 * (length + 1));
+      assertSameState(expected, actual);
+    }
+  }
+
+}
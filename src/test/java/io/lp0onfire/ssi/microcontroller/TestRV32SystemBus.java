@@ -242,4 +242,73 @@ public class TestRV32SystemBus {
     }
   }
   
+  @Test
+  public void testLoadWord_OddPage() throws AddressTrapException {
+    // a single-page peripheral in the page directly after another one
+    // must be reachable and must not alias the previous page
+    bus.attachPeripheral(new TestPeripheral(), baseAddress + 0x400);
+    bus.loadWord(0xE1234520);
+    try {
+      bus.loadWord(0xE1234920);
+      fail("access to unmapped page not detected");
+    } catch (AddressTrapException e) {
+      assertEquals(5, e.getMCause());
+      assertEquals(0xE1234920, e.getBadAddr());
+    }
+  }
+  
+  @Test
+  public void testLoadWord_MappedAfterUnmappedAccess() throws AddressTrapException {
+    try {
+      bus.loadWord(0xABADD120);
+      fail("access to unmapped page not detected");
+    } catch (AddressTrapException e) {
+      assertEquals(5, e.getMCause());
+    }
+    // the page must be visible as soon as something is mapped there
+    bus.attachPeripheral(new TestPeripheral(), 0xABADD000);
+    bus.loadWord(0xABADD120);
+  }
+  
+  @Test
+  public void testFetchBasicBlock_Cached() throws AddressTrapException {
+    RV32BasicBlock block = bus.fetchBasicBlock(0xE1234120);
+    assertNotNull(block);
+    assertSame(block, bus.fetchBasicBlock(0xE1234120));
+  }
+  
+  @Test
+  public void testFetchBasicBlock_ClearedByClearInstructionCache() throws AddressTrapException {
+    RV32BasicBlock block = bus.fetchBasicBlock(0xE1234120);
+    int generation = bus.getInstructionCacheGeneration();
+    bus.clearInstructionCache();
+    assertNotEquals(generation, bus.getInstructionCacheGeneration());
+    assertNotSame(block, bus.fetchBasicBlock(0xE1234120));
+  }
+  
+  @Test
+  public void testFetchBasicBlock_UnmappedPage() {
+    try {
+      bus.fetchBasicBlock(0xABADD00C);
+      fail("access to unmapped page not detected");
+    } catch (AddressTrapException e) {
+      assertEquals(1, e.getMCause());
+      assertEquals(0xABADD00C, e.getBadAddr());
+    }
+  }
+  
+  @Test
+  public void testRepeatedTrapsReportTheirOwnAddress() {
+    for (int address = 0xABADD000; address < 0xABADD100; address += 4) {
+      try {
+        bus.loadWord(address);
+        fail("access to unmapped page not detected");
+      } catch (AddressTrapException e) {
+        assertEquals(5, e.getMCause());
+        assertEquals(address, e.getBadAddr());
+        assertEquals(0, e.getStackTrace().length);
+      }
+    }
+  }
+  
 }
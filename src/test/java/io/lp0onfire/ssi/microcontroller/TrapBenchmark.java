@@ -0,0 +1,70 @@
+package io.lp0onfire.ssi.microcontroller;
+
+// Not a unit test: run its main() to measure how many traps per second the
+// core takes when firmware traps on purpose, e.g. an ECALL into a handler
+// that only bumps mepc past the trapping instruction and returns.
+public class TrapBenchmark {
+
+  private static final int[] handler = {
+      0x341022F3, // csrr t0, mepc
+      0x00428293, // addi t0, t0, 4
+      0x34129073, // csrw mepc, t0
+      0x00140413, // addi s0, s0, 1 -- count traps
+      0x10000073, // eret
+  };
+  
+  private static final int[] ecallLoop = {
+      0x00000073, // 1: ecall
+      0xFFDFF06F, // j 1b
+  };
+  
+  private static final int[] misalignedLoadLoop = {
+      0x00102503, // 1: lw a0, 1(zero)
+      0xFFDFF06F, // j 1b
+  };
+  
+  private static final int[] unmappedStoreLoop = {
+      0x80000337, // lui t1, 0x80000 -- nothing mapped there
+      0x00A32023, // 1: sw a0, 0(t1)
+      0xFFDFF06F, // j 1b
+  };
+  
+  private static void put(byte[] text, int address, int[] program) {
+    for (int i = 0; i < program.length; ++i) {
+      for (int b = 0; b < 4; ++b) {
+        text[address + 4*i + b] = (byte)(program[i] >>> (8*b));
+      }
+    }
+  }
+  
+  private static Microcontroller load(int[] program) {
+    Microcontroller mcu = new Microcontroller(4, 4);
+    byte[] text = new byte[0x200 + program.length * 4];
+    put(text, 0x1C0, handler);
+    put(text, 0x200, program);
+    mcu.getTextMemory().setContents(text);
+    mcu.reset();
+    return mcu;
+  }
+  
+  private static void measure(String name, int[] program, int cycles) {
+    double best = 0.0;
+    for (int round = 0; round < 5; ++round) {
+      Microcontroller mcu = load(program);
+      long t0 = System.nanoTime();
+      mcu.runCycles(cycles);
+      long t1 = System.nanoTime();
+      int traps = mcu.getCPU().getXRegister(8);
+      best = Math.max(best, traps / ((t1 - t0) / 1e9));
+    }
+    System.out.printf("%-16s %12.0f traps/s%n", name, best);
+  }
+  
+  public static void main(String[] args) {
+    int cycles = (args.length > 0) ? Integer.parseInt(args[0]) : 20000000;
+    measure("ecall", ecallLoop, cycles);
+    measure("misaligned load", misalignedLoadLoop, cycles);
+    measure("unmapped store", unmappedStoreLoop, cycles);
+  }
+  
+}
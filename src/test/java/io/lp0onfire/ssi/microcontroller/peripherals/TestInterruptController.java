@@ -1,8 +1,13 @@
 package io.lp0onfire.ssi.microcontroller.peripherals;
 
 import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
 import io.lp0onfire.ssi.microcontroller.AddressTrapException;
 import io.lp0onfire.ssi.microcontroller.IllegalInstructionException;
+import io.lp0onfire.ssi.microcontroller.InterruptLine;
+import io.lp0onfire.ssi.microcontroller.InterruptSource;
 import io.lp0onfire.ssi.microcontroller.RV32Core;
 
 import org.junit.Before;
@@ -190,4 +195,97 @@ public class TestInterruptController {
     assertEquals(30, pic.getInterruptPriority(2));
   }
   
+  class LevelSource implements InterruptSource {
+    boolean level = false;
+    InterruptLine line;
+    
+    void set(boolean level) {
+      this.level = level;
+      if (level) {
+        line.raise();
+      }
+    }
+    
+    @Override
+    public boolean interruptAsserted() {
+      return level;
+    }
+    
+    @Override
+    public void acknowledgeInterrupt() {
+    }
+    
+    @Override
+    public void setInterruptLine(InterruptLine line) {
+      this.line = line;
+    }
+  }
+  
+  @Test
+  public void testSourceRaisesLine() {
+    LevelSource src = new LevelSource();
+    pic.registerInterrupt(src, 3);
+    pic.setMasterEnable(true);
+    pic.setInterruptEnabled(3, true);
+    assertEquals(-1, pic.nextInterrupt());
+    src.set(true);
+    assertEquals(3, pic.nextInterrupt());
+  }
+  
+  @Test
+  public void testAcknowledgeWhileLineHigh() throws AddressTrapException {
+    LevelSource src = new LevelSource();
+    pic.registerInterrupt(src, 3);
+    pic.setMasterEnable(true);
+    pic.setInterruptEnabled(3, true);
+    src.set(true);
+    pic.writeWord(0xEA00100C, 0x00000008);
+    // still asserted, so still pending
+    assertEquals(3, pic.nextInterrupt());
+    src.set(false);
+    pic.writeWord(0xEA00100C, 0x00000008);
+    assertEquals(-1, pic.nextInterrupt());
+  }
+  
+  @Test
+  public void testRegisterAssertedSource() {
+    LevelSource src = new LevelSource();
+    src.level = true;
+    pic.registerInterrupt(src, 7);
+    pic.setMasterEnable(true);
+    pic.setInterruptEnabled(7, true);
+    assertEquals(7, pic.nextInterrupt());
+  }
+  
+  @Test
+  public void testRandomPrioritiesMatchLinearScan() throws AddressTrapException {
+    Random rng = new Random(0x1C);
+    pic.setMasterEnable(true);
+    for (int trial = 0; trial < 1000; ++trial) {
+      for (int i = 0; i < 32; ++i) {
+        if (rng.nextInt(4) == 0) {
+          pic.setInterruptPriority(i, rng.nextInt(32));
+        }
+      }
+      int enabled = rng.nextInt();
+      pic.writeWord(0xEA001004, enabled);
+      pic.writeWord(0xEA00100C, 0xFFFFFFFF);
+      int pending = rng.nextInt() & rng.nextInt();
+      for (int i = 0; i < 32; ++i) {
+        if ((pending & (1 << i)) != 0) {
+          pic.assertInterrupt(i);
+        }
+      }
+      // smallest priority, then smallest interrupt number
+      int expected = -1;
+      for (int i = 0; i < 32; ++i) {
+        if ((pending & enabled & (1 << i)) != 0
+            && (expected == -1 || pic.getInterruptPriority(i) < pic.getInterruptPriority(expected))) {
+          expected = i;
+        }
+      }
+      assertEquals(expected, pic.nextInterrupt());
+    }
+  }
+  
 }
@@ -410,4 +410,44 @@ public class TestInventoryController {
     assertEquals("incorrect object type", BAR_TYPE, objType);
   }
   
+  @Test
+  public void testRestoreCommandInProgress() throws AddressTrapException {
+    LinkedList<Item> buffer1 = controller.getObjectBuffer(1);
+    buffer1.addLast(ComponentLibrary.getInstance().createComponent("foo", testMaterial));
+    buffer1.addLast(ComponentLibrary.getInstance().createComponent("bar", testMaterial));
+    // LIST #0, 1H, stopped part-way through writing its response
+    bus.storeWord(controllerBaseAddress + 0xD0, ramBaseAddress);
+    bus.storeHalfword(controllerBaseAddress + 0x0, (short)(0b0100000000000000 | (1 << 1)));
+    for (int cycle = 0; cycle < 34; ++cycle) {
+      controller.cycle();
+    }
+    assertEquals("precondition failed", 1, numberOfOutstandingCommands());
+    ByteBuffer state = ByteBuffer.allocate(1024);
+    controller.saveState(state);
+    state.flip();
+    
+    for (int cycle = 0; cycle < 10; ++cycle) {
+      controller.cycle();
+    }
+    assertEquals(0, numberOfOutstandingCommands());
+    int[] expected = new int[5];
+    for (int i = 0; i < expected.length; ++i) {
+      expected[i] = bus.loadWord(ramBaseAddress + 4*i);
+      bus.storeWord(ramBaseAddress + 4*i, 0);
+    }
+    
+    // a fresh controller picks up where the saved one was
+    InventoryController restored = new InventoryController(machine, NUMBER_OF_BUFFERS);
+    restored.setSystemBus(bus);
+    restored.restoreState(state);
+    assertEquals(1, restored.readWord(0x0) & 0x00000007);
+    for (int cycle = 0; cycle < 10; ++cycle) {
+      restored.cycle();
+    }
+    assertEquals(0, restored.readWord(0x0) & 0x00000007);
+    for (int i = 2; i < expected.length; ++i) {
+      assertEquals("word " + i, expected[i], bus.loadWord(ramBaseAddress + 4*i));
+    }
+  }
+  
 }
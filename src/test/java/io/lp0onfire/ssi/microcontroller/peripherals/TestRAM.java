@@ -1,6 +1,7 @@
 package io.lp0onfire.ssi.microcontroller.peripherals;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import io.lp0onfire.ssi.microcontroller.AddressTrapException;
 
 import org.junit.Before;
@@ -71,4 +72,67 @@ public class TestRAM {
     assertEquals(expected, actual);
   }
   
+  @Test
+  public void testUntouchedPagesReadZero() throws AddressTrapException {
+    RAM big = new RAM(64);
+    assertEquals(0, big.readWord(0x0000FFFC));
+    assertEquals(0, big.getPrivatePageCount());
+  }
+  
+  @Test
+  public void testSharedPagesCopiedOnWrite() throws AddressTrapException {
+    byte[][] image = RAM.toPages(testContents);
+    RAM ram1 = new RAM(4);
+    RAM ram2 = new RAM(4);
+    ram1.setSharedPages(image);
+    ram2.setSharedPages(image);
+    assertEquals(0x3B8042A5, ram1.readWord(0));
+    assertEquals(0, ram1.getPrivatePageCount());
+    
+    ram1.writeWord(0, 0x12345678);
+    ram1.writeByte(0xC00, 0x99);
+    assertEquals(0x12345678, ram1.readWord(0));
+    assertEquals(0x99, ram1.readByte(0xC00));
+    assertEquals(2, ram1.getPrivatePageCount());
+    // neither the other RAM nor the image are affected
+    assertEquals(0x3B8042A5, ram2.readWord(0));
+    assertEquals(0, ram2.readByte(0xC00));
+    assertEquals((byte)0xA5, image[0][0]);
+    assertEquals(0, ram2.getPrivatePageCount());
+  }
+  
+  @Test
+  public void testSetSharedPagesDiscardsWrites() throws AddressTrapException {
+    ram.writeWord(0x100, 0xCAFEF00D);
+    ram.setSharedPages(RAM.toPages(testContents));
+    assertEquals(0, ram.readWord(0x100));
+    assertEquals(0x3B8042A5, ram.readWord(0));
+    assertTrue(ram.getPrivatePageCount() == 0);
+  }
+  
+  @Test
+  public void testLargeSparseMemory() throws AddressTrapException {
+    // 64 MiB
+    RAM big = new RAM(65536);
+    big.writeWord(0x00000010, 0x11111111);
+    big.writeWord(0x03FFFFFC, 0x22222222);
+    assertEquals(0x11111111, big.readWord(0x00000010));
+    assertEquals(0x22222222, big.readWord(0x03FFFFFC));
+    assertEquals(0, big.readWord(0x02000000));
+    assertEquals(2, big.getPrivatePageCount());
+  }
+  
+  @Test
+  public void testReadAfterFirstWriteToPage() throws AddressTrapException {
+    RAM ram2 = new RAM(4);
+    ram2.setSharedPages(RAM.toPages(testContents));
+    // remember the shared page for reading, then write to it
+    assertEquals(0x42, ram2.readByte(1));
+    ram2.writeByte(1, 0x24);
+    assertEquals(0x24, ram2.readByte(1));
+    assertEquals(0, ram2.readByte(0x801));
+    ram2.writeByte(0x801, 0x55);
+    assertEquals(0x55, ram2.readByte(0x801));
+  }
+  
 }
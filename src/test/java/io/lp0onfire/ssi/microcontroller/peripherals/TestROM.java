@@ -47,4 +47,22 @@ public class TestROM {
     assertEquals(expected, actual);
   }
   
+  @Test
+  public void testSharedContentsNotModified() throws AddressTrapException {
+    ROM rom2 = new ROM(1);
+    rom2.setSharedContents(testContents);
+    assertEquals(0x3B8042A5, rom2.readWord(0));
+    rom2.setContents(new byte[] {0x11});
+    assertEquals(0x3B804211, rom2.readWord(0));
+    assertEquals((byte)0xA5, testContents[0]);
+  }
+  
+  @Test
+  public void testShortImageReadsZeroPastEnd() throws AddressTrapException {
+    ROM rom2 = new ROM(1);
+    rom2.setSharedContents(new byte[] {0x01, 0x02, 0x03, 0x04});
+    assertEquals(0x04030201, rom2.readWord(0));
+    assertEquals(0, rom2.readWord(0x3FC));
+  }
+  
 }
@@ -1,6 +1,10 @@
 package io.lp0onfire.ssi.microcontroller.peripherals;
 
 import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
 import io.lp0onfire.ssi.microcontroller.AddressTrapException;
 
 import org.junit.Test;
@@ -233,4 +237,102 @@ public class TestTimer {
     assertTrue(timer.getMatchInterruptAsserted());
   }
   
+  // two timers in the same random state, near an overflow so that everything happens quickly
+  private Timer[] randomTimers(Random rng) throws AddressTrapException {
+    Timer[] timers = new Timer[2];
+    int counter = 0xFFFFFFFF - rng.nextInt(300);
+    int reload = rng.nextBoolean() ? 0xFFFFFFFF - rng.nextInt(100) : rng.nextInt(100);
+    int match = rng.nextBoolean() ? counter + rng.nextInt(400) : reload + rng.nextInt(100);
+    int prescaler = rng.nextInt(8);
+    boolean prescalerEnable = rng.nextBoolean();
+    boolean autoReload = rng.nextBoolean();
+    int prescalerCycles = rng.nextInt(10);
+    for (int i = 0; i < 2; ++i) {
+      Timer timer = new Timer();
+      timer.setPrescalerPeriod(prescaler);
+      timer.setPrescalerEnable(true);
+      timer.setTimerStart(true);
+      // leave the prescaler part-way through a period
+      for (int c = 0; c < prescalerCycles; ++c) {
+        timer.cycle();
+      }
+      timer.writeWord(0x18, 0x3);
+      timer.setPrescalerEnable(prescalerEnable);
+      timer.setCounter(counter);
+      timer.setReload(reload);
+      timer.setMatch(match);
+      timer.setAutoReloadEnable(autoReload);
+      timers[i] = timer;
+    }
+    return timers;
+  }
+  
+  private void assertSameState(Timer expected, Timer actual) {
+    assertEquals(expected.getCounter(), actual.getCounter());
+    assertEquals(expected.getPrescalerCounter(), actual.getPrescalerCounter());
+    assertEquals(expected.getMatchInterruptAsserted(), actual.getMatchInterruptAsserted());
+    assertEquals(expected.getOverflowInterruptAsserted(), actual.getOverflowInterruptAsserted());
+  }
+  
+  @Test
+  public void testSkipCyclesMatchesCycle() throws AddressTrapException {
+    Random rng = new Random(1234);
+    for (int trial = 0; trial < 2000; ++trial) {
+      Timer[] timers = randomTimers(rng);
+      int cycles = rng.nextInt(3000);
+      for (int c = 0; c < cycles; ++c) {
+        timers[0].cycle();
+      }
+      timers[1].skipCycles(cycles);
+      assertSameState(timers[0], timers[1]);
+    }
+  }
+  
+  @Test
+  public void testIdleCyclesEndAtNextInterruptFlag() throws AddressTrapException {
+    Random rng = new Random(4321);
+    for (int trial = 0; trial < 2000; ++trial) {
+      Timer timer = randomTimers(rng)[0];
+      long idle = timer.getIdleCycles();
+      assertTrue(idle < 1000000L);
+      for (long c = 0; c < idle; ++c) {
+        timer.cycle();
+      }
+      assertFalse(timer.getMatchInterruptAsserted());
+      assertFalse(timer.getOverflowInterruptAsserted());
+      timer.cycle();
+      assertTrue(timer.getMatchInterruptAsserted() || timer.getOverflowInterruptAsserted());
+    }
+  }
+  
+  @Test
+  public void testStoppedTimerIsIdle() {
+    Timer timer = new Timer();
+    timer.setCounter(0xFFFFFFFF);
+    assertEquals(Long.MAX_VALUE, timer.getIdleCycles());
+    timer.skipCycles(1000);
+    assertEquals(0xFFFFFFFF, timer.getCounter());
+  }
+  
+  @Test
+  public void testRestoredTimerMatchesOriginal() throws AddressTrapException {
+    Random rng = new Random(2468);
+    for (int trial = 0; trial < 200; ++trial) {
+      Timer[] timers = randomTimers(rng);
+      timers[0].cycle();
+      ByteBuffer state = ByteBuffer.allocate(256);
+      timers[0].saveState(state);
+      state.flip();
+      Timer copy = new Timer();
+      copy.restoreState(state);
+      assertFalse(state.hasRemaining());
+      int cycles = rng.nextInt(3000);
+      for (int c = 0; c < cycles; ++c) {
+        timers[0].cycle();
+        copy.cycle();
+      }
+      assertSameState(timers[0], copy);
+    }
+  }
+  
 }
@@ -0,0 +1,262 @@
+package io.lp0onfire.ssi.model;
+
+import static org.junit.Assert.*;
+
+import io.lp0onfire.ssi.TimeConstants;
+import io.lp0onfire.ssi.microcontroller.AddressTrapException;
+import io.lp0onfire.ssi.microcontroller.ELFImage;
+import io.lp0onfire.ssi.microcontroller.Microcontroller;
+import io.lp0onfire.ssi.microcontroller.RV32SystemBus;
+import io.lp0onfire.ssi.microcontroller.peripherals.RAM;
+import io.lp0onfire.ssi.microcontroller.peripherals.SensorSystem;
+import io.lp0onfire.ssi.microcontroller.peripherals.Timer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+public class IntTestParallelPreprocess {
+
+  // A machine that, while preprocessing, runs a local scan with its own
+  // sensor system (as TestSensorSystem does) and keeps the UUIDs it found.
+  static class ScanningMachine extends Machine {
+
+    private static final int RAM_BASE = 0x10000000;
+    private static final int RESPONSE_BUFFER = RAM_BASE + 0x1000;
+    private static final int SENSOR_BASE = 0xF0000000;
+
+    private final RV32SystemBus bus = new RV32SystemBus();
+    private SensorSystem sensors;
+    private final List<UUID> found = new ArrayList<>();
+
+    void attach(World world) {
+      bus.attachPeripheral(new RAM(8), RAM_BASE);
+      sensors = new SensorSystem(this, world);
+      sensors.setSystemBus(bus);
+      bus.attachPeripheral(sensors, SENSOR_BASE);
+    }
+
+    List<UUID> getFound() {
+      return found;
+    }
+
+    @Override
+    public void preprocess() {
+      found.clear();
+      try {
+        // query: local scan, as many objects as fit, response buffer address and size
+        bus.storeWord(RAM_BASE, (Short.MAX_VALUE << 16) | 1);
+        bus.storeWord(RAM_BASE + 4, RESPONSE_BUFFER);
+        bus.storeWord(RAM_BASE + 8, 0x1000);
+        bus.storeWord(SENSOR_BASE, RAM_BASE);
+        for (int c = 0; c < 3000 && (bus.loadWord(SENSOR_BASE) & 1) == 0; ++c) {
+          sensors.cycle();
+        }
+        assertEquals(1, bus.loadWord(SENSOR_BASE));
+        int records = bus.loadWord(RESPONSE_BUFFER + 4) & 0xFFFF;
+        for (int i = 0; i < records; ++i) {
+          int record = RESPONSE_BUFFER + 8 + 24 * i;
+          long low = (bus.loadWord(record) & 0xFFFFFFFFL) | ((long)bus.loadWord(record + 4) << 32);
+          long high = (bus.loadWord(record + 8) & 0xFFFFFFFFL) | ((long)bus.loadWord(record + 12) << 32);
+          found.add(new UUID(high, low));
+        }
+      } catch (AddressTrapException e) {
+        fail("bus error");
+      }
+    }
+
+    @Override
+    public boolean impedesXYMovement() {
+      return false;
+    }
+
+    @Override
+    public boolean impedesZMovement() {
+      return false;
+    }
+
+    @Override
+    public boolean impedesXYFluidFlow() {
+      return false;
+    }
+
+    @Override
+    public boolean impedesZFluidFlow() {
+      return false;
+    }
+
+    @Override
+    public boolean supportsOthers() {
+      return false;
+    }
+
+    @Override
+    public boolean needsSupport() {
+      return false;
+    }
+
+    @Override
+    public boolean canMove() {
+      return false;
+    }
+
+    @Override
+    public Vector getExtents() {
+      return new Vector(1, 1, 1);
+    }
+
+    @Override
+    public boolean hasWorldUpdates() {
+      return false;
+    }
+
+    @Override
+    public int getType() {
+      return 0;
+    }
+
+    @Override
+    public int getNumberOfManipulators() {
+      return 0;
+    }
+
+    @Override
+    public ManipulatorType getManipulatorType(int mIdx) {
+      return null;
+    }
+
+  }
+
+  private static final int ROBOTS = 8;
+
+  private World world;
+  private IntTestWorldJournal.TestRobot[] robots;
+
+  private void buildWorld() throws IOException {
+    world = new World(16, 16, 1L);
+    ELFImage elf = ELFImage.load(new File(getClass().getClassLoader().getResource("programs/test_timer_1.rv32").getFile()));
+    robots = new IntTestWorldJournal.TestRobot[ROBOTS];
+    for (int i = 0; i < robots.length; ++i) {
+      Microcontroller mcu = new Microcontroller(4, 5);
+      mcu.attachPeripheral(new Timer(), 0xE9000000);
+      robots[i] = new IntTestWorldJournal.TestRobot(mcu);
+      int half = TimeConstants.SUBVOXELS_PER_VOXEL / 2;
+      assertTrue(world.addOccupant(new Vector(i, 2 * (i % 4), 1), new Vector(half, half, half), robots[i]));
+      // stagger the robots so that no two are in the same state
+      mcu.loadELF(elf);
+      mcu.reset();
+      mcu.runCycles(1000 * i);
+    }
+  }
+
+  private String run(ForkJoinPool pool) throws IOException {
+    buildWorld();
+    world.setPreprocessPool(pool);
+    for (int t = 0; t < 4; ++t) {
+      world.timestep();
+    }
+    StringBuilder sb = new StringBuilder();
+    for (IntTestWorldJournal.TestRobot robot : robots) {
+      ByteBuffer mcuState = ByteBuffer.allocate(1 << 16);
+      robot.getMCU().saveState(mcuState);
+      for (int i = 0; i < mcuState.position(); ++i) {
+        sb.append(Integer.toHexString(mcuState.get(i) & 0xFF));
+      }
+      sb.append('\n');
+    }
+    return sb.toString();
+  }
+
+  @Test
+  public void testParallelMatchesSerial() throws IOException {
+    String serial = run(null);
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      assertEquals(serial, run(pool));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testLocalScanUnderPool() {
+    World w = new World(8, 8, 1L);
+    // in pairs, so that each one's scan finds only the other
+    ScanningMachine[] scanners = new ScanningMachine[ROBOTS];
+    for (int i = 0; i < scanners.length; ++i) {
+      scanners[i] = ObjectIDs.withAllocator(w.getIDAllocator(), ScanningMachine::new);
+      scanners[i].attach(w);
+      assertTrue(w.addOccupant(new Vector(i / 2, 1, 1), new Vector(0, 0, 0), scanners[i]));
+    }
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      w.setPreprocessPool(pool);
+      for (int t = 0; t < 2; ++t) {
+        w.timestep();
+        for (int i = 0; i < scanners.length; ++i) {
+          assertEquals(1, scanners[i].getFound().size());
+          assertEquals(scanners[i ^ 1].getUUID(), scanners[i].getFound().get(0));
+        }
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testNoObjectsCreatedWhilePreprocessing() {
+    World w = new World(4, 4);
+    ForkJoinPool pool = new ForkJoinPool(2);
+    try {
+      w.setPreprocessPool(pool);
+      Throwable[] caught = new Throwable[2];
+      for (int i = 0; i < caught.length; ++i) {
+        int n = i;
+        IntTestWorldJournal.TestRobot robot = new IntTestWorldJournal.TestRobot(null) {
+          @Override
+          public void preprocess() {
+            try {
+              new TransportTube("test");
+            } catch (IllegalStateException e) {
+              caught[n] = e;
+            }
+          }
+        };
+        assertTrue(w.addOccupant(new Vector(1 + i, 1, 1), new Vector(0, 0, 0), robot));
+      }
+      w.timestep();
+      assertNotNull(caught[0]);
+      assertNotNull(caught[1]);
+    } finally {
+      pool.shutdown();
+    }
+    // and only then
+    assertNotNull(new TransportTube("test"));
+  }
+
+  @Test
+  public void testWorldIsReadOnlyWhilePreprocessing() {
+    World w = new World(4, 4);
+    Throwable[] caught = new Throwable[1];
+    IntTestWorldJournal.TestRobot robot = new IntTestWorldJournal.TestRobot(null) {
+      @Override
+      public void preprocess() {
+        try {
+          setVelocity(new Vector(1, 0, 0));
+        } catch (IllegalStateException e) {
+          caught[0] = e;
+        }
+      }
+    };
+    assertTrue(w.addOccupant(new Vector(1, 1, 1), new Vector(0, 0, 0), robot));
+    w.timestep();
+    assertNotNull(caught[0]);
+  }
+
+}
@@ -0,0 +1,250 @@
+package io.lp0onfire.ssi.model;
+
+import static org.junit.Assert.*;
+
+import io.lp0onfire.ssi.TimeConstants;
+import io.lp0onfire.ssi.microcontroller.Microcontroller;
+import io.lp0onfire.ssi.microcontroller.peripherals.Timer;
+import io.lp0onfire.ssi.model.items.Component;
+import io.lp0onfire.ssi.model.robots.AxialThrustRobot;
+import io.lp0onfire.ssi.model.structures.Block;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+public class IntTestWorldJournal {
+
+  static class TestRobot extends AxialThrustRobot {
+
+    public TestRobot(Microcontroller mcu) {
+      super(mcu);
+    }
+
+    @Override
+    public int engine_getIdentification(int eIdx) {
+      return 0;
+    }
+
+    @Override
+    protected double getThrusterForce() {
+      return 1.0;
+    }
+
+    @Override
+    protected int getThrusterMaxPowerLevel() {
+      return 256;
+    }
+
+    @Override
+    protected int getThrusterPowerSlewRate() {
+      return 256;
+    }
+
+    @Override
+    public double getMass() {
+      return 1.0;
+    }
+
+    @Override
+    public int getNumberOfManipulators() {
+      return 0;
+    }
+
+    @Override
+    public ManipulatorType getManipulatorType(int mIdx) {
+      return null;
+    }
+
+    @Override
+    public int getType() {
+      return 0;
+    }
+
+  }
+
+  private static final long SEED = 0x5EEDL;
+
+  private World world;
+  private TestRobot[] robots;
+
+  // the same construction code for recording and for replay
+  private void buildWorld() {
+    world = new World(16, 16, SEED);
+    world.registerCommand("thrust", (w, target, argument) ->
+        ((Robot)target).engine_setControl(argument[0], argument[1] & 0xFF));
+    robots = new TestRobot[2];
+    for (int i = 0; i < robots.length; ++i) {
+      Microcontroller mcu = new Microcontroller(4, 5);
+      mcu.attachPeripheral(new Timer(), 0xE9000000);
+      robots[i] = ObjectIDs.withAllocator(world.getIDAllocator(), () -> new TestRobot(mcu));
+      int half = TimeConstants.SUBVOXELS_PER_VOXEL / 2;
+      assertTrue(world.addOccupant(new Vector(4 + 4 * i, 8, 1), new Vector(half, half, half), robots[i]));
+    }
+  }
+
+  private File firmware() {
+    return new File(getClass().getClassLoader().getResource("programs/test_timer_1.rv32").getFile());
+  }
+
+  // everything the two runs should agree on
+  private String state() {
+    StringBuilder sb = new StringBuilder();
+    for (TestRobot robot : robots) {
+      sb.append(robot.getUUID()).append(robot.getPosition()).append(robot.getSubvoxelPosition())
+        .append(robot.getVelocity()).append(robot.getSubvoxelVelocity()).append('\n');
+      ByteBuffer mcuState = ByteBuffer.allocate(1 << 16);
+      robot.getMCU().saveState(mcuState);
+      for (int i = 0; i < mcuState.position(); ++i) {
+        sb.append(Integer.toHexString(mcuState.get(i) & 0xFF));
+      }
+      sb.append('\n');
+    }
+    return sb.toString();
+  }
+
+  @Test
+  public void testReplayReproducesRun() throws IOException {
+    buildWorld();
+    ByteArrayOutputStream recorded = new ByteArrayOutputStream();
+    WorldJournal journal = new WorldJournal(world, recorded);
+    world.setJournal(journal);
+    world.loadFirmware(robots[0], firmware());
+    world.timestep();
+    world.executeCommand("thrust", robots[1], new byte[] {0, (byte)200});
+    world.timestep();
+    world.loadFirmware(robots[1], firmware());
+    world.executeCommand("thrust", robots[0], new byte[] {2, (byte)100});
+    world.timestep();
+    world.timestep();
+    journal.flush();
+    String expected = state();
+    assertEquals(4, world.getTimestepCount());
+    assertNotEquals(new Vector(8, 8, 1), robots[1].getPosition());
+
+    buildWorld();
+    long timesteps = WorldJournal.replay(new ByteArrayInputStream(recorded.toByteArray()), world);
+    assertEquals(4, timesteps);
+    assertEquals(expected, state());
+  }
+
+  // a material whose blocks drop each of several components half the time
+  private static Material oreMaterial() {
+    MaterialBuilder builder = new MaterialBuilder();
+    builder.setMaterialName("test ore");
+    builder.setType(99);
+    builder.setDurabilityModifier(1.0);
+    List<MiningProduct> products = new ArrayList<>();
+    for (int i = 0; i < 4; ++i) {
+      int type = 100 + i;
+      products.add(new MiningProduct(0.5) {
+        @Override
+        public Item getProduct(Material baseMaterial) {
+          return new Component(baseMaterial, "chunk", type);
+        }
+      });
+    }
+    builder.setMiningProducts(products);
+    return builder.build();
+  }
+
+  private List<Block> buildMine(Material ore) {
+    world.registerCommand("mine", (w, target, argument) ->
+        new ReduceDurabilityUpdate(target, Integer.MAX_VALUE).apply(w));
+    List<Block> blocks = new ArrayList<>();
+    for (int x = 0; x < 8; ++x) {
+      Block block = ObjectIDs.withAllocator(world.getIDAllocator(), () -> new Block(ore));
+      assertTrue(world.addOccupant(new Vector(x, 2, 1), new Vector(0, 0, 0), block));
+      blocks.add(block);
+    }
+    return blocks;
+  }
+
+  // what is left where the blocks were
+  private String drops() {
+    StringBuilder sb = new StringBuilder();
+    for (int x = 0; x < 8; ++x) {
+      for (VoxelOccupant obj : world.getOccupants(new Vector(x, 2, 1))) {
+        sb.append(x).append(' ').append(obj.getUUID()).append(' ').append(obj.getType()).append('\n');
+      }
+    }
+    return sb.toString();
+  }
+
+  private String replayMining(boolean otherThread) throws Exception {
+    Material ore = oreMaterial();
+    buildWorld();
+    List<Block> blocks = buildMine(ore);
+    ByteArrayOutputStream recorded = new ByteArrayOutputStream();
+    WorldJournal journal = new WorldJournal(world, recorded);
+    world.setJournal(journal);
+    for (Block block : blocks) {
+      world.executeCommand("mine", block, new byte[0]);
+      world.timestep();
+    }
+    journal.flush();
+    String expected = drops();
+    // some blocks dropped something, and not all dropped everything
+    assertFalse(expected.isEmpty());
+    assertTrue(expected.split("\n").length < 4 * blocks.size());
+
+    buildWorld();
+    buildMine(ore);
+    Callable<Long> replay = () -> WorldJournal.replay(new ByteArrayInputStream(recorded.toByteArray()), world);
+    long timesteps;
+    if (otherThread) {
+      // built on this thread, run on another
+      ExecutorService executor = Executors.newSingleThreadExecutor();
+      try {
+        timesteps = executor.submit(replay).get();
+      } finally {
+        executor.shutdown();
+      }
+    } else {
+      timesteps = replay.call();
+    }
+    assertEquals(blocks.size(), timesteps);
+    assertEquals(expected, drops());
+    return expected;
+  }
+
+  @Test
+  public void testReplayReproducesMining() throws Exception {
+    replayMining(false);
+  }
+
+  @Test
+  public void testReplayOnAnotherThread() throws Exception {
+    assertEquals(replayMining(false), replayMining(true));
+  }
+
+  @Test
+  public void testSeededIDs() {
+    World first = new World(4, 4, SEED);
+    VoxelOccupant a = first.getOccupants(new Vector(3, 2, 0)).iterator().next();
+    World second = new World(4, 4, SEED);
+    VoxelOccupant b = second.getOccupants(new Vector(3, 2, 0)).iterator().next();
+    assertEquals(a.getUUID(), b.getUUID());
+    assertEquals(4, a.getUUID().version());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testReplayIntoDifferentWorld() throws IOException {
+    buildWorld();
+    ByteArrayOutputStream recorded = new ByteArrayOutputStream();
+    world.setJournal(new WorldJournal(world, recorded));
+    world.timestep();
+    World other = new World(16, 16, SEED + 1);
+    WorldJournal.replay(new ByteArrayInputStream(recorded.toByteArray()), other);
+  }
+
+}
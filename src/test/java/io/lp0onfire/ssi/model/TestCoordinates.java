@@ -0,0 +1,44 @@
+package io.lp0onfire.ssi.model;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TestCoordinates {
+
+  @Test
+  public void testRoundTrip() {
+    int[] values = {0, 1, -1, 15, 16, -16, 1000, Coordinates.MIN_COMPONENT, Coordinates.MAX_COMPONENT};
+    for (int x : values) {
+      for (int y : values) {
+        for (int z : values) {
+          long p = Coordinates.pack(x, y, z);
+          assertEquals(x, Coordinates.x(p));
+          assertEquals(y, Coordinates.y(p));
+          assertEquals(z, Coordinates.z(p));
+          assertEquals(new Vector(x, y, z), Coordinates.toVector(p));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testOffset() {
+    long p = Coordinates.pack(3, 0, -2);
+    assertEquals(Coordinates.pack(2, -1, 0), Coordinates.offset(p, -1, -1, 2));
+    assertEquals(Coordinates.pack(new Vector(3, 0, -2)), p);
+  }
+
+  @Test
+  public void testWorldOverloadsAgree() {
+    World w = new World(20, 20);
+    Vector v = new Vector(17, 3, 0);
+    long p = Coordinates.pack(v);
+    assertEquals(w.getOccupants(v), w.getOccupants(p));
+    assertEquals(w.getOccupants(v), w.getOccupants(17, 3, 0));
+    assertEquals(1, w.getOccupants(p).size());
+    assertFalse(w.inBounds(Coordinates.pack(20, 3, 1)));
+    assertTrue(w.getOccupants(Coordinates.pack(-1, 3, 0)).isEmpty());
+  }
+
+}
@@ -0,0 +1,85 @@
+package io.lp0onfire.ssi.model;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import org.junit.Test;
+
+public class TestSequentialIDAllocator {
+
+  @Test
+  public void testSameSeedSameIDs() {
+    SequentialIDAllocator a = new SequentialIDAllocator(42L);
+    SequentialIDAllocator b = new SequentialIDAllocator(42L);
+    for (int i = 0; i < 10000; ++i) {
+      long id = a.nextID();
+      assertEquals(i + 1, id);
+      assertEquals(id, b.nextID());
+      assertEquals(a.toUUID(id), b.toUUID(id));
+    }
+  }
+
+  @Test
+  public void testUUIDForm() {
+    SequentialIDAllocator a = new SequentialIDAllocator(42L);
+    long id = a.nextID();
+    UUID uuid = a.toUUID(id);
+    assertEquals(4, uuid.version());
+    assertEquals(2, uuid.variant());
+    assertEquals(id, ObjectIDs.compactID(uuid));
+    assertNotEquals(uuid, new SequentialIDAllocator(43L).toUUID(id));
+  }
+
+  @Test
+  public void testThreadsGetDistinctIDs() throws InterruptedException {
+    SequentialIDAllocator a = new SequentialIDAllocator(42L);
+    int perThread = 10000;
+    long[][] ids = new long[4][perThread];
+    Thread[] threads = new Thread[ids.length];
+    for (int t = 0; t < threads.length; ++t) {
+      long[] mine = ids[t];
+      threads[t] = new Thread(() -> {
+        for (int i = 0; i < mine.length; ++i) {
+          mine[i] = a.nextID();
+        }
+      });
+      threads[t].start();
+    }
+    Set<Long> seen = new HashSet<>();
+    for (int t = 0; t < threads.length; ++t) {
+      threads[t].join();
+      for (long id : ids[t]) {
+        assertTrue(seen.add(id));
+      }
+    }
+  }
+
+  @Test
+  public void testSequenceDoesNotDependOnThread() throws InterruptedException {
+    SequentialIDAllocator a = new SequentialIDAllocator(42L);
+    assertEquals(1, a.nextID());
+    long[] other = new long[1];
+    Thread thread = new Thread(() -> other[0] = a.nextID());
+    thread.start();
+    thread.join();
+    assertEquals(2, other[0]);
+    assertEquals(3, a.nextID());
+  }
+
+  @Test
+  public void testWorldAllocatorNamesObjects() {
+    World world = new World(4, 4, 42L);
+    VoxelOccupant bedrock = world.getOccupants(new Vector(0, 0, 0)).iterator().next();
+    assertEquals(world.getIDAllocator().toUUID(bedrock.getID()), bedrock.getUUID());
+    VoxelOccupant other = ObjectIDs.withAllocator(world.getIDAllocator(), () -> new TransportTube("test"));
+    assertEquals(bedrock.getUUID().getMostSignificantBits(), other.getUUID().getMostSignificantBits());
+    // the allocator is only in effect while the world is using it
+    assertNotSame(world.getIDAllocator(), ObjectIDs.getAllocator());
+    world.timestep();
+    assertNotSame(world.getIDAllocator(), ObjectIDs.getAllocator());
+  }
+
+}
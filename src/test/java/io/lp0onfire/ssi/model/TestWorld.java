@@ -6,6 +6,7 @@ import io.lp0onfire.ssi.model.structures.Bedrock;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
+import java.util.UUID;
 
 import org.junit.Test;
 
@@ -242,5 +243,89 @@ public class TestWorld {
     assertFalse(w.getOccupants(new Vector(2, 0, 1)).contains(obj));
   }
   
+  @Test
+  public void testLargeObjectOccupiesEveryVoxel() {
+    World w = new World(40, 40);
+    // 3x3x3, straddling chunk boundaries in every direction
+    VoxelOccupant obj = new TestObject() {
+      @Override
+      public Vector getExtents() {
+        return new Vector(3, 3, 3);
+      }
+    };
+    Vector position = new Vector(15, 15, 15);
+    assertTrue(w.addOccupant(position, new Vector(0, 0, 0), obj));
+    for (int x = 14; x <= 18; ++x) {
+      for (int y = 14; y <= 18; ++y) {
+        for (int z = 14; z <= 18; ++z) {
+          boolean inside = x >= 15 && x < 18 && y >= 15 && y < 18 && z >= 15 && z < 18;
+          assertEquals(inside, w.getOccupants(new Vector(x, y, z)).contains(obj));
+        }
+      }
+    }
+    // a wall anywhere in its footprint keeps another one out
+    Bedrock wall = new Bedrock();
+    assertTrue(w.addOccupant(new Vector(20, 20, 17), new Vector(0, 0, 0), wall));
+    VoxelOccupant other = new TestObject() {
+      @Override
+      public Vector getExtents() {
+        return new Vector(3, 3, 3);
+      }
+    };
+    assertFalse(w.canOccupy(new Vector(18, 18, 16), other));
+    assertTrue(w.canOccupy(new Vector(18, 18, 18), other));
+    assertEquals(obj, w.findOccupant(obj.getUUID()));
+    UUID previous = obj.getUUID();
+    obj.setUUID(UUID.randomUUID());
+    assertNull(w.findOccupant(previous));
+    assertEquals(obj, w.findOccupant(obj.getUUID()));
+    
+    w.removeOccupant(obj);
+    assertTrue(w.getOccupants(position, obj.getExtents()).isEmpty());
+    assertNull(w.findOccupant(obj.getUUID()));
+  }
+  
+  @Test
+  public void testSharedVoxel() {
+    World w = new World(10, 5);
+    VoxelOccupant a = new TestObject();
+    VoxelOccupant b = new TestObject();
+    VoxelOccupant c = new TestObject();
+    Vector position = new Vector(3, 3, 1);
+    assertTrue(w.addOccupant(position, new Vector(0, 0, 0), a));
+    assertTrue(w.addOccupant(position, new Vector(0, 0, 0), b));
+    assertTrue(w.addOccupant(position, new Vector(0, 0, 0), c));
+    assertArrayEquals(new Object[] {a, b, c}, w.getOccupants(position).toArray());
+    w.removeOccupant(b);
+    assertArrayEquals(new Object[] {a, c}, w.getOccupants(position).toArray());
+    w.removeOccupant(a);
+    assertArrayEquals(new Object[] {c}, w.getOccupants(position).toArray());
+  }
+  
+  @Test
+  public void testRegistriesFollowObjects() {
+    World w = new World(100, 100);
+    // the bedrock layer does nothing on its own
+    assertEquals(0, w.getActiveObjectCount());
+    assertEquals(0, w.getMovingObjectCount());
+    VoxelOccupant obj = new TestObject();
+    assertTrue(w.addOccupant(new Vector(0, 0, 1), new Vector(0, 0, 0), obj));
+    assertEquals(1, w.getActiveObjectCount());
+    assertEquals(0, w.getMovingObjectCount());
+    // velocity set after placing still gets the object moved
+    obj.setVelocity(new Vector(1, 0, 0));
+    assertEquals(1, w.getMovingObjectCount());
+    w.timestep();
+    assertEquals(new Vector(1, 0, 1), obj.getPosition());
+    obj.setVelocity(new Vector(0, 0, 0));
+    assertEquals(0, w.getMovingObjectCount());
+    w.timestep();
+    assertEquals(new Vector(1, 0, 1), obj.getPosition());
+    w.removeOccupant(obj);
+    assertEquals(0, w.getActiveObjectCount());
+    // and nothing tracks it once it is gone
+    obj.setVelocity(new Vector(1, 0, 0));
+    assertEquals(0, w.getMovingObjectCount());
+  }
+  
 }
-
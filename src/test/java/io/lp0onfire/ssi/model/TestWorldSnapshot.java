@@ -0,0 +1,141 @@
+package io.lp0onfire.ssi.model;
+
+import static org.junit.Assert.*;
+import io.lp0onfire.ssi.model.structures.Bedrock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestWorldSnapshot {
+
+  class TestObject extends Machine {
+
+    // where this saw itself in the snapshot, each time it was preprocessed
+    List<Vector> seenAt = new ArrayList<>();
+    World world;
+
+    @Override
+    public void preprocess() {
+      for (int x = 0; x < world.getXDim(); ++x) {
+        if (world.getSnapshot().getOccupants(x, 0, 1).contains(this)) {
+          seenAt.add(new Vector(x, 0, 1));
+        }
+      }
+    }
+
+    @Override
+    public boolean impedesXYMovement() {
+      return false;
+    }
+    
+    @Override
+    public boolean impedesZMovement() {
+      return false;
+    }
+
+    @Override
+    public boolean impedesXYFluidFlow() {
+      return false;
+    }
+
+    @Override
+    public boolean impedesZFluidFlow() {
+      return false;
+    }
+
+    @Override
+    public boolean supportsOthers() {
+      return false;
+    }
+
+    @Override
+    public boolean needsSupport() {
+      return false;
+    }
+
+    @Override
+    public boolean canMove() {
+      return true;
+    }
+
+    @Override
+    public Vector getExtents() {
+      return new Vector(1, 1, 1);
+    }
+
+    @Override
+    public boolean hasWorldUpdates() {
+      return false;
+    }
+    
+    @Override
+    public int getType() {
+      return 0;
+    }
+
+    @Override
+    public int getNumberOfManipulators() {
+      return 0;
+    }
+
+    @Override
+    public ManipulatorType getManipulatorType(int mIdx) {
+      return null;
+    }
+    
+  };
+
+  @Test
+  public void testSnapshotFollowsChangesBetweenTimesteps() {
+    World w = new World(40, 5);
+    WorldSnapshot first = w.getSnapshot();
+    assertEquals(1, first.getOccupants(new Vector(33, 4, 0)).size());
+    assertTrue(first.getOccupants(33, 4, 0).get(0) instanceof Bedrock);
+    // nothing changed, nothing published
+    assertSame(first, w.getSnapshot());
+
+    Bedrock wall = new Bedrock();
+    assertTrue(w.addOccupant(new Vector(20, 2, 17), new Vector(0, 0, 0), wall));
+    // only published when asked for
+    assertSame(first, w.getSnapshot());
+    assertTrue(first.getOccupants(20, 2, 17).isEmpty());
+    w.publishSnapshot();
+    WorldSnapshot second = w.getSnapshot();
+    assertEquals(first.getVersion() + 1, second.getVersion());
+    assertTrue(second.getOccupants(20, 2, 17).contains(wall));
+    assertTrue(second.getOccupants(33, 4, 0).get(0) instanceof Bedrock);
+
+    // the next snapshot goes into the first buffer, which must catch up too
+    w.removeOccupant(wall);
+    w.publishSnapshot();
+    WorldSnapshot third = w.getSnapshot();
+    assertSame(first, third);
+    assertTrue(third.getOccupants(20, 2, 17).isEmpty());
+    assertTrue(third.getOccupants(33, 4, 0).get(0) instanceof Bedrock);
+    assertTrue(third.getOccupants(-1, 0, 0).isEmpty());
+  }
+
+  @Test
+  public void testTimestepSeesStartOfTimestep() {
+    World w = new World(10, 5);
+    TestObject obj = new TestObject();
+    obj.world = w;
+    obj.setVelocity(new Vector(1, 0, 0));
+    assertTrue(w.addOccupant(new Vector(0, 0, 1), new Vector(0, 0, 0), obj));
+    for (int t = 0; t < 4; ++t) {
+      w.timestep();
+      // afterwards, the world and its snapshot agree again
+      assertTrue(w.getSnapshot().getOccupants(obj.getPosition()).contains(obj));
+      assertTrue(w.getSnapshot().getOccupants(t, 0, 1).isEmpty());
+    }
+    assertEquals(new Vector(4, 0, 1), obj.getPosition());
+    List<Vector> expected = new ArrayList<>();
+    for (int t = 0; t < 4; ++t) {
+      expected.add(new Vector(t, 0, 1));
+    }
+    assertEquals(expected, obj.seenAt);
+  }
+
+}